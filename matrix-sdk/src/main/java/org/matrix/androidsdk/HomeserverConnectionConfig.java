@@ -21,6 +21,7 @@ import android.net.Uri;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.matrix.androidsdk.network.MXHttpTransport;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.ssl.Fingerprint;
 
@@ -37,6 +38,9 @@ public class HomeserverConnectionConfig {
     private Credentials mCredentials;
     private boolean mPin;
 
+    // the http transport shared by the rest clients and the medias workers
+    private MXHttpTransport mHttpTransport;
+
     /**
      * @param hsUri The URI to use to connect to the homeserver
      */
@@ -115,6 +119,17 @@ public class HomeserverConnectionConfig {
     public Credentials getCredentials() { return mCredentials; }
     public void setCredentials(Credentials credentials) { this.mCredentials = credentials; }
 
+    /**
+     * The transport is created at the first call.
+     * @return the http transport to use with this config.
+     */
+    public synchronized MXHttpTransport getHttpTransport() {
+        if (null == mHttpTransport) {
+            mHttpTransport = new MXHttpTransport(this);
+        }
+        return mHttpTransport;
+    }
+
 
     /**
      * @return whether we should reject X509 certs that were issued by trusts CAs and only trust
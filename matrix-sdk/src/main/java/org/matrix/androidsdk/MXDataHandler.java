@@ -33,6 +33,7 @@ import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.data.RoomSummary;
 import org.matrix.androidsdk.db.MXMediasCache;
 import org.matrix.androidsdk.listeners.IMXEventListener;
+import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
@@ -48,6 +49,8 @@ import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.ReceiptData;
 import org.matrix.androidsdk.rest.model.RoomAliasDescription;
 import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.Sync.InvitedRoomSync;
+import org.matrix.androidsdk.rest.model.Sync.RoomSync;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
@@ -55,16 +58,24 @@ import org.matrix.androidsdk.rest.model.bingrules.BingRuleSet;
 import org.matrix.androidsdk.rest.model.bingrules.BingRulesResponse;
 import org.matrix.androidsdk.rest.model.bingrules.Condition;
 import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.sync.SyncResponseStream;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.MXOsHandler;
+import org.matrix.androidsdk.util.MXWorkersPool;
 
+import java.io.IOException;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import android.os.Handler;
 
 import com.google.gson.FieldNamingPolicy;
@@ -93,7 +104,12 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     private IMXEventListener mCryptoEventsListener = null;
-    private final List<IMXEventListener> mEventListeners = new ArrayList<>();
+    // copy on write : the list is replaced at each update so it can be dispatched without being copied
+    private List<IMXEventListener> mEventListeners = Collections.emptyList();
+
+    // the room scoped listeners, by room id
+    // they only receive the callbacks of their room, the lists are copy on write too
+    private final Map<String, List<IMXEventListener>> mRoomEventListeners = new HashMap<>();
 
     private final IMXStore mStore;
     private final Credentials mCredentials;
@@ -117,6 +133,10 @@ public class MXDataHandler implements IMXEventListener {
     private final MXOsHandler mSyncHandler;
     private final MXOsHandler mUiHandler;
 
+    // the workers which manage the rooms syncs of a sync response in parallel
+    // null -> the rooms syncs are managed one by one by the sync thread
+    private volatile MXWorkersPool mSyncRoomsWorkers;
+
     // list of ignored users
     // null -> not initialized
     // should be retrieved from the store
@@ -130,6 +150,9 @@ public class MXDataHandler implements IMXEventListener {
     // by default, they are not supported
     private boolean mAreLeftRoomsSynced;
 
+    // the sync responses only contain the members of the timeline events senders
+    private volatile boolean mIsLazyLoadingMembers = false;
+
     //
     private final ArrayList<ApiCallback<Void>> mLeftRoomsRefreshCallbacks = new ArrayList<>();
     private boolean mIsRetrievingLeftRooms;
@@ -247,6 +270,22 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    /**
+     * Tells if the rooms members are lazy loaded by the sync requests.
+     *
+     * @param isLazyLoadingMembers true if the sync filter lazy loads the members.
+     */
+    public void setLazyLoadingMembers(boolean isLazyLoadingMembers) {
+        mIsLazyLoadingMembers = isLazyLoadingMembers;
+    }
+
+    /**
+     * @return true if the rooms states might not contain all the members.
+     */
+    public boolean isLazyLoadingMembers() {
+        return mIsLazyLoadingMembers;
+    }
+
     /**
      * Tell if the current instance is still active.
      * When the session is closed, many objects keep a reference to this class
@@ -441,7 +480,9 @@ public class MXDataHandler implements IMXEventListener {
             synchronized (this) {
                 // avoid adding twice
                 if (mEventListeners.indexOf(listener) == -1) {
-                    mEventListeners.add(listener);
+                    List<IMXEventListener> eventListeners = new ArrayList<>(mEventListeners);
+                    eventListeners.add(listener);
+                    mEventListeners = Collections.unmodifiableList(eventListeners);
                 }
             }
 
@@ -458,7 +499,66 @@ public class MXDataHandler implements IMXEventListener {
     public void removeListener(IMXEventListener listener) {
         if (isAlive()) {
             synchronized (this) {
-                mEventListeners.remove(listener);
+                if (mEventListeners.indexOf(listener) >= 0) {
+                    List<IMXEventListener> eventListeners = new ArrayList<>(mEventListeners);
+                    eventListeners.remove(listener);
+                    mEventListeners = Collections.unmodifiableList(eventListeners);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a listener which only receives the callbacks of a room.
+     * The dispatch cost of a callback does not depend on the other rooms listeners.
+     * @param roomId the room id
+     * @param listener the listener to add.
+     */
+    public void addRoomListener(String roomId, IMXEventListener listener) {
+        // sanity check
+        if (TextUtils.isEmpty(roomId) || (null == listener)) {
+            return;
+        }
+
+        if (isAlive()) {
+            synchronized (this) {
+                List<IMXEventListener> roomEventListeners = mRoomEventListeners.get(roomId);
+
+                if (null == roomEventListeners) {
+                    mRoomEventListeners.put(roomId, Collections.singletonList(listener));
+                } else if (roomEventListeners.indexOf(listener) == -1) {
+                    List<IMXEventListener> eventListeners = new ArrayList<>(roomEventListeners);
+                    eventListeners.add(listener);
+                    mRoomEventListeners.put(roomId, Collections.unmodifiableList(eventListeners));
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a room listener.
+     * @param roomId the room id
+     * @param listener the listener to remove.
+     */
+    public void removeRoomListener(String roomId, IMXEventListener listener) {
+        // sanity check
+        if (TextUtils.isEmpty(roomId) || (null == listener)) {
+            return;
+        }
+
+        if (isAlive()) {
+            synchronized (this) {
+                List<IMXEventListener> roomEventListeners = mRoomEventListeners.get(roomId);
+
+                if ((null != roomEventListeners) && (roomEventListeners.indexOf(listener) >= 0)) {
+                    if (1 == roomEventListeners.size()) {
+                        mRoomEventListeners.remove(roomId);
+                    } else {
+                        List<IMXEventListener> eventListeners = new ArrayList<>(roomEventListeners);
+                        eventListeners.remove(listener);
+                        mRoomEventListeners.put(roomId, Collections.unmodifiableList(eventListeners));
+                    }
+                }
             }
         }
     }
@@ -470,19 +570,62 @@ public class MXDataHandler implements IMXEventListener {
         synchronized (this) {
             mIsAlive = false;
             // remove any listener
-            mEventListeners.clear();
+            mEventListeners = Collections.emptyList();
+            mRoomEventListeners.clear();
         }
 
         // clear the store
         mStore.close();
         mStore.clear();
 
-        if (null != mSyncHandlerThread) {
-            mSyncHandlerThread.quit();
-            mSyncHandlerThread = null;
+        final HandlerThread syncHandlerThread = mSyncHandlerThread;
+        mSyncHandlerThread = null;
+
+        // the rooms workers are released once the current sync response is managed
+        // else the sync thread would wait for the tasks they have dropped
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if (null != mSyncRoomsWorkers) {
+                    mSyncRoomsWorkers.release();
+                    mSyncRoomsWorkers = null;
+                }
+
+                if (null != syncHandlerThread) {
+                    syncHandlerThread.quit();
+                }
+            }
+        };
+
+        if (!mSyncHandler.post(release)) {
+            release.run();
         }
     }
 
+    /**
+     * Update the number of workers which manage the rooms syncs of a sync response.
+     * The syncs of a room are always managed in the received order, and the other
+     * sync response parts (to device events, presence, account data...) are still
+     * managed by the sync thread.
+     * @param workersCount the workers count, 1 to manage the rooms one by one (default)
+     */
+    public void setSyncRoomsWorkersCount(final int workersCount) {
+        // apply it between two sync responses
+        mSyncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mSyncRoomsWorkers) {
+                    mSyncRoomsWorkers.release();
+                    mSyncRoomsWorkers = null;
+                }
+
+                if (isAlive() && (workersCount > 1)) {
+                    mSyncRoomsWorkers = new MXWorkersPool("MXDataHandler_rooms_" + mCredentials.userId, workersCount);
+                }
+            }
+        });
+    }
+
     /**
      * @return the current user id.
      */
@@ -511,13 +654,14 @@ public class MXDataHandler implements IMXEventListener {
 
             Collection<Room> rooms =  mStore.getRooms();
 
+            // it only restores the links : the data of the rooms which are not loaded is linked when it is loaded.
             for(Room room : rooms) {
                 room.init(mStore, room.getRoomId(), this);
             }
 
             Collection<RoomSummary> summaries = mStore.getSummaries();
             for(RoomSummary summary : summaries) {
-                if (null != summary.getLatestRoomState()) {
+                if (mStore.isRoomLoaded(summary.getRoomId()) && (null != summary.getLatestRoomState())) {
                     summary.getLatestRoomState().setDataHandler(this);
                 }
             }
@@ -723,7 +867,14 @@ public class MXDataHandler implements IMXEventListener {
 
         Collection<Room> rooms = getStore().getRooms();
 
-        for(Room room : rooms) {
+        for(Room aRoom : rooms) {
+            // the room data might be lazily loaded
+            Room room = getStore().getRoom(aRoom.getRoomId());
+
+            if (null == room) {
+                continue;
+            }
+
             if (TextUtils.equals(room.getState().alias, roomAlias)) {
                 roomId = room.getRoomId();
                 break;
@@ -1026,9 +1177,58 @@ public class MXDataHandler implements IMXEventListener {
         mSyncHandler.post(new Runnable() {
             @Override
             public void run() {
-               manageResponse(syncResponse, fromToken, isCatchingUp);
+                // the listeners receive the callbacks of the response in one batch
+                startBufferingDispatches();
+
+                try {
+                    manageResponse(syncResponse, fromToken, isCatchingUp, null);
+                } finally {
+                    stopBufferingDispatches();
+                }
+            }
+        });
+    }
+
+    /**
+     * Manage a sync response stream.
+     * The rooms are parsed one by one to limit the memory usage.
+     * @param syncStream the sync response stream
+     * @param fromToken the start sync token
+     * @param isCatchingUp true when there is a pending catch-up
+     * @param callback the asynchronous callback, it fails when the rooms cannot be read.
+     *                 It fails with an IllegalStateException when the data handler has been cleared.
+     */
+    public void onSyncResponseStream(final SyncResponseStream syncStream, final String fromToken, final boolean isCatchingUp, final ApiCallback<Void> callback) {
+        boolean isPosted = mSyncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean isManaged = false;
+
+                startBufferingDispatches();
+
+                try {
+                    isManaged = manageResponse(syncStream.getSyncResponse(), fromToken, isCatchingUp, syncStream);
+                } finally {
+                    syncStream.release();
+                    stopBufferingDispatches();
+
+                    if (isManaged) {
+                        callback.onSuccess(null);
+                    } else if (!isAlive()) {
+                        callback.onUnexpectedError(new IllegalStateException("the data handler has been cleared"));
+                    } else {
+                        callback.onUnexpectedError(new IOException("the sync response stream has not been managed"));
+                    }
+                }
             }
         });
+
+        // the sync thread has been stopped
+        if (!isPosted) {
+            Log.e(LOG_TAG, "## onSyncResponseStream() : the sync thread has been stopped");
+            syncStream.release();
+            callback.onUnexpectedError(new IllegalStateException("the data handler has been cleared"));
+        }
     }
 
     /**
@@ -1077,25 +1277,284 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    /**
+     * The rooms syncs of a sync response category.
+     * The syncs are posted to the workers partitioned by room id, or managed by the caller thread
+     * when there is no worker. The caller waits for their completion before managing the next
+     * category, so the global order of the sync steps is unchanged.
+     */
+    private class RoomSyncTasks {
+        // the workers, null to run the tasks in the caller thread
+        private final MXWorkersPool mWorkers;
+
+        // limit the parsed rooms syncs kept in memory while the workers manage the previous ones
+        private final Semaphore mSlots;
+
+        // the max wait between two data handler state checks
+        private static final long WAIT_TIMEOUT_MS = 1000;
+
+        // the posted tasks which are not yet completed
+        private int mPendingTasksCount = 0;
+        private final Object mLock = new Object();
+
+        RoomSyncTasks(MXWorkersPool workers) {
+            mWorkers = workers;
+            mSlots = new Semaphore((null == workers) ? 1 : (workers.getWorkersCount() * 2));
+        }
+
+        /**
+         * Manage a room sync.
+         * @param roomId the room id
+         * @param task the task
+         */
+        void post(String roomId, final Runnable task) {
+            if (null == mWorkers) {
+                task.run();
+                return;
+            }
+
+            boolean isAcquired = false;
+
+            while (!isAcquired) {
+                // the data handler has been cleared, the response will not be saved
+                if (!isAlive()) {
+                    Log.e(LOG_TAG, "## RoomSyncTasks.post() : the data handler has been cleared, ignore " + roomId);
+                    return;
+                }
+
+                try {
+                    isAcquired = mSlots.tryAcquire(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "## RoomSyncTasks.post() interrupted " + e.getMessage());
+                }
+            }
+
+            synchronized (mLock) {
+                mPendingTasksCount++;
+            }
+
+            // the workers callbacks are buffered like the caller ones
+            final boolean isBufferingDispatches = isBufferingDispatches();
+
+            Runnable wrapper = new Runnable() {
+                @Override
+                public void run() {
+                    boolean isWorkerThread = (null == mIsBufferingDispatches.get());
+
+                    if (isWorkerThread && isBufferingDispatches) {
+                        startBufferingDispatches();
+                    }
+
+                    try {
+                        task.run();
+                    } finally {
+                        if (isWorkerThread) {
+                            mIsBufferingDispatches.remove();
+                        }
+
+                        mSlots.release();
+
+                        synchronized (mLock) {
+                            mPendingTasksCount--;
+                            mLock.notifyAll();
+                        }
+                    }
+                }
+            };
+
+            // the workers have been released
+            if (!mWorkers.post(roomId, wrapper)) {
+                wrapper.run();
+            }
+        }
+
+        /**
+         * Wait until the posted tasks are completed.
+         * The buffered callbacks of the managed rooms are then dispatched.
+         */
+        void waitForCompletion() {
+            synchronized (mLock) {
+                // do not wait for the workers once the data handler has been cleared
+                while ((mPendingTasksCount > 0) && isAlive()) {
+                    try {
+                        mLock.wait(WAIT_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "## waitForCompletion() interrupted " + e.getMessage());
+                    }
+                }
+            }
+
+            if (isBufferingDispatches()) {
+                flushBufferedDispatches();
+            }
+        }
+    }
+
+    /**
+     * Manage a joined room sync.
+     * @param roomId the room id
+     * @param roomSync the room sync
+     * @param isInitialSync true if it is an initial sync
+     */
+    private void handleJoinedRoomSync(String roomId, RoomSync roomSync, boolean isInitialSync) {
+        if (null != mLeftRoomsStore.getRoom(roomId)) {
+            Log.d(LOG_TAG, "the room " + roomId + " moves from left to the joined ones");
+            mLeftRoomsStore.deleteRoom(roomId);
+        }
+
+        getRoom(roomId).handleJoinedRoomSync(roomSync, isInitialSync);
+    }
+
+    /**
+     * Manage an invited room sync.
+     * @param roomId the room id
+     * @param invitedRoomSync the invited room sync
+     */
+    private void handleInvitedRoomSync(String roomId, InvitedRoomSync invitedRoomSync) {
+        Log.d(LOG_TAG, "## manageResponse() : the user has been invited to " + roomId);
+
+        if (null != mLeftRoomsStore.getRoom(roomId)) {
+            Log.d(LOG_TAG, "the room " + roomId + " moves from left to the invited ones");
+            mLeftRoomsStore.deleteRoom(roomId);
+        }
+
+        getRoom(roomId).handleInvitedRoomSync(invitedRoomSync);
+    }
+
+    /**
+     * Manage a left room sync.
+     * @param roomId the room id
+     * @param roomSync the room sync
+     * @param isInitialSync true if it is an initial sync
+     */
+    private void handleLeftRoomSync(String roomId, RoomSync roomSync, boolean isInitialSync) {
+        // Presently we remove the existing room from the rooms list.
+        // FIXME SYNC V2 Archive/Display the left rooms!
+        // For that create 'handleArchivedRoomSync' method
+
+        String membership = RoomMember.MEMBERSHIP_LEAVE;
+        Room room = this.getStore().getRoom(roomId);
+        // Retrieve existing room
+        // check if the room still exists.
+        if (null != room) {
+            // use 'handleJoinedRoomSync' to pass the last events to the room before leaving it.
+            // The room will then able to notify its listeners.
+            room.handleJoinedRoomSync(roomSync, isInitialSync);
+
+            RoomMember member = room.getMember(getUserId());
+            if (null != member) {
+                membership = member.membership;
+            }
+
+            Log.d(LOG_TAG, "## manageResponse() : leave the room " + roomId);
+            this.getStore().deleteRoom(roomId);
+            onLeaveRoom(roomId);
+        } else {
+            Log.d(LOG_TAG, "## manageResponse() : Try to leave an unknown room " + roomId);
+        }
+
+        // don't add to the left rooms if the user has been kicked / banned
+        if ((mAreLeftRoomsSynced) && TextUtils.equals(membership, RoomMember.MEMBERSHIP_LEAVE)) {
+            Room leftRoom = getRoom(mLeftRoomsStore, roomId, true);
+            leftRoom.handleJoinedRoomSync(roomSync, isInitialSync);
+        }
+    }
+
+    /**
+     * Manage the rooms of a sync response stream.
+     * The rooms are parsed and managed one by one, in the same order as the SyncResponse ones.
+     * @param syncStream the sync response stream
+     * @param isInitialSync true if it is an initial sync
+     * @param roomSyncTasks the rooms syncs tasks
+     * @return true if some rooms have been managed
+     * @throws IOException if the rooms cannot be read
+     */
+    private boolean manageRoomsSyncStream(SyncResponseStream syncStream, final boolean isInitialSync, final RoomSyncTasks roomSyncTasks) throws IOException {
+        int count;
+
+        try {
+            int joinedRoomsCount = syncStream.readRooms(SyncResponseStream.JOINED_ROOMS, RoomSync.class, new SyncResponseStream.RoomSyncCallback<RoomSync>() {
+                @Override
+                public void onRoomSync(final String roomId, final RoomSync roomSync) {
+                    roomSyncTasks.post(roomId, new Runnable() {
+                        @Override
+                        public void run() {
+                            handleJoinedRoomSync(roomId, roomSync, isInitialSync);
+                        }
+                    });
+                }
+            });
+            roomSyncTasks.waitForCompletion();
+            Log.d(LOG_TAG, "Received " + joinedRoomsCount + " joined rooms");
+
+            int invitedRoomsCount = syncStream.readRooms(SyncResponseStream.INVITED_ROOMS, InvitedRoomSync.class, new SyncResponseStream.RoomSyncCallback<InvitedRoomSync>() {
+                @Override
+                public void onRoomSync(final String roomId, final InvitedRoomSync invitedRoomSync) {
+                    roomSyncTasks.post(roomId, new Runnable() {
+                        @Override
+                        public void run() {
+                            handleInvitedRoomSync(roomId, invitedRoomSync);
+                        }
+                    });
+                }
+            });
+            roomSyncTasks.waitForCompletion();
+            Log.d(LOG_TAG, "Received " + invitedRoomsCount + " invited rooms");
+
+            int leftRoomsCount = syncStream.readRooms(SyncResponseStream.LEFT_ROOMS, RoomSync.class, new SyncResponseStream.RoomSyncCallback<RoomSync>() {
+                @Override
+                public void onRoomSync(final String roomId, final RoomSync roomSync) {
+                    roomSyncTasks.post(roomId, new Runnable() {
+                        @Override
+                        public void run() {
+                            handleLeftRoomSync(roomId, roomSync, isInitialSync);
+                        }
+                    });
+                }
+            });
+            roomSyncTasks.waitForCompletion();
+            Log.d(LOG_TAG, "Received " + leftRoomsCount + " left rooms");
+
+            count = joinedRoomsCount + invitedRoomsCount + leftRoomsCount;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## manageRoomsSyncStream() failed " + e.getMessage());
+            // the posted rooms must be managed before reporting the failure
+            roomSyncTasks.waitForCompletion();
+
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+
+            throw new IOException(e);
+        }
+
+        return 0 != count;
+    }
+
     /**
      * Manage the sync response in the UI thread.
      * @param syncResponse the syncResponse to manage.
      * @param fromToken the start sync token
      * @param isCatchingUp true when there is a pending catch-up
+     * @param syncStream the sync response stream which provides the rooms, null if they are in syncResponse
+     * @return false if the response has not been managed (closed session, unreadable rooms stream)
      */
-    private void manageResponse(final SyncResponse syncResponse, final String fromToken, final boolean isCatchingUp) {
+    private boolean manageResponse(final SyncResponse syncResponse, final String fromToken, final boolean isCatchingUp, final SyncResponseStream syncStream) {
         if (!isAlive()) {
             Log.e(LOG_TAG, "manageResponse : ignored because the session has been closed");
-            return;
+            return false;
         }
 
-        boolean isInitialSync = (null == fromToken);
+        final boolean isInitialSync = (null == fromToken);
         boolean isEmptyResponse = true;
 
         // sanity check
         if (null != syncResponse) {
             Log.d(LOG_TAG, "onSyncComplete");
 
+            // the rooms syncs are managed by the workers if any
+            RoomSyncTasks roomSyncTasks = new RoomSyncTasks(mSyncRoomsWorkers);
+
             // Handle the to device events before the room ones
             // to ensure to decrypt them properly
             if ((null != syncResponse.toDevice) &&
@@ -1108,8 +1567,15 @@ public class MXDataHandler implements IMXEventListener {
                 }
             }
 
-            // sanity check
-            if (null != syncResponse.rooms) {
+            if (null != syncStream) {
+                try {
+                    isEmptyResponse = !manageRoomsSyncStream(syncStream, isInitialSync, roomSyncTasks);
+                } catch (IOException e) {
+                    // the sync token must not be saved : the remaining rooms would be lost
+                    Log.e(LOG_TAG, "manageResponse : the rooms stream cannot be read " + e.getMessage());
+                    return false;
+                }
+            } else if (null != syncResponse.rooms) {
                 // joined rooms events
                 if ((null != syncResponse.rooms.join) && (syncResponse.rooms.join.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.join.size() + " joined rooms");
@@ -1117,15 +1583,15 @@ public class MXDataHandler implements IMXEventListener {
                     Set<String> roomIds = syncResponse.rooms.join.keySet();
 
                     // Handle first joined rooms
-                    for (String roomId : roomIds) {
-
-                        if (null != mLeftRoomsStore.getRoom(roomId)) {
-                            Log.d(LOG_TAG, "the room " + roomId + " moves from left to the joined ones");
-                            mLeftRoomsStore.deleteRoom(roomId);
-                        }
-
-                        getRoom(roomId).handleJoinedRoomSync(syncResponse.rooms.join.get(roomId), isInitialSync);
-                   }
+                    for (final String roomId : roomIds) {
+                        roomSyncTasks.post(roomId, new Runnable() {
+                            @Override
+                            public void run() {
+                                handleJoinedRoomSync(roomId, syncResponse.rooms.join.get(roomId), isInitialSync);
+                            }
+                        });
+                    }
+                    roomSyncTasks.waitForCompletion();
 
                     isEmptyResponse = false;
                 }
@@ -1136,16 +1602,15 @@ public class MXDataHandler implements IMXEventListener {
 
                     Set<String> roomIds = syncResponse.rooms.invite.keySet();
 
-                    for (String roomId : roomIds) {
-                        Log.d(LOG_TAG, "## manageResponse() : the user has been invited to " + roomId);
-
-                        if (null != mLeftRoomsStore.getRoom(roomId)) {
-                            Log.d(LOG_TAG, "the room " + roomId + " moves from left to the invited ones");
-                            mLeftRoomsStore.deleteRoom(roomId);
-                        }
-
-                        getRoom(roomId).handleInvitedRoomSync(syncResponse.rooms.invite.get(roomId));
+                    for (final String roomId : roomIds) {
+                        roomSyncTasks.post(roomId, new Runnable() {
+                            @Override
+                            public void run() {
+                                handleInvitedRoomSync(roomId, syncResponse.rooms.invite.get(roomId));
+                            }
+                        });
                     }
+                    roomSyncTasks.waitForCompletion();
 
                     isEmptyResponse = false;
                 }
@@ -1158,40 +1623,15 @@ public class MXDataHandler implements IMXEventListener {
 
                     Set<String> roomIds = syncResponse.rooms.leave.keySet();
 
-                    for (String roomId : roomIds) {
-                        // RoomSync leftRoomSync = syncResponse.rooms.leave.get(roomId);
-
-                        // Presently we remove the existing room from the rooms list.
-                        // FIXME SYNC V2 Archive/Display the left rooms!
-                        // For that create 'handleArchivedRoomSync' method
-
-                        String membership = RoomMember.MEMBERSHIP_LEAVE;
-                        Room room = this.getStore().getRoom(roomId);
-                        // Retrieve existing room
-                        // check if the room still exists.
-                        if (null != room) {
-                            // use 'handleJoinedRoomSync' to pass the last events to the room before leaving it.
-                            // The room will then able to notify its listeners.
-                            room.handleJoinedRoomSync(syncResponse.rooms.leave.get(roomId), isInitialSync);
-
-                            RoomMember member = room.getMember(getUserId());
-                            if (null != member) {
-                                membership = member.membership;
+                    for (final String roomId : roomIds) {
+                        roomSyncTasks.post(roomId, new Runnable() {
+                            @Override
+                            public void run() {
+                                handleLeftRoomSync(roomId, syncResponse.rooms.leave.get(roomId), isInitialSync);
                             }
-
-                            Log.d(LOG_TAG, "## manageResponse() : leave the room " + roomId);
-                            this.getStore().deleteRoom(roomId);
-                            onLeaveRoom(roomId);
-                        } else {
-                            Log.d(LOG_TAG, "## manageResponse() : Try to leave an unknown room " + roomId);
-                        }
-
-                        // don't add to the left rooms if the user has been kicked / banned
-                        if ((mAreLeftRoomsSynced) && TextUtils.equals(membership, RoomMember.MEMBERSHIP_LEAVE)) {
-                            Room leftRoom = getRoom(mLeftRoomsStore, roomId, true);
-                            leftRoom.handleJoinedRoomSync(syncResponse.rooms.leave.get(roomId), isInitialSync);
-                        }
+                        });
                     }
+                    roomSyncTasks.waitForCompletion();
 
                     isEmptyResponse = false;
                 }
@@ -1252,6 +1692,8 @@ public class MXDataHandler implements IMXEventListener {
                 Log.e(LOG_TAG, "checkPendingIncomingCalls failed " + e + " " + e.getMessage());
             }
         }
+
+        return true;
     }
 
     /**
@@ -1436,6 +1878,39 @@ public class MXDataHandler implements IMXEventListener {
         return false;
     }
 
+    /**
+     * Decrypt the encrypted events of a list.
+     * It is faster than decrypting them one by one.
+     * @param events the events list
+     * @param timelineId the timeline identifier
+     */
+    public void decryptEvents(List<Event> events, String timelineId) {
+        if (null == events) {
+            return;
+        }
+
+        ArrayList<Event> encryptedEvents = new ArrayList<>();
+
+        for (Event event : events) {
+            if ((null != event) && TextUtils.equals(event.getType(), Event.EVENT_TYPE_MESSAGE_ENCRYPTED)) {
+                encryptedEvents.add(event);
+            }
+        }
+
+        if (encryptedEvents.isEmpty()) {
+            return;
+        }
+
+        if (null != getCrypto()) {
+            getCrypto().decryptEvents(encryptedEvents, timelineId);
+        } else {
+            for (Event event : encryptedEvents) {
+                event.setClearEvent(null);
+                event.setCryptoError(new MXCryptoError(MXCryptoError.ENCRYPTING_NOT_ENABLED_ERROR_CODE, MXCryptoError.ENCRYPTING_NOT_ENABLED_REASON, null));
+            }
+        }
+    }
+
     /**
      * Reset replay attack data for the given timeline.
      * @param timelineId the timeline id
@@ -1451,86 +1926,304 @@ public class MXDataHandler implements IMXEventListener {
     //================================================================================
 
     /**
-     * @return the current MXEvents listeners .
+     * A listeners callback.
      */
-    private List<IMXEventListener> getListenersSnapshot() {
-        ArrayList<IMXEventListener> eventListeners;
+    private static abstract class ListenerDispatch {
+        // the callback name, used to log the listeners exceptions
+        final String mName;
 
-        synchronized (this) {
-            eventListeners = new ArrayList<>(mEventListeners);
+        // the room listeners which receive this callback
+        // null -> only the global listeners receive it
+        final String mRoomId;
+
+        // true when all the room listeners receive this callback
+        final boolean mToAllRooms;
+
+        ListenerDispatch(String name) {
+            this(name, null, false);
+        }
+
+        ListenerDispatch(String name, String roomId) {
+            this(name, roomId, false);
+        }
+
+        ListenerDispatch(String name, String roomId, boolean toAllRooms) {
+            mName = name;
+            mRoomId = roomId;
+            mToAllRooms = toAllRooms;
         }
 
-        return eventListeners;
+        /**
+         * Call the callback of a listener.
+         * @param listener the listener
+         */
+        abstract void dispatch(IMXEventListener listener);
     }
 
     /**
-     * Dispatch that the store is ready.
+     * The onLiveEvents callback.
+     * The consecutive live events which share the same room state are dispatched at once
+     * to the MXEventListener instances, one by one to the other listeners.
      */
-    public void onStoreReady() {
-        if (null != mCryptoEventsListener) {
-            mCryptoEventsListener.onStoreReady();
-        }
+    private static class LiveEventsDispatch extends ListenerDispatch {
+        final List<Event> mEvents = new ArrayList<>();
+        final RoomState mRoomState;
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        LiveEventsDispatch(Event event, RoomState roomState) {
+            super("onLiveEvents", event.roomId);
+            mEvents.add(event);
+            mRoomState = roomState;
+        }
 
-        mUiHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onStoreReady();
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onStoreReady " + e.getMessage());
-                    }
+        @Override
+        void dispatch(IMXEventListener listener) {
+            if (listener instanceof MXEventListener) {
+                ((MXEventListener) listener).onLiveEvents(mEvents, mRoomState);
+            } else {
+                for (Event event : mEvents) {
+                    listener.onLiveEvent(event, mRoomState);
                 }
             }
-        });
+        }
     }
 
-    @Override
-    public void onAccountInfoUpdate(final MyUser myUser) {
-        if (null != mCryptoEventsListener) {
-            mCryptoEventsListener.onAccountInfoUpdate(myUser);
+    // the maximum number of buffered callbacks, the live events are counted one by one
+    // they are dispatched when it is reached to bound the memory and the UI thread batch
+    static final int MAX_BUFFERED_DISPATCHES_COUNT = 100;
+
+    // the callbacks which are buffered while a sync response is managed
+    private final List<ListenerDispatch> mBufferedDispatches = new ArrayList<>();
+
+    // the buffered callbacks count
+    private int mBufferedDispatchesCount = 0;
+
+    // tell if the current thread manages a sync response, so its callbacks are buffered
+    private final ThreadLocal<Boolean> mIsBufferingDispatches = new ThreadLocal<>();
+
+    /**
+     * @return the current MXEvents listeners.
+     */
+    private List<IMXEventListener> getListenersSnapshot() {
+        synchronized (this) {
+            return mEventListeners;
         }
+    }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+    /**
+     * Provides the listeners which receive a callback.
+     * @param dispatch the callback
+     * @return the global listeners and the listeners of the callback room
+     */
+    private List<IMXEventListener> getListenersSnapshot(ListenerDispatch dispatch) {
+        synchronized (this) {
+            if (dispatch.mToAllRooms) {
+                List<IMXEventListener> eventListeners = new ArrayList<>(mEventListeners);
+
+                for (List<IMXEventListener> roomEventListeners : mRoomEventListeners.values()) {
+                    eventListeners.addAll(roomEventListeners);
+                }
+
+                return eventListeners;
+            }
+
+            List<IMXEventListener> roomEventListeners = (null != dispatch.mRoomId) ? mRoomEventListeners.get(dispatch.mRoomId) : null;
+
+            if (null == roomEventListeners) {
+                return mEventListeners;
+            }
+
+            List<IMXEventListener> eventListeners = new ArrayList<>(mEventListeners);
+            eventListeners.addAll(roomEventListeners);
+            return eventListeners;
+        }
+    }
+
+    /**
+     * @return true if the callbacks of the current thread are buffered.
+     */
+    boolean isBufferingDispatches() {
+        return Boolean.TRUE.equals(mIsBufferingDispatches.get());
+    }
+
+    /**
+     * Buffer the callbacks of the current thread until flushBufferedDispatches is called.
+     */
+    void startBufferingDispatches() {
+        mIsBufferingDispatches.set(true);
+    }
+
+    /**
+     * Stop buffering the callbacks of the current thread and dispatch the buffered ones.
+     */
+    void stopBufferingDispatches() {
+        mIsBufferingDispatches.remove();
+        flushBufferedDispatches();
+    }
+
+    /**
+     * Dispatch the buffered callbacks with a single UI thread post.
+     * Each listener receives them in one batch, in the triggering order.
+     */
+    private void flushBufferedDispatches() {
+        final List<ListenerDispatch> dispatches;
+
+        synchronized (mBufferedDispatches) {
+            dispatches = new ArrayList<>(mBufferedDispatches);
+            mBufferedDispatches.clear();
+            mBufferedDispatchesCount = 0;
+        }
+
+        if (dispatches.isEmpty()) {
+            return;
+        }
+
+        // the callbacks of each listener
+        final Map<IMXEventListener, List<ListenerDispatch>> dispatchesByListener = new LinkedHashMap<>();
+
+        for (ListenerDispatch dispatch : dispatches) {
+            for (IMXEventListener listener : getListenersSnapshot(dispatch)) {
+                List<ListenerDispatch> listenerDispatches = dispatchesByListener.get(listener);
+
+                if (null == listenerDispatches) {
+                    listenerDispatches = new ArrayList<>();
+                    dispatchesByListener.put(listener, listenerDispatches);
+                }
+
+                listenerDispatches.add(dispatch);
+            }
+        }
 
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onAccountInfoUpdate(myUser);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onAccountInfoUpdate " + e.getMessage());
+                for (Map.Entry<IMXEventListener, List<ListenerDispatch>> entry : dispatchesByListener.entrySet()) {
+                    IMXEventListener listener = entry.getKey();
+
+                    for (ListenerDispatch dispatch : entry.getValue()) {
+                        try {
+                            dispatch.dispatch(listener);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, dispatch.mName + " " + e.getMessage());
+                        }
                     }
                 }
             }
         });
     }
 
-    @Override
-    public void onPresenceUpdate(final Event event, final User user) {
-        if (null != mCryptoEventsListener) {
-            mCryptoEventsListener.onPresenceUpdate(event, user);
+    /**
+     * Dispatch a callback to the listeners in the UI thread.
+     * @param dispatch the callback
+     */
+    private void dispatchToListeners(final ListenerDispatch dispatch) {
+        if (isBufferingDispatches()) {
+            boolean isFull;
+
+            synchronized (mBufferedDispatches) {
+                mBufferedDispatches.add(dispatch);
+                isFull = (++mBufferedDispatchesCount >= MAX_BUFFERED_DISPATCHES_COUNT);
+            }
+
+            if (isFull) {
+                flushBufferedDispatches();
+            }
+            return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(dispatch);
 
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
                     try {
-                        listener.onPresenceUpdate(event, user);
+                        dispatch.dispatch(listener);
                     } catch (Exception e) {
-                        Log.e(LOG_TAG, "onPresenceUpdate " + e.getMessage());
+                        Log.e(LOG_TAG, dispatch.mName + " " + e.getMessage());
                     }
                 }
             }
         });
     }
 
+    /**
+     * Dispatch a live event to the listeners.
+     * It is appended to the previous buffered live events when they share the same room state.
+     * @param event the event
+     * @param roomState the room state right before the event
+     */
+    private void dispatchLiveEvent(Event event, RoomState roomState) {
+        if (isBufferingDispatches()) {
+            boolean isAppended = false;
+            boolean isFull = false;
+
+            synchronized (mBufferedDispatches) {
+                int count = mBufferedDispatches.size();
+                ListenerDispatch lastDispatch = (count > 0) ? mBufferedDispatches.get(count - 1) : null;
+
+                if ((lastDispatch instanceof LiveEventsDispatch) && (((LiveEventsDispatch) lastDispatch).mRoomState == roomState)) {
+                    ((LiveEventsDispatch) lastDispatch).mEvents.add(event);
+                    isAppended = true;
+                    isFull = (++mBufferedDispatchesCount >= MAX_BUFFERED_DISPATCHES_COUNT);
+                }
+            }
+
+            if (isFull) {
+                flushBufferedDispatches();
+            }
+
+            if (isAppended) {
+                return;
+            }
+        }
+
+        dispatchToListeners(new LiveEventsDispatch(event, roomState));
+    }
+
+    /**
+     * Dispatch that the store is ready.
+     */
+    public void onStoreReady() {
+        if (null != mCryptoEventsListener) {
+            mCryptoEventsListener.onStoreReady();
+        }
+
+        dispatchToListeners(new ListenerDispatch("onStoreReady") {
+            @Override
+            void dispatch(IMXEventListener listener) {
+                listener.onStoreReady();
+            }
+        });
+    }
+
+    @Override
+    public void onAccountInfoUpdate(final MyUser myUser) {
+        if (null != mCryptoEventsListener) {
+            mCryptoEventsListener.onAccountInfoUpdate(myUser);
+        }
+
+        dispatchToListeners(new ListenerDispatch("onAccountInfoUpdate") {
+            @Override
+            void dispatch(IMXEventListener listener) {
+                listener.onAccountInfoUpdate(myUser);
+            }
+        });
+    }
+
+    @Override
+    public void onPresenceUpdate(final Event event, final User user) {
+        if (null != mCryptoEventsListener) {
+            mCryptoEventsListener.onPresenceUpdate(event, user);
+        }
+
+        dispatchToListeners(new ListenerDispatch("onPresenceUpdate", null, true) {
+            @Override
+            void dispatch(IMXEventListener listener) {
+                listener.onPresenceUpdate(event, user);
+            }
+        });
+    }
+
     /**
      * Stored the room id of the rooms which have received some events
      * which imply an unread messages counter refresh.
@@ -1570,20 +2263,7 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onLiveEvent(event, roomState);
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onLiveEvent(event, roomState);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onLiveEvent " + e.getMessage());
-                    }
-                }
-            }
-        });
+        dispatchLiveEvent(event, roomState);
     }
 
     @Override
@@ -1594,18 +2274,10 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onLiveEventsChunkProcessed(startToken, toToken);
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onLiveEventsChunkProcessed", null, true) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onLiveEventsChunkProcessed(startToken, toToken);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onLiveEventsChunkProcessed " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onLiveEventsChunkProcessed(startToken, toToken);
             }
         });
     }
@@ -1620,18 +2292,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onBingEvent") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onBingEvent(event, roomState, bingRule);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onBingEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onBingEvent(event, roomState, bingRule);
             }
         });
     }
@@ -1642,18 +2306,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onEventEncrypted", event.roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onEventEncrypted(event);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onEventEncrypted " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onEventEncrypted(event);
             }
         });
     }
@@ -1668,18 +2324,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onSentEvent", event.roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onSentEvent(event);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onSentEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onSentEvent(event);
             }
         });
     }
@@ -1694,18 +2342,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onFailedSendingEvent", event.roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onFailedSendingEvent(event);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onFailedSendingEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onFailedSendingEvent(event);
             }
         });
     }
@@ -1716,18 +2356,10 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onBingRulesUpdate();
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onBingRulesUpdate") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onBingRulesUpdate();
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onBingRulesUpdate " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onBingRulesUpdate();
             }
         });
     }
@@ -1744,18 +2376,10 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onInitialSyncComplete(toToken);
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onInitialSyncComplete") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onInitialSyncComplete(mInitialSyncToToken);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onInitialSyncComplete " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onInitialSyncComplete(mInitialSyncToToken);
             }
         });
     }
@@ -1764,18 +2388,10 @@ public class MXDataHandler implements IMXEventListener {
      * Dispatch the OnCryptoSyncComplete event.
      */
     private void dispatchOnCryptoSyncComplete() {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("OnCryptoSyncComplete") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onCryptoSyncComplete();
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "OnCryptoSyncComplete " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onCryptoSyncComplete();
             }
         });
     }
@@ -1834,18 +2450,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onNewRoom", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onNewRoom(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onNewRoom " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onNewRoom(roomId);
             }
         });
     }
@@ -1860,18 +2468,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onJoinRoom", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onJoinRoom(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onJoinRoom " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onJoinRoom(roomId);
             }
         });
     }
@@ -1886,18 +2486,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onRoomInitialSyncComplete", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onRoomInitialSyncComplete(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onRoomInitialSyncComplete " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onRoomInitialSyncComplete(roomId);
             }
         });
     }
@@ -1912,18 +2504,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onRoomInternalUpdate", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onRoomInternalUpdate(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onRoomInternalUpdate " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onRoomInternalUpdate(roomId);
             }
         });
     }
@@ -1938,18 +2522,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onLeaveRoom", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onLeaveRoom(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onLeaveRoom " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onLeaveRoom(roomId);
             }
         });
     }
@@ -1971,18 +2547,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onReceiptEvent", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onReceiptEvent(roomId, senderIds);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onReceiptEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onReceiptEvent(roomId, senderIds);
             }
         });
     }
@@ -1997,18 +2565,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onRoomTagEvent", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onRoomTagEvent(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onRoomTagEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onRoomTagEvent(roomId);
             }
         });
     }
@@ -2023,18 +2583,10 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onRoomFlush", roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onRoomFlush(roomId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onRoomFlush " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onRoomFlush(roomId);
             }
         });
     }
@@ -2045,18 +2597,10 @@ public class MXDataHandler implements IMXEventListener {
             mCryptoEventsListener.onIgnoredUsersListUpdate();
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onIgnoredUsersListUpdate") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onIgnoredUsersListUpdate();
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onIgnoredUsersListUpdate " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onIgnoredUsersListUpdate();
             }
         });
     }
@@ -2071,54 +2615,30 @@ public class MXDataHandler implements IMXEventListener {
             return;
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("OnToDeviceEvent") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onToDeviceEvent(event);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "OnToDeviceEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onToDeviceEvent(event);
             }
         });
     }
 
     @Override
     public void onDirectMessageChatRoomsListUpdate() {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onDirectMessageChatRoomsListUpdate") {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onDirectMessageChatRoomsListUpdate();
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onDirectMessageChatRoomsListUpdate " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onDirectMessageChatRoomsListUpdate();
             }
         });
     }
 
     @Override
     public void onEventDecrypted(final Event event) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
-
-        mUiHandler.post(new Runnable() {
+        dispatchToListeners(new ListenerDispatch("onDecryptedEvent", event.roomId) {
             @Override
-            public void run() {
-                for (IMXEventListener listener : eventListeners) {
-                    try {
-                        listener.onEventDecrypted(event);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "onDecryptedEvent " + e.getMessage());
-                    }
-                }
+            void dispatch(IMXEventListener listener) {
+                listener.onEventDecrypted(event);
             }
         });
     }
@@ -71,6 +71,9 @@ import org.matrix.androidsdk.rest.model.login.RegistrationFlowResponse;
 import org.matrix.androidsdk.sync.DefaultEventsThreadListener;
 import org.matrix.androidsdk.sync.EventsThread;
 import org.matrix.androidsdk.sync.EventsThreadListener;
+import org.matrix.androidsdk.sync.SyncFilterManager;
+import org.matrix.androidsdk.sync.SyncFilterSettings;
+import org.matrix.androidsdk.sync.SyncResponseStream;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.JsonUtils;
@@ -78,6 +81,7 @@ import org.matrix.androidsdk.util.Log;
 import org.matrix.androidsdk.util.UnsentEventsManager;
 import org.matrix.olm.OlmManager;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -99,6 +103,14 @@ public class MXSession {
     private DataRetriever mDataRetriever;
     private MXDataHandler mDataHandler;
     private EventsThread mEventsThread;
+
+    // tell if the initial sync response is parsed room by room
+    private boolean mUseStreamingInitialSync = true;
+
+    // the sync filter settings, null to sync without filter
+    private SyncFilterSettings mSyncFilterSettings = null;
+    private SyncFilterManager mSyncFilterManager;
+
     private Credentials mCredentials;
 
     // Api clients
@@ -199,6 +211,7 @@ public class MXSession {
     public MXSession(HomeserverConnectionConfig hsConfig, MXDataHandler dataHandler, Context appContext) {
         this(hsConfig);
         mDataHandler = dataHandler;
+        mSyncFilterManager = new SyncFilterManager(mDataHandler.getStore(), mEventsRestClient);
 
         mDataHandler.getStore().addMXStoreListener(new MXStoreListener() {
             @Override
@@ -540,6 +553,9 @@ public class MXSession {
         if (null != mCrypto) {
             mCrypto.close();
         }
+
+        // close the idle connections
+        mHsConfig.getHttpTransport().release();
     }
 
     /**
@@ -618,6 +634,14 @@ public class MXSession {
             mEventsThread.setFailureCallback(mFailureCallback);
         }
 
+        mEventsThread.setUseStreamingInitialSync(mUseStreamingInitialSync);
+
+        // remove the responses spooled by a killed application
+        File spoolDirectory = SyncResponseStream.getSpoolDirectory(mAppContent, mCredentials.userId);
+        SyncResponseStream.purgeSpoolDirectory(spoolDirectory);
+        mEventsThread.setSpoolDirectory(spoolDirectory);
+        applySyncFilter();
+
         if (mCredentials.accessToken != null && !mEventsThread.isAlive()) {
             // GA issue
             try {
@@ -706,6 +730,43 @@ public class MXSession {
         return 0;
     }
 
+    /**
+     * Tells if the initial sync response is parsed room by room instead of being loaded at once.
+     * It must be called before starting the events stream.
+     * @param useStreamingInitialSync true to parse the initial sync response room by room.
+     */
+    public void setUseStreamingInitialSync(boolean useStreamingInitialSync) {
+        mUseStreamingInitialSync = useStreamingInitialSync;
+    }
+
+    /**
+     * Update the sync filter settings.
+     * The matching filter is uploaded once, its id is saved in the store and reused by the next sessions.
+     * @param settings the settings, null to sync without filter.
+     */
+    public void setSyncFilterSettings(SyncFilterSettings settings) {
+        mSyncFilterSettings = settings;
+        mDataHandler.setLazyLoadingMembers((null != settings) && settings.isLazyLoadMembers());
+
+        if (null != mEventsThread) {
+            applySyncFilter();
+        }
+    }
+
+    /**
+     * @return the sync filter settings, null if there is no filter.
+     */
+    public SyncFilterSettings getSyncFilterSettings() {
+        return mSyncFilterSettings;
+    }
+
+    /**
+     * Apply the sync filter settings to the events thread.
+     */
+    private void applySyncFilter() {
+        mSyncFilterManager.applySyncFilter(mEventsThread, mSyncFilterSettings);
+    }
+
     /**
      * Set a delay between two sync requests.
      * @param ms the delay in ms
@@ -1348,11 +1409,15 @@ public class MXSession {
                         }
 
                         // In case of same order, order rooms by their last event
+                        // the summaries are used because the rooms data might not be loaded
                         if (0 == res) {
                             IMXStore store = mDataHandler.getStore();
 
-                            Event latestEvent1 = store.getLatestEvent(r1.getRoomId());
-                            Event latestEvent2 = store.getLatestEvent(r2.getRoomId());
+                            RoomSummary summary1 = store.getSummary(r1.getRoomId());
+                            RoomSummary summary2 = store.getSummary(r2.getRoomId());
+
+                            Event latestEvent1 = (null != summary1) ? summary1.getLatestReceivedEvent() : null;
+                            Event latestEvent2 = (null != summary2) ? summary2.getLatestReceivedEvent() : null;
 
                             // sanity check
                             if ((null != latestEvent2) && (null != latestEvent1)) {
@@ -1540,7 +1605,14 @@ public class MXSession {
             ArrayList<RoomMember> members;
             int otherParticipantIndex;
 
-            for (Room r : rooms) {
+            for (Room aRoom : rooms) {
+                // the room data might be lazily loaded
+                Room r = aStore.getRoom(aRoom.getRoomId());
+
+                if (null == r) {
+                    continue;
+                }
+
                 // Show 1:1 chats in separate "Direct Messages" section as long as they haven't
                 // been moved to a different tag section
                 if ((r.getActiveMembers().size() == 2) && (null != r.getAccountData()) && (!r.getAccountData().hasTags())) {
@@ -1959,10 +2031,13 @@ public class MXSession {
      */
     private void decryptRoomSummaries() {
         Collection<RoomSummary> summaries = getDataHandler().getStore().getSummaries();
+        ArrayList<Event> events = new ArrayList<>(summaries.size());
 
         for(RoomSummary summary :summaries) {
-            mDataHandler.decryptEvent(summary.getLatestReceivedEvent(), null);
+            events.add(summary.getLatestReceivedEvent());
         }
+
+        mDataHandler.decryptEvents(events, null);
     }
 
     /**
@@ -28,7 +28,6 @@ import com.squareup.okhttp.OkHttpClient;
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
 import org.matrix.androidsdk.rest.client.MXRestExecutor;
 import org.matrix.androidsdk.rest.model.login.Credentials;
-import org.matrix.androidsdk.ssl.CertUtil;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.Log;
 import org.matrix.androidsdk.util.UnsentEventsManager;
@@ -95,24 +94,13 @@ public class RestClient<T> {
         mHsConfig = hsConfig;
         mCredentials = hsConfig.getCredentials();
 
-        mOkHttpClient = new OkHttpClient();
+        // share the connection pool and the TLS context with the other clients
+        mOkHttpClient = hsConfig.getHttpTransport().newOkHttpClient();
 
         mOkHttpClient.setConnectTimeout(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         mOkHttpClient.setReadTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         mOkHttpClient.setWriteTimeout(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 
-        try {
-            mOkHttpClient.setSslSocketFactory(CertUtil.newPinnedSSLSocketFactory(hsConfig));
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## RestClient() setSslSocketFactory failed" + e.getMessage());
-        }
-
-        try {
-            mOkHttpClient.setHostnameVerifier(CertUtil.newHostnameVerifier(hsConfig));
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## RestClient() setSslSocketFactory failed" + e.getMessage());
-        }
-
         // remove any trailing http in the uri prefix
         if (uriPrefix.startsWith("http://")) {
             uriPrefix = uriPrefix.substring("http://".length());
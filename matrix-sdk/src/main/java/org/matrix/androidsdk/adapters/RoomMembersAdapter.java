@@ -322,10 +322,16 @@ public abstract class RoomMembersAdapter extends ArrayAdapter<RoomMember> {
         for (int i = 0; i < getCount(); i++) {
             RoomMember m = getItem(i);
             if (userId.equals(m.getUserId())) {
-                // Copy members
-                m.displayname = member.displayname;
-                m.setAvatarUrl(member.getAvatarUrl());
-                m.membership = member.membership;
+                // the room members are shared between the room states
+                // so the displayed one is replaced by an updated copy
+                RoomMember updatedMember = m.deepCopy();
+                updatedMember.displayname = member.displayname;
+                updatedMember.setAvatarUrl(member.getAvatarUrl());
+                updatedMember.membership = member.membership;
+
+                setNotifyOnChange(false);
+                remove(m);
+                insert(updatedMember, i);
                 notifyDataSetChanged();
                 break;
             }
@@ -607,6 +607,45 @@ public class MXCallsManager {
 
         final Room room = mSession.getDataHandler().getRoom(roomId);
 
+        // the 1:1 rooms are detected with the members count
+        if ((null != room) && isSupported() && !room.areAllMembersLoaded()) {
+            room.getMembersAsync(new ApiCallback<Collection<RoomMember>>() {
+                @Override
+                public void onSuccess(Collection<RoomMember> members) {
+                    createCallInRoom(roomId, callback);
+                }
+
+                @Override
+                public void onNetworkError(Exception e) {
+                    Log.d(LOG_TAG, "createCallInRoom : getMembersAsync failed " + e.getLocalizedMessage());
+
+                    if (null != callback) {
+                        callback.onNetworkError(e);
+                    }
+                }
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    Log.d(LOG_TAG, "createCallInRoom : getMembersAsync failed " + e.getLocalizedMessage());
+
+                    if (null != callback) {
+                        callback.onMatrixError(e);
+                    }
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    Log.d(LOG_TAG, "createCallInRoom : getMembersAsync failed " + e.getLocalizedMessage());
+
+                    if (null != callback) {
+                        callback.onUnexpectedError(e);
+                    }
+                }
+            });
+
+            return;
+        }
+
         // sanity check
         if (null != room) {
             if (isSupported()) {
@@ -1034,8 +1073,11 @@ public class MXCallsManager {
         Collection<Room> rooms = mSession.getDataHandler().getStore().getRooms();
 
         // Use an existing 1:1 with the conference user; else make one
-        for(Room room : rooms) {
-            if (room.isConferenceUserRoom() && (2 == room.getMembers().size()) && (null != room.getMember(conferenceUserId))) {
+        for(Room aRoom : rooms) {
+            // the room data might be lazily loaded
+            Room room = mSession.getDataHandler().getStore().getRoom(aRoom.getRoomId());
+
+            if ((null != room) && room.isConferenceUserRoom() && (2 == room.getMembers().size()) && (null != room.getMember(conferenceUserId))) {
                 conferenceRoom = room;
                 break;
             }
@@ -27,8 +27,12 @@ import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 import org.matrix.androidsdk.util.Log;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.crypto.algorithms.IMXDecrypting;
@@ -41,6 +45,7 @@ import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
 import org.matrix.androidsdk.data.cryptostore.IMXCryptoStore;
 import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
 import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
@@ -53,8 +58,21 @@ import org.matrix.androidsdk.rest.model.RoomKeyContent;
 import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.crypto.KeysUploadResponse;
 import org.matrix.androidsdk.util.JsonUtils;
-
+import org.matrix.androidsdk.util.MXWorkersPool;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -87,6 +105,13 @@ public class MXCrypto {
     // frequency with which to check & upload one-time keys
     private static final long ONE_TIME_KEY_UPLOAD_PERIOD = 60 * 1000; // one minute
 
+    // the default megolm decryption workers count
+    // one core is kept for the UI thread
+    public static final int DEFAULT_DECRYPTION_WORKERS_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // the megolm decryption workers count of the next MXCrypto instances
+    private static int mDecryptionWorkersCount = DEFAULT_DECRYPTION_WORKERS_COUNT;
+
     // The Matrix session.
     private final MXSession mSession;
 
@@ -121,6 +146,12 @@ public class MXCrypto {
     private HandlerThread mDecryptingHandlerThread = null;
     private Handler mDecryptingHandler = null;
 
+    // the megolm messages are decrypted by these workers
+    private final MXWorkersPool mDecryptionPool;
+
+    // the olm messages sharing the megolm keys are encrypted by these workers
+    private final MXWorkersPool mEncryptionPool;
+
     // the UI thread
     private Handler mUIHandler = null;
 
@@ -237,6 +268,9 @@ public class MXCrypto {
         mDecryptingHandlerThread = new HandlerThread("MXCrypto_decrypting_" + mSession.getMyUserId(), Thread.MIN_PRIORITY);
         mDecryptingHandlerThread.start();
 
+        mDecryptionPool = new MXWorkersPool("MXCrypto_decrypting_" + mSession.getMyUserId(), mDecryptionWorkersCount);
+        mEncryptionPool = new MXWorkersPool("MXCrypto_encrypting_" + mSession.getMyUserId(), DEFAULT_DECRYPTION_WORKERS_COUNT);
+
         mUIHandler = new Handler(Looper.getMainLooper());
 
         if (refreshDevicesList) {
@@ -282,6 +316,44 @@ public class MXCrypto {
         return mDecryptingHandler;
     }
 
+    /**
+     * Update the megolm decryption workers count.
+     * It is applied to the MXCrypto instances which are created after this call.
+     *
+     * @param count the workers count
+     */
+    public static void setDecryptionWorkersCount(int count) {
+        mDecryptionWorkersCount = Math.max(1, count);
+    }
+
+    /**
+     * @return the megolm decryption workers count of the next MXCrypto instances.
+     */
+    public static int getDecryptionWorkersCount() {
+        return mDecryptionWorkersCount;
+    }
+
+    /**
+     * Provides the megolm decryption workers.
+     * Their queue depths can be used to monitor the decryption load.
+     *
+     * @return the megolm decryption workers
+     */
+    public MXWorkersPool getDecryptionPool() {
+        return mDecryptionPool;
+    }
+
+    /**
+     * Provides the olm encryption workers.
+     * The messages to a device must be posted with its identity key as partition key,
+     * so an olm session is never used by two workers at the same time.
+     *
+     * @return the olm encryption workers
+     */
+    public MXWorkersPool getEncryptionPool() {
+        return mEncryptionPool;
+    }
+
     /**
      * @return the UI thread handler
      */
@@ -531,6 +603,8 @@ public class MXCrypto {
             getEncryptingThreadHandler().post(new Runnable() {
                 @Override
                 public void run() {
+                    mEncryptionPool.release();
+
                     if (null != mOlmDevice) {
                         mOlmDevice.release();
                         mOlmDevice = null;
@@ -555,6 +629,8 @@ public class MXCrypto {
                         mDecryptingHandlerThread.quit();
                         mDecryptingHandlerThread = null;
                     }
+
+                    mDecryptionPool.release();
                 }
             });
         }
@@ -784,10 +860,14 @@ public class MXCrypto {
 
         final ArrayList<String> userRoomIds = new ArrayList<>();
 
-        Collection<Room> rooms = mSession.getDataHandler().getStore().getRooms();
+        IMXStore store = mSession.getDataHandler().getStore();
+        Collection<Room> rooms = store.getRooms();
 
-        for (Room room : rooms) {
-            if (room.isEncrypted()) {
+        for (Room aRoom : rooms) {
+            // the room data might be lazily loaded
+            Room room = store.getRoom(aRoom.getRoomId());
+
+            if ((null != room) && room.isEncrypted()) {
                 RoomMember roomMember = room.getMember(userId);
 
                 // test if the user joins the room
@@ -1224,6 +1304,47 @@ public class MXCrypto {
             return;
         }
 
+        // the message must be encrypted for all the members, not only the lazy loaded ones
+        if (!room.areAllMembersLoaded()) {
+            Log.d(LOG_TAG, "## encryptEventContent() : wait after the room members");
+
+            room.getMembersAsync(new ApiCallback<Collection<RoomMember>>() {
+                @Override
+                public void onSuccess(Collection<RoomMember> members) {
+                    encryptEventContent(eventContent, eventType, room, callback);
+                }
+
+                @Override
+                public void onNetworkError(Exception e) {
+                    Log.e(LOG_TAG, "## encryptEventContent() : onNetworkError while retrieving the room members : " + e.getMessage());
+
+                    if (null != callback) {
+                        callback.onNetworkError(e);
+                    }
+                }
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    Log.e(LOG_TAG, "## encryptEventContent() : onMatrixError while retrieving the room members : " + e.getMessage());
+
+                    if (null != callback) {
+                        callback.onMatrixError(e);
+                    }
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    Log.e(LOG_TAG, "## encryptEventContent() : onUnexpectedError while retrieving the room members : " + e.getMessage());
+
+                    if (null != callback) {
+                        callback.onUnexpectedError(e);
+                    }
+                }
+            });
+
+            return;
+        }
+
         // just as you are sending a secret message?
         final ArrayList<String> userdIds = new ArrayList<>();
 
@@ -1369,6 +1490,88 @@ public class MXCrypto {
         return (results.size() > 0) && results.get(0);
     }
 
+    /**
+     * Decrypt some received events.
+     * The events are decrypted in a single decrypting thread round-trip, and the events encrypted
+     * with the same algorithm in the same room are decrypted together, so each inbound group session
+     * is retrieved once.
+     * The decryption result of each event is set in its clear event or in its crypto error.
+     *
+     * @param events   the raw events.
+     * @param timeline the id of the timeline where the events are decrypted. It is used to prevent replay attack.
+     */
+    public void decryptEvents(final List<Event> events, final String timeline) {
+        if ((null == events) || events.isEmpty()) {
+            return;
+        }
+
+        final CountDownLatch lock = new CountDownLatch(1);
+
+        getDecryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // the decryptor depends on the room and on the algorithm
+                    HashMap<String, ArrayList<Event>> eventsByDecryptor = new HashMap<>();
+                    HashMap<String, IMXDecrypting> decryptors = new HashMap<>();
+
+                    for (Event event : events) {
+                        EventContent eventContent = (null != event) ? event.getWireEventContent() : null;
+
+                        if (null == eventContent) {
+                            Log.e(LOG_TAG, "## decryptEvents : empty event content");
+                            continue;
+                        }
+
+                        String key = event.roomId + "|" + eventContent.algorithm;
+
+                        if (!decryptors.containsKey(key)) {
+                            decryptors.put(key, getRoomDecryptor(event.roomId, eventContent.algorithm));
+                            eventsByDecryptor.put(key, new ArrayList<Event>());
+                        }
+
+                        if (null == decryptors.get(key)) {
+                            String reason = String.format(MXCryptoError.UNABLE_TO_DECRYPT_REASON, event.eventId, eventContent.algorithm);
+
+                            Log.e(LOG_TAG, "## decryptEvents() : " + reason);
+
+                            event.setCryptoError(new MXCryptoError(MXCryptoError.UNABLE_TO_DECRYPT_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason));
+                        } else {
+                            eventsByDecryptor.get(key).add(event);
+                        }
+                    }
+
+                    for (String key : eventsByDecryptor.keySet()) {
+                        List<Event> decryptorEvents = eventsByDecryptor.get(key);
+
+                        if (!decryptorEvents.isEmpty()) {
+                            try {
+                                decryptors.get(key).decryptEvents(decryptorEvents, timeline);
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "## decryptEvents() : failed " + e.getMessage());
+                            }
+
+                            for (Event event : decryptorEvents) {
+                                if ((null == event.getClearEvent()) && (null != event.getCryptoError())) {
+                                    Log.e(LOG_TAG, "## decryptEvents() : failed " + event.getCryptoError().getDetailedErrorDescription());
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    // always release the caller
+                    lock.countDown();
+                }
+            }
+        });
+
+        try {
+            lock.await();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## decryptEvents() : failed " + e.getMessage());
+        }
+    }
+
     /**
      * Reset replay attack data for the given timeline.
      *
@@ -1466,9 +1669,13 @@ public class MXCrypto {
             return e2eRooms;
         }
 
-        List<Room> rooms = new ArrayList<>(mSession.getDataHandler().getStore().getRooms());
-        for (Room r : rooms) {
-            if (r.isEncrypted()) {
+        IMXStore store = mSession.getDataHandler().getStore();
+        List<Room> rooms = new ArrayList<>(store.getRooms());
+        for (Room aRoom : rooms) {
+            // the room data might be lazily loaded
+            Room r = store.getRoom(aRoom.getRoomId());
+
+            if ((null != r) && r.isEncrypted()) {
                 RoomMember me = r.getMember(mSession.getMyUserId());
 
                 if (null != me) {
@@ -2191,6 +2398,29 @@ public class MXCrypto {
     }
 
 
+    //==============================================================================================================
+    // Room keys export / import
+    //==============================================================================================================
+
+    // the imported sessions are stored by batches of this size
+    private static final int IMPORT_ROOM_KEYS_BATCH_SIZE = 100;
+
+    // the progress is dispatched every PROGRESS_SESSIONS_COUNT sessions
+    private static final int ROOM_KEYS_PROGRESS_SESSIONS_COUNT = 100;
+
+    /**
+     * Monitor a room keys export or import.
+     */
+    public interface RoomKeysProgressListener {
+        /**
+         * Called on the UI thread when some sessions have been exported or imported.
+         *
+         * @param count the exported or imported sessions count
+         * @param total the sessions count, -1 if it is not known
+         */
+        void onProgress(int count, int total);
+    }
+
     /**
      * Export the crypto keys
      *
@@ -2201,23 +2431,12 @@ public class MXCrypto {
         getDecryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
-                ArrayList<Map<String, Object>> exportedSessions = new ArrayList<>();
-
-                List<MXOlmInboundGroupSession2> inboundGroupSessions = mCryptoStore.getInboundGroupSessions();
-
-                for (MXOlmInboundGroupSession2 session : inboundGroupSessions) {
-                    Map<String, Object> map = session.exportKeys();
-
-                    if (null != map) {
-                        exportedSessions.add(map);
-                    }
-                }
-
                 final byte[] encryptedRoomKeys;
 
                 try {
-                    String allo = JsonUtils.getGson(false).toJsonTree(exportedSessions).toString();
-                    encryptedRoomKeys = MXMegolmExportEncryption.encryptMegolmKeyFile(allo, password);
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    writeRoomKeys(outputStream, password, null);
+                    encryptedRoomKeys = outputStream.toByteArray();
                 } catch (Exception e) {
                     callback.onUnexpectedError(e);
                     return;
@@ -2234,22 +2453,29 @@ public class MXCrypto {
     }
 
     /**
-     * Import the room keys
+     * Export the crypto keys into a file.
+     * The sessions are exported one by one, so the memory usage does not depend on the sessions count.
      *
-     * @param roomKeysAsArray the room keys as array.
-     * @param password        the password
-     * @param callback        the asynchronous callback.
+     * @param file     the export file
+     * @param password the password
+     * @param listener the progress listener, might be null
+     * @param callback the asynchronous callback, it returns the exported sessions count
      */
-    public void importRoomKeys(final byte[] roomKeysAsArray, final String password, final ApiCallback<Void> callback) {
+    public void exportRoomKeys(final File file, final String password, final RoomKeysProgressListener listener, final ApiCallback<Integer> callback) {
         getDecryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
-                long t0 = System.currentTimeMillis();
-                String roomKeys;
+                final int count;
 
                 try {
-                    roomKeys = MXMegolmExportEncryption.decryptMegolmKeyFile(roomKeysAsArray, password);
+                    count = writeRoomKeys(new FileOutputStream(file), password, listener);
                 } catch (final Exception e) {
+                    Log.e(LOG_TAG, "## exportRoomKeys() failed " + e.getMessage());
+
+                    if (file.exists() && !file.delete()) {
+                        Log.e(LOG_TAG, "## exportRoomKeys() : cannot delete " + file);
+                    }
+
                     getUIHandler().post(new Runnable() {
                         @Override
                         public void run() {
@@ -2259,17 +2485,186 @@ public class MXCrypto {
                     return;
                 }
 
-                List<Map<String, Object>> importedSessions;
+                getUIHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(count);
+                    }
+                });
+            }
+        });
+    }
 
-                long t1 = System.currentTimeMillis();
+    /**
+     * Write the encrypted room keys.
+     * The sessions are read one by one from the store and written through a JSON writer
+     * into the encrypting stream.
+     * This method must be called in getDecryptingThreadHandler() thread.
+     *
+     * @param outputStream the output stream, it is closed by this method
+     * @param password     the password
+     * @param listener     the progress listener, might be null
+     * @return the exported sessions count
+     * @throws Exception the failure reason
+     */
+    private int writeRoomKeys(OutputStream outputStream, String password, RoomKeysProgressListener listener) throws Exception {
+        long t0 = System.currentTimeMillis();
 
-                Log.d(LOG_TAG, "## importRoomKeys starts");
+        Map<String, List<String>> sessionIdsBySenderKey = mCryptoStore.getInboundGroupSessionsIds();
+
+        if (null == sessionIdsBySenderKey) {
+            outputStream.close();
+            throw new Exception("The crypto store is not ready");
+        }
+
+        int total = 0;
+
+        for (List<String> sessionIds : sessionIdsBySenderKey.values()) {
+            total += sessionIds.size();
+        }
+
+        JsonWriter writer;
+
+        try {
+            writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(MXMegolmExportEncryption.createEncryptingStream(outputStream, password), "UTF-8")));
+        } catch (Exception e) {
+            outputStream.close();
+            throw e;
+        }
+
+        TypeAdapter<JsonElement> adapter = JsonUtils.getGson(false).getAdapter(JsonElement.class);
+        int count = 0;
+
+        try {
+            writer.beginArray();
+
+            for (String senderKey : sessionIdsBySenderKey.keySet()) {
+                for (String sessionId : sessionIdsBySenderKey.get(senderKey)) {
+                    Map<String, Object> map = exportInboundGroupSession(sessionId, senderKey);
+
+                    if (null != map) {
+                        adapter.write(writer, JsonUtils.getGson(false).toJsonTree(map));
+                        count++;
+
+                        if (0 == (count % ROOM_KEYS_PROGRESS_SESSIONS_COUNT)) {
+                            dispatchRoomKeysProgress(listener, count, total);
+                        }
+                    }
+                }
+            }
+
+            writer.endArray();
+        } finally {
+            // write the HMAC and the trailer
+            writer.close();
+        }
+
+        dispatchRoomKeysProgress(listener, count, total);
+
+        Log.d(LOG_TAG, "## exportRoomKeys : " + count + " sessions exported in " + (System.currentTimeMillis() - t0) + " ms");
+
+        return count;
+    }
+
+    /**
+     * Export an inbound group session keys.
+     * The store might release its cached sessions at any time, so the session is locked while it is exported
+     * and it is retrieved again if it has been released in the meantime.
+     *
+     * @param sessionId the session id
+     * @param senderKey the sender key
+     * @return the exported keys, null if the session is unknown or if the export fails
+     */
+    private Map<String, Object> exportInboundGroupSession(String sessionId, String senderKey) {
+        MXOlmInboundGroupSession2 session = mCryptoStore.getInboundGroupSession(sessionId, senderKey);
+
+        while (null != session) {
+            synchronized (session) {
+                if (!session.mSession.isReleased()) {
+                    return session.exportKeys();
+                }
+            }
+
+            session = mCryptoStore.getInboundGroupSession(sessionId, senderKey);
+        }
+
+        return null;
+    }
+
+    /**
+     * Dispatch a room keys progress on the UI thread.
+     *
+     * @param listener the listener, might be null
+     * @param count    the sessions count
+     * @param total    the total sessions count, -1 if it is not known
+     */
+    private void dispatchRoomKeysProgress(final RoomKeysProgressListener listener, final int count, final int total) {
+        if (null != listener) {
+            getUIHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.onProgress(count, total);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## dispatchRoomKeysProgress() failed " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Import the room keys
+     *
+     * @param roomKeysAsArray the room keys as array.
+     * @param password        the password
+     * @param callback        the asynchronous callback.
+     */
+    public void importRoomKeys(final byte[] roomKeysAsArray, final String password, final ApiCallback<Void> callback) {
+        importRoomKeys(new MXMegolmExportEncryption.KeyFileSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new ByteArrayInputStream(roomKeysAsArray);
+            }
+        }, password, null, callback);
+    }
+
+    /**
+     * Import the room keys from a file.
+     * The file is parsed incrementally, so the memory usage does not depend on the sessions count.
+     *
+     * @param file     the exported keys file
+     * @param password the password
+     * @param listener the progress listener, might be null
+     * @param callback the asynchronous callback.
+     */
+    public void importRoomKeys(final File file, final String password, final RoomKeysProgressListener listener, final ApiCallback<Void> callback) {
+        importRoomKeys(new MXMegolmExportEncryption.KeyFileSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        }, password, listener, callback);
+    }
+
+    /**
+     * Import the room keys
+     *
+     * @param source   the exported keys source
+     * @param password the password
+     * @param listener the progress listener, might be null
+     * @param callback the asynchronous callback.
+     */
+    private void importRoomKeys(final MXMegolmExportEncryption.KeyFileSource source, final String password, final RoomKeysProgressListener listener, final ApiCallback<Void> callback) {
+        getDecryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                long t0 = System.currentTimeMillis();
+                InputStream roomKeysStream;
 
                 try {
-                    importedSessions = JsonUtils.getGson(false).fromJson(roomKeys, new TypeToken<List<Map<String, Object>>>() {
-                    }.getType());
+                    roomKeysStream = MXMegolmExportEncryption.createDecryptingStream(source, password);
                 } catch (final Exception e) {
-                    Log.e(LOG_TAG, "## importRoomKeys failed " + e.getMessage());
                     getUIHandler().post(new Runnable() {
                         @Override
                         public void run() {
@@ -2279,37 +2674,63 @@ public class MXCrypto {
                     return;
                 }
 
-                long t2 = System.currentTimeMillis();
+                long t1 = System.currentTimeMillis();
 
-                Log.d(LOG_TAG, "## importRoomKeys retrieve " + importedSessions.size() + "sessions in " + (t1 - t0) + " ms");
+                Log.d(LOG_TAG, "## importRoomKeys starts");
 
-                for (int index = 0; index < importedSessions.size(); index++) {
-                    Map<String, Object> map = importedSessions.get(index);
+                int count = 0;
 
-                    MXOlmInboundGroupSession2 session = mOlmDevice.importInboundGroupSession(map);
+                try {
+                    JsonReader reader = new JsonReader(new InputStreamReader(roomKeysStream, "UTF-8"));
 
-                    if ((null != session) && mRoomDecryptors.containsKey(session.mRoomId)) {
-                        IMXDecrypting decrypting = mRoomDecryptors.get(session.mRoomId).get(map.get("algorithm"));
+                    try {
+                        Gson gson = JsonUtils.getGson(false);
+                        Type mapType = new TypeToken<Map<String, Object>>() {
+                        }.getType();
 
-                        if (null != decrypting) {
-                            try {
-                                String sessionId = session.mSession.sessionIdentifier();
-                                Log.d(LOG_TAG, "## importRoomKeys retrieve mSenderKey " + session.mSenderKey + " sessionId " + sessionId);
+                        ArrayList<Map<String, Object>> batch = new ArrayList<>(IMPORT_ROOM_KEYS_BATCH_SIZE);
 
-                                decrypting.onNewSession(session.mSenderKey, sessionId);
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, "## importRoomKeys() : onNewSession failed " + e.getMessage());
+                        reader.beginArray();
+
+                        while (reader.hasNext()) {
+                            Map<String, Object> map = gson.fromJson(reader, mapType);
+
+                            if (null != map) {
+                                batch.add(map);
+                                count++;
+                            }
+
+                            if (batch.size() >= IMPORT_ROOM_KEYS_BATCH_SIZE) {
+                                importRoomKeysBatch(batch);
+                                batch.clear();
+                                dispatchRoomKeysProgress(listener, count, -1);
                             }
                         }
+
+                        reader.endArray();
+
+                        importRoomKeysBatch(batch);
+                    } finally {
+                        reader.close();
                     }
+                } catch (final Exception e) {
+                    Log.e(LOG_TAG, "## importRoomKeys failed " + e.getMessage());
+                    getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUnexpectedError(e);
+                        }
+                    });
+                    return;
                 }
 
-                long t3 = System.currentTimeMillis();
+                dispatchRoomKeysProgress(listener, count, count);
+
+                long t2 = System.currentTimeMillis();
 
-                Log.d(LOG_TAG, "## importRoomKeys : done in " + (t3 - t0) + " ms (" + importedSessions.size() + " sessions)");
-                Log.d(LOG_TAG, "## importRoomKeys : decryptMegolmKeyFile done in " + (t1 - t0) + " ms");
-                Log.d(LOG_TAG, "## importRoomKeys : JSON parsing " + (t2 - t1) + " ms");
-                Log.d(LOG_TAG, "## importRoomKeys : sessions import " + (t3 - t2) + " ms");
+                Log.d(LOG_TAG, "## importRoomKeys : done in " + (t2 - t0) + " ms (" + count + " sessions)");
+                Log.d(LOG_TAG, "## importRoomKeys : authentication done in " + (t1 - t0) + " ms");
+                Log.d(LOG_TAG, "## importRoomKeys : parsing and sessions import " + (t2 - t1) + " ms");
 
                 getUIHandler().post(new Runnable() {
                     @Override
@@ -2321,6 +2742,49 @@ public class MXCrypto {
         });
     }
 
+    /**
+     * Import a batch of exported sessions.
+     * This method must be called in getDecryptingThreadHandler() thread.
+     *
+     * @param batch the exported sessions
+     */
+    private void importRoomKeysBatch(List<Map<String, Object>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<MXOlmInboundGroupSession2> sessions = mOlmDevice.importInboundGroupSessions(batch);
+
+        for (MXOlmInboundGroupSession2 session : sessions) {
+            if (mRoomDecryptors.containsKey(session.mRoomId)) {
+                // the imported sessions are megolm ones
+                IMXDecrypting decrypting = mRoomDecryptors.get(session.mRoomId).get(MXCryptoAlgorithms.MXCRYPTO_ALGORITHM_MEGOLM);
+
+                if (null != decrypting) {
+                    try {
+                        String sessionId;
+
+                        // the session is locked in case of the store cache releases it
+                        synchronized (session) {
+                            sessionId = session.mSession.isReleased() ? null : session.mSession.sessionIdentifier();
+                        }
+
+                        if (null == sessionId) {
+                            Log.e(LOG_TAG, "## importRoomKeys() : the session has been released");
+                            continue;
+                        }
+
+                        Log.d(LOG_TAG, "## importRoomKeys retrieve mSenderKey " + session.mSenderKey + " sessionId " + sessionId);
+
+                        decrypting.onNewSession(session.mSenderKey, sessionId);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## importRoomKeys() : onNewSession failed " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Tells if the encryption must fail if some unknown devices are detected.
      *
@@ -2416,10 +2880,14 @@ public class MXCrypto {
         final String userId = mSession.getMyUserId();
         final ArrayList<String> userRoomIds = new ArrayList<>();
 
-        Collection<Room> rooms = mSession.getDataHandler().getStore().getRooms();
+        IMXStore store = mSession.getDataHandler().getStore();
+        Collection<Room> rooms = store.getRooms();
 
-        for (Room room : rooms) {
-            if (room.isEncrypted()) {
+        for (Room aRoom : rooms) {
+            // the room data might be lazily loaded
+            Room room = store.getRoom(aRoom.getRoomId());
+
+            if ((null != room) && room.isEncrypted()) {
                 RoomMember roomMember = room.getMember(userId);
 
                 // test if the user joins the room
@@ -22,10 +22,15 @@ import org.matrix.androidsdk.util.Log;
 
 import org.matrix.androidsdk.rest.model.EncryptedFileInfo;
 import org.matrix.androidsdk.rest.model.EncryptedFileKey;
+import org.matrix.androidsdk.util.TmpFileInputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import java.io.Serializable;
 import java.security.MessageDigest;
@@ -59,6 +64,7 @@ public class MXEncryptedAttachments implements Serializable {
 
     /***
      * Encrypt an attachment stream.
+     * The encrypted content is spooled to a temporary file, which is deleted when the encrypted stream is closed.
      * @param attachmentStream the attachment stream
      * @return the encryption file info
      */
@@ -81,9 +87,13 @@ public class MXEncryptedAttachments implements Serializable {
         byte[] key = new byte[32];
         secureRandom.nextBytes(key);
 
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        File encryptedFile = null;
+        OutputStream outStream = null;
 
         try {
+            encryptedFile = File.createTempFile("encrypted", ".tmp");
+            outStream = new BufferedOutputStream(new FileOutputStream(encryptedFile), CRYPTO_BUFFER_SIZE);
+
             Cipher encryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
             SecretKeySpec secretKeySpec = new SecretKeySpec(key, SECRET_KEY_SPEC_ALGORITHM);
             IvParameterSpec ivParameterSpec = new IvParameterSpec(initVectorBytes);
@@ -121,8 +131,8 @@ public class MXEncryptedAttachments implements Serializable {
             result.mEncryptedFileInfo.hashes = new HashMap();
             result.mEncryptedFileInfo.hashes.put("sha256", base64ToUnpaddedBase64(Base64.encodeToString(messageDigest.digest(), Base64.DEFAULT)));
 
-            result.mEncryptedStream = new ByteArrayInputStream(outStream.toByteArray());
             outStream.close();
+            result.mEncryptedStream = new TmpFileInputStream(encryptedFile);
 
             Log.d(LOG_TAG, "Encrypt in " + (System.currentTimeMillis() - t0) + " ms");
             return result;
@@ -133,14 +143,130 @@ public class MXEncryptedAttachments implements Serializable {
         }
 
         try {
-            outStream.close();
+            if (null != outStream) {
+                outStream.close();
+            }
         } catch (Exception e) {
             Log.e(LOG_TAG, "## encryptAttachment() : fail to close outStream");
         }
 
+        if ((null != encryptedFile) && encryptedFile.exists()) {
+            encryptedFile.delete();
+        }
+
         return null;
     }
 
+    /**
+     * Incremental attachment decryption.
+     *
+     * The encrypted content is provided chunk by chunk, so it is never fully loaded in memory.
+     */
+    public static class Decryptor {
+        private final Cipher mCipher;
+        private final MessageDigest mMessageDigest;
+        private final String mExpectedDigest;
+
+        // the computed digest, null until doFinal() is called
+        private String mDigest = null;
+
+        /**
+         * Constructor
+         *
+         * @param cipher         the initialized cipher
+         * @param messageDigest  the message digest
+         * @param expectedDigest the expected digest of the encrypted content
+         */
+        private Decryptor(Cipher cipher, MessageDigest messageDigest, String expectedDigest) {
+            mCipher = cipher;
+            mMessageDigest = messageDigest;
+            mExpectedDigest = expectedDigest;
+        }
+
+        /**
+         * Create a decryptor for an attachment.
+         *
+         * @param encryptedFileInfo the encryption file info
+         * @return the decryptor, null if the encryption file info is not valid
+         */
+        public static Decryptor create(EncryptedFileInfo encryptedFileInfo) {
+            // sanity checks
+            if (null == encryptedFileInfo) {
+                Log.e(LOG_TAG, "## Decryptor.create() : null parameters");
+                return null;
+            }
+
+            if (TextUtils.isEmpty(encryptedFileInfo.iv) ||
+                    (null == encryptedFileInfo.key) ||
+                    (null == encryptedFileInfo.hashes) ||
+                    !encryptedFileInfo.hashes.containsKey("sha256")
+                    ) {
+                Log.e(LOG_TAG, "## Decryptor.create() : some fields are not defined");
+                return null;
+            }
+
+            if (!TextUtils.equals(encryptedFileInfo.key.alg, "A256CTR") ||
+                    !TextUtils.equals(encryptedFileInfo.key.kty, "oct") ||
+                    TextUtils.isEmpty(encryptedFileInfo.key.k)) {
+                Log.e(LOG_TAG, "## Decryptor.create() : invalid key fields");
+                return null;
+            }
+
+            try {
+                byte[] key = Base64.decode(base64UrlToBase64(encryptedFileInfo.key.k), Base64.DEFAULT);
+                byte[] initVectorBytes =  Base64.decode(encryptedFileInfo.iv, Base64.DEFAULT);
+
+                Cipher decryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                SecretKeySpec secretKeySpec = new SecretKeySpec(key, SECRET_KEY_SPEC_ALGORITHM);
+                IvParameterSpec ivParameterSpec = new IvParameterSpec(initVectorBytes);
+                decryptCipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+
+                return new Decryptor(decryptCipher, MessageDigest.getInstance(MESSAGE_DIGEST_ALGORITHM), encryptedFileInfo.hashes.get("sha256"));
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## Decryptor.create() : failed " + e.getMessage());
+            }
+
+            return null;
+        }
+
+        /**
+         * Decrypt a chunk of the encrypted content.
+         *
+         * @param data   the encrypted bytes
+         * @param offset the offset in data
+         * @param length the bytes count
+         * @return the decrypted bytes
+         */
+        public byte[] update(byte[] data, int offset, int length) {
+            mMessageDigest.update(data, offset, length);
+
+            byte[] decryptedBytes = mCipher.update(data, offset, length);
+            return (null == decryptedBytes) ? new byte[0] : decryptedBytes;
+        }
+
+        /**
+         * Decrypt the last chunk and compute the content digest.
+         *
+         * @return the decrypted bytes
+         * @throws Exception if the decryption fails
+         */
+        public byte[] doFinal() throws Exception {
+            byte[] decryptedBytes = mCipher.doFinal();
+            mDigest = base64ToUnpaddedBase64(Base64.encodeToString(mMessageDigest.digest(), Base64.DEFAULT));
+            return (null == decryptedBytes) ? new byte[0] : decryptedBytes;
+        }
+
+        /**
+         * Tells if the encrypted content matches the expected digest.
+         * It must be called after doFinal().
+         *
+         * @return true if the digest is valid
+         */
+        public boolean isDigestValid() {
+            return (null != mDigest) && TextUtils.equals(mExpectedDigest, mDigest);
+        }
+    }
+
     /**
      * Decrypt an attachment
      * @param attachmentStream the attahcment stream
@@ -154,19 +280,9 @@ public class MXEncryptedAttachments implements Serializable {
             return null;
         }
 
-        if (TextUtils.isEmpty(encryptedFileInfo.iv) ||
-                (null == encryptedFileInfo.key) ||
-                (null == encryptedFileInfo.hashes) ||
-                !encryptedFileInfo.hashes.containsKey("sha256")
-                ) {
-            Log.e(LOG_TAG, "## decryptAttachment() : some fields are not defined");
-            return null;
-        }
+        Decryptor decryptor = Decryptor.create(encryptedFileInfo);
 
-        if (!TextUtils.equals(encryptedFileInfo.key.alg, "A256CTR") ||
-                !TextUtils.equals(encryptedFileInfo.key.kty, "oct") ||
-                TextUtils.isEmpty(encryptedFileInfo.key.k)) {
-            Log.e(LOG_TAG, "## decryptAttachment() : invalid key fields");
+        if (null == decryptor) {
             return null;
         }
 
@@ -184,33 +300,17 @@ public class MXEncryptedAttachments implements Serializable {
         ByteArrayOutputStream outStream = new ByteArrayOutputStream();
 
         try {
-            byte[] key = Base64.decode(base64UrlToBase64(encryptedFileInfo.key.k), Base64.DEFAULT);
-            byte[] initVectorBytes =  Base64.decode(encryptedFileInfo.iv, Base64.DEFAULT);
-
-            Cipher decryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            SecretKeySpec secretKeySpec = new SecretKeySpec(key, SECRET_KEY_SPEC_ALGORITHM);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(initVectorBytes);
-            decryptCipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
-
-            MessageDigest messageDigest = MessageDigest.getInstance(MESSAGE_DIGEST_ALGORITHM);
-
             int read;
             byte[] data = new byte[CRYPTO_BUFFER_SIZE];
-            byte[] decodedBytes;
 
             while (-1 != (read = attachmentStream.read(data))) {
-                messageDigest.update(data, 0, read);
-                decodedBytes = decryptCipher.update(data, 0, read);
-                outStream.write(decodedBytes);
+                outStream.write(decryptor.update(data, 0, read));
             }
 
             // decrypt the last chunk
-            decodedBytes = decryptCipher.doFinal();
-            outStream.write(decodedBytes);
-
-            String currentDigestValue = base64ToUnpaddedBase64(Base64.encodeToString(messageDigest.digest(), Base64.DEFAULT));
+            outStream.write(decryptor.doFinal());
 
-            if (!TextUtils.equals(encryptedFileInfo.hashes.get("sha256"), currentDigestValue)) {
+            if (!decryptor.isDigestValid()) {
                 Log.e(LOG_TAG, "## decryptAttachment() :  Digest value mismatch");
                 outStream.close();
                 return null;
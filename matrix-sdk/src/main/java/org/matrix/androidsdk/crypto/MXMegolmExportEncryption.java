@@ -21,11 +21,18 @@ import android.util.Base64;
 
 import org.matrix.androidsdk.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -43,6 +50,27 @@ public class MXMegolmExportEncryption {
     // terribly well with large arrays.
     private static final int LINE_LENGTH = (72 * 4 / 3);
 
+    // the body starts with the version (1 byte), the salt (16 bytes), the iv (16 bytes) and the iterations count (4 bytes)
+    private static final int BODY_HEADER_LENGTH = 1 + 16 + 16 + 4;
+    // the body ends with the HMAC-SHA-256 of the previous bytes
+    private static final int HMAC_LENGTH = 32;
+
+    private static final int DEFAULT_KDF_ROUNDS = 500000;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Provides the content of a megolm key file.
+     * The content is read twice : the HMAC is checked before decrypting anything.
+     */
+    public interface KeyFileSource {
+        /**
+         * @return a new stream on the key file content
+         * @throws IOException if the content cannot be read
+         */
+        InputStream open() throws IOException;
+    }
+
     /**
      * Convert a signed byte to a int value
      *
@@ -80,64 +108,139 @@ public class MXMegolmExportEncryption {
      * @param password the password.
      * @return the decrypted output.
      */
-    public static String decryptMegolmKeyFile(byte[] data, String password) throws Exception {
-        byte[] body = unpackMegolmKeyFile(data);
+    public static String decryptMegolmKeyFile(final byte[] data, String password) throws Exception {
+        InputStream inputStream = createDecryptingStream(new KeyFileSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new ByteArrayInputStream(data);
+            }
+        }, password);
 
-        // check we have a version byte
-        if ((null == body) || (body.length == 0)) {
-            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Invalid file: too short");
-            throw new Exception("Invalid file: too short");
-        }
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
 
-        byte version = body[0];
-        if (version != 1) {
-            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Invalid file: too short");
-            throw new Exception("Unsupported version");
-        }
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
 
-        int ciphertextLength = body.length - (1 + 16 + 16 + 4 + 32);
-        if (ciphertextLength < 0) {
-            throw new Exception("Invalid file: too short");
+            while ((len = inputStream.read(buffer)) != -1) {
+                outStream.write(buffer, 0, len);
+            }
+        } finally {
+            inputStream.close();
         }
 
+        String decodedString = new String(outStream.toByteArray(), "UTF-8");
+        outStream.close();
+
+        return decodedString;
+    }
+
+    /**
+     * Provides a stream which decrypts a megolm key file.
+     * The whole file is authenticated before returning the stream, and the file content
+     * is never fully loaded in memory.
+     *
+     * @param source   the key file source
+     * @param password the password
+     * @return the decrypted stream
+     * @throws Exception the failure reason
+     */
+    public static InputStream createDecryptingStream(KeyFileSource source, String password) throws Exception {
         if (TextUtils.isEmpty(password)) {
             throw new Exception("Empty password is not supported");
         }
 
-        byte[] salt = Arrays.copyOfRange(body, 1, 1 + 16);
-        byte[] iv = Arrays.copyOfRange(body, 17, 17 + 16);
-        int iterations = byteToInt(body[33]) << 24 | byteToInt(body[34]) << 16 | byteToInt(body[35]) << 8 | byteToInt(body[36]);
-        byte[] ciphertext = Arrays.copyOfRange(body, 37, 37 + ciphertextLength);
-        byte[] hmac = Arrays.copyOfRange(body, body.length - 32, body.length);
+        byte[] header = new byte[BODY_HEADER_LENGTH];
+        byte[] deriveKey;
 
-        byte[] deriveKey = deriveKeys(salt, iterations, password);
+        // first pass : check the HMAC
+        InputStream body = new UnpackingInputStream(source.open());
 
-        byte[] toVerify = Arrays.copyOfRange(body, 0, body.length - 32);
+        try {
+            readBodyHeader(body, header);
 
-        SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(macKey);
-        byte[] digest = mac.doFinal(toVerify);
+            byte[] salt = Arrays.copyOfRange(header, 1, 1 + 16);
+            int iterations = byteToInt(header[33]) << 24 | byteToInt(header[34]) << 16 | byteToInt(header[35]) << 8 | byteToInt(header[36]);
+
+            deriveKey = deriveKeys(salt, iterations, password);
+
+            SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(header);
+
+            TailInputStream ciphertextStream = new TailInputStream(body, HMAC_LENGTH);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+
+            while ((len = ciphertextStream.read(buffer)) != -1) {
+                mac.update(buffer, 0, len);
+            }
 
-        if (!Arrays.equals(hmac, digest)) {
-            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Authentication check failed: incorrect password?");
-            throw new Exception("Authentication check failed: incorrect password?");
+            // constant time comparison, the MAC check must not leak the matching prefix length
+            if (!MessageDigest.isEqual(ciphertextStream.getTail(), mac.doFinal())) {
+                Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Authentication check failed: incorrect password?");
+                throw new Exception("Authentication check failed: incorrect password?");
+            }
+        } finally {
+            body.close();
         }
 
-        Cipher decryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
+        // second pass : decrypt the ciphertext
+        body = new UnpackingInputStream(source.open());
 
-        SecretKeySpec secretKeySpec = new SecretKeySpec(getAesKey(deriveKey), "AES");
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-        decryptCipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+        try {
+            readBodyHeader(body, header);
 
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        outStream.write(decryptCipher.update(ciphertext));
-        outStream.write(decryptCipher.doFinal());
+            byte[] iv = Arrays.copyOfRange(header, 17, 17 + 16);
 
-        String decodedString = new String(outStream.toByteArray(), "UTF-8");
-        outStream.close();
+            Cipher decryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
 
-        return decodedString;
+            SecretKeySpec secretKeySpec = new SecretKeySpec(getAesKey(deriveKey), "AES");
+            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+            decryptCipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+
+            return new CipherInputStream(new TailInputStream(body, HMAC_LENGTH), decryptCipher);
+        } catch (Exception e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the body header of a megolm key file.
+     *
+     * @param body   the unpacked body
+     * @param header the header buffer
+     * @throws Exception if the header is invalid
+     */
+    private static void readBodyHeader(InputStream body, byte[] header) throws Exception {
+        int offset = 0;
+
+        while (offset < header.length) {
+            int len = body.read(header, offset, header.length - offset);
+
+            if (len < 0) {
+                break;
+            }
+
+            offset += len;
+        }
+
+        // check we have a version byte
+        if (0 == offset) {
+            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Invalid file: too short");
+            throw new Exception("Invalid file: too short");
+        }
+
+        if (header[0] != 1) {
+            Log.e(LOG_TAG, "## decryptMegolmKeyFile() : Unsupported version");
+            throw new Exception("Unsupported version");
+        }
+
+        if (offset < header.length) {
+            throw new Exception("Invalid file: too short");
+        }
     }
 
     /**
@@ -149,7 +252,7 @@ public class MXMegolmExportEncryption {
      * @throws Exception the failure reason
      */
     public static byte[] encryptMegolmKeyFile(String data, String password) throws Exception {
-        return encryptMegolmKeyFile(data, password, 500000);
+        return encryptMegolmKeyFile(data, password, DEFAULT_KDF_ROUNDS);
     }
 
     /**
@@ -162,6 +265,39 @@ public class MXMegolmExportEncryption {
      * @throws Exception the failure reason
      */
     public static byte[] encryptMegolmKeyFile(String data, String password, int kdf_rounds) throws Exception {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        OutputStream encryptingStream = createEncryptingStream(outStream, password, kdf_rounds);
+        encryptingStream.write(data.getBytes("UTF-8"));
+        encryptingStream.close();
+
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Provides a stream which encrypts data into the megolm export format.
+     * The data are encrypted and packed while they are written, the HMAC and the trailer line
+     * are written when the stream is closed.
+     *
+     * @param outputStream the output stream, it is closed with the returned stream.
+     * @param password     the password
+     * @return the encrypting stream
+     * @throws Exception the failure reason
+     */
+    public static OutputStream createEncryptingStream(OutputStream outputStream, String password) throws Exception {
+        return createEncryptingStream(outputStream, password, DEFAULT_KDF_ROUNDS);
+    }
+
+    /**
+     * Provides a stream which encrypts data into the megolm export format.
+     *
+     * @param outputStream the output stream, it is closed with the returned stream.
+     * @param password     the password
+     * @param kdf_rounds   the iteration count
+     * @return the encrypting stream
+     * @throws Exception the failure reason
+     */
+    public static OutputStream createEncryptingStream(OutputStream outputStream, String password, int kdf_rounds) throws Exception {
         if (TextUtils.isEmpty(password)) {
             throw new Exception("Empty password is not supported");
         }
@@ -181,139 +317,366 @@ public class MXMegolmExportEncryption {
 
         byte[] deriveKey = deriveKeys(salt, kdf_rounds, password);
 
-        Cipher decryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
+        Cipher encryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
 
         SecretKeySpec secretKeySpec = new SecretKeySpec(getAesKey(deriveKey), "AES");
         IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-        decryptCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
 
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        outStream.write(decryptCipher.update(data.getBytes("UTF-8")));
-        outStream.write(decryptCipher.doFinal());
-
-        byte[] cipherArray = outStream.toByteArray();
-        int bodyLength = (1 + salt.length + iv.length + 4 + cipherArray.length + 32);
+        SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
 
-        byte[] resultBuffer = new byte[bodyLength];
+        byte[] header = new byte[BODY_HEADER_LENGTH];
         int idx = 0;
-        resultBuffer[idx++] = 1; // version
+        header[idx++] = 1; // version
 
-        System.arraycopy(salt, 0, resultBuffer, idx, salt.length);
+        System.arraycopy(salt, 0, header, idx, salt.length);
         idx += salt.length;
 
-        System.arraycopy(iv, 0, resultBuffer, idx, iv.length);
+        System.arraycopy(iv, 0, header, idx, iv.length);
         idx += iv.length;
 
-        resultBuffer[idx++] = (byte) ((kdf_rounds >> 24) & 0xff);
-        resultBuffer[idx++] = (byte) ((kdf_rounds >> 16) & 0xff);
-        resultBuffer[idx++] = (byte) ((kdf_rounds >> 8) & 0xff);
-        resultBuffer[idx++] = (byte) ((kdf_rounds) & 0xff);
+        header[idx++] = (byte) ((kdf_rounds >> 24) & 0xff);
+        header[idx++] = (byte) ((kdf_rounds >> 16) & 0xff);
+        header[idx++] = (byte) ((kdf_rounds >> 8) & 0xff);
+        header[idx] = (byte) ((kdf_rounds) & 0xff);
 
-        System.arraycopy(cipherArray, 0, resultBuffer, idx, cipherArray.length);
-        idx += cipherArray.length;
+        PackingOutputStream packingStream = new PackingOutputStream(outputStream);
+        packingStream.write(header);
+        mac.update(header);
 
-        byte[] toSign = Arrays.copyOfRange(resultBuffer, 0, idx);
+        return new EncryptingOutputStream(packingStream, encryptCipher, mac);
+    }
 
-        SecretKey macKey = new SecretKeySpec(getHmacKey(deriveKey), "HmacSHA256");
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(macKey);
-        byte[] digest = mac.doFinal(toSign);
-        System.arraycopy(digest, 0, resultBuffer, idx, digest.length);
+    //==============================================================================================================
+    // Streams
+    //==============================================================================================================
+
+    /**
+     * Encrypts the written data, and writes the HMAC when it is closed.
+     */
+    private static class EncryptingOutputStream extends OutputStream {
+        private final OutputStream mOutputStream;
+        private final Cipher mCipher;
+        private final Mac mMac;
+        private boolean mIsClosed = false;
+
+        EncryptingOutputStream(OutputStream outputStream, Cipher cipher, Mac mac) {
+            mOutputStream = outputStream;
+            mCipher = cipher;
+            mMac = mac;
+        }
 
-        return packMegolmKeyFile(resultBuffer);
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            writeEncrypted(mCipher.update(buffer, offset, count));
+        }
+
+        /**
+         * Write an encrypted chunk.
+         *
+         * @param encrypted the encrypted chunk
+         * @throws IOException if the write fails
+         */
+        private void writeEncrypted(byte[] encrypted) throws IOException {
+            if ((null != encrypted) && (encrypted.length > 0)) {
+                mMac.update(encrypted);
+                mOutputStream.write(encrypted);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIsClosed) {
+                return;
+            }
+
+            mIsClosed = true;
+
+            try {
+                writeEncrypted(mCipher.doFinal());
+                mOutputStream.write(mMac.doFinal());
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            } finally {
+                mOutputStream.close();
+            }
+        }
     }
 
     /**
-     * Unbase64 an ascii-armoured megolm key file
-     * Strips the header and trailer lines, and unbase64s the content
-     *
-     * @param data the input data
-     * @return unbase64ed content
+     * Packs the written data into an ascii-armoured megolm key file.
+     * The header line is written at creation and the trailer line when it is closed.
      */
-    private static byte[] unpackMegolmKeyFile(byte[] data) throws Exception {
-        String fileStr = new String(data, "UTF-8");
+    private static class PackingOutputStream extends OutputStream {
+        private final OutputStream mOutputStream;
+        // the data of the pending line
+        private final byte[] mLine = new byte[LINE_LENGTH];
+        private int mLineLength = 0;
+
+        PackingOutputStream(OutputStream outputStream) throws IOException {
+            mOutputStream = outputStream;
+            mOutputStream.write(HEADER_LINE.getBytes());
+        }
 
-        // look for the start line
-        int lineStart = 0;
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
 
-        while (true) {
-            int lineEnd = fileStr.indexOf('\n', lineStart);
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                int len = Math.min(count, LINE_LENGTH - mLineLength);
+                System.arraycopy(buffer, offset, mLine, mLineLength, len);
 
-            if (lineEnd < 0) {
-                Log.e(LOG_TAG, "## unpackMegolmKeyFile() : Header line not found");
-                throw new Exception("Header line not found");
-            }
+                mLineLength += len;
+                offset += len;
+                count -= len;
 
-            String line = fileStr.substring(lineStart, lineEnd).trim();
+                if (LINE_LENGTH == mLineLength) {
+                    writeLine();
+                }
+            }
+        }
 
-            // start the next line after the newline
-            lineStart = lineEnd + 1;
+        /**
+         * Write the pending line.
+         *
+         * @throws IOException if the write fails
+         */
+        private void writeLine() throws IOException {
+            mOutputStream.write("\n".getBytes());
+            mOutputStream.write(Base64.encode(mLine, 0, mLineLength, Base64.DEFAULT));
+            mLineLength = 0;
+        }
 
-            if (TextUtils.equals(line, HEADER_LINE)) {
-                break;
+        @Override
+        public void close() throws IOException {
+            try {
+                if (mLineLength > 0) {
+                    writeLine();
+                }
+
+                mOutputStream.write("\n".getBytes());
+                mOutputStream.write(TRAILER_LINE.getBytes());
+                mOutputStream.write("\n".getBytes());
+            } finally {
+                mOutputStream.close();
             }
         }
+    }
+
+    /**
+     * Unbase64s an ascii-armoured megolm key file while it is read.
+     * The header and trailer lines are stripped.
+     */
+    private static class UnpackingInputStream extends InputStream {
+        // the base64 decoding is done by blocks of this size
+        private static final int DECODING_BLOCK_LENGTH = 4 * 1024;
+
+        private final InputStream mInputStream;
+        private boolean mIsHeaderFound = false;
+        private boolean mIsTrailerFound = false;
+
+        // the base64 chars which are not yet decoded
+        private final StringBuilder mPendingChars = new StringBuilder();
 
-        int dataStart = lineStart;
+        // the decoded bytes which are not yet read
+        private byte[] mDecoded = new byte[0];
+        private int mDecodedOffset = 0;
 
-        // look for the end line
-        while (true) {
-            int lineEnd = fileStr.indexOf('\n', lineStart);
+        UnpackingInputStream(InputStream inputStream) {
+            mInputStream = (inputStream instanceof ByteArrayInputStream) ? inputStream : new BufferedInputStream(inputStream, BUFFER_SIZE);
+        }
+
+        /**
+         * Read a line.
+         *
+         * @return the line, null at the end of the stream.
+         * @throws IOException if the read fails
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+
+            while ((c = mInputStream.read()) != -1) {
+                if ('\n' == c) {
+                    return line.toString();
+                }
+
+                line.append((char) c);
+            }
+
+            return (line.length() > 0) ? line.toString() : null;
+        }
+
+        /**
+         * Decode the next base64 lines.
+         *
+         * @return false at the end of the data.
+         * @throws IOException if the read fails or if the file is invalid
+         */
+        private boolean decodeNextBlock() throws IOException {
             String line;
 
-            if (lineEnd < 0) {
-                line = fileStr.substring(lineStart).trim();
-            } else {
-                line = fileStr.substring(lineStart, lineEnd).trim();
+            // look for the start line
+            while (!mIsHeaderFound) {
+                line = readLine();
+
+                if (null == line) {
+                    Log.e(LOG_TAG, "## unpackMegolmKeyFile() : Header line not found");
+                    throw new IOException("Header line not found");
+                }
+
+                mIsHeaderFound = TextUtils.equals(line.trim(), HEADER_LINE);
             }
 
-            if (TextUtils.equals(line, TRAILER_LINE)) {
-                break;
+            // look for the end line
+            while (!mIsTrailerFound && (mPendingChars.length() < DECODING_BLOCK_LENGTH)) {
+                line = readLine();
+
+                if (null == line) {
+                    Log.e(LOG_TAG, "## unpackMegolmKeyFile() : Trailer line not found");
+                    throw new IOException("Trailer line not found");
+                }
+
+                line = line.trim();
+
+                if (TextUtils.equals(line, TRAILER_LINE)) {
+                    mIsTrailerFound = true;
+                } else {
+                    mPendingChars.append(line);
+                }
+            }
+
+            // decode by groups of 4 chars, the remaining ones are decoded with the next lines
+            int length = mIsTrailerFound ? mPendingChars.length() : (mPendingChars.length() / 4) * 4;
+
+            if (0 == length) {
+                return !mIsTrailerFound;
             }
 
-            if (lineEnd < 0) {
-                Log.e(LOG_TAG, "## unpackMegolmKeyFile() : Trailer line not found");
-                throw new Exception("Trailer line not found");
+            try {
+                mDecoded = Base64.decode(mPendingChars.substring(0, length), Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
             }
 
-            // start the next line after the newline
-            lineStart = lineEnd + 1;
+            mDecodedOffset = 0;
+            mPendingChars.delete(0, length);
+
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return (-1 == read(buffer, 0, 1)) ? -1 : (buffer[0] & 0xFF);
         }
 
-        int dataEnd = lineStart;
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (0 == count) {
+                return 0;
+            }
+
+            while (mDecodedOffset == mDecoded.length) {
+                if (!decodeNextBlock()) {
+                    return -1;
+                }
+            }
+
+            int len = Math.min(count, mDecoded.length - mDecodedOffset);
+            System.arraycopy(mDecoded, mDecodedOffset, buffer, offset, len);
+            mDecodedOffset += len;
 
-        // Receiving side
-        return Base64.decode(fileStr.substring(dataStart, dataEnd), Base64.DEFAULT);
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
     }
 
     /**
-     * Pack the megolm data.
-     *
-     * @param data the data to pack.
-     * @return the packed data
-     * @throws Exception the failure reason.
+     * Holds back the last bytes of a stream.
+     * They are available with getTail() once the stream has been fully read.
      */
-    private static byte[] packMegolmKeyFile(byte[] data) throws Exception {
-        int nLines = (data.length + LINE_LENGTH - 1) / LINE_LENGTH;
+    private static class TailInputStream extends InputStream {
+        private final InputStream mInputStream;
+        private final int mTailLength;
+
+        // the read bytes which are not yet returned
+        private final byte[] mBuffer;
+        private int mCount = 0;
+        private boolean mIsEndOfStream = false;
+
+        TailInputStream(InputStream inputStream, int tailLength) {
+            mInputStream = inputStream;
+            mTailLength = tailLength;
+            mBuffer = new byte[tailLength + BUFFER_SIZE];
+        }
 
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        outStream.write(HEADER_LINE.getBytes());
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return (-1 == read(buffer, 0, 1)) ? -1 : (buffer[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (0 == count) {
+                return 0;
+            }
+
+            while (!mIsEndOfStream && (mCount <= mTailLength)) {
+                int len = mInputStream.read(mBuffer, mCount, mBuffer.length - mCount);
 
-        int o = 0;
+                if (len < 0) {
+                    mIsEndOfStream = true;
+                } else {
+                    mCount += len;
+                }
+            }
+
+            if (mCount <= mTailLength) {
+                return -1;
+            }
 
-        for (int i = 1; i <= nLines; i++) {
-            outStream.write("\n".getBytes());
+            int len = Math.min(count, mCount - mTailLength);
+            System.arraycopy(mBuffer, 0, buffer, offset, len);
+            System.arraycopy(mBuffer, len, mBuffer, 0, mCount - len);
+            mCount -= len;
 
-            int len = Math.min(LINE_LENGTH, data.length - o);
-            outStream.write(Base64.encode(data, o, len, Base64.DEFAULT));
-            o += LINE_LENGTH;
+            return len;
         }
 
-        outStream.write("\n".getBytes());
-        outStream.write(TRAILER_LINE.getBytes());
-        outStream.write("\n".getBytes());
+        /**
+         * @return the tail of the stream
+         * @throws IOException if the stream is not fully read or if it is too short
+         */
+        byte[] getTail() throws IOException {
+            if (!mIsEndOfStream || (mCount != mTailLength)) {
+                throw new IOException("Invalid file: too short");
+            }
 
-        return outStream.toByteArray();
+            return Arrays.copyOf(mBuffer, mTailLength);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
     }
 
     /**
@@ -37,6 +37,8 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -76,13 +78,9 @@ public class MXOlmDevice {
     // The first level keys are timeline ids.
     // The second level keys are strings of form "<senderKey>|<session_id>|<message_index>"
     // Values are true.
+    // The group messages are decrypted by several threads so the accesses are synchronized on this map.
     private final HashMap<String, HashMap<String, Boolean>> mInboundGroupSessionMessageIndexes;
 
-    /**
-     * inboundGroupSessionWithId error
-     */
-    private MXCryptoError mInboundGroupSessionWithIdError = null;
-
     /**
      * Constructor
      * @param store the used store
@@ -520,7 +518,7 @@ public class MXOlmDevice {
      * @return true if the operation succeeds.
      */
     public boolean addInboundGroupSession(String sessionId, String sessionKey, String roomId, String senderKey, Map<String, String> keysClaimed) {
-        if (null != getInboundGroupSession(sessionId, senderKey, roomId)) {
+        if (mStore.hasInboundGroupSession(sessionId, senderKey)) {
             // If we already have this session, consider updating it
             Log.e(LOG_TAG, "## addInboundGroupSession() : Update for megolm session " + senderKey + "/" + sessionId);
 
@@ -561,11 +559,56 @@ public class MXOlmDevice {
      * @return the imported session if the operation succeeds.
      */
     public MXOlmInboundGroupSession2 importInboundGroupSession(Map<String, Object> exportedSessionMap) {
+        MXOlmInboundGroupSession2 session = createImportedInboundGroupSession(exportedSessionMap);
+
+        if (null != session) {
+            mStore.storeInboundGroupSession(session);
+        }
+
+        return session;
+    }
+
+    /**
+     * Import some inbound group sessions to the session store.
+     * The sessions are stored in a single batch.
+     * @param exportedSessionMaps the exported sessions maps
+     * @return the imported sessions.
+     */
+    public List<MXOlmInboundGroupSession2> importInboundGroupSessions(List<Map<String, Object>> exportedSessionMaps) {
+        ArrayList<MXOlmInboundGroupSession2> sessions = new ArrayList<>(exportedSessionMaps.size());
+        // a session might be exported twice
+        HashSet<String> sessionKeys = new HashSet<>();
+
+        for (Map<String, Object> exportedSessionMap : exportedSessionMaps) {
+            if (!sessionKeys.add(exportedSessionMap.get("sender_key") + "|" + exportedSessionMap.get("session_id"))) {
+                continue;
+            }
+
+            MXOlmInboundGroupSession2 session = createImportedInboundGroupSession(exportedSessionMap);
+
+            if (null != session) {
+                sessions.add(session);
+            }
+        }
+
+        if (sessions.size() > 0) {
+            mStore.storeInboundGroupSessions(sessions);
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Create an inbound group session from an exported session map.
+     * @param exportedSessionMap the exported session map
+     * @return the session, null if it is already known or if it is invalid.
+     */
+    private MXOlmInboundGroupSession2 createImportedInboundGroupSession(Map<String, Object> exportedSessionMap) {
         String sessionId = (String)exportedSessionMap.get("session_id");
         String senderKey = (String)exportedSessionMap.get("sender_key");
         String roomId = (String)exportedSessionMap.get("room_id");
 
-        if (null != getInboundGroupSession(sessionId, senderKey, roomId)) {
+        if (mStore.hasInboundGroupSession(sessionId, senderKey)) {
             // If we already have this session, consider updating it
             Log.e(LOG_TAG, "## importInboundGroupSession() : Update for megolm session " + senderKey + "/" + sessionId);
 
@@ -597,8 +640,6 @@ public class MXOlmDevice {
             return null;
         }
 
-        mStore.storeInboundGroupSession(session);
-
         return session;
     }
 
@@ -623,76 +664,136 @@ public class MXOlmDevice {
      * @return the decrypting result. Nil if the sessionId is unknown.
      */
     public MXDecryptionResult decryptGroupMessage(String body, String roomId, String timeline, String sessionId, String senderKey) {
-        MXDecryptionResult result = new MXDecryptionResult();
-        MXOlmInboundGroupSession2 session = getInboundGroupSession(sessionId, senderKey, roomId);
+        return decryptGroupMessages(Collections.singletonList(body), roomId, timeline, sessionId, senderKey).get(0);
+    }
 
-        if (null != session) {
-            // Check that the room id matches the original one for the session. This stops
-            // the HS pretending a message was targeting a different room.
-            if (TextUtils.equals(roomId, session.mRoomId)) {
-				String errorMessage = "";
-                OlmInboundGroupSession.DecryptMessageResult decryptResult = null;
-                try {
-                    decryptResult = session.mSession.decryptMessage(body);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "## decryptGroupMessage () : decryptMessage failed " + e.getMessage());
-                    errorMessage = e.getMessage();
+    /**
+     * Decrypt some received messages encrypted with the same inbound group session.
+     * The session is retrieved and saved once for the whole messages list.
+     * The messages of different sessions can be decrypted in parallel but the messages of
+     * a session must be decrypted by one thread at a time.
+     * @param bodies the base64-encoded bodies of the encrypted messages.
+     * @param roomId theroom in which the messages were received.
+     * @param timeline the id of the timeline where the events are decrypted. It is used to prevent replay attack.
+     * @param sessionId the session identifier.
+     * @param senderKey the base64-encoded curve25519 key of the sender.
+     * @return the decrypting results, in the bodies order. An item is null if the message payload cannot be parsed.
+     */
+    public List<MXDecryptionResult> decryptGroupMessages(List<String> bodies, String roomId, String timeline, String sessionId, String senderKey) {
+        ArrayList<MXDecryptionResult> results = new ArrayList<>(bodies.size());
+        MXCryptoError[] sessionError = new MXCryptoError[1];
+        MXOlmInboundGroupSession2 session = getInboundGroupSession(sessionId, senderKey, roomId, sessionError);
+        boolean isSessionUsed = false;
+
+        // the store might release the cached sessions at any time :
+        // the session is locked while it is used and it is retrieved again if it has been released in the meantime.
+        while (null != session) {
+            synchronized (session) {
+                if (!session.mSession.isReleased()) {
+                    for (String body : bodies) {
+                        MXDecryptionResult result = decryptGroupMessage(session, body, roomId, timeline, sessionId, senderKey);
+                        isSessionUsed |= (null != result) && (null != result.mPayload);
+                        results.add(result);
+                    }
+                    break;
                 }
+            }
+
+            session = getInboundGroupSession(sessionId, senderKey, roomId, sessionError);
+        }
+
+        if (null == session) {
+            for (int i = 0; i < bodies.size(); i++) {
+                MXDecryptionResult result = new MXDecryptionResult();
+                result.mCryptoError = sessionError[0];
+                Log.e(LOG_TAG, "## decryptGroupMessages() : Cannot retrieve inbound group session " + sessionId);
+                results.add(result);
+            }
+        }
+
+        if (isSessionUsed) {
+            mStore.storeInboundGroupSession(session);
+        }
+
+        return results;
+    }
+
+    /**
+     * Decrypt a received message with a retrieved inbound group session.
+     * The session is not saved.
+     * @param session the inbound group session.
+     * @param body the base64-encoded body of the encrypted message.
+     * @param roomId theroom in which the message was received.
+     * @param timeline the id of the timeline where the event is decrypted. It is used to prevent replay attack.
+     * @param sessionId the session identifier.
+     * @param senderKey the base64-encoded curve25519 key of the sender.
+     * @return the decrypting result. Nil if the payload cannot be parsed.
+     */
+    private MXDecryptionResult decryptGroupMessage(MXOlmInboundGroupSession2 session, String body, String roomId, String timeline, String sessionId, String senderKey) {
+        MXDecryptionResult result = new MXDecryptionResult();
 
-                if (null != decryptResult) {
-                    if (null != timeline) {
+        // Check that the room id matches the original one for the session. This stops
+        // the HS pretending a message was targeting a different room.
+        if (TextUtils.equals(roomId, session.mRoomId)) {
+            String errorMessage = "";
+            OlmInboundGroupSession.DecryptMessageResult decryptResult = null;
+            try {
+                decryptResult = session.mSession.decryptMessage(body);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## decryptGroupMessage () : decryptMessage failed " + e.getMessage());
+                errorMessage = e.getMessage();
+            }
+
+            if (null != decryptResult) {
+                if (null != timeline) {
+                    synchronized (mInboundGroupSessionMessageIndexes) {
                         if (!mInboundGroupSessionMessageIndexes.containsKey(timeline)) {
                             mInboundGroupSessionMessageIndexes.put(timeline, new HashMap<String, Boolean>());
                         }
 
-                        String messageIndexKey = senderKey + "|" + sessionId + "|" +  decryptResult.mIndex;
+                        String messageIndexKey = senderKey + "|" + sessionId + "|" + decryptResult.mIndex;
 
                         if (null != mInboundGroupSessionMessageIndexes.get(timeline).get(messageIndexKey)) {
 
                             String reason = String.format(MXCryptoError.DUPLICATE_MESSAGE_INDEX_REASON, decryptResult.mIndex);
 
-                            Log.e(LOG_TAG,"## decryptGroupMessage() : " + reason);
+                            Log.e(LOG_TAG, "## decryptGroupMessage() : " + reason);
                             result.mCryptoError = new MXCryptoError(MXCryptoError.DUPLICATED_MESSAGE_INDEX_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason);
                             return result;
                         }
 
                         mInboundGroupSessionMessageIndexes.get(timeline).put(messageIndexKey, true);
                     }
+                }
 
-                    mStore.storeInboundGroupSession(session);
-                    try {
-                        JsonParser parser = new JsonParser();
-                        result.mPayload = parser.parse(JsonUtils.convertFromUTF8(decryptResult.mDecryptedMessage));
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "## decryptGroupMessage() : RLEncoder.encode failed " + e.getMessage());
-                        return null;
-                    }
+                try {
+                    JsonParser parser = new JsonParser();
+                    result.mPayload = parser.parse(JsonUtils.convertFromUTF8(decryptResult.mDecryptedMessage));
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## decryptGroupMessage() : RLEncoder.encode failed " + e.getMessage());
+                    return null;
+                }
 
-                    if (null == result.mPayload) {
-                        Log.e(LOG_TAG, "## decryptGroupMessage() : fails to parse the payload");
-                        return null;
-                    }
+                if (null == result.mPayload) {
+                    Log.e(LOG_TAG, "## decryptGroupMessage() : fails to parse the payload");
+                    return null;
+                }
 
-                    result.mKeysClaimed = session.mKeysClaimed;
+                result.mKeysClaimed = session.mKeysClaimed;
 
-                    // The sender must have had the senderKey to persuade us to save the
-                    // session.
-                    HashMap<String, String> map = new HashMap<>();
-                    map.put("curve25519", senderKey);
-                    result.mKeysProved = map;
-                } else {
-                    result.mCryptoError = new MXCryptoError(MXCryptoError.OLM_ERROR_CODE, errorMessage, null);
-                    Log.e(LOG_TAG, "## decryptGroupMessage() : failed to decode the message");
-                }
+                // The sender must have had the senderKey to persuade us to save the
+                // session.
+                HashMap<String, String> map = new HashMap<>();
+                map.put("curve25519", senderKey);
+                result.mKeysProved = map;
             } else {
-                String reason = String.format(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_REASON, roomId, session.mRoomId);
-                Log.e(LOG_TAG, "## decryptGroupMessage() : " + reason);
-                result.mCryptoError = new MXCryptoError(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason);
+                result.mCryptoError = new MXCryptoError(MXCryptoError.OLM_ERROR_CODE, errorMessage, null);
+                Log.e(LOG_TAG, "## decryptGroupMessage() : failed to decode the message");
             }
-        }
-        else {
-            result.mCryptoError = mInboundGroupSessionWithIdError;
-            Log.e(LOG_TAG, "## decryptGroupMessage() : Cannot retrieve inbound group session " + sessionId);
+        } else {
+            String reason = String.format(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_REASON, roomId, session.mRoomId);
+            Log.e(LOG_TAG, "## decryptGroupMessage() : " + reason);
+            result.mCryptoError = new MXCryptoError(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason);
         }
 
         return result;
@@ -704,7 +805,9 @@ public class MXOlmDevice {
      */
     public void resetReplayAttackCheckInTimeline(String timeline) {
        if (null != timeline) {
-           mInboundGroupSessionMessageIndexes.remove(timeline);
+           synchronized (mInboundGroupSessionMessageIndexes) {
+               mInboundGroupSessionMessageIndexes.remove(timeline);
+           }
        }
     }
 
@@ -751,14 +854,14 @@ public class MXOlmDevice {
 
     /**
      * Extract an InboundGroupSession from the session store and do some check.
-     * mInboundGroupSessionWithIdError describes the failure reason.
      * @param roomId the room where the sesion is used.
      * @param sessionId the session identifier.
      * @param senderKey the base64-encoded curve25519 key of the sender.
+     * @param error the first item is set to the failure reason.
      * @return the inbound group session.
      */
-    private MXOlmInboundGroupSession2 getInboundGroupSession(String sessionId, String senderKey, String roomId) {
-        mInboundGroupSessionWithIdError = null;
+    private MXOlmInboundGroupSession2 getInboundGroupSession(String sessionId, String senderKey, String roomId, MXCryptoError[] error) {
+        error[0] = null;
 
         MXOlmInboundGroupSession2 session = mStore.getInboundGroupSession(sessionId, senderKey);
 
@@ -768,11 +871,11 @@ public class MXOlmDevice {
             if (!TextUtils.equals(roomId, session.mRoomId)) {
                 String errorDescription = String.format(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_REASON, roomId, session.mRoomId);
                 Log.e(LOG_TAG, "## getInboundGroupSession() : " + errorDescription);
-                mInboundGroupSessionWithIdError = new MXCryptoError(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, errorDescription);
+                error[0] = new MXCryptoError(MXCryptoError.INBOUND_SESSION_MISMATCH_ROOM_ID_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, errorDescription);
             }
         } else {
             Log.e(LOG_TAG, "## getInboundGroupSession() : Cannot retrieve inbound group session " + sessionId);
-            mInboundGroupSessionWithIdError = new MXCryptoError(MXCryptoError.UNKNOWN_INBOUND_SESSION_ID_ERROR_CODE, MXCryptoError.UNKNOWN_INBOUND_SESSION_ID_REASON, null);
+            error[0] = new MXCryptoError(MXCryptoError.UNKNOWN_INBOUND_SESSION_ID_ERROR_CODE, MXCryptoError.UNKNOWN_INBOUND_SESSION_ID_REASON, null);
         }
         return session;
     }
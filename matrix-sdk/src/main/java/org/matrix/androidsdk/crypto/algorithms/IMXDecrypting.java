@@ -19,6 +19,8 @@ package org.matrix.androidsdk.crypto.algorithms;
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.rest.model.Event;
 
+import java.util.List;
+
 /**
  * An interface for decrypting data
  */
@@ -37,6 +39,14 @@ public interface IMXDecrypting {
      */
     boolean decryptEvent(Event event, String timeline);
 
+    /**
+     * Decrypt some messages.
+     * The decryption result of each event is set in its clear event or in its crypto error.
+     * @param events the raw events.
+     * @param timeline the id of the timeline where the events are decrypted. It is used to prevent replay attack.
+     */
+    void decryptEvents(List<Event> events, String timeline);
+
     /**
      * Handle a key event.
      * @param event the key event.
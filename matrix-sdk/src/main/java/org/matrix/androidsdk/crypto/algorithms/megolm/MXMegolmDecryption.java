@@ -21,6 +21,7 @@ import org.matrix.androidsdk.util.Log;
 
 import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.crypto.MXCryptoError;
+import org.matrix.androidsdk.util.MXWorkersPool;
 import org.matrix.androidsdk.crypto.MXOlmDevice;
 import org.matrix.androidsdk.crypto.algorithms.IMXDecrypting;
 import org.matrix.androidsdk.crypto.algorithms.MXDecryptionResult;
@@ -30,8 +31,12 @@ import org.matrix.androidsdk.rest.model.RoomKeyContent;
 import org.matrix.androidsdk.util.JsonUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 public class MXMegolmDecryption implements IMXDecrypting {
     private static final String LOG_TAG = "MXMegolmDecryption";
@@ -70,22 +75,138 @@ public class MXMegolmDecryption implements IMXDecrypting {
             return false;
         }
 
-        EncryptedEventContent encryptedEventContent = JsonUtils.toEncryptedEventContent(event.getWireContent().getAsJsonObject());
+        decryptEvents(Collections.singletonList(event), timeline);
 
-        String senderKey = encryptedEventContent.sender_key;
-        String ciphertext = encryptedEventContent.ciphertext;
-        String sessionId = encryptedEventContent.session_id;
+        return null != event.getClearEvent();
+    }
 
-        if (TextUtils.isEmpty(senderKey) || TextUtils.isEmpty(sessionId) || TextUtils.isEmpty(ciphertext)) {
-            event.setCryptoError(new MXCryptoError(MXCryptoError.MISSING_FIELDS_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, MXCryptoError.MISSING_FIELDS_REASON));
-            return false;
+    /**
+     * The events encrypted with the same inbound group session.
+     */
+    private static class SessionEvents {
+        final String mRoomId;
+        final String mSenderKey;
+        final String mSessionId;
+
+        final ArrayList<Event> mEvents = new ArrayList<>();
+        final ArrayList<String> mCiphertexts = new ArrayList<>();
+
+        // the decryption results, in the events order
+        List<MXDecryptionResult> mResults;
+
+        SessionEvents(String roomId, String senderKey, String sessionId) {
+            mRoomId = roomId;
+            mSenderKey = senderKey;
+            mSessionId = sessionId;
+        }
+    }
+
+    @Override
+    public void decryptEvents(List<Event> events, String timeline) {
+        // group the events by inbound group session
+        // to retrieve and to save each session once.
+        LinkedHashMap<String, SessionEvents> eventsBySession = new LinkedHashMap<>();
+
+        for (Event event : events) {
+            // sanity check
+            if (null == event) {
+                continue;
+            }
+
+            EncryptedEventContent encryptedEventContent = JsonUtils.toEncryptedEventContent(event.getWireContent().getAsJsonObject());
+
+            String senderKey = encryptedEventContent.sender_key;
+            String ciphertext = encryptedEventContent.ciphertext;
+            String sessionId = encryptedEventContent.session_id;
+
+            if (TextUtils.isEmpty(senderKey) || TextUtils.isEmpty(sessionId) || TextUtils.isEmpty(ciphertext)) {
+                event.setCryptoError(new MXCryptoError(MXCryptoError.MISSING_FIELDS_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, MXCryptoError.MISSING_FIELDS_REASON));
+                continue;
+            }
+
+            event.setClearEvent(null);
+            event.setCryptoError(null);
+
+            String k = event.roomId + "|" + senderKey + "|" + sessionId;
+            SessionEvents sessionEvents = eventsBySession.get(k);
+
+            if (null == sessionEvents) {
+                sessionEvents = new SessionEvents(event.roomId, senderKey, sessionId);
+                eventsBySession.put(k, sessionEvents);
+            }
+
+            sessionEvents.mEvents.add(event);
+            sessionEvents.mCiphertexts.add(ciphertext);
+        }
+
+        decryptSessionsEvents(new ArrayList<>(eventsBySession.values()), timeline);
+
+        // the results are managed by the caller thread
+        for (SessionEvents sessionEvents : eventsBySession.values()) {
+            if (null == sessionEvents.mResults) {
+                Log.e(LOG_TAG, "## decryptEvents() : the decryption of the session " + sessionEvents.mSessionId + " failed");
+                continue;
+            }
+
+            for (int i = 0; i < sessionEvents.mResults.size(); i++) {
+                onDecryptionResult(sessionEvents.mEvents.get(i), timeline, sessionEvents.mCiphertexts.get(i), sessionEvents.mResults.get(i));
+            }
+        }
+    }
+
+    /**
+     * Decrypt the messages of some inbound group sessions.
+     * The sessions are dispatched to the crypto decryption workers so they are decrypted in parallel.
+     * The messages of a session are decrypted in order by the same worker.
+     * @param sessionsEvents the events by session
+     * @param timeline the timeline identifier
+     */
+    private void decryptSessionsEvents(List<SessionEvents> sessionsEvents, final String timeline) {
+        MXWorkersPool pool = (null != mSession.getCrypto()) ? mSession.getCrypto().getDecryptionPool() : null;
+
+        // there is nothing to parallelize
+        if ((null == pool) || (pool.getWorkersCount() < 2) || (sessionsEvents.size() < 2)) {
+            for (SessionEvents sessionEvents : sessionsEvents) {
+                sessionEvents.mResults = mOlmDevice.decryptGroupMessages(sessionEvents.mCiphertexts, sessionEvents.mRoomId, timeline, sessionEvents.mSessionId, sessionEvents.mSenderKey);
+            }
+            return;
         }
 
-        event.setClearEvent(null);
-        event.setCryptoError(null);
+        final CountDownLatch latch = new CountDownLatch(sessionsEvents.size());
 
-        MXDecryptionResult result = mOlmDevice.decryptGroupMessage(ciphertext, event.roomId, timeline, sessionId, senderKey);
+        for (final SessionEvents sessionEvents : sessionsEvents) {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sessionEvents.mResults = mOlmDevice.decryptGroupMessages(sessionEvents.mCiphertexts, sessionEvents.mRoomId, timeline, sessionEvents.mSessionId, sessionEvents.mSenderKey);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
 
+            // the workers are released
+            if (!pool.post(sessionEvents.mSenderKey + "|" + sessionEvents.mSessionId, task)) {
+                task.run();
+            }
+        }
+
+        try {
+            latch.await();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## decryptSessionsEvents() : failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Update an event with its decryption result.
+     * @param event the encrypted event
+     * @param timeline the timeline identifier
+     * @param ciphertext the event ciphertext
+     * @param result the decryption result
+     */
+    private void onDecryptionResult(Event event, String timeline, String ciphertext, MXDecryptionResult result) {
         // the decryption succeeds
         if ((null != result) && (null != result.mPayload) && (null == result.mCryptoError)) {
             Event clearedEvent = JsonUtils.toEvent(result.mPayload);
@@ -111,8 +232,6 @@ public class MXMegolmDecryption implements IMXDecrypting {
 
             event.setCryptoError(result.mCryptoError);
         }
-
-        return null != event.getClearEvent();
     }
 
     /**
@@ -191,8 +310,11 @@ public class MXMegolmDecryption implements IMXDecrypting {
             for (String timelineId : timelineIds) {
                 ArrayList<Event> events = pending.get(timelineId);
 
+                // the events are decrypted with the same session
+                decryptEvents(events, TextUtils.isEmpty(timelineId) ? null : timelineId);
+
                 for (Event event : events) {
-                    if (decryptEvent(event, TextUtils.isEmpty(timelineId) ? null : timelineId)) {
+                    if (null != event.getClearEvent()) {
                         final Event fEvent = event;
                         mSession.getCrypto().getUIHandler().post(new Runnable() {
                             @Override
@@ -329,7 +329,7 @@ public class MXMegolmEncryption implements IMXEncrypting {
      * @param devicesByUsers the devices map
      * @param callback       the asynchronous callback
      */
-    private void shareKey(final MXOutboundSessionInfo session, final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers, final ApiCallback<Void> callback) {
+    void shareKey(final MXOutboundSessionInfo session, final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers, final ApiCallback<Void> callback) {
         // nothing to send, the task is done
         if (0 == devicesByUsers.size()) {
             Log.d(LOG_TAG, "## shareKey() : nothing more to do");
@@ -346,240 +346,445 @@ public class MXMegolmEncryption implements IMXEncrypting {
             return;
         }
 
-        // reduce the map size to avoid request timeout when there are too devices (Users size  * devices per user)
-        HashMap<String, ArrayList<MXDeviceInfo>> subMap = new HashMap<>();
+        new KeyShareOperation(session, devicesByUsers, callback).start();
+    }
 
-        final ArrayList<String> userIds = new ArrayList<>();
-        int devicesCount = 0;
+    //==============================================================================================================
+    // Key share pipeline
+    //==============================================================================================================
 
-        for (String userId : devicesByUsers.keySet()) {
-            ArrayList<MXDeviceInfo> devicesList = devicesByUsers.get(userId);
+    // the max number of devices of a sendToDevice request, to avoid request timeout
+    private static final int KEY_SHARE_BATCH_DEVICES_COUNT = 100;
 
-            userIds.add(userId);
-            subMap.put(userId, devicesList);
+    // the max number of sendToDevice requests in progress
+    private static final int KEY_SHARE_MAX_BATCHES_IN_FLIGHT = 3;
 
-            devicesCount += devicesList.size();
+    // the sendToDevice requests are retried on network errors
+    private static final int KEY_SHARE_MAX_RETRIES = 3;
+    private static final long KEY_SHARE_RETRY_DELAY_MS = 2000;
 
-            if (devicesCount > 100) {
-                break;
-            }
+    /**
+     * A batch of devices which receive the key in a single sendToDevice request.
+     */
+    private static class KeyShareBatch {
+        final int mIndex;
+        // the devices to send the key to
+        final List<MXDeviceInfo> mDevices = new ArrayList<>();
+        // the encrypted messages
+        final MXUsersDevicesMap<Map<String, Object>> mContentMap = new MXUsersDevicesMap<>();
+        // the messages which are not yet encrypted
+        int mPendingEncryptionsCount;
+        int mRetriesCount = 0;
+
+        KeyShareBatch(int index) {
+            mIndex = index;
         }
+    }
 
-        Log.d(LOG_TAG, "## shareKey() ; userId " + userIds);
-        shareUserDevicesKey(session, subMap, new ApiCallback<Void>() {
-            @Override
-            public void onSuccess(Void info) {
-                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (String userId : userIds) {
-                            devicesByUsers.remove(userId);
+    /**
+     * Share the session key with a devices list.
+     *
+     * The one-time keys of all the devices without olm session are claimed by a single request,
+     * the olm messages are encrypted in parallel by the crypto encryption workers,
+     * and the batches are sent as soon as they are encrypted, with several sendToDevice requests in flight.
+     *
+     * The operation state is only updated in the encrypting thread.
+     */
+    private class KeyShareOperation {
+        private final MXOutboundSessionInfo mSessionInfo;
+        private final HashMap<String, ArrayList<MXDeviceInfo>> mDevicesByUser;
+        private final ApiCallback<Void> mCallback;
+
+        private final HashMap<String, Object> mPayload;
+        private final int mChainIndex;
+
+        // the batches which are not yet sent
+        private final ArrayList<KeyShareBatch> mPendingBatches = new ArrayList<>();
+        // the encrypted batches, waiting for a request slot
+        private final ArrayList<KeyShareBatch> mReadyBatches = new ArrayList<>();
+        private int mInFlightCount = 0;
+
+        // progress
+        private int mDevicesCount = 0;
+        private int mSharedDevicesCount = 0;
+
+        // the devices without olm session
+        private final List<MXDeviceInfo> mDevicesWithoutSession = new ArrayList<>();
+
+        // true when the callback has been called
+        private boolean mIsDone = false;
+
+        private final long mStartTime = System.currentTimeMillis();
+
+        /**
+         * Constructor
+         *
+         * @param session       the session info
+         * @param devicesByUser the devices map
+         * @param callback      the asynchronous callback
+         */
+        KeyShareOperation(MXOutboundSessionInfo session, HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser, ApiCallback<Void> callback) {
+            mSessionInfo = session;
+            mDevicesByUser = devicesByUser;
+            mCallback = callback;
+
+            String sessionKey = mCrypto.getOlmDevice().getSessionKey(session.mSessionId);
+            mChainIndex = mCrypto.getOlmDevice().getMessageIndex(session.mSessionId);
+
+            HashMap<String, Object> submap = new HashMap<>();
+            submap.put("algorithm", MXCryptoAlgorithms.MXCRYPTO_ALGORITHM_MEGOLM);
+            submap.put("room_id", mRoomId);
+            submap.put("session_id", session.mSessionId);
+            submap.put("session_key", sessionKey);
+            submap.put("chain_index", mChainIndex);
+
+            mPayload = new HashMap<>();
+            mPayload.put("type", Event.EVENT_TYPE_ROOM_KEY);
+            mPayload.put("content", submap);
+        }
+
+        /**
+         * Start the operation.
+         */
+        void start() {
+            Log.d(LOG_TAG, "## shareKey() : starts with " + mDevicesByUser.size() + " users");
+
+            mCrypto.ensureOlmSessionsForDevices(mDevicesByUser, new ApiCallback<MXUsersDevicesMap<MXOlmSessionResult>>() {
+                @Override
+                public void onSuccess(final MXUsersDevicesMap<MXOlmSessionResult> results) {
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.d(LOG_TAG, "## shareKey() : ensureOlmSessionsForDevices succeeds after " + (System.currentTimeMillis() - mStartTime) + " ms");
+                            encryptBatches(results);
                         }
-                        shareKey(session, devicesByUsers, callback);
-                    }
-                });
-            }
+                    });
+                }
 
-            @Override
-            public void onNetworkError(Exception e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onNetworkError(e);
+                @Override
+                public void onNetworkError(final Exception e) {
+                    Log.d(LOG_TAG, "## shareKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onNetworkErrorAfterRetries(e);
+                        }
+                    });
                 }
-            }
 
-            @Override
-            public void onMatrixError(MatrixError e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onMatrixError(e);
+                @Override
+                public void onMatrixError(final MatrixError e) {
+                    Log.d(LOG_TAG, "## shareKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatchError(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mCallback.onMatrixError(e);
+                                }
+                            });
+                        }
+                    });
                 }
-            }
 
-            @Override
-            public void onUnexpectedError(Exception e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onUnexpectedError(e);
+                @Override
+                public void onUnexpectedError(final Exception e) {
+                    Log.d(LOG_TAG, "## shareKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onUnexpectedErrorAfterRetries(e);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Split the devices with an olm session into batches and encrypt them.
+         *
+         * @param results the olm sessions
+         */
+        private void encryptBatches(MXUsersDevicesMap<MXOlmSessionResult> results) {
+            KeyShareBatch batch = null;
+
+            for (String userId : results.getUserIds()) {
+                ArrayList<MXDeviceInfo> devicesToShareWith = mDevicesByUser.get(userId);
+
+                if (null == devicesToShareWith) {
+                    continue;
+                }
+
+                for (MXDeviceInfo deviceInfo : devicesToShareWith) {
+                    MXOlmSessionResult sessionResult = results.getObject(deviceInfo.deviceId, userId);
+
+                    if ((null == sessionResult) || (null == sessionResult.mSessionId)) {
+                        // no session with this device, probably because there
+                        // were no one-time keys.
+                        //
+                        // we could send them a to_device message anyway, as a
+                        // signal that they have missed out on the key sharing
+                        // message because of the lack of keys, but there's not
+                        // much point in that really; it will mostly serve to clog
+                        // up to_device inboxes.
+                        //
+                        // ensureOlmSessionsForUsers has already done the logging,
+                        // so just skip it.
+                        mDevicesWithoutSession.add(deviceInfo);
+                        continue;
+                    }
+
+                    if ((null == batch) || (batch.mDevices.size() >= KEY_SHARE_BATCH_DEVICES_COUNT)) {
+                        batch = new KeyShareBatch(mPendingBatches.size());
+                        mPendingBatches.add(batch);
+                    }
+
+                    batch.mDevices.add(sessionResult.mDevice);
+                    mDevicesCount++;
                 }
             }
-        });
-    }
 
-    /**
-     * Share the device keys of a an user
-     *
-     * @param session       the session info
-     * @param devicesByUser the devices map
-     * @param callback      the asynchronous callback
-     */
-    private void shareUserDevicesKey(final MXOutboundSessionInfo session, final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser, final ApiCallback<Void> callback) {
-        final String sessionKey = mCrypto.getOlmDevice().getSessionKey(session.mSessionId);
-        final int chainIndex = mCrypto.getOlmDevice().getMessageIndex(session.mSessionId);
+            Log.d(LOG_TAG, "## shareKey() : " + mDevicesCount + " devices in " + mPendingBatches.size() + " batches, "
+                    + mDevicesWithoutSession.size() + " devices without olm session");
 
-        HashMap<String, Object> submap = new HashMap<>();
-        submap.put("algorithm", MXCryptoAlgorithms.MXCRYPTO_ALGORITHM_MEGOLM);
-        submap.put("room_id", mRoomId);
-        submap.put("session_id", session.mSessionId);
-        submap.put("session_key", sessionKey);
-        submap.put("chain_index", chainIndex);
+            if (mPendingBatches.isEmpty()) {
+                checkCompletion();
+                return;
+            }
 
-        final HashMap<String, Object> payload = new HashMap<>();
-        payload.put("type", Event.EVENT_TYPE_ROOM_KEY);
-        payload.put("content", submap);
+            // the encryptions are posted by batch order so the first batches are sent while the next ones are encrypted
+            for (KeyShareBatch pendingBatch : mPendingBatches) {
+                encryptBatch(pendingBatch);
+            }
+        }
 
-        final long t0 = System.currentTimeMillis();
-        Log.d(LOG_TAG, "## shareUserDevicesKey() : starts");
+        /**
+         * Encrypt the messages of a batch by the encryption workers.
+         *
+         * @param batch the batch
+         */
+        private void encryptBatch(final KeyShareBatch batch) {
+            batch.mPendingEncryptionsCount = batch.mDevices.size();
 
-        mCrypto.ensureOlmSessionsForDevices(devicesByUser, new ApiCallback<MXUsersDevicesMap<MXOlmSessionResult>>() {
-            @Override
-            public void onSuccess(final MXUsersDevicesMap<MXOlmSessionResult> results) {
-                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+            for (final MXDeviceInfo deviceInfo : batch.mDevices) {
+                boolean isPosted = mCrypto.getEncryptionPool().post(deviceInfo.identityKey(), new Runnable() {
                     @Override
                     public void run() {
-                        Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices succeeds after " + (System.currentTimeMillis() - t0) + " ms");
-                        MXUsersDevicesMap<Map<String, Object>> mContentMap = new MXUsersDevicesMap<>();
+                        Log.d(LOG_TAG, "## shareKey() : Sharing keys with device " + deviceInfo.userId + ":" + deviceInfo.deviceId);
 
-                        boolean haveTargets = false;
-                        List<String> userIds = results.getUserIds();
+                        //noinspection ArraysAsListWithZeroOrOneArgument,ArraysAsListWithZeroOrOneArgument
+                        final Map<String, Object> message = mCrypto.encryptMessage(mPayload, Arrays.asList(deviceInfo));
 
-                        for (String userId : userIds) {
-                            ArrayList<MXDeviceInfo> devicesToShareWith = devicesByUser.get(userId);
-
-                            for (MXDeviceInfo deviceInfo : devicesToShareWith) {
-                                String deviceID = deviceInfo.deviceId;
-
-                                MXOlmSessionResult sessionResult = results.getObject(deviceID, userId);
-
-                                if ((null == sessionResult) || (null == sessionResult.mSessionId)) {
-                                    // no session with this device, probably because there
-                                    // were no one-time keys.
-                                    //
-                                    // we could send them a to_device message anyway, as a
-                                    // signal that they have missed out on the key sharing
-                                    // message because of the lack of keys, but there's not
-                                    // much point in that really; it will mostly serve to clog
-                                    // up to_device inboxes.
-                                    //
-                                    // ensureOlmSessionsForUsers has already done the logging,
-                                    // so just skip it.
-                                    continue;
-                                }
+                        mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                batch.mContentMap.setObject(message, deviceInfo.userId, deviceInfo.deviceId);
+                                batch.mPendingEncryptionsCount--;
 
-                                Log.d(LOG_TAG, "## shareUserDevicesKey() : Sharing keys with device " + userId + ":" + deviceID);
-                                //noinspection ArraysAsListWithZeroOrOneArgument,ArraysAsListWithZeroOrOneArgument
-                                mContentMap.setObject(mCrypto.encryptMessage(payload, Arrays.asList(sessionResult.mDevice)), userId, deviceID);
-                                haveTargets = true;
+                                if (0 == batch.mPendingEncryptionsCount) {
+                                    mReadyBatches.add(batch);
+                                    sendReadyBatches();
+                                }
                             }
-                        }
+                        });
+                    }
+                });
 
-                        if (haveTargets && !mCrypto.hasBeenReleased()) {
-                            final long t0 = System.currentTimeMillis();
-                            Log.d(LOG_TAG, "## shareUserDevicesKey() : has target");
+                if (!isPosted) {
+                    onUnexpectedErrorAfterRetries(new Exception("The crypto has been released"));
+                    return;
+                }
+            }
+        }
 
-                            mSession.getCryptoRestClient().sendToDevice(Event.EVENT_TYPE_MESSAGE_ENCRYPTED, mContentMap, new ApiCallback<Void>() {
-                                @Override
-                                public void onSuccess(Void info) {
-                                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice succeeds after " + (System.currentTimeMillis() - t0) + " ms");
-
-                                            // Add the devices we have shared with to session.sharedWithDevices.
-                                            // we deliberately iterate over devicesByUser (ie, the devices we
-                                            // attempted to share with) rather than the contentMap (those we did
-                                            // share with), because we don't want to try to claim a one-time-key
-                                            // for dead devices on every message.
-                                            for (String userId : devicesByUser.keySet()) {
-                                                List<MXDeviceInfo> devicesToShareWith = devicesByUser.get(userId);
-
-                                                for (MXDeviceInfo deviceInfo : devicesToShareWith) {
-                                                    session.mSharedWithDevices.setObject(chainIndex, userId, deviceInfo.deviceId);
-                                                }
-                                            }
-
-                                            mCrypto.getUIHandler().post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    if (null != callback) {
-                                                        callback.onSuccess(null);
-                                                    }
-                                                }
-                                            });
-                                        }
-                                    });
-                                }
+        /**
+         * Send the encrypted batches while there are free request slots.
+         */
+        private void sendReadyBatches() {
+            while (!mIsDone && (mInFlightCount < KEY_SHARE_MAX_BATCHES_IN_FLIGHT) && !mReadyBatches.isEmpty()) {
+                sendBatch(mReadyBatches.remove(0));
+            }
+        }
 
-                                @Override
-                                public void onNetworkError(Exception e) {
-                                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onNetworkError " + e.getMessage());
+        /**
+         * Send a batch.
+         *
+         * @param batch the batch
+         */
+        private void sendBatch(final KeyShareBatch batch) {
+            if (mCrypto.hasBeenReleased()) {
+                onUnexpectedErrorAfterRetries(new Exception("The crypto has been released"));
+                return;
+            }
 
-                                    if (null != callback) {
-                                        callback.onNetworkError(e);
-                                    }
-                                }
+            final long t0 = System.currentTimeMillis();
+            mInFlightCount++;
+
+            mSession.getCryptoRestClient().sendToDevice(Event.EVENT_TYPE_MESSAGE_ENCRYPTED, batch.mContentMap, new ApiCallback<Void>() {
+                @Override
+                public void onSuccess(Void info) {
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mInFlightCount--;
+
+                            // Add the devices we have shared with to session.sharedWithDevices.
+                            // a batch is flagged as soon as it is sent, so a failure of the next batches
+                            // does not trigger a new share with these devices.
+                            for (MXDeviceInfo deviceInfo : batch.mDevices) {
+                                mSessionInfo.mSharedWithDevices.setObject(mChainIndex, deviceInfo.userId, deviceInfo.deviceId);
+                            }
 
-                                @Override
-                                public void onMatrixError(MatrixError e) {
-                                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onMatrixError " + e.getMessage());
+                            mPendingBatches.remove(batch);
+                            mSharedDevicesCount += batch.mDevices.size();
 
-                                    if (null != callback) {
-                                        callback.onMatrixError(e);
-                                    }
-                                }
+                            Log.d(LOG_TAG, "## shareKey() : batch " + batch.mIndex + " sent in " + (System.currentTimeMillis() - t0) + " ms ("
+                                    + mSharedDevicesCount + "/" + mDevicesCount + " devices)");
 
-                                @Override
-                                public void onUnexpectedError(Exception e) {
-                                    Log.d(LOG_TAG, "## shareUserDevicesKey() : sendToDevice onUnexpectedError " + e.getMessage());
+                            checkCompletion();
+                            sendReadyBatches();
+                        }
+                    });
+                }
 
-                                    if (null != callback) {
-                                        callback.onUnexpectedError(e);
-                                    }
-                                }
-                            });
-                        } else {
-                            Log.d(LOG_TAG, "## shareUserDevicesKey() : no need to sharekey");
+                @Override
+                public void onNetworkError(final Exception e) {
+                    Log.d(LOG_TAG, "## shareKey() : sendToDevice batch " + batch.mIndex + " onNetworkError " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mInFlightCount--;
+
+                            if (!mIsDone && (batch.mRetriesCount < KEY_SHARE_MAX_RETRIES)) {
+                                batch.mRetriesCount++;
+                                Log.d(LOG_TAG, "## shareKey() : retry the batch " + batch.mIndex + " (attempt " + batch.mRetriesCount + ")");
 
-                            if (null != callback) {
-                                mCrypto.getUIHandler().post(new Runnable() {
+                                mCrypto.getEncryptingThreadHandler().postDelayed(new Runnable() {
                                     @Override
                                     public void run() {
-                                        callback.onSuccess(null);
+                                        // the batch is sent before the other ready ones
+                                        mReadyBatches.add(0, batch);
+                                        sendReadyBatches();
                                     }
-                                });
+                                }, KEY_SHARE_RETRY_DELAY_MS * batch.mRetriesCount);
+                            } else {
+                                onNetworkErrorAfterRetries(e);
                             }
                         }
-                    }
-                });
-            }
+                    });
+                }
 
-            @Override
-            public void onNetworkError(Exception e) {
-                Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
+                @Override
+                public void onMatrixError(final MatrixError e) {
+                    Log.d(LOG_TAG, "## shareKey() : sendToDevice batch " + batch.mIndex + " onMatrixError " + e.getMessage());
 
-                if (null != callback) {
-                    callback.onNetworkError(e);
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mInFlightCount--;
+                            dispatchError(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mCallback.onMatrixError(e);
+                                }
+                            });
+                        }
+                    });
                 }
-            }
 
-            @Override
-            public void onMatrixError(MatrixError e) {
-                Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
+                @Override
+                public void onUnexpectedError(final Exception e) {
+                    Log.d(LOG_TAG, "## shareKey() : sendToDevice batch " + batch.mIndex + " onUnexpectedError " + e.getMessage());
 
-                if (null != callback) {
-                    callback.onMatrixError(e);
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mInFlightCount--;
+                            onUnexpectedErrorAfterRetries(e);
+                        }
+                    });
                 }
+            });
+        }
+
+        /**
+         * Check if all the batches have been sent.
+         */
+        private void checkCompletion() {
+            if (mIsDone || !mPendingBatches.isEmpty()) {
+                return;
             }
 
-            @Override
-            public void onUnexpectedError(Exception e) {
-                Log.d(LOG_TAG, "## shareUserDevicesKey() : ensureOlmSessionsForDevices failed " + e.getMessage());
+            mIsDone = true;
 
-                if (null != callback) {
-                    callback.onUnexpectedError(e);
+            // we don't want to try to claim a one-time-key for dead devices on every message.
+            for (MXDeviceInfo deviceInfo : mDevicesWithoutSession) {
+                mSessionInfo.mSharedWithDevices.setObject(mChainIndex, deviceInfo.userId, deviceInfo.deviceId);
+            }
+
+            Log.d(LOG_TAG, "## shareKey() : " + mSharedDevicesCount + " devices done in " + (System.currentTimeMillis() - mStartTime) + " ms");
+
+            if (null != mCallback) {
+                mCrypto.getUIHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onSuccess(null);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Dispatch a network error.
+         *
+         * @param e the error
+         */
+        private void onNetworkErrorAfterRetries(final Exception e) {
+            dispatchError(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onNetworkError(e);
+                }
+            });
+        }
+
+        /**
+         * Dispatch an unexpected error.
+         *
+         * @param e the error
+         */
+        private void onUnexpectedErrorAfterRetries(final Exception e) {
+            dispatchError(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onUnexpectedError(e);
                 }
+            });
+        }
+
+        /**
+         * Dispatch the first error, the next ones are ignored.
+         * The batches which are in flight are still flagged as shared when they succeed.
+         *
+         * @param dispatcher the error dispatcher
+         */
+        private void dispatchError(Runnable dispatcher) {
+            if (mIsDone) {
+                return;
             }
-        });
+
+            mIsDone = true;
+            mReadyBatches.clear();
+
+            if (null != mCallback) {
+                mCrypto.getUIHandler().post(dispatcher);
+            }
+        }
     }
 
     /**
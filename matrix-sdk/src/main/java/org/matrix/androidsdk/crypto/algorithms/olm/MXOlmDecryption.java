@@ -34,6 +34,7 @@ import org.matrix.androidsdk.util.JsonUtils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -191,6 +192,14 @@ public class MXOlmDecryption implements IMXDecrypting {
         return (null != event.getClearEvent());
     }
 
+    @Override
+    public void decryptEvents(List<Event> events, String timeline) {
+        // each olm message is encrypted with its own session
+        for (Event event : events) {
+            decryptEvent(event, timeline);
+        }
+    }
+
     @Override
     public  void onRoomKeyEvent(Event event) {
         // No impact for olm
@@ -343,6 +343,8 @@ public class EventTimeline {
 
     /**
      * Make a deep copy or the dedicated state.
+     * The previous state instance is not updated anymore so it can be provided as is to the listeners
+     * and to the snapshot events. The copy shares the members maps so it does not depend on the members count.
      * @param direction the room state direction to deep copy.
      */
     private void deepCopyState(Direction direction) {
@@ -377,6 +379,13 @@ public class EventTimeline {
     public void handleInvitedRoomSync(InvitedRoomSync invitedRoomSync) {
         // Handle the state events as live events (the room state will be updated, and the listeners (if any) will be notified).
         if ((null != invitedRoomSync) && (null != invitedRoomSync.inviteState) && (null != invitedRoomSync.inviteState.events)) {
+            // the roomId is not defined.
+            for (Event event : invitedRoomSync.inviteState.events) {
+                event.roomId = mRoomId;
+            }
+
+            // decrypt the events in one shot
+            mDataHandler.decryptEvents(invitedRoomSync.inviteState.events, getTimelineId());
 
             for(Event event : invitedRoomSync.inviteState.events) {
                 // Add a fake event id if none in order to be able to store the event
@@ -384,8 +393,6 @@ public class EventTimeline {
                     event.eventId = mRoomId + "-" + System.currentTimeMillis() + "-" + event.hashCode();
                 }
 
-                // the roomId is not defined.
-                event.roomId = mRoomId;
                 handleLiveEvent(event, false, true);
             }
         }
@@ -488,11 +495,17 @@ public class EventTimeline {
             if ((null != roomSync.timeline.events) && (roomSync.timeline.events.size() > 0)) {
                 List<Event> events = roomSync.timeline.events;
 
+                // the roomId is not defined.
+                for (Event event : events) {
+                    event.roomId = mRoomId;
+                }
+
+                // decrypt the events in one shot
+                mDataHandler.decryptEvents(events, getTimelineId());
+
                 // Here the events are handled in forward direction (see [handleLiveEvent:]).
                 // They will be added at the end of the stored events, so we keep the chronological order.
                 for (Event event : events) {
-                    // the roomId is not defined.
-                    event.roomId = mRoomId;
                     try {
                         boolean isLimited = (null != roomSync.timeline) && roomSync.timeline.limited;
 
@@ -785,8 +798,7 @@ public class EventTimeline {
     private void handleLiveEvent(Event event, boolean checkRedactedStateEvent, boolean withPush) {
         MyUser myUser = mDataHandler.getMyUser();
 
-        // Decrypt event if necessary
-        mDataHandler.decryptEvent(event, getTimelineId());
+        // the event has already been decrypted by the caller (see decryptEvents)
 
         // dispatch the call events to the calls manager
         if (event.isCallEvent()) {
@@ -991,6 +1003,9 @@ public class EventTimeline {
         RoomSummary summary = mStore.getSummary(mRoomId);
         boolean shouldCommitStore = false;
 
+        // Decrypt the events if necessary
+        mDataHandler.decryptEvents(events, getTimelineId());
+
         // the backward events have a dedicated management to avoid providing too many events for each request
         for (Event event : events) {
             boolean processedEvent = true;
@@ -1000,9 +1015,6 @@ public class EventTimeline {
                 processedEvent = processStateEvent(event, direction);
             }
 
-            // Decrypt event if necessary
-            mDataHandler.decryptEvent(event, getTimelineId());
-
             if (processedEvent) {
                 // warn the listener only if the message is processed.
                 // it should avoid duplicated events.
@@ -1554,6 +1566,15 @@ public class EventTimeline {
         }
     }
 
+    /**
+     * @return true if some events listeners are registered.
+     */
+    public boolean hasEventTimelineListeners() {
+        synchronized (this) {
+            return !mEventTimelineListeners.isEmpty();
+        }
+    }
+
     /**
      * Dispatch the onEvent callback.
      * @param event the event.
@@ -132,6 +132,12 @@ public class Room {
     // true when the current room is a left one
     private boolean mIsLeft;
 
+    // true when the members have been retrieved from the server (lazy loaded members)
+    private boolean mAreAllMembersLoaded = false;
+
+    // the getMembersAsync callbacks waiting for the server response
+    private final List<ApiCallback<Collection<RoomMember>>> mGetMembersCallbacks = new ArrayList<>();
+
     /**
      * Default room creator
      */
@@ -428,6 +434,104 @@ public class Room {
         return getState().getMember(userId);
     }
 
+    /**
+     * Tells if all the members are known.
+     * When the members are lazy loaded, the room state only contains the senders of the timeline events
+     * until the members are requested with {@link #getMembersAsync(ApiCallback)}.
+     *
+     * @return true if all the members are known.
+     */
+    public boolean areAllMembersLoaded() {
+        return (null == mDataHandler) || !mDataHandler.isLazyLoadingMembers() || mAreAllMembersLoaded;
+    }
+
+    /**
+     * Provides all the members of the room.
+     * They are requested to the server the first time when they are lazy loaded.
+     *
+     * @param callback the asynchronous callback called with the members
+     */
+    public void getMembersAsync(final ApiCallback<Collection<RoomMember>> callback) {
+        if (areAllMembersLoaded()) {
+            callback.onSuccess(getMembers());
+            return;
+        }
+
+        synchronized (mGetMembersCallbacks) {
+            mGetMembersCallbacks.add(callback);
+
+            // a request is in progress
+            if (mGetMembersCallbacks.size() > 1) {
+                return;
+            }
+        }
+
+        Log.d(LOG_TAG, "## getMembersAsync() : request the members of " + getRoomId());
+
+        mDataHandler.getDataRetriever().getRoomsRestClient().getRoomMembers(getRoomId(), new ApiCallback<TokensChunkResponse<Event>>() {
+            @Override
+            public void onSuccess(TokensChunkResponse<Event> response) {
+                RoomState state = getState();
+
+                if (null != response.chunk) {
+                    for (Event event : response.chunk) {
+                        // the members received by the sync are more recent than this response
+                        if (Event.EVENT_TYPE_STATE_ROOM_MEMBER.equals(event.getType()) && (null != event.stateKey) && (null == state.getMember(event.stateKey))) {
+                            state.applyState(event, EventTimeline.Direction.FORWARDS);
+                        }
+                    }
+                }
+
+                mAreAllMembersLoaded = true;
+                mStore.storeLiveStateForRoom(getRoomId());
+
+                Collection<RoomMember> members = getMembers();
+
+                for (ApiCallback<Collection<RoomMember>> callback : getMembersCallbacks()) {
+                    callback.onSuccess(members);
+                }
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                Log.e(LOG_TAG, "## getMembersAsync() : failed " + e.getMessage());
+
+                for (ApiCallback<Collection<RoomMember>> callback : getMembersCallbacks()) {
+                    callback.onNetworkError(e);
+                }
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                Log.e(LOG_TAG, "## getMembersAsync() : failed " + e.getMessage());
+
+                for (ApiCallback<Collection<RoomMember>> callback : getMembersCallbacks()) {
+                    callback.onMatrixError(e);
+                }
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                Log.e(LOG_TAG, "## getMembersAsync() : failed " + e.getMessage());
+
+                for (ApiCallback<Collection<RoomMember>> callback : getMembersCallbacks()) {
+                    callback.onUnexpectedError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the pending getMembersAsync callbacks, the list is cleared.
+     */
+    private List<ApiCallback<Collection<RoomMember>>> getMembersCallbacks() {
+        synchronized (mGetMembersCallbacks) {
+            List<ApiCallback<Collection<RoomMember>>> callbacks = new ArrayList<>(mGetMembersCallbacks);
+            mGetMembersCallbacks.clear();
+            return callbacks;
+        }
+    }
+
     public String getTopic() {
         return this.getState().topic;
     }
@@ -1710,7 +1814,8 @@ public class Room {
             return;
         }
 
-        // Create a global listener that we'll add to the data handler
+        // Create a room listener that we'll add to the data handler
+        // it only receives the callbacks of this room
         IMXEventListener globalListener = new MXEventListener() {
             @Override
             public void onPresenceUpdate(Event event, User user) {
@@ -1920,7 +2025,7 @@ public class Room {
 
         // GA crash
         if (null != mDataHandler) {
-            mDataHandler.addListener(globalListener);
+            mDataHandler.addRoomListener(getRoomId(), globalListener);
         }
     }
 
@@ -1932,11 +2037,20 @@ public class Room {
     public void removeEventListener(IMXEventListener eventListener) {
         // sanity check
         if ((null != eventListener) && (null != mDataHandler)) {
-            mDataHandler.removeListener(mEventListeners.get(eventListener));
+            mDataHandler.removeRoomListener(getRoomId(), mEventListeners.get(eventListener));
             mEventListeners.remove(eventListener);
         }
     }
 
+    /**
+     * Tells if the room is used, i.e. if some listeners are registered on the room or on its live timeline.
+     *
+     * @return true if the room has some listeners.
+     */
+    public boolean hasListeners() {
+        return !mEventListeners.isEmpty() || mLiveTimeline.hasEventTimelineListeners();
+    }
+
     //==============================================================================================================
     // Send methods
     //==============================================================================================================
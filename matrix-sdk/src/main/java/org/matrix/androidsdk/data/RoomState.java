@@ -33,7 +33,9 @@ import org.matrix.androidsdk.rest.model.PowerLevels;
 import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.RoomThirdPartyInvite;
 import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.util.CodecUtils;
 import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.MXPersistentMap;
 
 import java.io.Externalizable;
 import java.io.IOException;
@@ -86,7 +88,7 @@ public class RoomState implements Externalizable {
     public List<String> aliases;
 
     // The room aliases. The key is the domain.
-    private Map<String, Event> mRoomAliases = new HashMap<>();
+    private MXPersistentMap<String, Event> mRoomAliases = MXPersistentMap.empty();
 
     // the aliases are defined for each home server url
     private Map<String, List<String>> mAliasesByDomain = new HashMap();
@@ -94,8 +96,8 @@ public class RoomState implements Externalizable {
     // merged from mAliasesByHomeServerUrl
     private List<String> mMergedAliasesList;
 
-    //
-    private Map<String, Event> mStateEvents = new HashMap<>();
+    // the latest state event by event type
+    private MXPersistentMap<String, Event> mStateEvents = MXPersistentMap.empty();
 
     // Informs which alias is the canonical one.
     public String alias;
@@ -150,17 +152,21 @@ public class RoomState implements Externalizable {
     // the associated token
     private String token;
 
+    // The members, the third party invites and the state events are stored in persistent maps
+    // so a room state copy shares them with the original one. The RoomMember and
+    // RoomThirdPartyInvite instances are never updated once they are stored in a room state.
+
     // the room members
-    private final Map<String, RoomMember> mMembers = new HashMap<>();
+    private MXPersistentMap<String, RoomMember> mMembers = MXPersistentMap.empty();
 
     // the third party invite members
-    private final Map<String, RoomThirdPartyInvite> mThirdPartyInvites = new HashMap<>();
+    private MXPersistentMap<String, RoomThirdPartyInvite> mThirdPartyInvites = MXPersistentMap.empty();
 
     /**
      * Cache for [self memberWithThirdPartyInviteToken].
      * The key is the 3pid invite token.
      */
-    private final Map<String, RoomMember> mMembersWithThirdPartyInviteTokenCache = new HashMap<>();
+    private MXPersistentMap<String, RoomMember> mMembersWithThirdPartyInviteTokenCache = MXPersistentMap.empty();
 
     /**
      * Additional and optional metadata got from initialSync
@@ -234,14 +240,14 @@ public class RoomState implements Externalizable {
      * @return a copy of the room members list.
      */
     public Collection<RoomMember> getMembers() {
-        ArrayList<RoomMember> res;
+        MXPersistentMap<String, RoomMember> members;
 
         synchronized (this) {
-            // make a copy to avoid concurrency modifications
-            res = new ArrayList<>(mMembers.values());
+            members = mMembers;
         }
 
-        return res;
+        // the map is immutable, values() returns a new list
+        return members.values();
     }
 
     /**
@@ -336,7 +342,7 @@ public class RoomState implements Externalizable {
             if (null != mMemberDisplayNameByUserId) {
                 mMemberDisplayNameByUserId.remove(userId);
             }
-            mMembers.put(userId, member);
+            mMembers = mMembers.plus(userId, member);
         }
     }
 
@@ -363,7 +369,7 @@ public class RoomState implements Externalizable {
      */
     public void removeMember(String userId) {
         synchronized (this) {
-            mMembers.remove(userId);
+            mMembers = mMembers.minus(userId);
             // remove the cached display name
             if (null != mMemberDisplayNameByUserId) {
                 mMemberDisplayNameByUserId.remove(userId);
@@ -486,6 +492,9 @@ public class RoomState implements Externalizable {
 
     /**
      * Make a deep copy of this room state object.
+     * The members, the third party invites and the state events maps are immutable so they are
+     * shared with the copy : it does not depend on the members count.
+     * Any further update of a room state does not impact the other one.
      *
      * @return the copy
      */
@@ -493,7 +502,8 @@ public class RoomState implements Externalizable {
 
         RoomState copy = new RoomState();
         copy.roomId = roomId;
-        copy.setPowerLevels((powerLevels == null) ? null : powerLevels.deepCopy());
+        // the power levels are replaced, never updated, and getPowerLevels() provides a copy.
+        copy.setPowerLevels(powerLevels);
         copy.aliases = (aliases == null) ? null : new ArrayList<>(aliases);
         copy.mAliasesByDomain = new HashMap<>(mAliasesByDomain);
         copy.alias = this.alias;
@@ -512,25 +522,13 @@ public class RoomState implements Externalizable {
         copy.mIsLive = mIsLive;
         copy.mIsConferenceUserRoom = mIsConferenceUserRoom;
         copy.algorithm = algorithm;
-        copy.mRoomAliases = new HashMap<>(mRoomAliases);
-        copy.mStateEvents = new HashMap<>(mStateEvents);
+        copy.mRoomAliases = mRoomAliases;
+        copy.mStateEvents = mStateEvents;
 
         synchronized (this) {
-            Iterator it = mMembers.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
-                copy.setMember(pair.getKey(), pair.getValue().deepCopy());
-            }
-
-            Collection<String> keys = mThirdPartyInvites.keySet();
-            for (String key : keys) {
-                copy.mThirdPartyInvites.put(key, mThirdPartyInvites.get(key).deepCopy());
-            }
-
-            keys = mMembersWithThirdPartyInviteTokenCache.keySet();
-            for (String key : keys) {
-                copy.mMembersWithThirdPartyInviteTokenCache.put(key, mMembersWithThirdPartyInviteTokenCache.get(key).deepCopy());
-            }
+            copy.mMembers = mMembers;
+            copy.mThirdPartyInvites = mThirdPartyInvites;
+            copy.mMembersWithThirdPartyInviteTokenCache = mMembersWithThirdPartyInviteTokenCache;
         }
 
         return copy;
@@ -651,7 +649,7 @@ public class RoomState implements Externalizable {
             }
             // compute a name
             else if (mMembers.size() > 0) {
-                Iterator it = mMembers.entrySet().iterator();
+                Iterator<Map.Entry<String, RoomMember>> it = mMembers.entries().iterator();
                 Map.Entry<String, RoomMember> otherUserPair = null;
 
                 if ((mMembers.size() >= 3) && (selfUserId != null)) {
@@ -662,7 +660,7 @@ public class RoomState implements Externalizable {
                     displayName = "";
 
                     while (it.hasNext()) {
-                        Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
+                        Map.Entry<String, RoomMember> pair = it.next();
 
                         if (!selfUserId.equals(pair.getKey())) {
                             otherUserPair = pair;
@@ -687,7 +685,7 @@ public class RoomState implements Externalizable {
                     // A One2One private room can default to being called like the other guy
                     if (selfUserId != null) {
                         while (it.hasNext()) {
-                            Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
+                            Map.Entry<String, RoomMember> pair = it.next();
                             if (!selfUserId.equals(pair.getKey())) {
                                 otherUserPair = pair;
                                 break;
@@ -776,7 +774,7 @@ public class RoomState implements Externalizable {
                     // sanity check
                     if (null != aliases) {
                         mAliasesByDomain.put(event.stateKey, aliases);
-                        mRoomAliases.put(event.stateKey, event);
+                        mRoomAliases = mRoomAliases.plus(event.stateKey, event);
                     } else {
                         mAliasesByDomain.put(event.stateKey, new ArrayList<String>());
                     }
@@ -850,7 +848,7 @@ public class RoomState implements Externalizable {
 
                     // Cache room member event that is successor of a third party invite event
                     if (!TextUtils.isEmpty(member.getThirdPartyInviteToken())) {
-                        mMembersWithThirdPartyInviteTokenCache.put(member.getThirdPartyInviteToken(), member);
+                        mMembersWithThirdPartyInviteTokenCache = mMembersWithThirdPartyInviteTokenCache.plus(member.getThirdPartyInviteToken(), member);
                     }
 
                     setMember(userId, member);
@@ -864,11 +862,11 @@ public class RoomState implements Externalizable {
                 ((MXDataHandler) mDataHandler).getStore().storeRoomStateEvent(roomId, event);
 
                 if (!TextUtils.isEmpty(thirdPartyInvite.token)) {
-                    mThirdPartyInvites.put(thirdPartyInvite.token, thirdPartyInvite);
+                    mThirdPartyInvites = mThirdPartyInvites.plus(thirdPartyInvite.token, thirdPartyInvite);
                 }
             }
 
-            mStateEvents.put(eventType, event);
+            mStateEvents = mStateEvents.plus(eventType, event);
         } catch (Exception e) {
             Log.e(LOG_TAG, "applyState failed with error " + e.getLocalizedMessage());
         }
@@ -951,7 +949,83 @@ public class RoomState implements Externalizable {
 
     @Override
     public void readExternal(ObjectInput input) throws IOException, ClassNotFoundException {
+        int firstByte = input.readUnsignedByte();
+
+        if (CodecUtils.FORMAT_MARKER != firstByte) {
+            readLegacyExternal(input, 0 != firstByte);
+            return;
+        }
+
+        CodecUtils.readVersion(input);
+
+        roomId = CodecUtils.readIdentifier(input);
+
         if (input.readBoolean()) {
+            powerLevels = (PowerLevels) input.readObject();
+        }
+
+        if (input.readBoolean()) {
+            aliases = (List<String>) input.readObject();
+        }
+
+        for (Event e : readEvents(input)) {
+            mRoomAliases = mRoomAliases.plus(e.stateKey, e);
+        }
+
+        mAliasesByDomain = (Map<String, List<String>>) input.readObject();
+
+        if (input.readBoolean()) {
+            mMergedAliasesList = (List<String>) input.readObject();
+        }
+
+        for (Event e : readEvents(input)) {
+            mStateEvents = mStateEvents.plus(e.getType(), e);
+        }
+
+        alias = CodecUtils.readString(input);
+        name = CodecUtils.readString(input);
+        topic = CodecUtils.readString(input);
+        url = CodecUtils.readString(input);
+        avatar_url = CodecUtils.readString(input);
+        creator = CodecUtils.readIdentifier(input);
+        join_rule = CodecUtils.readIdentifier(input);
+        guest_access = CodecUtils.readIdentifier(input);
+        history_visibility = CodecUtils.readIdentifier(input);
+        roomAliasName = CodecUtils.readString(input);
+        visibility = CodecUtils.readIdentifier(input);
+        algorithm = CodecUtils.readIdentifier(input);
+
+        mNotificationCount = CodecUtils.readVarInt(input);
+        mHighlightCount = CodecUtils.readVarInt(input);
+
+        token = CodecUtils.readString(input);
+
+        for (RoomMember r : readMembers(input)) {
+            mMembers = mMembers.plus(r.getUserId(), r);
+        }
+
+        List<RoomThirdPartyInvite> invites = (List<RoomThirdPartyInvite>) input.readObject();
+        for (RoomThirdPartyInvite i : invites) {
+            mThirdPartyInvites = mThirdPartyInvites.plus(i.token, i);
+        }
+
+        for (RoomMember r : readMembers(input)) {
+            mMembersWithThirdPartyInviteTokenCache = mMembersWithThirdPartyInviteTokenCache.plus(r.getThirdPartyInviteToken(), r);
+        }
+
+        mMembership = CodecUtils.readIdentifier(input);
+        mIsLive = input.readBoolean();
+        mIsConferenceUserRoom = CodecUtils.readNullableBoolean(input);
+    }
+
+    /**
+     * Read a room state serialized with the legacy Externalizable format.
+     *
+     * @param input     the input
+     * @param hasRoomId the first boolean of the legacy format
+     */
+    private void readLegacyExternal(ObjectInput input, boolean hasRoomId) throws IOException, ClassNotFoundException {
+        if (hasRoomId) {
             roomId = input.readUTF();
         }
 
@@ -965,7 +1039,7 @@ public class RoomState implements Externalizable {
 
         List<Event> roomAliasesEvents = (List<Event>) input.readObject();
         for (Event e : roomAliasesEvents) {
-            mRoomAliases.put(e.stateKey, e);
+            mRoomAliases = mRoomAliases.plus(e.stateKey, e);
         }
 
         mAliasesByDomain = (Map<String, List<String>>) input.readObject();
@@ -976,7 +1050,7 @@ public class RoomState implements Externalizable {
 
         List<Event> stateEvents = (List<Event>) input.readObject();
         for (Event e : stateEvents) {
-            mStateEvents.put(e.getType(), e);
+            mStateEvents = mStateEvents.plus(e.getType(), e);
         }
 
         if (input.readBoolean()) {
@@ -1036,17 +1110,17 @@ public class RoomState implements Externalizable {
 
         List<RoomMember> members = (List<RoomMember>) input.readObject();
         for (RoomMember r : members) {
-            mMembers.put(r.getUserId(), r);
+            mMembers = mMembers.plus(r.getUserId(), r);
         }
 
         List<RoomThirdPartyInvite> invites = (List<RoomThirdPartyInvite>) input.readObject();
         for (RoomThirdPartyInvite i : invites) {
-            mThirdPartyInvites.put(i.token, i);
+            mThirdPartyInvites = mThirdPartyInvites.plus(i.token, i);
         }
 
         List<RoomMember> inviteTokens = (List<RoomMember>) input.readObject();
         for (RoomMember r : inviteTokens) {
-            mMembersWithThirdPartyInviteTokenCache.put(r.getThirdPartyInviteToken(), r);
+            mMembersWithThirdPartyInviteTokenCache = mMembersWithThirdPartyInviteTokenCache.plus(r.getThirdPartyInviteToken(), r);
         }
 
         if (input.readBoolean()) {
@@ -1062,10 +1136,9 @@ public class RoomState implements Externalizable {
 
     @Override
     public void writeExternal(ObjectOutput output) throws IOException {
-        output.writeBoolean(null != roomId);
-        if (null != roomId) {
-            output.writeUTF(roomId);
-        }
+        CodecUtils.writeHeader(output);
+
+        CodecUtils.writeString(output, roomId);
 
         output.writeBoolean(null != powerLevels);
         if (null != powerLevels) {
@@ -1077,7 +1150,7 @@ public class RoomState implements Externalizable {
             output.writeObject(aliases);
         }
 
-        output.writeObject(new ArrayList<>(mRoomAliases.values()));
+        writeEvents(output, mRoomAliases.values());
 
         output.writeObject(mAliasesByDomain);
 
@@ -1086,91 +1159,107 @@ public class RoomState implements Externalizable {
             output.writeObject(mMergedAliasesList);
         }
 
-        output.writeObject(new ArrayList<>(mStateEvents.values()));
+        writeEvents(output, mStateEvents.values());
 
-        output.writeBoolean(null != alias);
-        if (null != alias) {
-            output.writeUTF(alias);
-        }
+        CodecUtils.writeString(output, alias);
+        CodecUtils.writeString(output, name);
+        CodecUtils.writeString(output, topic);
+        CodecUtils.writeString(output, url);
+        CodecUtils.writeString(output, avatar_url);
+        CodecUtils.writeString(output, creator);
+        CodecUtils.writeString(output, join_rule);
+        CodecUtils.writeString(output, guest_access);
+        CodecUtils.writeString(output, history_visibility);
+        CodecUtils.writeString(output, roomAliasName);
+        CodecUtils.writeString(output, visibility);
+        CodecUtils.writeString(output, algorithm);
 
-        output.writeBoolean(null != name);
-        if (null != name) {
-            output.writeUTF(name);
-        }
+        CodecUtils.writeVarInt(output, mNotificationCount);
+        CodecUtils.writeVarInt(output, mHighlightCount);
 
-        output.writeBoolean(null != topic);
-        if (null != topic) {
-            output.writeUTF(topic);
-        }
+        CodecUtils.writeString(output, token);
 
-        output.writeBoolean(null != url);
-        if (null != url) {
-            output.writeUTF(url);
-        }
-
-        output.writeBoolean(null != avatar_url);
-        if (null != avatar_url) {
-            output.writeUTF(avatar_url);
-        }
-
-        output.writeBoolean(null != creator);
-        if (null != creator) {
-            output.writeUTF(creator);
-        }
+        writeMembers(output, mMembers.values());
+        output.writeObject(new ArrayList<>(mThirdPartyInvites.values()));
+        writeMembers(output, mMembersWithThirdPartyInviteTokenCache.values());
 
-        output.writeBoolean(null != join_rule);
-        if (null != join_rule) {
-            output.writeUTF(join_rule);
-        }
+        CodecUtils.writeString(output, mMembership);
+        output.writeBoolean(mIsLive);
+        CodecUtils.writeNullableBoolean(output, mIsConferenceUserRoom);
+    }
 
-        output.writeBoolean(null != guest_access);
-        if (null != guest_access) {
-            output.writeUTF(guest_access);
-        }
+    /**
+     * Write some events inline, without the object stream headers.
+     *
+     * @param output the output
+     * @param events the events
+     * @throws IOException if the write fails
+     */
+    private static void writeEvents(ObjectOutput output, Collection<Event> events) throws IOException {
+        List<Event> list = new ArrayList<>(events);
 
-        output.writeBoolean(null != history_visibility);
-        if (null != history_visibility) {
-            output.writeUTF(history_visibility);
+        CodecUtils.writeVarInt(output, list.size());
+        for (Event event : list) {
+            event.writeExternal(output);
         }
+    }
 
-        output.writeBoolean(null != roomAliasName);
-        if (null != roomAliasName) {
-            output.writeUTF(roomAliasName);
-        }
+    /**
+     * Read some events written with writeEvents.
+     *
+     * @param input the input
+     * @return the events
+     * @throws IOException            if the read fails
+     * @throws ClassNotFoundException if the read fails
+     */
+    private static List<Event> readEvents(ObjectInput input) throws IOException, ClassNotFoundException {
+        int count = CodecUtils.readVarInt(input);
+        List<Event> events = new ArrayList<>(count);
 
-        output.writeBoolean(null != visibility);
-        if (null != visibility) {
-            output.writeUTF(visibility);
+        for (int i = 0; i < count; i++) {
+            Event event = new Event();
+            event.readExternal(input);
+            events.add(event);
         }
 
-        output.writeBoolean(null != algorithm);
-        if (null != algorithm) {
-            output.writeUTF(algorithm);
-        }
+        return events;
+    }
 
-        output.writeInt(mNotificationCount);
-        output.writeInt(mHighlightCount);
+    /**
+     * Write some room members inline, without the object stream headers.
+     *
+     * @param output  the output
+     * @param members the room members
+     * @throws IOException if the write fails
+     */
+    private static void writeMembers(ObjectOutput output, Collection<RoomMember> members) throws IOException {
+        List<RoomMember> list = new ArrayList<>(members);
 
-        output.writeBoolean(null != token);
-        if (null != token) {
-            output.writeUTF(token);
+        CodecUtils.writeVarInt(output, list.size());
+        for (RoomMember member : list) {
+            member.writeExternal(output);
         }
+    }
 
-        output.writeObject(new ArrayList<>(mMembers.values()));
-        output.writeObject(new ArrayList<>(mThirdPartyInvites.values()));
-        output.writeObject(new ArrayList<>(mMembersWithThirdPartyInviteTokenCache.values()));
+    /**
+     * Read some room members written with writeMembers.
+     *
+     * @param input the input
+     * @return the room members
+     * @throws IOException            if the read fails
+     * @throws ClassNotFoundException if the read fails
+     */
+    private static List<RoomMember> readMembers(ObjectInput input) throws IOException, ClassNotFoundException {
+        int count = CodecUtils.readVarInt(input);
+        List<RoomMember> members = new ArrayList<>(count);
 
-        output.writeBoolean(null != mMembership);
-        if (null != mMembership) {
-            output.writeUTF(mMembership);
+        for (int i = 0; i < count; i++) {
+            RoomMember member = new RoomMember();
+            member.readExternal(input);
+            members.add(member);
         }
 
-        output.writeBoolean(mIsLive);
-
-        output.writeBoolean(null != mIsConferenceUserRoom);
-        if (null != mIsConferenceUserRoom) {
-            output.writeBoolean(mIsConferenceUserRoom);
-        }
+        return members;
     }
 
 }
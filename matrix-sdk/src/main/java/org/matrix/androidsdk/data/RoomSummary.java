@@ -28,6 +28,10 @@ import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.EventContent;
 import org.matrix.androidsdk.rest.model.Message;
 import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.util.MXStringsPool;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 
 /**
  * Stores summarised information about the room.
@@ -84,6 +88,19 @@ public class RoomSummary implements java.io.Serializable {
         mLatestReadEventId = null;
     }
 
+    /**
+     * Deserialize the room summary.
+     * The identifiers are replaced by their shared instance.
+     */
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+
+        mRoomId = MXStringsPool.intern(mRoomId);
+        mLatestReadEventId = MXStringsPool.intern(mLatestReadEventId);
+        mInviterUserId = MXStringsPool.intern(mInviterUserId);
+        mMatrixId = MXStringsPool.intern(mMatrixId);
+    }
+
     /**
      * Test if the event can be summarized.
      * Some event types are not yet supported.
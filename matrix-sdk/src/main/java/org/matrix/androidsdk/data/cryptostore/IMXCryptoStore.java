@@ -160,6 +160,13 @@ public interface IMXCryptoStore {
      */
     void storeInboundGroupSession(MXOlmInboundGroupSession2 session);
 
+    /**
+     * Store some inbound group sessions.
+     * It is faster than storing them one by one (e.g. when importing keys).
+     * @param sessions the inbound group sessions and their context.
+     */
+    void storeInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions);
+
     /**
      * Retrieve an inbound group session.
      * @param sessionId the session identifier.
@@ -168,12 +175,28 @@ public interface IMXCryptoStore {
      */
     MXOlmInboundGroupSession2 getInboundGroupSession(String sessionId, String senderKey);
 
+    /**
+     * Tells if an inbound group session is stored, without loading it.
+     * @param sessionId the session identifier.
+     * @param senderKey the base64-encoded curve25519 key of the sender.
+     * @return true if the session is stored.
+     */
+    boolean hasInboundGroupSession(String sessionId, String senderKey);
+
     /**
      * Retrieve the known inbound group sessions.
+     * The sessions are loaded, they should be retrieved one by one with getInboundGroupSessionsIds().
      * @return an inbound group session.
      */
     List<MXOlmInboundGroupSession2> getInboundGroupSessions();
 
+    /**
+     * Retrieve the identifiers of the known inbound group sessions.
+     * The sessions can then be retrieved one by one with getInboundGroupSession().
+     * @return a map from the sender key to the session identifiers.
+     */
+    Map<String, List<String>> getInboundGroupSessionsIds();
+
     /**
      * Remove an inbound group session
      * @param sessionId the session identifier.
@@ -39,6 +39,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -79,6 +80,10 @@ public class MXFileCryptoStore implements IMXCryptoStore {
     private static final String MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FILE = "inboundGroupSessions";
     private static final String MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FILE_TMP = "inboundGroupSessions.tmp";
     private static final String MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FOLDER = "inboundGroupSessionsFolder";
+    private static final String MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_LOG_FOLDER = "inboundGroupSessionsLog";
+
+    // the legacy inbound group sessions are migrated by batches of this size
+    private static final int INBOUND_GROUP_SESSIONS_MIGRATION_BATCH_SIZE = 100;
 
     // The credentials used for this store
     private Credentials mCredentials;
@@ -104,10 +109,8 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             HashMap<String /*olmSessionId*/, OlmSession>> mOlmSessions;
     private static final Object mOlmSessionsLock = new Object();
 
-    // The inbound group megolm sessions (<senderKey> -> (<inbound group session id> -> <inbound group megolm session>)
-    private HashMap<String /*senderKey*/,
-            HashMap<String /*inboundGroupSessionId*/, MXOlmInboundGroupSession2>> mInboundGroupSessions;
-    private final Object mInboundGroupSessionsLock = new Object();
+    // The inbound group megolm sessions, they are loaded on demand
+    private MXFileInboundGroupSessionsStore mInboundGroupSessionsStore;
 
 
     // The path of the MXFileCryptoStore folder
@@ -136,6 +139,7 @@ public class MXFileCryptoStore implements IMXCryptoStore {
     private File mInboundGroupSessionsFile;
     private File mInboundGroupSessionsFileTmp;
     private File mInboundGroupSessionsFolder;
+    private File mInboundGroupSessionsLogFolder;
 
     // tell if the store is corrupted
     private boolean mIsCorrupted = false;
@@ -177,6 +181,7 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         mInboundGroupSessionsFile = new File(mStoreFile, MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FILE);
         mInboundGroupSessionsFileTmp = new File(mStoreFile, MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FILE_TMP);
         mInboundGroupSessionsFolder = new File(mStoreFile, MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FOLDER);
+        mInboundGroupSessionsLogFolder = new File(mStoreFile, MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_LOG_FOLDER);
 
         // Build default metadata
         if ((null == mMetaData)
@@ -190,7 +195,6 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         mRoomsAlgorithms = new HashMap<>();
         mTrackingStatuses = new HashMap<>();
         mOlmSessions = new HashMap<>();
-        mInboundGroupSessions = new HashMap<>();
     }
 
     @Override
@@ -254,6 +258,9 @@ public class MXFileCryptoStore implements IMXCryptoStore {
                 resetData();
             }
 
+            mInboundGroupSessionsStore = new MXFileInboundGroupSessionsStore(mInboundGroupSessionsLogFolder, MXFileInboundGroupSessionsStore.DEFAULT_CACHE_SIZE);
+            mInboundGroupSessionsStore.open();
+
             // If metaData is still defined, we can load rooms data
             if (null != mMetaData) {
                 preloadCryptoData();
@@ -727,28 +734,7 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
 
         if ((null != sessionId) && (null != senderKey)) {
-            synchronized (mInboundGroupSessionsLock) {
-                if (mInboundGroupSessions.containsKey(senderKey)) {
-                    MXOlmInboundGroupSession2 session = mInboundGroupSessions.get(senderKey).get(sessionId);
-
-                    if (null != session) {
-                        mInboundGroupSessions.get(senderKey).remove(sessionId);
-
-                        File senderKeyFolder = new File(mInboundGroupSessionsFolder, encodeFilename(session.mSenderKey));
-
-                        if (senderKeyFolder.exists()) {
-                            File inboundSessionFile = new File(senderKeyFolder, encodeFilename(sessionId));
-
-                            if (!inboundSessionFile.delete()) {
-                                Log.e(LOG_TAG, "## removeInboundGroupSession() : fail to remove the sessionid " + sessionId);
-                            }
-                        }
-
-                        // release the memory
-                        session.mSession.releaseSession();
-                    }
-                }
-            }
+            mInboundGroupSessionsStore.remove(senderKey, sessionId);
         }
     }
 
@@ -759,44 +745,23 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             return;
         }
 
-        String sessionIdentifier = null;
-
         if ((null != session) && (null != session.mSenderKey) && (null != session.mSession)) {
-            try {
-                sessionIdentifier = session.mSession.sessionIdentifier();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## storeInboundGroupSession() : sessionIdentifier failed " + e.getMessage());
-            }
+            mInboundGroupSessionsStore.store(Collections.singletonList(session));
         }
+    }
 
-        if (null != sessionIdentifier) {
-            synchronized (mInboundGroupSessionsLock) {
-                if (!mInboundGroupSessions.containsKey(session.mSenderKey)) {
-                    mInboundGroupSessions.put(session.mSenderKey, new HashMap<String, MXOlmInboundGroupSession2>());
-                }
-
-                MXOlmInboundGroupSession2 curSession = mInboundGroupSessions.get(session.mSenderKey).get(sessionIdentifier);
-
-                if (curSession != session) {
-                    // release memory
-                    if (null != curSession) {
-                        curSession.mSession.releaseSession();
-                    }
-                    // update the map
-                    mInboundGroupSessions.get(session.mSenderKey).put(sessionIdentifier, session);
-                }
-            }
+    @Override
+    public void storeInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions) {
+        if (!mIsReady) {
+            Log.e(LOG_TAG, "## storeInboundGroupSessions() : the store is not ready");
+            return;
+        }
 
-            Log.d(LOG_TAG, "## storeInboundGroupSession() : store session " + sessionIdentifier);
+        long t0 = System.currentTimeMillis();
 
-            File senderKeyFolder = new File(mInboundGroupSessionsFolder, encodeFilename(session.mSenderKey));
+        mInboundGroupSessionsStore.store(sessions);
 
-            if (!senderKeyFolder.exists()) {
-                senderKeyFolder.mkdir();
-            }
-
-            storeObject(session, senderKeyFolder, encodeFilename(sessionIdentifier), "storeInboundGroupSession - in background");
-        }
+        Log.d(LOG_TAG, "## storeInboundGroupSessions() : " + sessions.size() + " sessions stored in " + (System.currentTimeMillis() - t0) + " ms");
     }
 
     @Override
@@ -806,18 +771,22 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             return null;
         }
 
-        if ((null != sessionId) && (null != senderKey) && mInboundGroupSessions.containsKey(senderKey)) {
-            MXOlmInboundGroupSession2 session;
-
-            synchronized (mInboundGroupSessionsLock) {
-                session = mInboundGroupSessions.get(senderKey).get(sessionId);
-            }
-
-            return session;
+        if ((null != sessionId) && (null != senderKey)) {
+            return mInboundGroupSessionsStore.get(senderKey, sessionId);
         }
         return null;
     }
 
+    @Override
+    public boolean hasInboundGroupSession(String sessionId, String senderKey) {
+        if (!mIsReady) {
+            Log.e(LOG_TAG, "## hasInboundGroupSession() : the store is not ready");
+            return false;
+        }
+
+        return (null != sessionId) && (null != senderKey) && mInboundGroupSessionsStore.contains(senderKey, sessionId);
+    }
+
     @Override
     public List<MXOlmInboundGroupSession2> getInboundGroupSessions() {
         if (!mIsReady) {
@@ -825,15 +794,17 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             return null;
         }
 
-        ArrayList<MXOlmInboundGroupSession2> inboundGroupSessions = new ArrayList<>();
+        return mInboundGroupSessionsStore.loadAll();
+    }
 
-        synchronized (mInboundGroupSessionsLock) {
-            for (String senderKey : mInboundGroupSessions.keySet()) {
-                inboundGroupSessions.addAll(mInboundGroupSessions.get(senderKey).values());
-            }
+    @Override
+    public Map<String, List<String>> getInboundGroupSessionsIds() {
+        if (!mIsReady) {
+            Log.e(LOG_TAG, "## getInboundGroupSessionsIds() : the store is not ready");
+            return null;
         }
 
-        return inboundGroupSessions;
+        return mInboundGroupSessionsStore.getSessionsIds();
     }
 
     @Override
@@ -851,19 +822,9 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
         mOlmSessions.clear();
 
-        ArrayList<MXOlmInboundGroupSession2> groupSessions = new ArrayList<>();
-        Collection<HashMap<String, MXOlmInboundGroupSession2>> groupSessionsValues = mInboundGroupSessions.values();
-
-        for (HashMap<String, MXOlmInboundGroupSession2> map : groupSessionsValues) {
-            groupSessions.addAll(map.values());
+        if (null != mInboundGroupSessionsStore) {
+            mInboundGroupSessionsStore.close();
         }
-
-        for (MXOlmInboundGroupSession2 groupSession : groupSessions) {
-            if (null != groupSession.mSession) {
-                groupSession.mSession.releaseSession();
-            }
-        }
-        mInboundGroupSessions.clear();
     }
 
     @Override
@@ -935,10 +896,6 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             mOlmSessionsFolder.mkdir();
         }
 
-        if (!mInboundGroupSessionsFolder.exists()) {
-            mInboundGroupSessionsFolder.mkdirs();
-        }
-
         mMetaData = null;
     }
 
@@ -1192,10 +1149,9 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             }
         }
 
+        // the inbound group sessions were saved in a file per session, then in a single file
         if (mInboundGroupSessionsFolder.exists()) {
             long t4 = System.currentTimeMillis();
-            mInboundGroupSessions = new HashMap<>();
-
             int count = 0;
 
             String[] keysFolder = mInboundGroupSessionsFolder.list();
@@ -1204,11 +1160,11 @@ public class MXFileCryptoStore implements IMXCryptoStore {
                 for (int i = 0; i < keysFolder.length; i++) {
                     File keyFolder = new File(mInboundGroupSessionsFolder, keysFolder[i]);
 
-                    HashMap<String, MXOlmInboundGroupSession2> submap = new HashMap<>();
-
                     String[] sessionIds = keyFolder.list();
 
                     if (null != sessionIds) {
+                        ArrayList<MXOlmInboundGroupSession2> sessions = new ArrayList<>();
+
                         for (int j = 0; j < sessionIds.length; j++) {
                             File inboundSessionFile = new File(keyFolder, sessionIds[j]);
                             try {
@@ -1222,20 +1178,28 @@ public class MXFileCryptoStore implements IMXCryptoStore {
                                 }
 
                                 if (null != inboundSession) {
-                                    submap.put(decodeFilename(sessionIds[j]), inboundSession);
+                                    sessions.add(inboundSession);
                                 }
                                 count++;
                             } catch (Exception e) {
                                 Log.e(LOG_TAG, "## preloadCryptoData() - invalid mInboundGroupSessions " + e.getMessage());
                             }
+
+                            // limit the native sessions in memory
+                            if (sessions.size() >= INBOUND_GROUP_SESSIONS_MIGRATION_BATCH_SIZE) {
+                                migrateInboundGroupSessions(sessions);
+                            }
                         }
-                    }
 
-                    mInboundGroupSessions.put(decodeFilename(keysFolder[i]), submap);
+                        migrateInboundGroupSessions(sessions);
+                    }
                 }
             }
 
-            Log.d(LOG_TAG, "## preloadCryptoData() : load " + count + " inboundGroupSessions in " + (System.currentTimeMillis() - t4) + " ms");
+            // the sessions files are deleted once they have all been migrated
+            ContentUtils.deleteDirectory(mInboundGroupSessionsFolder);
+
+            Log.d(LOG_TAG, "## preloadCryptoData() : migrate " + count + " inboundGroupSessions in " + (System.currentTimeMillis() - t4) + " ms");
         } else {
             Object inboundGroupSessionsAsVoid;
 
@@ -1249,34 +1213,14 @@ public class MXFileCryptoStore implements IMXCryptoStore {
                 try {
                     Map<String, Map<String, MXOlmInboundGroupSession2>> inboundGroupSessionsMap = (Map<String, Map<String, MXOlmInboundGroupSession2>>) inboundGroupSessionsAsVoid;
 
-                    mInboundGroupSessions = new HashMap<>();
-
+                    // convert to the new format
                     for (String key : inboundGroupSessionsMap.keySet()) {
-                        mInboundGroupSessions.put(key, new HashMap<>(inboundGroupSessionsMap.get(key)));
+                        migrateInboundGroupSessions(new ArrayList<>(inboundGroupSessionsMap.get(key).values()));
                     }
                 } catch (Exception e) {
                     mIsCorrupted = true;
                     Log.e(LOG_TAG, "## preloadCryptoData() - invalid mInboundGroupSessions " + e.getMessage());
                 }
-
-                if (!mInboundGroupSessionsFolder.mkdirs()) {
-                    Log.e(LOG_TAG, "Cannot create the folder " + mInboundGroupSessionsFolder);
-                }
-
-                // convert to the new format
-                for (String key : mInboundGroupSessions.keySet()) {
-                    File keyFolder = new File(mInboundGroupSessionsFolder, encodeFilename(key));
-
-                    if (!keyFolder.mkdirs()) {
-                        Log.e(LOG_TAG, "Cannot create the folder " + keyFolder);
-                    }
-
-                    Map<String, MXOlmInboundGroupSession2> inboundMaps = mInboundGroupSessions.get(key);
-
-                    for (String sessionId : inboundMaps.keySet()) {
-                        storeObject(inboundMaps.get(sessionId), keyFolder, encodeFilename(sessionId), "Convert inboundsession");
-                    }
-                }
             }
 
             mInboundGroupSessionsFileTmp.delete();
@@ -1289,6 +1233,18 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
     }
 
+    /**
+     * Append some legacy inbound group sessions to the inbound group sessions store.
+     * The native sessions are then owned by the store cache, which releases the oldest ones.
+     * The list is cleared.
+     *
+     * @param sessions the loaded sessions
+     */
+    private void migrateInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions) {
+        mInboundGroupSessionsStore.store(sessions);
+        sessions.clear();
+    }
+
     final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
     /**
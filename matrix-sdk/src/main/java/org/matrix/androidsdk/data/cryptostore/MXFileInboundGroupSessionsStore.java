@@ -0,0 +1,1186 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.cryptostore;
+
+import org.matrix.androidsdk.crypto.data.MXOlmInboundGroupSession;
+import org.matrix.androidsdk.crypto.data.MXOlmInboundGroupSession2;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The inbound group sessions store of MXFileCryptoStore.
+ *
+ * The sessions are appended to a few log files (the segments) instead of being written in a file per session.
+ * An in-memory index provides the record location of each (senderKey, sessionId) and it is saved in an index file,
+ * so the segments are only scanned from the last saved index at startup.
+ *
+ * The sessions are loaded on demand and the native sessions are kept in a bounded LRU cache :
+ * the evicted sessions are released. A caller which keeps a session must use it while holding its monitor,
+ * and must retrieve it again if it has been released (see OlmInboundGroupSession.isReleased()).
+ *
+ * The segments are compacted when there is more garbage (replaced or removed sessions) than live records.
+ */
+class MXFileInboundGroupSessionsStore {
+    private static final String LOG_TAG = "MXFileInbGroupSessStore";
+
+    private static final String SEGMENT_FILE_PREFIX = "segment_";
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_FILE_TMP = "index.tmp";
+
+    private static final int INDEX_VERSION = 1;
+
+    // the default native sessions cache size
+    // it must be larger than the imported keys batches (see MXCrypto.importRoomKeys)
+    static final int DEFAULT_CACHE_SIZE = 500;
+
+    // a new segment is started when the current one is larger than this size
+    private static final long MAX_SEGMENT_LENGTH = 4 * 1024 * 1024;
+
+    // the segments are not compacted below this size
+    private static final long MIN_COMPACTION_LENGTH = 1024 * 1024;
+
+    // the index is saved when this size has been appended since the last save
+    private static final long INDEX_SAVE_THRESHOLD = 2 * 1024 * 1024;
+
+    // the records types
+    static final byte RECORD_SESSION = 1;
+    static final byte RECORD_REMOVAL = 2;
+
+    /**
+     * The location of a session record.
+     */
+    private static class Location {
+        final int mSegment;
+        final long mOffset;
+        final int mLength;
+
+        Location(int segment, long offset, int length) {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * A parsed record.
+     */
+    private static class Record {
+        byte mType;
+        String mSenderKey;
+        String mSessionId;
+        byte[] mPayload;
+        // true when the payload checksum does not match
+        boolean mIsCorrupted;
+    }
+
+    /**
+     * An input stream which counts the read bytes.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+
+            if (value >= 0) {
+                mCount++;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+
+            if (count > 0) {
+                mCount += count;
+            }
+
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+
+    // the store folder
+    private final File mFolder;
+
+    // the index (<senderKey> -> (<sessionId> -> <record location>)), guarded by this
+    private final HashMap<String, HashMap<String, Location>> mIndex = new HashMap<>();
+
+    // the segments lengths, by segment number, guarded by this
+    private final TreeMap<Integer, Long> mSegmentsLengths = new TreeMap<>();
+
+    // the live records length, guarded by this
+    private long mLiveLength = 0;
+
+    // the appended length since the last index save, guarded by this
+    private long mUnindexedLength = 0;
+
+    // the segment which is appended, guarded by this
+    private int mActiveSegment = 0;
+    private RandomAccessFile mActiveSegmentFile;
+
+    // the evicted sessions, they are released out of the store lock, guarded by this
+    private final ArrayList<MXOlmInboundGroupSession2> mEvictedSessions = new ArrayList<>();
+
+    // the native sessions cache (<senderKey|sessionId> -> session) in access order, guarded by this
+    private final LinkedHashMap<String, MXOlmInboundGroupSession2> mCache;
+
+    /**
+     * Constructor
+     *
+     * @param folder    the store folder
+     * @param cacheSize the max number of native sessions in memory
+     */
+    MXFileInboundGroupSessionsStore(File folder, final int cacheSize) {
+        mFolder = folder;
+        mCache = new LinkedHashMap<String, MXOlmInboundGroupSession2>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MXOlmInboundGroupSession2> eldest) {
+                if (size() > cacheSize) {
+                    mEvictedSessions.add(eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    //==============================================================================================================
+    // Open / close
+    //==============================================================================================================
+
+    /**
+     * Open the store : load the index and scan the segments tails.
+     */
+    synchronized void open() {
+        long t0 = System.currentTimeMillis();
+
+        if (!mFolder.exists() && !mFolder.mkdirs()) {
+            Log.e(LOG_TAG, "## open() : cannot create the folder " + mFolder);
+        }
+
+        mIndex.clear();
+        mSegmentsLengths.clear();
+        mLiveLength = 0;
+
+        String[] filenames = mFolder.list();
+
+        if (null != filenames) {
+            for (String filename : filenames) {
+                if (filename.startsWith(SEGMENT_FILE_PREFIX)) {
+                    try {
+                        int segment = Integer.parseInt(filename.substring(SEGMENT_FILE_PREFIX.length()));
+                        mSegmentsLengths.put(segment, getSegmentFile(segment).length());
+                    } catch (NumberFormatException e) {
+                        Log.e(LOG_TAG, "## open() : unexpected file " + filename);
+                    }
+                }
+            }
+        }
+
+        Map<Integer, Long> indexedLengths = loadIndex();
+
+        if (null == indexedLengths) {
+            mIndex.clear();
+            mLiveLength = 0;
+            indexedLengths = new HashMap<>();
+        }
+
+        long scannedLength = 0;
+
+        for (Integer segment : new ArrayList<>(mSegmentsLengths.keySet())) {
+            long from = indexedLengths.containsKey(segment) ? indexedLengths.get(segment) : 0;
+
+            if (from < mSegmentsLengths.get(segment)) {
+                scannedLength += mSegmentsLengths.get(segment) - from;
+                scanSegment(segment, from);
+            }
+        }
+
+        mActiveSegment = mSegmentsLengths.isEmpty() ? 0 : mSegmentsLengths.lastKey();
+
+        if (!mSegmentsLengths.isEmpty() && (mSegmentsLengths.get(mActiveSegment) >= MAX_SEGMENT_LENGTH)) {
+            mActiveSegment++;
+        }
+
+        openActiveSegment();
+
+        mUnindexedLength = scannedLength;
+
+        if (!compactIfNeeded() && (scannedLength > 0)) {
+            saveIndex();
+        }
+
+        Log.d(LOG_TAG, "## open() : " + getSessionsCount() + " sessions in " + mSegmentsLengths.size() + " segments (" + scannedLength
+                + " bytes scanned) in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Close the store : save the index and release the native sessions.
+     */
+    void close() {
+        ArrayList<MXOlmInboundGroupSession2> sessions;
+
+        synchronized (this) {
+            if (null != mActiveSegmentFile) {
+                saveIndex();
+                closeActiveSegment();
+            }
+
+            sessions = new ArrayList<>(mCache.values());
+            sessions.addAll(mEvictedSessions);
+            mCache.clear();
+            mEvictedSessions.clear();
+            mIndex.clear();
+        }
+
+        releaseSessions(sessions);
+    }
+
+    //==============================================================================================================
+    // Sessions
+    //==============================================================================================================
+
+    /**
+     * @return the stored sessions count
+     */
+    synchronized int getSessionsCount() {
+        int count = 0;
+
+        for (HashMap<String, Location> locations : mIndex.values()) {
+            count += locations.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Tells if a session is stored.
+     * The session is not loaded.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @return true if the session is stored
+     */
+    synchronized boolean contains(String senderKey, String sessionId) {
+        return null != getLocation(senderKey, sessionId);
+    }
+
+    /**
+     * @return the stored sessions ids by sender key
+     */
+    synchronized Map<String, List<String>> getSessionsIds() {
+        HashMap<String, List<String>> sessionIds = new HashMap<>();
+
+        for (String senderKey : mIndex.keySet()) {
+            sessionIds.put(senderKey, new ArrayList<>(mIndex.get(senderKey).keySet()));
+        }
+
+        return sessionIds;
+    }
+
+    /**
+     * Provides a session.
+     * It is loaded from the segments if it is not cached.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @return the session, null if it is not stored
+     */
+    MXOlmInboundGroupSession2 get(String senderKey, String sessionId) {
+        String key = senderKey + "|" + sessionId;
+        byte[] payload;
+
+        synchronized (this) {
+            MXOlmInboundGroupSession2 session = mCache.get(key);
+
+            if (null != session) {
+                return session;
+            }
+
+            Location location = getLocation(senderKey, sessionId);
+
+            if (null == location) {
+                return null;
+            }
+
+            Record record = readRecord(location);
+            payload = (null != record) ? record.mPayload : null;
+        }
+
+        // the native session is created out of the store lock
+        MXOlmInboundGroupSession2 session = deserializeSession(payload);
+
+        if (null == session) {
+            return null;
+        }
+
+        MXOlmInboundGroupSession2 unusedSession = null;
+
+        synchronized (this) {
+            MXOlmInboundGroupSession2 cachedSession = mCache.get(key);
+
+            if (null != cachedSession) {
+                // another thread has loaded or stored it in the meantime
+                unusedSession = session;
+                session = cachedSession;
+            } else if (null == getLocation(senderKey, sessionId)) {
+                // it has been removed in the meantime
+                unusedSession = session;
+                session = null;
+            } else {
+                mCache.put(key, session);
+            }
+        }
+
+        if (null != unusedSession) {
+            releaseSessions(Collections.singletonList(unusedSession));
+        }
+
+        releaseEvictedSessions();
+
+        return session;
+    }
+
+    /**
+     * Load all the stored sessions.
+     * The sessions are not cached, the caller must release them.
+     *
+     * @return the sessions
+     */
+    List<MXOlmInboundGroupSession2> loadAll() {
+        ArrayList<MXOlmInboundGroupSession2> sessions = new ArrayList<>();
+        Map<String, List<String>> sessionIds = getSessionsIds();
+
+        for (String senderKey : sessionIds.keySet()) {
+            for (String sessionId : sessionIds.get(senderKey)) {
+                Record record;
+
+                synchronized (this) {
+                    Location location = getLocation(senderKey, sessionId);
+                    record = (null != location) ? readRecord(location) : null;
+                }
+
+                MXOlmInboundGroupSession2 session = (null != record) ? deserializeSession(record.mPayload) : null;
+
+                if (null != session) {
+                    sessions.add(session);
+                }
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Store some sessions.
+     * The records are appended to the active segment in a single write.
+     * A released session is not stored : its record is already up to date.
+     *
+     * @param sessions the sessions
+     */
+    void store(Collection<MXOlmInboundGroupSession2> sessions) {
+        ArrayList<MXOlmInboundGroupSession2> storedSessions = new ArrayList<>(sessions.size());
+        ArrayList<String> sessionIds = new ArrayList<>(sessions.size());
+        ArrayList<byte[]> records = new ArrayList<>(sessions.size());
+
+        // serialize the sessions out of the store lock
+        for (MXOlmInboundGroupSession2 session : sessions) {
+            // sanity check
+            if ((null == session) || (null == session.mSession) || (null == session.mSenderKey)) {
+                continue;
+            }
+
+            synchronized (session) {
+                if (session.mSession.isReleased()) {
+                    Log.d(LOG_TAG, "## store() : the session has been released");
+                    continue;
+                }
+
+                try {
+                    String sessionId = session.mSession.sessionIdentifier();
+                    records.add(encodeRecord(RECORD_SESSION, session.mSenderKey, sessionId, serializeSession(session)));
+                    sessionIds.add(sessionId);
+                    storedSessions.add(session);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## store() : failed " + e.getMessage());
+                }
+            }
+        }
+
+        if (records.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            List<Location> locations = append(records);
+
+            if (null != locations) {
+                for (int i = 0; i < locations.size(); i++) {
+                    MXOlmInboundGroupSession2 session = storedSessions.get(i);
+                    String sessionId = sessionIds.get(i);
+
+                    setLocation(session.mSenderKey, sessionId, locations.get(i));
+
+                    MXOlmInboundGroupSession2 prevSession = mCache.put(session.mSenderKey + "|" + sessionId, session);
+
+                    if ((null != prevSession) && (prevSession != session)) {
+                        mEvictedSessions.add(prevSession);
+                    }
+                }
+
+                onAppended();
+            }
+        }
+
+        releaseEvictedSessions();
+    }
+
+    /**
+     * Remove a session.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     */
+    void remove(String senderKey, String sessionId) {
+        synchronized (this) {
+            if (null == getLocation(senderKey, sessionId)) {
+                return;
+            }
+
+            try {
+                ArrayList<byte[]> records = new ArrayList<>();
+                records.add(encodeRecord(RECORD_REMOVAL, senderKey, sessionId, new byte[0]));
+
+                if (null == append(records)) {
+                    return;
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "## remove() : failed " + e.getMessage());
+                return;
+            }
+
+            setLocation(senderKey, sessionId, null);
+
+            MXOlmInboundGroupSession2 session = mCache.remove(senderKey + "|" + sessionId);
+
+            if (null != session) {
+                mEvictedSessions.add(session);
+            }
+
+            onAppended();
+        }
+
+        releaseEvictedSessions();
+    }
+
+    //==============================================================================================================
+    // Index
+    //==============================================================================================================
+
+    /**
+     * Provides a record location.
+     * The store lock must be held.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @return the location, null if the session is not stored
+     */
+    private Location getLocation(String senderKey, String sessionId) {
+        HashMap<String, Location> locations = (null != senderKey) ? mIndex.get(senderKey) : null;
+        return (null != locations) ? locations.get(sessionId) : null;
+    }
+
+    /**
+     * Update a record location and the live length.
+     * The store lock must be held.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @param location  the location, null if the session is removed
+     */
+    private void setLocation(String senderKey, String sessionId, Location location) {
+        HashMap<String, Location> locations = mIndex.get(senderKey);
+        Location prevLocation;
+
+        if (null != location) {
+            if (null == locations) {
+                locations = new HashMap<>();
+                mIndex.put(senderKey, locations);
+            }
+
+            prevLocation = locations.put(sessionId, location);
+            mLiveLength += location.mLength;
+        } else {
+            prevLocation = (null != locations) ? locations.remove(sessionId) : null;
+
+            if ((null != locations) && locations.isEmpty()) {
+                mIndex.remove(senderKey);
+            }
+        }
+
+        if (null != prevLocation) {
+            mLiveLength -= prevLocation.mLength;
+        }
+    }
+
+    /**
+     * Load the index file.
+     * The store lock must be held.
+     *
+     * @return the indexed length of each segment, null if the index is missing or invalid
+     */
+    private Map<Integer, Long> loadIndex() {
+        File indexFile = new File(mFolder, INDEX_FILE);
+
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        HashMap<Integer, Long> indexedLengths = new HashMap<>();
+        DataInputStream dis = null;
+
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+            if (INDEX_VERSION != dis.readInt()) {
+                Log.e(LOG_TAG, "## loadIndex() : unsupported version");
+                return null;
+            }
+
+            int segmentsCount = dis.readInt();
+
+            for (int i = 0; i < segmentsCount; i++) {
+                int segment = dis.readInt();
+                long length = dis.readLong();
+
+                // the indexed records must still be there
+                if (!mSegmentsLengths.containsKey(segment) || (mSegmentsLengths.get(segment) < length)) {
+                    Log.e(LOG_TAG, "## loadIndex() : the segment " + segment + " does not match the index");
+                    return null;
+                }
+
+                indexedLengths.put(segment, length);
+            }
+
+            int senderKeysCount = dis.readInt();
+
+            for (int i = 0; i < senderKeysCount; i++) {
+                String senderKey = dis.readUTF();
+                int sessionsCount = dis.readInt();
+
+                for (int j = 0; j < sessionsCount; j++) {
+                    String sessionId = dis.readUTF();
+                    setLocation(senderKey, sessionId, new Location(dis.readInt(), dis.readLong(), dis.readInt()));
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadIndex() : failed " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(dis);
+        }
+
+        return indexedLengths;
+    }
+
+    /**
+     * Save the index file.
+     * The store lock must be held.
+     */
+    private void saveIndex() {
+        long t0 = System.currentTimeMillis();
+
+        File indexFile = new File(mFolder, INDEX_FILE);
+        File indexFileTmp = new File(mFolder, INDEX_FILE_TMP);
+        DataOutputStream dos = null;
+
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFileTmp)));
+
+            dos.writeInt(INDEX_VERSION);
+
+            dos.writeInt(mSegmentsLengths.size());
+
+            for (Integer segment : mSegmentsLengths.keySet()) {
+                dos.writeInt(segment);
+                dos.writeLong(mSegmentsLengths.get(segment));
+            }
+
+            dos.writeInt(mIndex.size());
+
+            for (String senderKey : mIndex.keySet()) {
+                HashMap<String, Location> locations = mIndex.get(senderKey);
+
+                dos.writeUTF(senderKey);
+                dos.writeInt(locations.size());
+
+                for (String sessionId : locations.keySet()) {
+                    Location location = locations.get(sessionId);
+
+                    dos.writeUTF(sessionId);
+                    dos.writeInt(location.mSegment);
+                    dos.writeLong(location.mOffset);
+                    dos.writeInt(location.mLength);
+                }
+            }
+
+            dos.close();
+            dos = null;
+
+            if (!indexFileTmp.renameTo(indexFile)) {
+                // some file systems do not replace the destination
+                indexFile.delete();
+
+                if (!indexFileTmp.renameTo(indexFile)) {
+                    Log.e(LOG_TAG, "## saveIndex() : cannot rename the index file");
+                    return;
+                }
+            }
+
+            mUnindexedLength = 0;
+
+            Log.d(LOG_TAG, "## saveIndex() : done in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## saveIndex() : failed " + e.getMessage());
+        } finally {
+            closeQuietly(dos);
+        }
+    }
+
+    //==============================================================================================================
+    // Segments
+    //==============================================================================================================
+
+    /**
+     * Provides a segment file.
+     *
+     * @param segment the segment number
+     * @return the file
+     */
+    private File getSegmentFile(int segment) {
+        return new File(mFolder, SEGMENT_FILE_PREFIX + segment);
+    }
+
+    /**
+     * Open the active segment to append the records.
+     * The store lock must be held.
+     */
+    private void openActiveSegment() {
+        try {
+            mActiveSegmentFile = new RandomAccessFile(getSegmentFile(mActiveSegment), "rw");
+            mActiveSegmentFile.seek(mActiveSegmentFile.length());
+            mSegmentsLengths.put(mActiveSegment, mActiveSegmentFile.length());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## openActiveSegment() : failed " + e.getMessage());
+            mActiveSegmentFile = null;
+        }
+    }
+
+    /**
+     * Close the active segment.
+     * The store lock must be held.
+     */
+    private void closeActiveSegment() {
+        if (null != mActiveSegmentFile) {
+            try {
+                mActiveSegmentFile.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## closeActiveSegment() : failed " + e.getMessage());
+            }
+
+            mActiveSegmentFile = null;
+        }
+    }
+
+    /**
+     * Append some records to the active segment in a single write.
+     * The store lock must be held.
+     *
+     * @param records the encoded records
+     * @return the records locations, null if the write fails
+     */
+    private List<Location> append(List<byte[]> records) {
+        if (null == mActiveSegmentFile) {
+            Log.e(LOG_TAG, "## append() : the store is closed");
+            return null;
+        }
+
+        ArrayList<Location> locations = new ArrayList<>(records.size());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        long offset = mSegmentsLengths.get(mActiveSegment);
+
+        for (byte[] record : records) {
+            locations.add(new Location(mActiveSegment, offset + buffer.size(), record.length));
+            buffer.write(record, 0, record.length);
+        }
+
+        try {
+            mActiveSegmentFile.write(buffer.toByteArray());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## append() : failed " + e.getMessage());
+
+            // remove the partial write
+            try {
+                mActiveSegmentFile.setLength(offset);
+                mActiveSegmentFile.seek(offset);
+            } catch (Exception e2) {
+                Log.e(LOG_TAG, "## append() : cannot truncate the segment " + e2.getMessage());
+            }
+
+            return null;
+        }
+
+        mSegmentsLengths.put(mActiveSegment, offset + buffer.size());
+        mUnindexedLength += buffer.size();
+
+        return locations;
+    }
+
+    /**
+     * Called after some records have been appended.
+     * A new segment is started, the segments are compacted or the index is saved if needed.
+     * The store lock must be held.
+     */
+    private void onAppended() {
+        if (mSegmentsLengths.get(mActiveSegment) >= MAX_SEGMENT_LENGTH) {
+            closeActiveSegment();
+            mActiveSegment++;
+            openActiveSegment();
+        }
+
+        if (!compactIfNeeded() && (mUnindexedLength >= INDEX_SAVE_THRESHOLD)) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * Read the records of a segment to update the index.
+     * A record with an invalid checksum is skipped.
+     * An unreadable tail of the last segment is removed (e.g. the application has been killed while writing).
+     * The sealed segments are never truncated : an unreadable tail is only ignored, and it is dropped by the next compaction.
+     * The store lock must be held.
+     *
+     * @param segment the segment number
+     * @param from    the first record offset
+     */
+    private void scanSegment(Integer segment, long from) {
+        File file = getSegmentFile(segment);
+        long offset = from;
+        CountingInputStream cis = null;
+
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(from);
+
+            cis = new CountingInputStream(new BufferedInputStream(fis));
+            cis.mCount = from;
+            DataInputStream dis = new DataInputStream(cis);
+
+            long length = mSegmentsLengths.get(segment);
+
+            while (offset < length) {
+                Record record = readRecord(dis);
+                long recordLength = cis.mCount - offset;
+
+                if (record.mIsCorrupted) {
+                    Log.e(LOG_TAG, "## scanSegment() : skip the corrupted record at " + offset + " in the segment " + segment);
+                } else if (RECORD_SESSION == record.mType) {
+                    setLocation(record.mSenderKey, record.mSessionId, new Location(segment, offset, (int) recordLength));
+                } else {
+                    setLocation(record.mSenderKey, record.mSessionId, null);
+                }
+
+                offset = cis.mCount;
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## scanSegment() : segment " + segment + " is unreadable from " + offset + " " + e.getMessage());
+        } finally {
+            closeQuietly(cis);
+        }
+
+        if ((offset < mSegmentsLengths.get(segment)) && (segment.equals(mSegmentsLengths.lastKey()))) {
+            RandomAccessFile raf = null;
+
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(offset);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## scanSegment() : cannot truncate the segment " + e.getMessage());
+            } finally {
+                closeQuietly(raf);
+            }
+
+            mSegmentsLengths.put(segment, offset);
+        }
+    }
+
+    /**
+     * Rewrite the live records in new segments when there is more garbage than live records.
+     * The old segments are deleted from the oldest one, so a removal record is never deleted
+     * before the session record it removes.
+     * The store lock must be held.
+     *
+     * @return true if the segments have been compacted
+     */
+    private boolean compactIfNeeded() {
+        long totalLength = 0;
+
+        for (Long length : mSegmentsLengths.values()) {
+            totalLength += length;
+        }
+
+        if ((totalLength < MIN_COMPACTION_LENGTH) || ((totalLength - mLiveLength) <= mLiveLength)) {
+            return false;
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        closeActiveSegment();
+
+        ArrayList<Integer> oldSegments = new ArrayList<>(mSegmentsLengths.keySet());
+        HashMap<String, HashMap<String, Location>> newIndex = new HashMap<>();
+        TreeMap<Integer, Long> newSegmentsLengths = new TreeMap<>();
+        HashMap<Integer, RandomAccessFile> readers = new HashMap<>();
+
+        int segment = mSegmentsLengths.lastKey() + 1;
+        long offset = 0;
+        DataOutputStream dos = null;
+
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSegmentFile(segment))));
+
+            for (String senderKey : mIndex.keySet()) {
+                HashMap<String, Location> locations = new HashMap<>();
+                newIndex.put(senderKey, locations);
+
+                for (Map.Entry<String, Location> entry : mIndex.get(senderKey).entrySet()) {
+                    Location location = entry.getValue();
+                    RandomAccessFile reader = readers.get(location.mSegment);
+
+                    if (null == reader) {
+                        reader = new RandomAccessFile(getSegmentFile(location.mSegment), "r");
+                        readers.put(location.mSegment, reader);
+                    }
+
+                    // the records are copied without being parsed
+                    byte[] record = new byte[location.mLength];
+                    reader.seek(location.mOffset);
+                    reader.readFully(record);
+
+                    if (offset >= MAX_SEGMENT_LENGTH) {
+                        dos.close();
+                        newSegmentsLengths.put(segment, offset);
+                        segment++;
+                        offset = 0;
+                        dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSegmentFile(segment))));
+                    }
+
+                    dos.write(record);
+                    locations.put(entry.getKey(), new Location(segment, offset, record.length));
+                    offset += record.length;
+                }
+            }
+
+            dos.close();
+            dos = null;
+            newSegmentsLengths.put(segment, offset);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## compactIfNeeded() : failed " + e.getMessage());
+
+            closeQuietly(dos);
+
+            // keep the current segments
+            for (Integer newSegment : newSegmentsLengths.keySet()) {
+                getSegmentFile(newSegment).delete();
+            }
+            getSegmentFile(segment).delete();
+
+            openActiveSegment();
+            return false;
+        } finally {
+            for (RandomAccessFile reader : readers.values()) {
+                closeQuietly(reader);
+            }
+        }
+
+        mIndex.clear();
+        mIndex.putAll(newIndex);
+        mSegmentsLengths.clear();
+        mSegmentsLengths.putAll(newSegmentsLengths);
+        mLiveLength = 0;
+
+        for (Long length : newSegmentsLengths.values()) {
+            mLiveLength += length;
+        }
+
+        // from the oldest one
+        for (Integer oldSegment : oldSegments) {
+            if (!getSegmentFile(oldSegment).delete()) {
+                Log.e(LOG_TAG, "## compactIfNeeded() : cannot delete the segment " + oldSegment);
+            }
+        }
+
+        mActiveSegment = segment;
+        openActiveSegment();
+        saveIndex();
+
+        Log.d(LOG_TAG, "## compactIfNeeded() : " + totalLength + " bytes compacted to " + mLiveLength + " bytes in "
+                + (System.currentTimeMillis() - t0) + " ms");
+
+        return true;
+    }
+
+    //==============================================================================================================
+    // Records
+    //==============================================================================================================
+
+    /**
+     * Encode a record.
+     * type (byte) | senderKey (UTF) | sessionId (UTF) | payload length (int) | payload | payload CRC32 (int)
+     *
+     * @param type      the record type
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @param payload   the payload
+     * @return the record bytes
+     * @throws IOException if the keys cannot be encoded
+     */
+    static byte[] encodeRecord(byte type, String senderKey, String sessionId, byte[] payload) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.length + 128);
+        DataOutputStream dos = new DataOutputStream(bos);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        dos.writeByte(type);
+        dos.writeUTF(senderKey);
+        dos.writeUTF(sessionId);
+        dos.writeInt(payload.length);
+        dos.write(payload);
+        dos.writeInt((int) crc.getValue());
+        dos.close();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Read a record from a stream.
+     *
+     * @param dis the stream
+     * @return the record, flagged as corrupted if its checksum does not match
+     * @throws IOException if the record is truncated or cannot be framed
+     */
+    private static Record readRecord(DataInputStream dis) throws IOException {
+        Record record = new Record();
+
+        record.mType = dis.readByte();
+
+        if ((RECORD_SESSION != record.mType) && (RECORD_REMOVAL != record.mType)) {
+            throw new IOException("Invalid record type " + record.mType);
+        }
+
+        record.mSenderKey = dis.readUTF();
+        record.mSessionId = dis.readUTF();
+
+        int length = dis.readInt();
+
+        if ((length < 0) || (length > MAX_SEGMENT_LENGTH)) {
+            throw new IOException("Invalid record length " + length);
+        }
+
+        record.mPayload = new byte[length];
+        dis.readFully(record.mPayload);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.mPayload);
+
+        record.mIsCorrupted = (dis.readInt() != (int) crc.getValue());
+
+        return record;
+    }
+
+    /**
+     * Read a record from its location.
+     * The store lock must be held.
+     *
+     * @param location the location
+     * @return the record, null if it cannot be read
+     */
+    private Record readRecord(Location location) {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(getSegmentFile(location.mSegment), "r");
+
+            byte[] bytes = new byte[location.mLength];
+            raf.seek(location.mOffset);
+            raf.readFully(bytes);
+
+            Record record = readRecord(new DataInputStream(new ByteArrayInputStream(bytes)));
+
+            if (!record.mIsCorrupted) {
+                return record;
+            }
+
+            Log.e(LOG_TAG, "## readRecord() : invalid checksum in the segment " + location.mSegment + " at " + location.mOffset);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readRecord() : failed " + e.getMessage());
+        } finally {
+            closeQuietly(raf);
+        }
+
+        return null;
+    }
+
+    /**
+     * Serialize a session.
+     * The caller must hold the session monitor.
+     *
+     * @param session the session
+     * @return the serialized session
+     * @throws IOException if the serialization fails
+     */
+    private static byte[] serializeSession(MXOlmInboundGroupSession2 session) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(session);
+        oos.close();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserialize a session.
+     *
+     * @param payload the serialized session
+     * @return the session, null if it cannot be deserialized
+     */
+    private static MXOlmInboundGroupSession2 deserializeSession(byte[] payload) {
+        if (null == payload) {
+            return null;
+        }
+
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload));
+            Object object = ois.readObject();
+            ois.close();
+
+            if (object instanceof MXOlmInboundGroupSession) {
+                return new MXOlmInboundGroupSession2((MXOlmInboundGroupSession) object);
+            }
+
+            return (MXOlmInboundGroupSession2) object;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## deserializeSession() : failed " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    //==============================================================================================================
+    // Utils
+    //==============================================================================================================
+
+    /**
+     * Release the evicted sessions out of the store lock.
+     */
+    private void releaseEvictedSessions() {
+        ArrayList<MXOlmInboundGroupSession2> sessions;
+
+        synchronized (this) {
+            if (mEvictedSessions.isEmpty()) {
+                return;
+            }
+
+            sessions = new ArrayList<>(mEvictedSessions);
+            mEvictedSessions.clear();
+        }
+
+        releaseSessions(sessions);
+    }
+
+    /**
+     * Release some native sessions.
+     * The session monitor is held, so a session is not released while it is used.
+     *
+     * @param sessions the sessions
+     */
+    private static void releaseSessions(List<MXOlmInboundGroupSession2> sessions) {
+        for (MXOlmInboundGroupSession2 session : sessions) {
+            if (null != session.mSession) {
+                synchronized (session) {
+                    session.mSession.releaseSession();
+                }
+            }
+        }
+    }
+
+    /**
+     * Close a stream without reporting the error.
+     *
+     * @param closeable the stream, might be null
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## closeQuietly() : failed " + e.getMessage());
+            }
+        }
+    }
+}
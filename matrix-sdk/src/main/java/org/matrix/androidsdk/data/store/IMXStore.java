@@ -124,6 +124,22 @@ public interface IMXStore {
      */
     void setEventStreamToken(String token);
 
+    /**
+     * Provides the id of an uploaded sync filter.
+     *
+     * @param filterJson the filter JSON
+     * @return the filter id, null if this filter has not been uploaded.
+     */
+    String getSyncFilterId(String filterJson);
+
+    /**
+     * Save the id of an uploaded sync filter.
+     *
+     * @param filterJson the filter JSON
+     * @param filterId   the filter id
+     */
+    void setSyncFilterId(String filterJson, String filterId);
+
     /**
      * Add a MXStore listener.
      *
@@ -164,6 +180,24 @@ public interface IMXStore {
 
     Room getRoom(String roomId);
 
+    /**
+     * Tells if the data of a room (messages, live state, read receipts) is in memory.
+     * A store might page out the data of the rooms which are not used (see MXFileStore.setLazyLoadingEnabled()).
+     *
+     * @param roomId the room id
+     * @return true if the room data is loaded.
+     */
+    boolean isRoomLoaded(String roomId);
+
+    /**
+     * Load the data of a room in background if it is not in memory.
+     * The room data is not loaded when it is requested from the UI thread, so it must be loaded before using a room in the UI thread.
+     *
+     * @param roomId   the room id
+     * @param callback the asynchronous callback, called in the UI thread.
+     */
+    void loadRoom(String roomId, SimpleApiCallback<Void> callback);
+
     Collection<User> getUsers();
 
     User getUser(String userId);
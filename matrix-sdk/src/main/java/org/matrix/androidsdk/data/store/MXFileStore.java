@@ -37,6 +37,7 @@ import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.ThirdPartyIdentifier;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.util.CodecUtils;
 import org.matrix.androidsdk.util.ContentUtils;
 import org.matrix.androidsdk.util.MXOsHandler;
 
@@ -48,11 +49,16 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -68,17 +74,31 @@ public class MXFileStore extends MXMemoryStore {
     // ensure that there is enough messages to fill a tablet screen
     private static final int MAX_STORED_MESSAGES_COUNT = 50;
 
-    private static final String MXFILE_STORE_FOLDER = "MXFileStore";
+    // default max number of rooms whose data is kept in memory in lazy loading mode
+    private static final int DEFAULT_MAX_LOADED_ROOMS_COUNT = 50;
+
+    // default delay before writing the committed updates
+    private static final long DEFAULT_COMMIT_FLUSH_INTERVAL_MS = 1000;
+
+    // default number of pending updated items which triggers an immediate write
+    private static final int DEFAULT_COMMIT_FLUSH_SIZE = 100;
+
+    // max time to wait for the pending writes when the store is closed
+    private static final long CLOSE_FLUSH_TIMEOUT_MS = 10000;
+
+    static final String MXFILE_STORE_FOLDER = "MXFileStore";
     private static final String MXFILE_STORE_METADATA_FILE_NAME = "MXFileStore";
 
     private static final String MXFILE_STORE_GZ_ROOMS_MESSAGES_FOLDER = "messages_gz";
     private static final String MXFILE_STORE_ROOMS_TOKENS_FOLDER = "tokens";
-    private static final String MXFILE_STORE_GZ_ROOMS_STATE_FOLDER = "state_gz";
-    private static final String MXFILE_STORE_GZ_ROOMS_STATE_EVENTS_FOLDER = "state_rooms_events";
+    static final String MXFILE_STORE_GZ_ROOMS_STATE_FOLDER = "state_gz";
+    static final String MXFILE_STORE_GZ_ROOMS_STATE_EVENTS_FOLDER = "state_rooms_events";
     private static final String MXFILE_STORE_ROOMS_SUMMARY_FOLDER = "summary";
     private static final String MXFILE_STORE_ROOMS_RECEIPT_FOLDER = "receipts";
     private static final String MXFILE_STORE_ROOMS_ACCOUNT_DATA_FOLDER = "accountData";
-    private static final String MXFILE_STORE_USER_FOLDER = "users";
+    static final String MXFILE_STORE_USER_FOLDER = "users";
+    private static final String MXFILE_STORE_ROOMS_MESSAGES_JOURNAL_FOLDER = "messages_journal";
+    private static final String MXFILE_STORE_ROOMS_RECEIPT_JOURNAL_FOLDER = "receipts_journal";
 
     // the data is read from the file system
     private boolean mIsReady = false;
@@ -93,13 +113,14 @@ public class MXFileStore extends MXMemoryStore {
     private boolean mIsOpening = false;
 
     // List of rooms to save on [MXStore commit]
-    // filled with roomId
-    private ArrayList<String> mRoomsToCommitForMessages;
-    private ArrayList<String> mRoomsToCommitForStates;
-    private ArrayList<String> mRoomsToCommitForSummaries;
-    private ArrayList<String> mRoomsToCommitForAccountData;
-    private ArrayList<String> mRoomsToCommitForReceipts;
-    private ArrayList<String> mUserIdsToCommit;
+    // filled with roomId, guarded by this
+    private final ArrayList<String> mRoomsToCommitForMessages;
+    private final ArrayList<String> mRoomsToCommitForStates;
+    private final ArrayList<String> mRoomsToCommitForSummaries;
+    private final ArrayList<String> mRoomsToCommitForAccountData;
+    private final ArrayList<String> mRoomsToCommitForReceipts;
+    // the storage hash keys of the updated users, guarded by this
+    private final Set<Integer> mUsersHashKeysToCommit = new HashSet<>();
 
     // Flag to indicate metaData needs to be store
     private boolean mMetaDataHasChanged = false;
@@ -115,6 +136,62 @@ public class MXFileStore extends MXMemoryStore {
     private File mStoreRoomsAccountDataFolderFile = null;
     private File mStoreUserFolderFile = null;
 
+    // the rooms journals
+    // they contain the updates done since the latest room snapshot
+    private boolean mIsJournalEnabled = true;
+    private MXFileStoreJournal mRoomsMessagesJournal = null;
+    private MXFileStoreJournal mRoomsReceiptsJournal = null;
+
+    // the back tokens retrieved while replaying the messages journals
+    private final HashMap<String, String> mJournalTokens = new HashMap<>();
+
+    // lazy loading mode
+    // only the metadata, the summaries and the account data are loaded when the store is opened.
+    // the messages, the state and the receipts of a room are loaded the first time the room is used.
+    private boolean mIsLazyLoadingEnabled = false;
+    private int mMaxLoadedRoomsCount = DEFAULT_MAX_LOADED_ROOMS_COUNT;
+    private final Object mLazyLoadingLock = new Object();
+    // the rooms whose data is not loaded
+    private final Set<String> mPagedOutRoomIds = new HashSet<>();
+    // the rooms being loaded, by loading thread
+    private final HashMap<String, Thread> mLoadingRoomThreads = new HashMap<>();
+    // the rooms whose background load is scheduled
+    private final Set<String> mRoomIdsToLoad = new HashSet<>();
+    // the rooms data are loaded one by one, out of mLazyLoadingLock
+    private final Object mRoomDataLoadingLock = new Object();
+    // the loaded rooms, the least recently used one is the first one
+    private final LinkedHashMap<String, Boolean> mLoadedRoomsLru = new LinkedHashMap<>(16, 0.75f, true);
+    // the saves which have been triggered but are not yet done, by room id
+    private final HashMap<String, Integer> mPendingSavesCountByRoomId = new HashMap<>();
+
+    // commit pipeline
+    // the committed updates are gathered in these sets and written by a single flush on the background thread.
+    // a flush is triggered after mCommitFlushInterval ms or as soon as mCommitFlushSize items are pending.
+    private final Object mCommitLock = new Object();
+    private final Set<Integer> mDirtyUsersHashKeys = new LinkedHashSet<>();
+    private final Set<String> mDirtyRoomIdsForMessages = new LinkedHashSet<>();
+    private final Set<String> mDirtyRoomIdsForStates = new LinkedHashSet<>();
+    private final Set<String> mDirtyRoomIdsForSummaries = new LinkedHashSet<>();
+    private final Set<String> mDirtyRoomIdsForAccountData = new LinkedHashSet<>();
+    private final Set<String> mDirtyRoomIdsForReceipts = new LinkedHashSet<>();
+    // the metadata snapshot taken at the last commit, not yet written
+    private MXFileStoreMetaData mMetaDataToWrite = null;
+    // a delayed flush is pending
+    private boolean mIsCommitFlushScheduled = false;
+    // an immediate flush is pending
+    private boolean mIsCommitFlushPosted = false;
+    private long mCommitFlushInterval = DEFAULT_COMMIT_FLUSH_INTERVAL_MS;
+    private int mCommitFlushSize = DEFAULT_COMMIT_FLUSH_SIZE;
+    // true when the store is closing : the final flush must not post any write
+    private volatile boolean mIsClosing = false;
+
+    private final Runnable mCommitFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingCommits();
+        }
+    };
+
     // the background thread
     private HandlerThread mHandlerThread = null;
     private MXOsHandler mFileStoreHandler = null;
@@ -123,7 +200,13 @@ public class MXFileStore extends MXMemoryStore {
 
     private boolean mIsNewStorage = false;
 
-    private boolean mAreUsersLoaded = false;
+    // users directory
+    // the users are stored in a file per storage hash key (see User.getStorageHashKey()).
+    // the known user ids are gathered by hash key as they are stored, so an updated user only rewrites its own file,
+    // and the files are only read when one of their users is requested.
+    private final Map<Integer, Set<String>> mUserIdsByHashKey = new HashMap<>();
+    // the hash keys whose file has been read
+    private final Set<Integer> mLoadedUsersHashKeys = new HashSet<>();
 
     private long mPreloadTime = 0;
 
@@ -195,6 +278,9 @@ public class MXFileStore extends MXMemoryStore {
         if (!mStoreUserFolderFile.exists()) {
             mStoreUserFolderFile.mkdirs();
         }
+
+        mRoomsMessagesJournal = new MXFileStoreJournal(new File(mStoreFolderFile, MXFILE_STORE_ROOMS_MESSAGES_JOURNAL_FOLDER));
+        mRoomsReceiptsJournal = new MXFileStoreJournal(new File(mStoreFolderFile, MXFILE_STORE_ROOMS_RECEIPT_JOURNAL_FOLDER));
     }
 
     /**
@@ -220,7 +306,6 @@ public class MXFileStore extends MXMemoryStore {
         mRoomsToCommitForSummaries = new ArrayList<>();
         mRoomsToCommitForAccountData = new ArrayList<>();
         mRoomsToCommitForReceipts = new ArrayList<>();
-        mUserIdsToCommit = new ArrayList<>();
 
         // check if the metadata file exists and if it is valid
         loadMetaData();
@@ -245,6 +330,7 @@ public class MXFileStore extends MXMemoryStore {
             mMetadata.mUserId = mCredentials.userId;
             mMetadata.mAccessToken = mCredentials.accessToken;
             mMetadata.mVersion = MXFILE_VERSION;
+            mMetadata.mCodecVersion = CodecUtils.CODEC_VERSION;
             mMetaDataHasChanged = true;
             saveMetaData();
 
@@ -281,6 +367,112 @@ public class MXFileStore extends MXMemoryStore {
         return isKilled;
     }
 
+    /**
+     * Enable or disable the rooms journals.
+     * When they are enabled, the commits append the room messages and receipts updates to a per-room journal
+     * instead of rewriting the whole room files. The room files are rewritten when the journal is compacted.
+     * The existing journals are always replayed when the store is opened.
+     *
+     * @param isEnabled true to enable the journals.
+     */
+    public void setJournalEnabled(boolean isEnabled) {
+        mIsJournalEnabled = isEnabled;
+    }
+
+    /**
+     * @return true if the rooms journals are enabled.
+     */
+    public boolean isJournalEnabled() {
+        return mIsJournalEnabled;
+    }
+
+    /**
+     * Enable or disable the lazy loading mode.
+     * When it is enabled, open() only loads the metadata, the rooms summaries and the rooms account data.
+     * The messages, the live state and the read receipts of a room are loaded the first time
+     * getRoom(), getRoomMessages() or getEventReceipts() is called for this room.
+     * The least recently used rooms are paged out when more than getMaxLoadedRoomsCount() rooms are loaded.
+     * It must be called before open().
+     *
+     * @param isEnabled true to enable the lazy loading.
+     */
+    public void setLazyLoadingEnabled(boolean isEnabled) {
+        if (mIsReady || mIsOpening) {
+            Log.e(LOG_TAG, "## setLazyLoadingEnabled() : the store is already opened");
+            return;
+        }
+
+        mIsLazyLoadingEnabled = isEnabled;
+    }
+
+    /**
+     * @return true if the lazy loading mode is enabled.
+     */
+    public boolean isLazyLoadingEnabled() {
+        return mIsLazyLoadingEnabled;
+    }
+
+    /**
+     * Update the max number of rooms whose data is kept in memory in lazy loading mode.
+     *
+     * @param count the max number of loaded rooms.
+     */
+    public void setMaxLoadedRoomsCount(int count) {
+        synchronized (mLazyLoadingLock) {
+            mMaxLoadedRoomsCount = Math.max(1, count);
+        }
+    }
+
+    /**
+     * @return the max number of rooms whose data is kept in memory in lazy loading mode.
+     */
+    public int getMaxLoadedRoomsCount() {
+        synchronized (mLazyLoadingLock) {
+            return mMaxLoadedRoomsCount;
+        }
+    }
+
+    /**
+     * Update the delay before writing the committed updates.
+     * The updates committed during this delay are written together.
+     *
+     * @param intervalMs the delay in milliseconds, 0 to write them as soon as they are committed.
+     */
+    public void setCommitFlushInterval(long intervalMs) {
+        synchronized (mCommitLock) {
+            mCommitFlushInterval = Math.max(0, intervalMs);
+        }
+    }
+
+    /**
+     * @return the delay in milliseconds before writing the committed updates.
+     */
+    public long getCommitFlushInterval() {
+        synchronized (mCommitLock) {
+            return mCommitFlushInterval;
+        }
+    }
+
+    /**
+     * Update the number of pending updated items (users, rooms...) which triggers an immediate write.
+     *
+     * @param size the number of items.
+     */
+    public void setCommitFlushSize(int size) {
+        synchronized (mCommitLock) {
+            mCommitFlushSize = Math.max(1, size);
+        }
+    }
+
+    /**
+     * @return the number of pending updated items which triggers an immediate write.
+     */
+    public int getCommitFlushSize() {
+        synchronized (mCommitLock) {
+            return mCommitFlushSize;
+        }
+    }
+
     /**
      * Save changes in the store.
      * If the store uses permanent storage like database or file, it is the optimised time
@@ -346,7 +538,18 @@ public class MXFileStore extends MXMemoryStore {
                                     Log.e(LOG_TAG, errorDescription);
                                 }
 
-                                if (succeed) {
+                                if (succeed && mIsLazyLoadingEnabled) {
+                                    succeed &= loadRoomsPlaceholders();
+
+                                    if (!succeed) {
+                                        errorDescription = "loadRoomsPlaceholders fails";
+                                        Log.e(LOG_TAG, errorDescription);
+                                    } else {
+                                        Log.e(LOG_TAG, "loadRoomsPlaceholders succeeds");
+                                    }
+                                }
+
+                                if (succeed && !mIsLazyLoadingEnabled) {
                                     succeed &= loadRoomsMessages();
                                     if (!succeed) {
                                         errorDescription = "loadRoomsMessages fails";
@@ -356,7 +559,7 @@ public class MXFileStore extends MXMemoryStore {
                                     }
                                 }
 
-                                if (succeed) {
+                                if (succeed && !mIsLazyLoadingEnabled) {
                                     succeed &= loadRoomsState();
 
                                     if (!succeed) {
@@ -428,10 +631,10 @@ public class MXFileStore extends MXMemoryStore {
 
                                     deleteAllData(true);
 
-                                    mRoomsToCommitForMessages = new ArrayList<>();
-                                    mRoomsToCommitForStates = new ArrayList<>();
-                                    mRoomsToCommitForSummaries = new ArrayList<>();
-                                    mRoomsToCommitForReceipts = new ArrayList<>();
+                                    getAndClearToCommit(mRoomsToCommitForMessages);
+                                    getAndClearToCommit(mRoomsToCommitForStates);
+                                    getAndClearToCommit(mRoomsToCommitForSummaries);
+                                    getAndClearToCommit(mRoomsToCommitForReceipts);
 
                                     mMetadata = tmpMetadata;
 
@@ -483,7 +686,10 @@ public class MXFileStore extends MXMemoryStore {
                                     dispatchOnStoreCorrupted(mCredentials.userId, errorDescription);
                                 } else {
                                     // extract the room states
-                                    mRoomReceiptsToLoad.addAll(listFiles(mStoreRoomsMessagesReceiptsFolderFile.list()));
+                                    // in lazy loading mode, the receipts are loaded with the room data
+                                    if (!mIsLazyLoadingEnabled) {
+                                        mRoomReceiptsToLoad.addAll(listFiles(mStoreRoomsMessagesReceiptsFolderFile.list()));
+                                    }
                                     mPreloadTime = System.currentTimeMillis() - fLoadTimeT0;
 
                                     Log.e(LOG_TAG, "The store is opened.");
@@ -495,8 +701,10 @@ public class MXFileStore extends MXMemoryStore {
                                     // load the receipts
                                     loadReceipts();
 
-                                    // load the users
-                                    loadUsers();
+                                    // rewrite the files saved with an older format
+                                    if (mMetadata.mCodecVersion < CodecUtils.CODEC_VERSION) {
+                                        migrateStorageCodec();
+                                    }
                                 }
                             }
                         });
@@ -573,6 +781,23 @@ public class MXFileStore extends MXMemoryStore {
         Log.d(LOG_TAG, "Close the store");
 
         super.close();
+
+        // the last writes must not be posted after the final flush
+        mIsClosing = true;
+
+        // write the pending updates before killing the background thread
+        if ((null != mMetadata) && !isKilled()) {
+            saveUsers();
+            saveRoomsMessages();
+            saveRoomStates();
+            saveSummaries();
+            saveRoomsAccountData();
+            saveReceipts();
+            saveMetaData();
+        }
+
+        drainPendingCommits();
+
         setIsKilled(true);
         mHandlerThread.quit();
         mHandlerThread = null;
@@ -608,9 +833,33 @@ public class MXFileStore extends MXMemoryStore {
         if (init) {
             initCommon();
         }
+
+        synchronized (mLazyLoadingLock) {
+            mPagedOutRoomIds.clear();
+            mLoadedRoomsLru.clear();
+        }
+
+        synchronized (mCommitLock) {
+            mDirtyUsersHashKeys.clear();
+            mDirtyRoomIdsForMessages.clear();
+            mDirtyRoomIdsForStates.clear();
+            mDirtyRoomIdsForSummaries.clear();
+            mDirtyRoomIdsForAccountData.clear();
+            mDirtyRoomIdsForReceipts.clear();
+            mMetaDataToWrite = null;
+        }
+
+        synchronized (this) {
+            mUsersHashKeysToCommit.clear();
+        }
+
+        synchronized (mUserIdsByHashKey) {
+            mUserIdsByHashKey.clear();
+            mLoadedUsersHashKeys.clear();
+        }
+
         mMetadata = null;
         mEventStreamToken = null;
-        mAreUsersLoaded = true;
     }
 
     /**
@@ -692,6 +941,13 @@ public class MXFileStore extends MXMemoryStore {
         mMetaDataHasChanged = true;
     }
 
+    @Override
+    public void setSyncFilterId(String filterJson, String filterId) {
+        Log.d(LOG_TAG, "Set the sync filter id to " + filterId);
+        super.setSyncFilterId(filterJson, filterId);
+        mMetaDataHasChanged = true;
+    }
+
     @Override
     public void setDisplayName(String displayName) {
         // privacy
@@ -733,16 +989,60 @@ public class MXFileStore extends MXMemoryStore {
         super.setDirectChatRoomsDict(directChatRoomsDict);
     }
 
+    /**
+     * {@inheritDoc}
+     * The users file of the user hash key is loaded in this call if it has not been read yet.
+     */
+    @Override
+    public User getUser(String userId) {
+        if (null != userId) {
+            loadUsersFile(User.getStorageHashKey(userId));
+        }
+
+        return super.getUser(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The users files which have not been read yet are loaded in this call.
+     */
+    @Override
+    public Collection<User> getUsers() {
+        for (int hashKey = 0; hashKey < User.STORAGE_HASH_KEYS_COUNT; hashKey++) {
+            loadUsersFile(hashKey);
+        }
+
+        return super.getUsers();
+    }
+
     @Override
     public void storeUser(User user) {
+        super.storeUser(user);
+
+        int hashKey = user.getStorageHashKey();
+
+        synchronized (mUserIdsByHashKey) {
+            Set<String> userIds = mUserIdsByHashKey.get(hashKey);
+
+            if (null == userIds) {
+                userIds = new HashSet<>();
+                mUserIdsByHashKey.put(hashKey, userIds);
+            }
+
+            userIds.add(user.user_id);
+        }
+
         if (!TextUtils.equals(mCredentials.userId, user.user_id)) {
-            mUserIdsToCommit.add(user.user_id);
+            synchronized (this) {
+                mUsersHashKeysToCommit.add(hashKey);
+            }
         }
-        super.storeUser(user);
     }
 
     @Override
     public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, EventTimeline.Direction direction) {
+        loadRoomIfPagedOut(roomId, true);
+
         boolean canStore = true;
 
         // do not flush the room messages file
@@ -761,11 +1061,22 @@ public class MXFileStore extends MXMemoryStore {
 
         super.storeRoomEvents(roomId, eventsResponse, direction);
 
-        if (canStore && (mRoomsToCommitForMessages.indexOf(roomId) < 0)) {
-            mRoomsToCommitForMessages.add(roomId);
+        if (canStore) {
+            if (direction == EventTimeline.Direction.FORWARDS) {
+                for (Event event : eventsResponse.chunk) {
+                    mRoomsMessagesJournal.addPendingRecord(roomId, new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_EVENT, event.eventId, event));
+                }
+            } else {
+                ArrayList<Event> prependedEvents = new ArrayList<>(eventsResponse.chunk);
+                Collections.reverse(prependedEvents);
+                mRoomsMessagesJournal.addPendingRecord(roomId, new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_PREPEND_EVENTS, null, prependedEvents));
+            }
+
+            addToCommit(mRoomsToCommitForMessages, roomId);
         }
     }
 
+
     /**
      * Store a live room event.
      *
@@ -773,20 +1084,22 @@ public class MXFileStore extends MXMemoryStore {
      */
     @Override
     public void storeLiveRoomEvent(Event event) {
+        loadRoomIfPagedOut(event.roomId, true);
         super.storeLiveRoomEvent(event);
 
-        if (mRoomsToCommitForMessages.indexOf(event.roomId) < 0) {
-            mRoomsToCommitForMessages.add(event.roomId);
-        }
+        mRoomsMessagesJournal.addPendingRecord(event.roomId, new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_EVENT, event.eventId, event));
+
+        addToCommit(mRoomsToCommitForMessages, event.roomId);
     }
 
     @Override
     public void deleteEvent(Event event) {
+        loadRoomIfPagedOut(event.roomId, true);
         super.deleteEvent(event);
 
-        if (mRoomsToCommitForMessages.indexOf(event.roomId) < 0) {
-            mRoomsToCommitForMessages.add(event.roomId);
-        }
+        mRoomsMessagesJournal.addPendingRecord(event.roomId, new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_DELETE_EVENT, event.eventId, null));
+
+        addToCommit(mRoomsToCommitForMessages, event.roomId);
     }
 
     /**
@@ -795,6 +1108,10 @@ public class MXFileStore extends MXMemoryStore {
      * @param roomId the room id.
      */
     private void deleteRoomMessagesFiles(String roomId) {
+        // the journal is meaningless without its snapshot
+        mRoomsMessagesJournal.discardPendingRecords(roomId);
+        mRoomsMessagesJournal.delete(roomId);
+
         // messages list
         File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
 
@@ -822,6 +1139,7 @@ public class MXFileStore extends MXMemoryStore {
         Log.d(LOG_TAG, "deleteRoom " + roomId);
 
         super.deleteRoom(roomId);
+        forgetLazyLoadedRoom(roomId);
         deleteRoomMessagesFiles(roomId);
         deleteRoomStateFile(roomId);
         deleteRoomSummaryFile(roomId);
@@ -833,29 +1151,29 @@ public class MXFileStore extends MXMemoryStore {
     public void deleteAllRoomMessages(String roomId, boolean keepUnsent) {
         Log.d(LOG_TAG, "deleteAllRoomMessages " + roomId);
 
+        loadRoomIfPagedOut(roomId, true);
         super.deleteAllRoomMessages(roomId, keepUnsent);
         if (!keepUnsent) {
             deleteRoomMessagesFiles(roomId);
+        } else {
+            // the kept messages must be saved in a new snapshot
+            mRoomsMessagesJournal.discardPendingRecords(roomId);
+            mRoomsMessagesJournal.requestCompaction(roomId);
         }
 
         deleteRoomSummaryFile(roomId);
 
-        if (mRoomsToCommitForMessages.indexOf(roomId) < 0) {
-            mRoomsToCommitForMessages.add(roomId);
-        }
+        addToCommit(mRoomsToCommitForMessages, roomId);
 
-        if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-            mRoomsToCommitForSummaries.add(roomId);
-        }
+        addToCommit(mRoomsToCommitForSummaries, roomId);
     }
 
     @Override
     public void storeLiveStateForRoom(String roomId) {
+        loadRoomIfPagedOut(roomId, true);
         super.storeLiveStateForRoom(roomId);
 
-        if (mRoomsToCommitForStates.indexOf(roomId) < 0) {
-            mRoomsToCommitForStates.add(roomId);
-        }
+        addToCommit(mRoomsToCommitForStates, roomId);
     }
 
     //================================================================================
@@ -866,8 +1184,7 @@ public class MXFileStore extends MXMemoryStore {
     public void flushSummary(RoomSummary summary) {
         super.flushSummary(summary);
 
-        if (mRoomsToCommitForSummaries.indexOf(summary.getRoomId()) < 0) {
-            mRoomsToCommitForSummaries.add(summary.getRoomId());
+        if (addToCommit(mRoomsToCommitForSummaries, summary.getRoomId())) {
             saveSummaries();
         }
     }
@@ -880,9 +1197,7 @@ public class MXFileStore extends MXMemoryStore {
         Collection<String> roomIds = mRoomSummaries.keySet();
 
         for (String roomId : roomIds) {
-            if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-                mRoomsToCommitForSummaries.add(roomId);
-            }
+            addToCommit(mRoomsToCommitForSummaries, roomId);
         }
 
         saveSummaries();
@@ -892,148 +1207,992 @@ public class MXFileStore extends MXMemoryStore {
     public RoomSummary storeSummary(String roomId, Event event, RoomState roomState, String selfUserId) {
         RoomSummary summary = super.storeSummary(roomId, event, roomState, selfUserId);
 
-        if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-            mRoomsToCommitForSummaries.add(roomId);
-        }
+        addToCommit(mRoomsToCommitForSummaries, roomId);
 
         return summary;
     }
 
     //================================================================================
-    // users management
+    // Commit pipeline
     //================================================================================
 
     /**
-     * Flush users list
+     * Add an item to a to-commit list.
+     * The rooms syncs can be stored by several threads in parallel.
+     *
+     * @param itemsToCommit the to-commit list
+     * @param item          the room id or the user id
+     * @return true if the item was not yet in the list
      */
-    private void saveUsers() {
-        if (!mAreUsersLoaded) {
-            // please wait
+    private boolean addToCommit(ArrayList<String> itemsToCommit, String item) {
+        synchronized (this) {
+            if (itemsToCommit.indexOf(item) < 0) {
+                itemsToCommit.add(item);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if an item is in a to-commit list.
+     *
+     * @param itemsToCommit the to-commit list
+     * @param item          the room id or the user id
+     * @return true if the item is in the list
+     */
+    private boolean isToCommit(ArrayList<String> itemsToCommit, String item) {
+        synchronized (this) {
+            return itemsToCommit.contains(item);
+        }
+    }
+
+    /**
+     * Empty a to-commit list.
+     *
+     * @param itemsToCommit the to-commit list
+     * @return the items which were in the list
+     */
+    private ArrayList<String> getAndClearToCommit(ArrayList<String> itemsToCommit) {
+        synchronized (this) {
+            ArrayList<String> items = new ArrayList<>(itemsToCommit);
+            itemsToCommit.clear();
+            return items;
+        }
+    }
+
+    /**
+     * Flag some rooms as updated.
+     * They will be written by the next commit flush.
+     *
+     * @param dirtyRoomIds the dirty rooms set
+     * @param roomIds      the updated room ids
+     */
+    private void addDirtyRooms(Set<String> dirtyRoomIds, List<String> roomIds) {
+        ArrayList<String> addedRoomIds = new ArrayList<>();
+
+        synchronized (mCommitLock) {
+            for (String roomId : roomIds) {
+                if (dirtyRoomIds.add(roomId)) {
+                    addedRoomIds.add(roomId);
+                }
+            }
+        }
+
+        // the rooms cannot be paged out until they are written
+        onSavesTriggered(addedRoomIds);
+        scheduleCommitFlush();
+    }
+
+    /**
+     * @return the number of updated items which are not yet written.
+     */
+    private int getPendingCommitsCount() {
+        synchronized (mCommitLock) {
+            return mDirtyUsersHashKeys.size() + mDirtyRoomIdsForMessages.size() + mDirtyRoomIdsForStates.size() +
+                    mDirtyRoomIdsForSummaries.size() + mDirtyRoomIdsForAccountData.size() +
+                    mDirtyRoomIdsForReceipts.size() + ((null != mMetaDataToWrite) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Schedule a commit flush.
+     * The flush is delayed by the commit flush interval unless there are too many pending items.
+     */
+    private void scheduleCommitFlush() {
+        MXOsHandler handler = mFileStoreHandler;
+
+        // the store is not yet opened : the pending updates will be written with the next flush
+        if (null == handler) {
             return;
         }
 
-        // some updated rooms ?
-        if ((mUserIdsToCommit.size() > 0) && (null != mFileStoreHandler)) {
-            // get the list
-            final ArrayList<String> fUserIds = mUserIdsToCommit;
-            mUserIdsToCommit = new ArrayList<>();
+        boolean flushNow;
+        long interval;
 
-            try {
-                final ArrayList<User> fUsers;
+        synchronized (mCommitLock) {
+            // an immediate flush is already pending
+            if (mIsCommitFlushPosted) {
+                return;
+            }
 
-                synchronized (mUsers) {
-                    fUsers = new ArrayList<>(mUsers.values());
+            interval = mCommitFlushInterval;
+            flushNow = (interval <= 0) || (getPendingCommitsCount() >= mCommitFlushSize);
+
+            if (flushNow) {
+                mIsCommitFlushPosted = true;
+            } else if (mIsCommitFlushScheduled) {
+                return;
+            } else {
+                mIsCommitFlushScheduled = true;
+            }
+        }
+
+        if (flushNow) {
+            handler.removeCallbacks(mCommitFlushRunnable);
+            handler.post(mCommitFlushRunnable);
+        } else {
+            handler.postDelayed(mCommitFlushRunnable, interval);
+        }
+    }
+
+    /**
+     * Write the pending updates.
+     * The metadata is written at the end so the stored events stream token is never ahead of the stored rooms data.
+     * It must be called in the background thread.
+     */
+    private void flushPendingCommits() {
+        ArrayList<Integer> usersHashKeys;
+        ArrayList<String> messagesRoomIds;
+        ArrayList<String> statesRoomIds;
+        ArrayList<String> summariesRoomIds;
+        ArrayList<String> accountDataRoomIds;
+        ArrayList<String> receiptsRoomIds;
+        MXFileStoreMetaData metaDataToWrite;
+
+        synchronized (mCommitLock) {
+            mIsCommitFlushScheduled = false;
+            mIsCommitFlushPosted = false;
+
+            usersHashKeys = new ArrayList<>(mDirtyUsersHashKeys);
+            mDirtyUsersHashKeys.clear();
+            messagesRoomIds = new ArrayList<>(mDirtyRoomIdsForMessages);
+            mDirtyRoomIdsForMessages.clear();
+            statesRoomIds = new ArrayList<>(mDirtyRoomIdsForStates);
+            mDirtyRoomIdsForStates.clear();
+            summariesRoomIds = new ArrayList<>(mDirtyRoomIdsForSummaries);
+            mDirtyRoomIdsForSummaries.clear();
+            accountDataRoomIds = new ArrayList<>(mDirtyRoomIdsForAccountData);
+            mDirtyRoomIdsForAccountData.clear();
+            receiptsRoomIds = new ArrayList<>(mDirtyRoomIdsForReceipts);
+            mDirtyRoomIdsForReceipts.clear();
+            metaDataToWrite = mMetaDataToWrite;
+            mMetaDataToWrite = null;
+        }
+
+        if (!isKilled()) {
+            long start = System.currentTimeMillis();
+
+            if (usersHashKeys.size() > 0) {
+                writeUsers(usersHashKeys);
+            }
+
+            for (String roomId : messagesRoomIds) {
+                saveRoomMessages(roomId);
+            }
+
+            for (String roomId : statesRoomIds) {
+                saveRoomState(roomId);
+            }
+
+            if (summariesRoomIds.size() > 0) {
+                writeSummaries(summariesRoomIds);
+            }
+
+            if (accountDataRoomIds.size() > 0) {
+                writeRoomsAccountData(accountDataRoomIds);
+            }
+
+            for (String roomId : receiptsRoomIds) {
+                writeReceipts(roomId);
+            }
+
+            if (null != metaDataToWrite) {
+                writeMetaData(metaDataToWrite);
+            }
+
+            Log.d(LOG_TAG, "flushPendingCommits : " + usersHashKeys.size() + " users files, " + messagesRoomIds.size() + " messages, " +
+                    statesRoomIds.size() + " states, " + summariesRoomIds.size() + " summaries, " + accountDataRoomIds.size() +
+                    " account data, " + receiptsRoomIds.size() + " receipts in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        onSavesDone(messagesRoomIds);
+        onSavesDone(statesRoomIds);
+        onSavesDone(summariesRoomIds);
+        onSavesDone(accountDataRoomIds);
+        onSavesDone(receiptsRoomIds);
+    }
+
+    /**
+     * Write the pending updates and wait until they are done.
+     * It is called when the store is closed.
+     */
+    private void drainPendingCommits() {
+        MXOsHandler handler = mFileStoreHandler;
+
+        // sanity check
+        if ((null == handler) || (null == mHandlerThread) || isKilled()) {
+            return;
+        }
+
+        if (Thread.currentThread() == mHandlerThread) {
+            flushPendingCommits();
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // the previously posted writes are done before this one
+        boolean isPosted = handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushPendingCommits();
+                latch.countDown();
+            }
+        });
+
+        if (isPosted) {
+            try {
+                if (!latch.await(CLOSE_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.e(LOG_TAG, "## drainPendingCommits() : timeout");
                 }
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "## drainPendingCommits() : interrupted " + e.getMessage());
+            }
+        }
+    }
 
-                Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        mFileStoreHandler.post(new Runnable() {
-                            public void run() {
-                                if (!isKilled()) {
-                                    Log.d(LOG_TAG, "saveUsers " + fUserIds.size() + " users (" + fUsers.size() + " known ones)");
+    //================================================================================
+    // users management
+    //================================================================================
 
-                                    long start = System.currentTimeMillis();
+    /**
+     * Flush users list.
+     * The updated users are written by the next commit flush.
+     */
+    private void saveUsers() {
+        final ArrayList<Integer> fHashKeys;
 
-                                    // the users are split into groups to save time
-                                    HashMap<Integer, ArrayList<User>> usersGroups = new HashMap<>();
+        synchronized (this) {
+            fHashKeys = new ArrayList<>(mUsersHashKeysToCommit);
+            mUsersHashKeysToCommit.clear();
+        }
 
-                                    // finds the group for each updated user
-                                    for (String userId : fUserIds) {
-                                        User user;
+        // some updated users ?
+        if (fHashKeys.size() > 0) {
+            synchronized (mCommitLock) {
+                mDirtyUsersHashKeys.addAll(fHashKeys);
+            }
 
-                                        synchronized (mUsers) {
-                                            user = mUsers.get(userId);
-                                        }
+            scheduleCommitFlush();
+        }
+    }
 
-                                        if (null != user) {
-                                            int hashCode = user.getStorageHashKey();
+    /**
+     * Write the users files of the updated hash keys.
+     * It must be called in the background thread.
+     *
+     * @param hashKeys the storage hash keys of the updated users
+     */
+    private void writeUsers(Collection<Integer> hashKeys) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+
+        for (int hashKey : hashKeys) {
+            // the stored users of this hash key must not be lost
+            loadUsersFile(hashKey);
+
+            ArrayList<String> userIds;
+
+            synchronized (mUserIdsByHashKey) {
+                Set<String> hashKeyUserIds = mUserIdsByHashKey.get(hashKey);
+                userIds = (null == hashKeyUserIds) ? new ArrayList<String>() : new ArrayList<>(hashKeyUserIds);
+            }
+
+            ArrayList<User> users = new ArrayList<>(userIds.size());
+
+            for (String userId : userIds) {
+                User user;
+
+                synchronized (mUsers) {
+                    user = mUsers.get(userId);
+                }
+
+                if (null != user) {
+                    users.add(user);
+                }
+            }
+
+            if (users.size() > 0) {
+                writeObject("saveUser " + hashKey, new File(mStoreUserFolderFile, hashKey + ""), users);
+                count += users.size();
+            }
+        }
+
+        Log.d(LOG_TAG, "saveUsers " + hashKeys.size() + " files (" + count + " users) done in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Load the users file of a storage hash key if it has not been read yet.
+     * The stored users are merged with the known ones.
+     *
+     * @param hashKey the storage hash key
+     */
+    private void loadUsersFile(int hashKey) {
+        synchronized (mUserIdsByHashKey) {
+            if (mLoadedUsersHashKeys.contains(hashKey)) {
+                return;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        List<User> users = null;
+
+        // sanity check
+        if (null != mStoreUserFolderFile) {
+            File usersFile = new File(mStoreUserFolderFile, hashKey + "");
+
+            if (usersFile.exists()) {
+                Object usersAsVoid = readObject("loadUsers " + hashKey, usersFile);
+
+                if (null != usersAsVoid) {
+                    try {
+                        users = (List<User>) usersAsVoid;
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "loadUsers failed : " + e.toString());
+                    }
+                }
+            }
+        }
+
+        synchronized (mUserIdsByHashKey) {
+            // the file has been read by another thread in the meantime
+            if (!mLoadedUsersHashKeys.add(hashKey)) {
+                return;
+            }
+
+            if (null != users) {
+                Set<String> userIds = mUserIdsByHashKey.get(hashKey);
+
+                if (null == userIds) {
+                    userIds = new HashSet<>();
+                    mUserIdsByHashKey.put(hashKey, userIds);
+                }
+
+                // update the hash map
+                for (User user : users) {
+                    synchronized (mUsers) {
+                        User currentUser = mUsers.get(user.user_id);
+
+                        if ((null == currentUser) || // not defined
+                                currentUser.isRetrievedFromRoomMember() || // tmp user until retrieved it
+                                (currentUser.getLatestPresenceTs() < user.getLatestPresenceTs())) // newer presence
+                        {
+                            mUsers.put(user.user_id, user);
+                        }
+                    }
+
+                    userIds.add(user.user_id);
+                }
+            }
+
+            long delta = System.currentTimeMillis() - start;
+            Long loadTime = mStoreStats.get("loadUsers");
+            mStoreStats.put("loadUsers", ((null == loadTime) ? 0 : loadTime) + delta);
+
+            if (null != users) {
+                Log.d(LOG_TAG, "loadUsers " + hashKey + " : retrieve " + users.size() + " users in " + delta + " ms");
+            }
+        }
+    }
+
+    //================================================================================
+    // Lazy loading management
+    //================================================================================
+
+    /**
+     * Create a room placeholder for each stored room.
+     * The room data is loaded the first time the room is used.
+     *
+     * @return true if the operation succeeds.
+     */
+    private boolean loadRoomsPlaceholders() {
+        boolean succeed = true;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            List<String> filenames = listFiles(mGzStoreRoomsMessagesFolderFile.list());
+
+            synchronized (mLazyLoadingLock) {
+                for (String roomId : filenames) {
+                    Room room = new Room();
+                    room.init(this, roomId, null);
+                    // do not wait that the live state update
+                    room.setReadyState(true);
+                    storeRoom(room);
+
+                    mPagedOutRoomIds.add(roomId);
+                }
+            }
+
+            long delta = (System.currentTimeMillis() - start);
+            Log.d(LOG_TAG, "loadRoomsPlaceholders : " + filenames.size() + " rooms in " + delta + " ms");
+            mStoreStats.put("loadRoomsPlaceholders", delta);
+        } catch (Exception e) {
+            succeed = false;
+            Log.e(LOG_TAG, "loadRoomsPlaceholders failed : " + e.getLocalizedMessage());
+        }
+
+        return succeed;
+    }
+
+    /**
+     * Tells if the data of a room is not loaded.
+     *
+     * @param roomId the room id
+     * @return true if the room is paged out.
+     */
+    private boolean isRoomPagedOut(String roomId) {
+        if (!mIsLazyLoadingEnabled) {
+            return false;
+        }
+
+        synchronized (mLazyLoadingLock) {
+            return mPagedOutRoomIds.contains(roomId);
+        }
+    }
+
+    /**
+     * Load the room data if it is paged out.
+     * The data is never loaded in the UI thread : the room placeholder is returned and the data is loaded in background.
+     *
+     * @param roomId the room id
+     */
+    private void loadRoomIfPagedOut(String roomId) {
+        loadRoomIfPagedOut(roomId, false);
+    }
+
+    /**
+     * Load the room data if it is paged out.
+     * The room is flagged as the most recently used one and the cold rooms are paged out if there are too many loaded rooms.
+     * The disk is not read while holding mLazyLoadingLock, so the loaded rooms can be accessed during a room loading.
+     *
+     * @param roomId  the room id
+     * @param isWrite true if the room data is going to be updated : it is then loaded in any thread.
+     */
+    private void loadRoomIfPagedOut(String roomId, boolean isWrite) {
+        if (!mIsLazyLoadingEnabled || (null == roomId)) {
+            return;
+        }
+
+        boolean isUIThread = (Thread.currentThread() == Looper.getMainLooper().getThread());
+        boolean mustLoad = false;
+
+        synchronized (mLazyLoadingLock) {
+            // the room is currently loaded by this thread
+            if (mLoadingRoomThreads.get(roomId) == Thread.currentThread()) {
+                return;
+            }
+
+            if (isUIThread && !isWrite) {
+                if (mPagedOutRoomIds.contains(roomId)) {
+                    Log.d(LOG_TAG, "## loadRoomIfPagedOut() : " + roomId + " is loaded in background");
+                    loadRoomInBackground(roomId, null);
+                    return;
+                }
+            } else {
+                // wait until the room is loaded by another thread
+                while (mLoadingRoomThreads.containsKey(roomId)) {
+                    try {
+                        mLazyLoadingLock.wait();
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "## loadRoomIfPagedOut() : interrupted");
+                        return;
+                    }
+                }
+
+                if (mPagedOutRoomIds.contains(roomId)) {
+                    if (isUIThread) {
+                        Log.e(LOG_TAG, "## loadRoomIfPagedOut() : " + roomId + " is loaded in the UI thread to be updated");
+                    }
+
+                    mLoadingRoomThreads.put(roomId, Thread.currentThread());
+                    mustLoad = true;
+                }
+            }
+        }
+
+        if (mustLoad) {
+            try {
+                synchronized (mRoomDataLoadingLock) {
+                    loadRoomData(roomId);
+                }
+            } finally {
+                synchronized (mLazyLoadingLock) {
+                    mLoadingRoomThreads.remove(roomId);
+                    mPagedOutRoomIds.remove(roomId);
+                    mLazyLoadingLock.notifyAll();
+                }
+            }
+        }
+
+        synchronized (mLazyLoadingLock) {
+            if (mRooms.containsKey(roomId) && !mPagedOutRoomIds.contains(roomId)) {
+                mLoadedRoomsLru.put(roomId, Boolean.TRUE);
+            }
+
+            if (mLoadedRoomsLru.size() > mMaxLoadedRoomsCount) {
+                pageOutColdRooms();
+            }
+        }
+    }
+
+    /**
+     * Load a paged out room in the store thread.
+     *
+     * @param roomId   the room id
+     * @param callback the callback, called in the UI thread. It might be null.
+     */
+    private void loadRoomInBackground(final String roomId, final SimpleApiCallback<Void> callback) {
+        boolean isScheduled;
+
+        synchronized (mLazyLoadingLock) {
+            isScheduled = !mRoomIdsToLoad.add(roomId);
+        }
+
+        // the room is already scheduled, the callback is called after its loading
+        if (!isScheduled || (null != callback)) {
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLazyLoadingLock) {
+                        mRoomIdsToLoad.remove(roomId);
+                    }
+
+                    if (!isKilled()) {
+                        loadRoomIfPagedOut(roomId, true);
+                    }
+
+                    if (null != callback) {
+                        (new Handler(Looper.getMainLooper())).post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onSuccess(null);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean isRoomLoaded(String roomId) {
+        return !isRoomPagedOut(roomId);
+    }
+
+    @Override
+    public void loadRoom(String roomId, SimpleApiCallback<Void> callback) {
+        if (isRoomPagedOut(roomId)) {
+            loadRoomInBackground(roomId, callback);
+        } else {
+            super.loadRoom(roomId, callback);
+        }
+    }
+
+    /**
+     * Load the messages, the live state and the read receipts of a room placeholder.
+     *
+     * @param roomId the room id
+     */
+    private void loadRoomData(String roomId) {
+        long start = System.currentTimeMillis();
+
+        boolean succeed = loadRoomMessages(roomId);
+
+        if (succeed) {
+            succeed = loadRoomToken(roomId);
+        }
+
+        // the room is deleted if its token cannot be retrieved
+        if (succeed && mRooms.containsKey(roomId)) {
+            succeed = loadRoomState(roomId);
+        }
+
+        if (!succeed) {
+            Log.e(LOG_TAG, "## loadRoomData() : fail to load the room " + roomId);
+            dispatchOnStoreCorrupted(mCredentials.userId, "loadRoomData fails for " + roomId);
+            return;
+        }
+
+        Room room = mRooms.get(roomId);
+
+        if (null != room) {
+            // restore the missing links
+            if (null != room.getDataHandler()) {
+                room.getLiveTimeLine().setDataHandler(this, room.getDataHandler());
+            }
+
+            Collection<RoomMember> members = room.getLiveState().getMembers();
+            for (RoomMember member : members) {
+                updateUserWithRoomMemberEvent(member);
+            }
+
+            RoomSummary summary = mRoomSummaries.get(roomId);
+
+            if (null != summary) {
+                summary.setLatestRoomState(room.getState());
+            }
+
+            loadReceipts(roomId);
+        }
+
+        Log.d(LOG_TAG, "## loadRoomData() : " + roomId + " loaded in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Page out the least recently used rooms until there are at most mMaxLoadedRoomsCount loaded rooms.
+     * The rooms with some unsaved data are kept.
+     */
+    private void pageOutColdRooms() {
+        int countToPageOut = mLoadedRoomsLru.size() - mMaxLoadedRoomsCount;
+        List<String> roomIdsToPageOut = new ArrayList<>();
+
+        for (String roomId : mLoadedRoomsLru.keySet()) {
+            if (roomIdsToPageOut.size() >= countToPageOut) {
+                break;
+            }
+
+            if (canPageOutRoom(roomId)) {
+                roomIdsToPageOut.add(roomId);
+            }
+        }
+
+        for (String roomId : roomIdsToPageOut) {
+            pageOutRoom(roomId);
+        }
+    }
+
+    /**
+     * Tells if the data of a room can be released.
+     * The live state of a room is replaced when it is paged out, so a room which is used
+     * (i.e. with some listeners on the room or on its live timeline) is never paged out.
+     *
+     * @param roomId the room id
+     * @return true if the room data is saved on the file system and if the room is not used.
+     */
+    private boolean canPageOutRoom(String roomId) {
+        Room room = mRooms.get(roomId);
+
+        if ((null != room) && room.hasListeners()) {
+            return false;
+        }
+
+        // the pending invitations are displayed with the room state
+        RoomSummary summary = mRoomSummaries.get(roomId);
+        if ((null != summary) && summary.isInvited()) {
+            return false;
+        }
+
+        if (isToCommit(mRoomsToCommitForMessages, roomId) ||
+                isToCommit(mRoomsToCommitForStates, roomId) ||
+                isToCommit(mRoomsToCommitForReceipts, roomId) ||
+                mRoomsMessagesJournal.hasPendingRecords(roomId) ||
+                mRoomsReceiptsJournal.hasPendingRecords(roomId)) {
+            return false;
+        }
+
+        synchronized (mRoomStateEventsByRoomId) {
+            if (mRoomStateEventsByRoomId.containsKey(roomId)) {
+                return false;
+            }
+        }
+
+        synchronized (mPendingSavesCountByRoomId) {
+            return !mPendingSavesCountByRoomId.containsKey(roomId);
+        }
+    }
+
+    /**
+     * Release the messages, the live state and the read receipts of a room.
+     * The room object and its summary are kept.
+     *
+     * @param roomId the room id
+     */
+    private void pageOutRoom(String roomId) {
+        mLoadedRoomsLru.remove(roomId);
+
+        Room room = mRooms.get(roomId);
+
+        if (null == room) {
+            return;
+        }
+
+        synchronized (mRoomEventsLock) {
+            mRoomEvents.remove(roomId);
+            mRoomEventIds.remove(roomId);
+            mRoomEventsIndexes.remove(roomId);
+        }
+
+        synchronized (mReceiptsByRoomIdLock) {
+            mReceiptsByRoomId.remove(roomId);
+        }
+
+        RoomState emptyState = new RoomState();
+        emptyState.roomId = roomId;
+        emptyState.setDataHandler(room.getDataHandler());
+        room.getLiveTimeLine().setState(emptyState);
+
+        RoomSummary summary = mRoomSummaries.get(roomId);
+
+        if (null != summary) {
+            summary.setLatestRoomState(null);
+        }
+
+        mPagedOutRoomIds.add(roomId);
+
+        Log.d(LOG_TAG, "## pageOutRoom() : " + roomId + " is paged out");
+    }
+
+    /**
+     * Remove a deleted room from the lazy loading lists.
+     *
+     * @param roomId the room id
+     */
+    private void forgetLazyLoadedRoom(String roomId) {
+        if (!mIsLazyLoadingEnabled) {
+            return;
+        }
+
+        synchronized (mLazyLoadingLock) {
+            mPagedOutRoomIds.remove(roomId);
+            mLoadedRoomsLru.remove(roomId);
+        }
+    }
+
+    /**
+     * Flag some rooms as being saved in background.
+     *
+     * @param roomIds the room ids
+     */
+    private void onSavesTriggered(List<String> roomIds) {
+        synchronized (mPendingSavesCountByRoomId) {
+            for (String roomId : roomIds) {
+                Integer count = mPendingSavesCountByRoomId.get(roomId);
+                mPendingSavesCountByRoomId.put(roomId, (null == count) ? 1 : (count + 1));
+            }
+        }
+    }
+
+    /**
+     * Flag some rooms background saves as done.
+     *
+     * @param roomIds the room ids
+     */
+    private void onSavesDone(List<String> roomIds) {
+        synchronized (mPendingSavesCountByRoomId) {
+            for (String roomId : roomIds) {
+                Integer count = mPendingSavesCountByRoomId.get(roomId);
+
+                if ((null == count) || (count <= 1)) {
+                    mPendingSavesCountByRoomId.remove(roomId);
+                } else {
+                    mPendingSavesCountByRoomId.put(roomId, count - 1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Room getRoom(String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getRoom(roomId);
+    }
+
+    @Override
+    public Collection<Event> getRoomMessages(final String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getRoomMessages(roomId);
+    }
+
+    @Override
+    public TokensChunkResponse<Event> getEarlierMessages(final String roomId, final String fromToken, final int limit) {
+        loadRoomIfPagedOut(roomId);
+        return super.getEarlierMessages(roomId, fromToken, limit);
+    }
+
+    @Override
+    public Event getOldestEvent(String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getOldestEvent(roomId);
+    }
+
+    @Override
+    public Event getLatestEvent(String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getLatestEvent(roomId);
+    }
+
+    @Override
+    public int eventsCountAfter(String roomId, String eventId) {
+        loadRoomIfPagedOut(roomId);
+        return super.eventsCountAfter(roomId, eventId);
+    }
+
+    @Override
+    public Event getEvent(String eventId, String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getEvent(eventId, roomId);
+    }
+
+    @Override
+    public List<Event> getLatestUnsentEvents(String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getLatestUnsentEvents(roomId);
+    }
+
+    @Override
+    public List<Event> getUndeliverableEvents(String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getUndeliverableEvents(roomId);
+    }
+
+    @Override
+    public List<Event> getUnknownDeviceEvents(String roomId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getUnknownDeviceEvents(roomId);
+    }
+
+    @Override
+    public ReceiptData getReceipt(String roomId, String userId) {
+        loadRoomIfPagedOut(roomId);
+        return super.getReceipt(roomId, userId);
+    }
+
+    @Override
+    public boolean isEventRead(String roomId, String userId, String eventIdTotest) {
+        loadRoomIfPagedOut(roomId);
+        return super.isEventRead(roomId, userId, eventIdTotest);
+    }
+
+    @Override
+    public List<Event> unreadEvents(String roomId, List<String> types) {
+        loadRoomIfPagedOut(roomId);
+        return super.unreadEvents(roomId, types);
+    }
+
+    @Override
+    public Collection<RoomSummary> getSummaries() {
+        if (!mIsLazyLoadingEnabled) {
+            return super.getSummaries();
+        }
+
+        List<RoomSummary> summaries = new ArrayList<>();
+
+        for (String roomId : new ArrayList<>(mRoomSummaries.keySet())) {
+            RoomSummary summary = getSummaryWithoutLoading(roomId);
+
+            if (null != summary) {
+                summaries.add(summary);
+            }
+        }
+
+        return summaries;
+    }
+
+    @Override
+    public RoomSummary getSummary(String roomId) {
+        if (!mIsLazyLoadingEnabled) {
+            return super.getSummary(roomId);
+        }
+
+        return getSummaryWithoutLoading(roomId);
+    }
 
-                                            if (!usersGroups.containsKey(hashCode)) {
-                                                usersGroups.put(hashCode, new ArrayList<User>());
-                                            }
-                                        }
-                                    }
+    /**
+     * Provides a room summary without loading the room data.
+     * The membership of a paged out room cannot be checked : it was checked when its summary was stored.
+     *
+     * @param roomId the room id
+     * @return the room summary
+     */
+    private RoomSummary getSummaryWithoutLoading(String roomId) {
+        if (isRoomPagedOut(roomId)) {
+            return mRooms.containsKey(roomId) ? mRoomSummaries.get(roomId) : null;
+        }
 
-                                    // gather the user to the dedicated group if they need to be updated
-                                    for (User user : fUsers) {
-                                        if (usersGroups.containsKey(user.getStorageHashKey())) {
-                                            usersGroups.get(user.getStorageHashKey()).add(user);
-                                        }
-                                    }
+        return super.getSummary(roomId);
+    }
 
-                                    // save the groups
-                                    for (int hashKey : usersGroups.keySet()) {
-                                        writeObject("saveUser " + hashKey, new File(mStoreUserFolderFile, hashKey + ""), usersGroups.get(hashKey));
-                                    }
+    //================================================================================
+    // Room messages management
+    //================================================================================
 
-                                    Log.d(LOG_TAG, "saveUsers done in " + (System.currentTimeMillis() - start) + " ms");
-                                }
-                            }
-                        });
-                    }
-                };
+    /**
+     * Save the room messages.
+     * The pending updates are appended to the room journal when it is possible.
+     * Else a new room messages snapshot is saved.
+     *
+     * @param roomId the room id
+     */
+    private void saveRoomMessages(final String roomId) {
+        List<MXFileStoreJournal.Record> records = mRoomsMessagesJournal.takePendingRecords(roomId);
 
-                Thread t = new Thread(r);
-                t.start();
-            } catch (OutOfMemoryError oom) {
-                Log.e(LOG_TAG, "saveUser : cannot clone the users list" + oom.getMessage());
-            }
+        if (mIsJournalEnabled && (null != records) && appendRoomMessagesJournal(roomId, records)) {
+            return;
         }
+
+        saveRoomMessagesSnapshot(roomId);
     }
 
     /**
-     * Load the user information from the filesystem..
+     * Append some records to the room messages journal.
+     *
+     * @param roomId  the room id
+     * @param records the records to append
+     * @return true if the records have been appended, false if a snapshot must be saved.
      */
-    private void loadUsers() {
-        List<String> filenames = listFiles(mStoreUserFolderFile.list());
-        long start = System.currentTimeMillis();
+    private boolean appendRoomMessagesJournal(final String roomId, List<MXFileStoreJournal.Record> records) {
+        String token = mRoomTokens.get(roomId);
+
+        // the journal is applied to an existing snapshot
+        if (!new File(mGzStoreRoomsMessagesFolderFile, roomId).exists() ||
+                !mRoomEvents.containsKey(roomId) ||
+                (null == token) ||
+                mRoomsMessagesJournal.needsCompaction(roomId)) {
+            return false;
+        }
 
-        ArrayList<User> users = new ArrayList<>();
+        long t0 = System.currentTimeMillis();
 
-        // list the files
-        for (String filename : filenames) {
-            File messagesListFile = new File(mStoreUserFolderFile, filename);
-            Object usersAsVoid = readObject("loadUsers " + filename, messagesListFile);
+        // the back token is saved with each block
+        records.add(new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_TOKEN, null, token));
 
-            if (null != usersAsVoid) {
-                try {
-                    users.addAll((List<User>) usersAsVoid);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "loadUsers failed : " + e.toString());
-                }
-            }
+        if (!mRoomsMessagesJournal.append(roomId, records)) {
+            return false;
         }
 
-        // update the hash map
-        for (User user : users) {
-            synchronized (mUsers) {
-                User currentUser = mUsers.get(user.user_id);
+        Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : " + records.size() + " records appended in " + (System.currentTimeMillis() - t0) + " ms");
 
-                if ((null == currentUser) || // not defined
-                        currentUser.isRetrievedFromRoomMember() || // tmp user until retrieved it
-                        (currentUser.getLatestPresenceTs() < user.getLatestPresenceTs())) // newer presence
-                {
-                    mUsers.put(user.user_id, user);
+        // compact the journal after the pending commits
+        if (mRoomsMessagesJournal.needsCompaction(roomId)) {
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled() && mRoomsMessagesJournal.needsCompaction(roomId)) {
+                        Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : compact the journal");
+                        saveRoomMessagesSnapshot(roomId);
+                    }
                 }
-            }
+            });
         }
 
-        long delta = (System.currentTimeMillis() - start);
-        Log.e(LOG_TAG, "loadUsers (" + filenames.size() + " files) : retrieve " + mUsers.size() + " users in " + delta + "ms");
-        mStoreStats.put("loadUsers", delta);
-
-        mAreUsersLoaded = true;
-
-        // save any pending save
-        saveUsers();
+        return true;
     }
 
-    //================================================================================
-    // Room messages management
-    //================================================================================
+    /**
+     * Save the room messages in a new snapshot and delete the room journal.
+     *
+     * @param roomId the room id
+     */
+    private void saveRoomMessagesSnapshot(String roomId) {
+        // the paged out rooms are up to date on the file system
+        if (isRoomPagedOut(roomId)) {
+            Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : the room is paged out");
+            return;
+        }
 
-    private void saveRoomMessages(String roomId) {
         LinkedHashMap<String, Event> eventsHash;
         synchronized (mRoomEventsLock) {
             eventsHash = mRoomEvents.get(roomId);
@@ -1099,6 +2258,9 @@ public class MXFileStore extends MXMemoryStore {
                 return;
             }
 
+            // the snapshot contains the journaled updates
+            mRoomsMessagesJournal.delete(roomId);
+
             Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : " + eventsList.size() + " messages saved in " + (System.currentTimeMillis() - t0) + " ms");
         } else {
             deleteRoomMessagesFiles(roomId);
@@ -1107,35 +2269,15 @@ public class MXFileStore extends MXMemoryStore {
 
     /**
      * Flush updates rooms messages list files.
+     * The updated rooms are written by the next commit flush.
      */
     private void saveRoomsMessages() {
         // some updated rooms ?
-        if ((mRoomsToCommitForMessages.size() > 0) && (null != mFileStoreHandler)) {
+        if (mRoomsToCommitForMessages.size() > 0) {
             // get the list
-            final ArrayList<String> fRoomsToCommitForMessages = mRoomsToCommitForMessages;
-            mRoomsToCommitForMessages = new ArrayList<>();
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
+            final ArrayList<String> fRoomsToCommitForMessages = getAndClearToCommit(mRoomsToCommitForMessages);
 
-                                for (String roomId : fRoomsToCommitForMessages) {
-                                    saveRoomMessages(roomId);
-                                }
-
-                                Log.d(LOG_TAG, "saveRoomsMessages : " + fRoomsToCommitForMessages.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
-
-            Thread t = new Thread(r);
-            t.start();
+            addDirtyRooms(mDirtyRoomIdsForMessages, fRoomsToCommitForMessages);
         }
     }
 
@@ -1163,6 +2305,23 @@ public class MXFileStore extends MXMemoryStore {
                     return false;
                 }
 
+                // apply the updates saved after this snapshot
+                if (mRoomsMessagesJournal.exists(roomId)) {
+                    try {
+                        List<MXFileStoreJournal.Record> records = mRoomsMessagesJournal.read(roomId);
+                        String journalToken = MXFileStoreJournal.replayEvents(events, records);
+
+                        if (null != journalToken) {
+                            mJournalTokens.put(roomId, journalToken);
+                        }
+
+                        Log.d(LOG_TAG, "## loadRoomMessages() : replay " + records.size() + " journal records for the room " + roomId);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## loadRoomMessages() : " + roomId + " journal replay failed " + e.getMessage());
+                        return false;
+                    }
+                }
+
                 if (events.size() > (2 * MAX_STORED_MESSAGES_COUNT)) {
                     Log.d(LOG_TAG, "## loadRoomMessages() : the room " + roomId + " has " + events.size() + " stored events : we need to find a way to reduce it.");
                 }
@@ -1194,22 +2353,36 @@ public class MXFileStore extends MXMemoryStore {
             } else {
                 return false;
             }
+        } else {
+            // a journal cannot be applied without its snapshot
+            mRoomsMessagesJournal.delete(roomId);
         }
 
         // succeeds to extract the message list
         if (null != events) {
             // create the room object
-            Room room = new Room();
-            room.init(this, roomId, null);
-            // do not wait that the live state update
-            room.setReadyState(true);
-            storeRoom(room);
+            // in lazy loading mode, the room placeholder is kept
+            if (!mRooms.containsKey(roomId)) {
+                Room room = new Room();
+                room.init(this, roomId, null);
+                // do not wait that the live state update
+                room.setReadyState(true);
+                storeRoom(room);
+            }
 
-            mRoomEvents.put(roomId, events);
+            synchronized (mRoomEventsLock) {
+                mRoomEvents.put(roomId, events);
+                mRoomEventsIndexes.remove(roomId);
+            }
         }
 
         if (shouldSave) {
-            saveRoomMessages(roomId);
+            // the store is opened, save it with the next commit
+            if (mIsLazyLoadingEnabled) {
+                addToCommit(mRoomsToCommitForMessages, roomId);
+            } else {
+                saveRoomMessages(roomId);
+            }
         }
 
         return succeeded;
@@ -1239,6 +2412,11 @@ public class MXFileStore extends MXMemoryStore {
                 } else {
                     token = (String) tokenAsVoid;
 
+                    // the journal contains a more recent token
+                    if (mJournalTokens.containsKey(roomId)) {
+                        token = mJournalTokens.remove(roomId);
+                    }
+
                     // check if the oldest event has a token.
                     LinkedHashMap<String, Event> eventsHash = mRoomEvents.get(roomId);
                     if ((null != eventsHash) && (eventsHash.size() > 0)) {
@@ -1328,47 +2506,39 @@ public class MXFileStore extends MXMemoryStore {
 
     @Override
     public void getRoomStateEvents(final String roomId, final SimpleApiCallback<List<Event>> callback) {
-        Runnable r = new Runnable() {
-            @Override
+        mFileStoreHandler.post(new Runnable() {
             public void run() {
-                mFileStoreHandler.post(new Runnable() {
-                    public void run() {
-                        if (!isKilled()) {
-                            ArrayList<Event> eventsList = new ArrayList<>();
+                if (!isKilled()) {
+                    ArrayList<Event> eventsList = new ArrayList<>();
 
-                            File statesEventsFolder = new File(mGzStoreRoomsStateEventsFolderFile, roomId);
-                            long start = System.currentTimeMillis();
+                    File statesEventsFolder = new File(mGzStoreRoomsStateEventsFolderFile, roomId);
+                    long start = System.currentTimeMillis();
 
-                            if (statesEventsFolder.exists()) {
-                                File[] files = statesEventsFolder.listFiles();
+                    if (statesEventsFolder.exists()) {
+                        File[] files = statesEventsFolder.listFiles();
 
-                                for (int i = 0; i < files.length; i++) {
-                                    File file = files[i];
+                        for (int i = 0; i < files.length; i++) {
+                            File file = files[i];
 
-                                    try {
-                                        Object eventAsVoid = readObject("getRoomStateEvents", file);
+                            try {
+                                Object eventAsVoid = readObject("getRoomStateEvents", file);
 
-                                        if (null != eventAsVoid) {
-                                            Event event = (Event) eventAsVoid;
-                                            //event.finalizeDeserialization();
-                                            eventsList.add(event);
-                                        }
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "getRoomStateEvents failed : " + e.getMessage());
-                                    }
+                                if (null != eventAsVoid) {
+                                    Event event = (Event) eventAsVoid;
+                                    //event.finalizeDeserialization();
+                                    eventsList.add(event);
                                 }
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "getRoomStateEvents failed : " + e.getMessage());
                             }
-
-                            Log.d(LOG_TAG, "getRoomStateEvents : retrieve " + eventsList.size() + " events in " + (System.currentTimeMillis() - start) + " ms");
-                            callback.onSuccess(eventsList);
                         }
                     }
-                });
-            }
-        };
 
-        Thread t = new Thread(r);
-        t.start();
+                    Log.d(LOG_TAG, "getRoomStateEvents : retrieve " + eventsList.size() + " events in " + (System.currentTimeMillis() - start) + " ms");
+                    callback.onSuccess(eventsList);
+                }
+            }
+        });
     }
 
     /**
@@ -1410,95 +2580,79 @@ public class MXFileStore extends MXMemoryStore {
         File roomStateFile = new File(mGzStoreRoomsStateFolderFile, roomId);
         Room room = mRooms.get(roomId);
 
-        if (null != room) {
+        // the paged out rooms are up to date on the file system
+        if (isRoomPagedOut(roomId)) {
+            Log.d(LOG_TAG, "saveRoomsState : the room " + roomId + " is paged out");
+        } else if (null != room) {
             long start1 = System.currentTimeMillis();
             writeObject("saveRoomsState " + roomId, roomStateFile, room.getState());
             Log.d(LOG_TAG, "saveRoomsState " + room.getState().getMembers().size() + " members : " + (System.currentTimeMillis() - start1) + " ms");
 
             // the state events are with low priority
             // because they are only used in redact cases
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                List<Event> stateEvents;
-
-                                synchronized (mRoomStateEventsByRoomId) {
-                                    if (mRoomStateEventsByRoomId.containsKey(roomId)) {
-                                        stateEvents = mRoomStateEventsByRoomId.get(roomId);
-                                        mRoomStateEventsByRoomId.remove(roomId);
-                                    } else {
-                                        stateEvents = null;
-                                    }
-                                }
+            // they are written inline when the store is closed because the store thread is going to quit
+            if (mIsClosing) {
+                writeRoomStateEvents(roomId);
+            } else {
+                mFileStoreHandler.post(new Runnable() {
+                    public void run() {
+                        if (!isKilled()) {
+                            writeRoomStateEvents(roomId);
+                        }
+                    }
+                });
+            }
+        } else {
+            Log.d(LOG_TAG, "saveRoomsState : delete the room state");
+            deleteRoomStateFile(roomId);
+        }
 
-                                if (null != stateEvents) {
-                                    File roomStateEventsFile = new File(mGzStoreRoomsStateEventsFolderFile, roomId);
+        Log.d(LOG_TAG, "-- saveRoomsState " + roomId);
+    }
 
-                                    if (!roomStateEventsFile.exists()) {
-                                        roomStateEventsFile.mkdirs();
-                                    }
+    /**
+     * Write the pending state events of a room.
+     * It must be called in the background thread.
+     *
+     * @param roomId the room id
+     */
+    private void writeRoomStateEvents(String roomId) {
+        List<Event> stateEvents;
 
-                                    long start2 = System.currentTimeMillis();
+        synchronized (mRoomStateEventsByRoomId) {
+            stateEvents = mRoomStateEventsByRoomId.remove(roomId);
+        }
 
-                                    for (Event event : stateEvents) {
-                                        File roomStateEventFile = new File(roomStateEventsFile, event.eventId);
-                                        writeObject("saveRoomsState : save state events " + roomId + " " + event.eventId, roomStateEventFile, event);
-                                    }
+        if (null != stateEvents) {
+            File roomStateEventsFile = new File(mGzStoreRoomsStateEventsFolderFile, roomId);
 
-                                    Log.d(LOG_TAG, "saveRoomsState : save " + stateEvents.size() + " stateEvents in " + (System.currentTimeMillis() - start2) + " ms in " + roomId);
-                                } else {
-                                    Log.d(LOG_TAG, "saveRoomsState : no state events to save");
-                                }
-                            }
-                        }
-                    });
-                }
-            };
+            if (!roomStateEventsFile.exists()) {
+                roomStateEventsFile.mkdirs();
+            }
 
-            Thread t = new Thread(r);
-            t.setPriority(Thread.MIN_PRIORITY);
-            t.start();
+            long start = System.currentTimeMillis();
+
+            for (Event event : stateEvents) {
+                File roomStateEventFile = new File(roomStateEventsFile, event.eventId);
+                writeObject("saveRoomsState : save state events " + roomId + " " + event.eventId, roomStateEventFile, event);
+            }
+
+            Log.d(LOG_TAG, "saveRoomsState : save " + stateEvents.size() + " stateEvents in " + (System.currentTimeMillis() - start) + " ms in " + roomId);
         } else {
-            Log.d(LOG_TAG, "saveRoomsState : delete the room state");
-            deleteRoomStateFile(roomId);
+            Log.d(LOG_TAG, "saveRoomsState : no state events to save");
         }
-
-        Log.d(LOG_TAG, "-- saveRoomsState " + roomId);
     }
 
     /**
      * Flush the room state files.
+     * The updated rooms are written by the next commit flush.
      */
     private void saveRoomStates() {
-        if ((mRoomsToCommitForStates.size() > 0) && (null != mFileStoreHandler)) {
+        if (mRoomsToCommitForStates.size() > 0) {
             // get the list
-            final ArrayList<String> fRoomsToCommitForStates = mRoomsToCommitForStates;
-            mRoomsToCommitForStates = new ArrayList<>();
+            final ArrayList<String> fRoomsToCommitForStates = getAndClearToCommit(mRoomsToCommitForStates);
 
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForStates) {
-                                    saveRoomState(roomId);
-                                }
-
-                                Log.d(LOG_TAG, "saveRoomsState : " + fRoomsToCommitForStates.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
-
-            Thread t = new Thread(r);
-            t.start();
+            addDirtyRooms(mDirtyRoomIdsForStates, fRoomsToCommitForStates);
         }
     }
 
@@ -1609,41 +2763,37 @@ public class MXFileStore extends MXMemoryStore {
 
     /**
      * Flush the pending account data.
+     * The updated rooms are written by the next commit flush.
      */
     private void saveRoomsAccountData() {
-        if ((mRoomsToCommitForAccountData.size() > 0) && (null != mFileStoreHandler)) {
+        if (mRoomsToCommitForAccountData.size() > 0) {
             // get the list
-            final ArrayList<String> fRoomsToCommitForAccountData = mRoomsToCommitForAccountData;
-            mRoomsToCommitForAccountData = new ArrayList<>();
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
+            final ArrayList<String> fRoomsToCommitForAccountData = getAndClearToCommit(mRoomsToCommitForAccountData);
 
-                                for (String roomId : fRoomsToCommitForAccountData) {
-                                    RoomAccountData accountData = mRoomAccountData.get(roomId);
+            addDirtyRooms(mDirtyRoomIdsForAccountData, fRoomsToCommitForAccountData);
+        }
+    }
 
-                                    if (null != accountData) {
-                                        writeObject("saveRoomsAccountData " + roomId, new File(mStoreRoomsAccountDataFolderFile, roomId), accountData);
-                                    } else {
-                                        deleteRoomAccountDataFile(roomId);
-                                    }
-                                }
+    /**
+     * Write the account data of some rooms.
+     * It must be called in the background thread.
+     *
+     * @param roomIds the room ids
+     */
+    private void writeRoomsAccountData(Collection<String> roomIds) {
+        long start = System.currentTimeMillis();
 
-                                Log.d(LOG_TAG, "saveSummaries : " + fRoomsToCommitForAccountData.size() + " account data in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+        for (String roomId : roomIds) {
+            RoomAccountData accountData = mRoomAccountData.get(roomId);
 
-            Thread t = new Thread(r);
-            t.start();
+            if (null != accountData) {
+                writeObject("saveRoomsAccountData " + roomId, new File(mStoreRoomsAccountDataFolderFile, roomId), accountData);
+            } else {
+                deleteRoomAccountDataFile(roomId);
+            }
         }
+
+        Log.d(LOG_TAG, "saveSummaries : " + roomIds.size() + " account data in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     /***
@@ -1723,9 +2873,7 @@ public class MXFileStore extends MXMemoryStore {
 
             // sanity checks
             if ((room != null) && (null != accountData)) {
-                if (mRoomsToCommitForAccountData.indexOf(roomId) < 0) {
-                    mRoomsToCommitForAccountData.add(roomId);
-                }
+                addToCommit(mRoomsToCommitForAccountData, roomId);
             }
         }
     }
@@ -1755,49 +2903,45 @@ public class MXFileStore extends MXMemoryStore {
 
     /**
      * Flush the pending summaries.
+     * The updated summaries are written by the next commit flush.
      */
     private void saveSummaries() {
-        if ((mRoomsToCommitForSummaries.size() > 0) && (null != mFileStoreHandler)) {
+        if (mRoomsToCommitForSummaries.size() > 0) {
             // get the list
-            final ArrayList<String> fRoomsToCommitForSummaries = mRoomsToCommitForSummaries;
-            mRoomsToCommitForSummaries = new ArrayList<>();
+            final ArrayList<String> fRoomsToCommitForSummaries = getAndClearToCommit(mRoomsToCommitForSummaries);
 
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForSummaries) {
-                                    try {
-                                        File roomSummaryFile = new File(mStoreRoomsSummaryFolderFile, roomId);
-                                        RoomSummary roomSummary = mRoomSummaries.get(roomId);
-
-                                        if (null != roomSummary) {
-                                            writeObject("saveSummaries " + roomId, roomSummaryFile, roomSummary);
-                                        } else {
-                                            deleteRoomSummaryFile(roomId);
-                                        }
-                                    } catch (OutOfMemoryError oom) {
-                                        dispatchOOM(oom);
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "saveSummaries failed : " + e.getLocalizedMessage());
-                                        // Toast.makeText(mContext, "saveSummaries failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                                    }
-                                }
+            addDirtyRooms(mDirtyRoomIdsForSummaries, fRoomsToCommitForSummaries);
+        }
+    }
 
-                                Log.d(LOG_TAG, "saveSummaries : " + fRoomsToCommitForSummaries.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+    /**
+     * Write the summaries of some rooms.
+     * It must be called in the background thread.
+     *
+     * @param roomIds the room ids
+     */
+    private void writeSummaries(Collection<String> roomIds) {
+        long start = System.currentTimeMillis();
+
+        for (String roomId : roomIds) {
+            try {
+                File roomSummaryFile = new File(mStoreRoomsSummaryFolderFile, roomId);
+                RoomSummary roomSummary = mRoomSummaries.get(roomId);
 
-            Thread t = new Thread(r);
-            t.start();
+                if (null != roomSummary) {
+                    writeObject("saveSummaries " + roomId, roomSummaryFile, roomSummary);
+                } else {
+                    deleteRoomSummaryFile(roomId);
+                }
+            } catch (OutOfMemoryError oom) {
+                dispatchOOM(oom);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "saveSummaries failed : " + e.getLocalizedMessage());
+                // Toast.makeText(mContext, "saveSummaries failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            }
         }
+
+        Log.d(LOG_TAG, "saveSummaries : " + roomIds.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     /**
@@ -1831,11 +2975,11 @@ public class MXFileStore extends MXMemoryStore {
         if (null != summary) {
             //summary.getLatestReceivedEvent().finalizeDeserialization();
 
-            Room room = getRoom(summary.getRoomId());
+            Room room = mRooms.get(summary.getRoomId());
 
             // the room state is not saved in the summary.
-            // it is restored from the room
-            if (null != room) {
+            // it is restored from the room when it is loaded
+            if ((null != room) && !isRoomPagedOut(roomId)) {
                 summary.setLatestRoomState(room.getState());
             }
 
@@ -1915,30 +3059,121 @@ public class MXFileStore extends MXMemoryStore {
 
     /**
      * flush the metadata info from the file system.
+     * The metadata is snapshotted now and written by the next commit flush,
+     * so the saved events stream token never gets ahead of the rooms data committed with it.
      */
     private void saveMetaData() {
-        if ((mMetaDataHasChanged) && (null != mFileStoreHandler) && (null != mMetadata)) {
+        MXFileStoreMetaData metadata = mMetadata;
+
+        if ((mMetaDataHasChanged) && (null != metadata)) {
             mMetaDataHasChanged = false;
 
-            final MXFileStoreMetaData fMetadata = mMetadata.deepCopy();
+            MXFileStoreMetaData snapshot = metadata.deepCopy();
+
+            synchronized (mCommitLock) {
+                mMetaDataToWrite = snapshot;
+            }
+
+            scheduleCommitFlush();
+        }
+    }
+
+    /**
+     * Write a metadata snapshot.
+     * It must be called in the background thread.
+     *
+     * @param metadata the metadata snapshot taken at commit time
+     */
+    private void writeMetaData(MXFileStoreMetaData metadata) {
+        long start = System.currentTimeMillis();
+        writeObject("saveMetaData", new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME), metadata);
+        Log.d(LOG_TAG, "saveMetaData : " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    //================================================================================
+    // Storage format migration
+    //================================================================================
+
+    /**
+     * Rewrite the rooms files with the current binary codec.
+     * The legacy formats are still readable so the files are rewritten one by one in the background thread,
+     * after the pending saves.
+     */
+    private void migrateStorageCodec() {
+        final List<File> files = new ArrayList<>();
+
+        for (File folder : Arrays.asList(mGzStoreRoomsMessagesFolderFile, mGzStoreRoomsStateFolderFile, mStoreRoomsSummaryFolderFile, mStoreRoomsMessagesReceiptsFolderFile)) {
+            File[] folderFiles = folder.listFiles();
 
-            Runnable r = new Runnable() {
+            if (null != folderFiles) {
+                for (File file : folderFiles) {
+                    if (file.isFile() && !file.getName().endsWith(".tmp")) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+
+        Log.d(LOG_TAG, "## migrateStorageCodec() : " + files.size() + " files to migrate from version " + mMetadata.mCodecVersion + " to " + CodecUtils.CODEC_VERSION);
+
+        final long start = System.currentTimeMillis();
+
+        // a runnable per file to let the other saves run
+        for (final File file : files) {
+            mFileStoreHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!mIsKilled) {
-                                long start = System.currentTimeMillis();
-                                writeObject("saveMetaData", new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME), fMetadata);
-                                Log.d(LOG_TAG, "saveMetaData : " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
+                    if (!isKilled()) {
+                        migrateFile(file);
+                    }
+                }
+            });
+        }
+
+        mFileStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isKilled() && (null != mMetadata)) {
+                    Log.d(LOG_TAG, "## migrateStorageCodec() : done in " + (System.currentTimeMillis() - start) + " ms");
+                    mMetadata.mCodecVersion = CodecUtils.CODEC_VERSION;
+                    mMetaDataHasChanged = true;
+                    saveMetaData();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrite a file with the current binary codec.
+     *
+     * @param file the file
+     */
+    private void migrateFile(File file) {
+        // the file could be deleted since the migration has been triggered
+        if (!file.exists()) {
+            return;
+        }
+
+        // do not rewrite a file while a room data is lazily loaded
+        // the saves run in this thread so they cannot overlap the migration
+        synchronized (mRoomDataLoadingLock) {
+            Object object = readObject("migrateFile " + file.getName(), file);
+
+            if (null == object) {
+                return;
+            }
+
+            // the read receipts were saved as a list of serializable ReceiptData
+            if (file.getParentFile().equals(mStoreRoomsMessagesReceiptsFolderFile) && !(object instanceof MXReceiptsList)) {
+                try {
+                    object = new MXReceiptsList((List<ReceiptData>) object);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## migrateFile() : invalid receipts file " + file.getName() + " " + e.getMessage());
+                    return;
                 }
-            };
+            }
 
-            Thread t = new Thread(r);
-            t.start();
+            writeObject("migrateFile " + file.getName(), file, object);
         }
     }
 
@@ -1948,6 +3183,8 @@ public class MXFileStore extends MXMemoryStore {
 
     @Override
     public List<ReceiptData> getEventReceipts(String roomId, String eventId, boolean excludeSelf, boolean sort) {
+        loadRoomIfPagedOut(roomId);
+
         synchronized (mRoomReceiptsToLoad) {
             int pos = mRoomReceiptsToLoad.indexOf(roomId);
 
@@ -1971,14 +3208,13 @@ public class MXFileStore extends MXMemoryStore {
      */
     @Override
     public boolean storeReceipt(ReceiptData receipt, String roomId) {
+        loadRoomIfPagedOut(roomId, true);
         boolean res = super.storeReceipt(receipt, roomId);
 
         if (res) {
-            synchronized (this) {
-                if (mRoomsToCommitForReceipts.indexOf(roomId) < 0) {
-                    mRoomsToCommitForReceipts.add(roomId);
-                }
-            }
+            mRoomsReceiptsJournal.addPendingRecord(roomId, new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_RECEIPT, receipt.userId, receipt));
+
+            addToCommit(mRoomsToCommitForReceipts, roomId);
         }
 
         return res;
@@ -2005,6 +3241,11 @@ public class MXFileStore extends MXMemoryStore {
                     for (ReceiptData r : receipts) {
                         receiptsMap.put(r.userId, r);
                     }
+
+                    // apply the updates saved after this snapshot
+                    if (mRoomsReceiptsJournal.exists(roomId)) {
+                        MXFileStoreJournal.replayReceipts(receiptsMap, mRoomsReceiptsJournal.read(roomId));
+                    }
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "loadReceipts failed : " + e.getMessage());
                     return false;
@@ -2012,6 +3253,9 @@ public class MXFileStore extends MXMemoryStore {
             } else {
                 return false;
             }
+        } else {
+            // a journal cannot be applied without its snapshot
+            mRoomsReceiptsJournal.delete(roomId);
         }
 
         if (null != receiptsMap) {
@@ -2080,11 +3324,12 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * Flush the events receipts
+     * Write the events receipts of a room.
+     * It must be called in the background thread.
      *
      * @param roomId the roomId.
      */
-    private void saveReceipts(final String roomId) {
+    private void writeReceipts(final String roomId) {
         synchronized (mRoomReceiptsToLoad) {
             // please wait
             if (mRoomReceiptsToLoad.contains(roomId)) {
@@ -2096,7 +3341,7 @@ public class MXFileStore extends MXMemoryStore {
 
         synchronized (mReceiptsByRoomIdLock) {
             if (mReceiptsByRoomId.containsKey(roomId)) {
-                receipts = new ArrayList<>(mReceiptsByRoomId.get(roomId).values());
+                receipts = new MXReceiptsList(mReceiptsByRoomId.get(roomId).values());
             } else {
                 receipts = null;
             }
@@ -2107,37 +3352,33 @@ public class MXFileStore extends MXMemoryStore {
             return;
         }
 
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                mFileStoreHandler.post(new Runnable() {
-                    public void run() {
-                        if (!mIsKilled) {
-                            long start = System.currentTimeMillis();
-                            writeObject("saveReceipts " + roomId, new File(mStoreRoomsMessagesReceiptsFolderFile, roomId), receipts);
-                            Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " eventId : " + (System.currentTimeMillis() - start) + " ms");
-                        }
-                    }
-                });
-            }
-        };
+        List<MXFileStoreJournal.Record> records = mRoomsReceiptsJournal.takePendingRecords(roomId);
+
+        long start = System.currentTimeMillis();
+        File receiptsFile = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
 
-        Thread t = new Thread(r);
-        t.start();
+        // append the updated receipts to the journal when it is possible
+        if (mIsJournalEnabled && (null != records) && receiptsFile.exists() &&
+                !mRoomsReceiptsJournal.needsCompaction(roomId) &&
+                mRoomsReceiptsJournal.append(roomId, records)) {
+            Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " " + records.size() + " records appended in " + (System.currentTimeMillis() - start) + " ms");
+        } else if (writeObject("saveReceipts " + roomId, receiptsFile, receipts)) {
+            mRoomsReceiptsJournal.delete(roomId);
+            Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " eventId : " + (System.currentTimeMillis() - start) + " ms");
+        }
     }
 
     /**
      * Save the events receipts.
+     * The updated rooms are written by the next commit flush.
      */
     private void saveReceipts() {
-        synchronized (this) {
-            ArrayList<String> roomsToCommit = mRoomsToCommitForReceipts;
+        ArrayList<String> roomsToCommit;
 
-            for (String roomId : roomsToCommit) {
-                saveReceipts(roomId);
-            }
+        roomsToCommit = getAndClearToCommit(mRoomsToCommitForReceipts);
 
-            mRoomsToCommitForReceipts.clear();
+        if (roomsToCommit.size() > 0) {
+            addDirtyRooms(mDirtyRoomIdsForReceipts, roomsToCommit);
         }
     }
 
@@ -2147,6 +3388,9 @@ public class MXFileStore extends MXMemoryStore {
      * @param roomId the room id.
      */
     private void deleteRoomReceiptsFile(String roomId) {
+        mRoomsReceiptsJournal.discardPendingRecords(roomId);
+        mRoomsReceiptsJournal.delete(roomId);
+
         File receiptsFile = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
 
         // remove the files
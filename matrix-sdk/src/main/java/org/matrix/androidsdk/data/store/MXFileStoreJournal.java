@@ -0,0 +1,492 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only per-room journal used by MXFileStore.
+ * The journal contains the updates performed since the latest full snapshot of the room data.
+ * A snapshot followed by its journal replay gives the current room data.
+ * When the journal becomes too large, the room is compacted i.e a new snapshot is saved and the journal is deleted.
+ */
+public class MXFileStoreJournal {
+    private static final String LOG_TAG = "MXFileStoreJournal";
+
+    // record types
+    public static final int RECORD_TYPE_EVENT = 1;
+    public static final int RECORD_TYPE_PREPEND_EVENTS = 2;
+    public static final int RECORD_TYPE_DELETE_EVENT = 3;
+    public static final int RECORD_TYPE_TOKEN = 4;
+    public static final int RECORD_TYPE_RECEIPT = 5;
+
+    // block header
+    private static final int BLOCK_MAGIC = 0x4d584a31;
+
+    // compaction triggers
+    private static final long DEFAULT_MAX_JOURNAL_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_JOURNAL_BLOCKS = 100;
+
+    /**
+     * A journal record.
+     */
+    public static class Record implements Serializable {
+        private static final long serialVersionUID = 2763455468301734583L;
+
+        // the record type (RECORD_TYPE_XX)
+        public final int mType;
+
+        // the updated item key (event id, user id...)
+        public final String mKey;
+
+        // the updated value (event, events list, token, receipt...)
+        public final Serializable mValue;
+
+        public Record(int type, String key, Serializable value) {
+            mType = type;
+            mKey = key;
+            mValue = value;
+        }
+    }
+
+    // the journal files folder
+    private final File mFolder;
+
+    // the pending records by room id, they are flushed at the next commit
+    private final HashMap<String, List<Record>> mPendingRecords = new HashMap<>();
+
+    // blocks count by room id
+    private final HashMap<String, Integer> mBlocksCountByRoomId = new HashMap<>();
+
+    // the rooms which must be saved in a new snapshot
+    private final Set<String> mRoomsToCompact = new HashSet<>();
+
+    private long mMaxJournalSize = DEFAULT_MAX_JOURNAL_SIZE;
+    private int mMaxJournalBlocks = DEFAULT_MAX_JOURNAL_BLOCKS;
+
+    /**
+     * Constructor
+     *
+     * @param folder the folder in which the journal files are stored.
+     */
+    public MXFileStoreJournal(File folder) {
+        mFolder = folder;
+
+        if (!mFolder.exists()) {
+            mFolder.mkdirs();
+        }
+    }
+
+    /**
+     * Update the compaction thresholds.
+     *
+     * @param maxSize   the max journal file size in bytes.
+     * @param maxBlocks the max number of appended blocks.
+     */
+    public void setCompactionThresholds(long maxSize, int maxBlocks) {
+        mMaxJournalSize = maxSize;
+        mMaxJournalBlocks = maxBlocks;
+    }
+
+    //================================================================================
+    // Pending records
+    //================================================================================
+
+    /**
+     * Add a record to flush at the next commit.
+     *
+     * @param roomId the room id
+     * @param record the record
+     */
+    public void addPendingRecord(String roomId, Record record) {
+        if ((null == roomId) || (null == record)) {
+            return;
+        }
+
+        synchronized (mPendingRecords) {
+            List<Record> records = mPendingRecords.get(roomId);
+
+            if (null == records) {
+                records = new ArrayList<>();
+                mPendingRecords.put(roomId, records);
+            }
+
+            records.add(record);
+        }
+    }
+
+    /**
+     * Discard the pending records of a room.
+     * It is called when the room data will be fully saved.
+     *
+     * @param roomId the room id
+     */
+    public void discardPendingRecords(String roomId) {
+        synchronized (mPendingRecords) {
+            mPendingRecords.remove(roomId);
+        }
+    }
+
+    /**
+     * Provides the pending records of a room and clear them.
+     *
+     * @param roomId the room id
+     * @return the pending records, null if there is none.
+     */
+    public List<Record> takePendingRecords(String roomId) {
+        synchronized (mPendingRecords) {
+            return mPendingRecords.remove(roomId);
+        }
+    }
+
+    /**
+     * Tells if some records of a room have not yet been flushed.
+     *
+     * @param roomId the room id
+     * @return true if there are some pending records.
+     */
+    public boolean hasPendingRecords(String roomId) {
+        synchronized (mPendingRecords) {
+            return mPendingRecords.containsKey(roomId);
+        }
+    }
+
+    //================================================================================
+    // File management
+    //================================================================================
+
+    /**
+     * Provides the journal file of a room.
+     *
+     * @param roomId the room id
+     * @return the journal file
+     */
+    private File getJournalFile(String roomId) {
+        return new File(mFolder, roomId);
+    }
+
+    /**
+     * Tells if a journal exists for a room.
+     *
+     * @param roomId the room id
+     * @return true if the journal file exists
+     */
+    public boolean exists(String roomId) {
+        return getJournalFile(roomId).exists();
+    }
+
+    /**
+     * Delete the journal of a room.
+     *
+     * @param roomId the room id
+     */
+    public void delete(String roomId) {
+        File file = getJournalFile(roomId);
+
+        synchronized (mBlocksCountByRoomId) {
+            mBlocksCountByRoomId.remove(roomId);
+            mRoomsToCompact.remove(roomId);
+        }
+
+        if (file.exists()) {
+            try {
+                file.delete();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## delete() : failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Force the room data to be saved in a new snapshot at the next commit.
+     * It is required when the room data is updated in a way that the journal cannot describe.
+     *
+     * @param roomId the room id
+     */
+    public void requestCompaction(String roomId) {
+        synchronized (mBlocksCountByRoomId) {
+            mRoomsToCompact.add(roomId);
+        }
+    }
+
+    /**
+     * Tells if the room journal is large enough to be compacted.
+     *
+     * @param roomId the room id
+     * @return true if the room data should be saved as a snapshot.
+     */
+    public boolean needsCompaction(String roomId) {
+        int blocksCount;
+
+        synchronized (mBlocksCountByRoomId) {
+            if (mRoomsToCompact.contains(roomId)) {
+                return true;
+            }
+
+            Integer count = mBlocksCountByRoomId.get(roomId);
+            blocksCount = (null == count) ? 0 : count;
+        }
+
+        return (blocksCount >= mMaxJournalBlocks) || (getJournalFile(roomId).length() >= mMaxJournalSize);
+    }
+
+    /**
+     * Append a records block to the room journal.
+     * A block is written as [magic][length][crc][serialized records].
+     *
+     * @param roomId  the room id
+     * @param records the records to append
+     * @return true if the operation succeeds.
+     */
+    public boolean append(String roomId, List<Record> records) {
+        if ((null == records) || (0 == records.size())) {
+            return true;
+        }
+
+        File file = getJournalFile(roomId);
+        long validLength = file.length();
+        boolean succeed = false;
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(new ArrayList<>(records));
+            oos.close();
+
+            byte[] payload = bos.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            DataOutputStream dos = new DataOutputStream(new FileOutputStream(file, true));
+            dos.writeInt(BLOCK_MAGIC);
+            dos.writeInt(payload.length);
+            dos.writeLong(crc.getValue());
+            dos.write(payload);
+            dos.close();
+
+            synchronized (mBlocksCountByRoomId) {
+                Integer count = mBlocksCountByRoomId.get(roomId);
+                mBlocksCountByRoomId.put(roomId, (null == count) ? 1 : (count + 1));
+            }
+
+            succeed = true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## append() : " + roomId + " failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## append() : " + roomId + " failed " + oom.getMessage());
+        }
+
+        // remove any partially written block
+        if (!succeed) {
+            truncate(file, validLength);
+        }
+
+        return succeed;
+    }
+
+    /**
+     * Read the room journal.
+     * A truncated or corrupted trailing block (application killed while writing it) is ignored and removed.
+     *
+     * @param roomId the room id
+     * @return the records list (empty if there is no journal).
+     */
+    public List<Record> read(String roomId) {
+        List<Record> records = new ArrayList<>();
+        File file = getJournalFile(roomId);
+
+        if (!file.exists()) {
+            return records;
+        }
+
+        long validLength = 0;
+        int blocksCount = 0;
+        DataInputStream dis = null;
+
+        try {
+            dis = new DataInputStream(new FileInputStream(file));
+
+            while (true) {
+                int magic;
+
+                try {
+                    magic = dis.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (BLOCK_MAGIC != magic) {
+                    Log.e(LOG_TAG, "## read() : " + roomId + " invalid block header");
+                    break;
+                }
+
+                int length = dis.readInt();
+                long crcValue = dis.readLong();
+                byte[] payload = new byte[length];
+                dis.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+
+                if (crc.getValue() != crcValue) {
+                    Log.e(LOG_TAG, "## read() : " + roomId + " invalid block crc");
+                    break;
+                }
+
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload));
+                records.addAll((List<Record>) ois.readObject());
+                ois.close();
+
+                validLength += 16 + length;
+                blocksCount++;
+            }
+        } catch (EOFException e) {
+            Log.e(LOG_TAG, "## read() : " + roomId + " truncated block");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## read() : " + roomId + " failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## read() : " + roomId + " failed " + oom.getMessage());
+        } finally {
+            if (null != dis) {
+                try {
+                    dis.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## read() : close failed " + e.getMessage());
+                }
+            }
+        }
+
+        if (validLength != file.length()) {
+            truncate(file, validLength);
+        }
+
+        synchronized (mBlocksCountByRoomId) {
+            mBlocksCountByRoomId.put(roomId, blocksCount);
+        }
+
+        return records;
+    }
+
+    /**
+     * Truncate a journal file to its latest valid block.
+     *
+     * @param file   the file
+     * @param length the valid length
+     */
+    private static void truncate(File file, long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+            raf.close();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## truncate() : failed " + e.getMessage());
+        }
+    }
+
+    //================================================================================
+    // Replay
+    //================================================================================
+
+    /**
+     * Replay the events records on a room events map.
+     * The replay is idempotent : replaying an already applied record does not change the events list.
+     *
+     * @param events  the events map loaded from the latest snapshot.
+     * @param records the journal records.
+     * @return the latest journaled back token, null if there is none.
+     */
+    public static String replayEvents(LinkedHashMap<String, Event> events, List<Record> records) {
+        String token = null;
+
+        for (Record record : records) {
+            switch (record.mType) {
+                case RECORD_TYPE_EVENT: {
+                    Event event = (Event) record.mValue;
+                    events.put(event.eventId, event);
+                    break;
+                }
+                case RECORD_TYPE_PREPEND_EVENTS: {
+                    List<Event> prependedEvents = (List<Event>) record.mValue;
+                    LinkedHashMap<String, Event> copy = new LinkedHashMap<>(events);
+
+                    events.clear();
+
+                    for (Event event : prependedEvents) {
+                        events.put(event.eventId, event);
+                    }
+
+                    for (Map.Entry<String, Event> entry : copy.entrySet()) {
+                        if (!events.containsKey(entry.getKey())) {
+                            events.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    break;
+                }
+                case RECORD_TYPE_DELETE_EVENT:
+                    events.remove(record.mKey);
+                    break;
+                case RECORD_TYPE_TOKEN:
+                    token = (String) record.mValue;
+                    break;
+                default:
+                    Log.e(LOG_TAG, "## replayEvents() : unexpected record type " + record.mType);
+            }
+        }
+
+        return token;
+    }
+
+    /**
+     * Replay the receipts records on a room receipts map.
+     *
+     * @param receiptsByUserId the receipts loaded from the latest snapshot.
+     * @param records          the journal records.
+     */
+    public static void replayReceipts(Map<String, ReceiptData> receiptsByUserId, List<Record> records) {
+        for (Record record : records) {
+            if (RECORD_TYPE_RECEIPT == record.mType) {
+                ReceiptData receipt = (ReceiptData) record.mValue;
+                receiptsByUserId.put(receipt.userId, receipt);
+            } else {
+                Log.e(LOG_TAG, "## replayReceipts() : unexpected record type " + record.mType);
+            }
+        }
+    }
+}
@@ -24,6 +24,9 @@ import java.util.List;
 import java.util.Map;
 
 public class MXFileStoreMetaData implements java.io.Serializable {
+    // the value computed before the codec version was added : it keeps the previous metadata files readable
+    private static final long serialVersionUID = 8254002601897883017L;
+
     // The obtained user id.
     public String mUserId = null;
 
@@ -48,6 +51,13 @@ public class MXFileStoreMetaData implements java.io.Serializable {
     // crypto
     public boolean mEndToEndDeviceAnnounced = false;
 
+    // the version of the binary codec used to save the rooms files (0 for the legacy format)
+    public int mCodecVersion = 0;
+
+    // the uploaded sync filter and its id
+    public String mSyncFilterJson = null;
+    public String mSyncFilterId = null;
+
     public MXFileStoreMetaData deepCopy() {
         MXFileStoreMetaData copy = new MXFileStoreMetaData();
 
@@ -66,6 +76,9 @@ public class MXFileStoreMetaData implements java.io.Serializable {
         copy.mIgnoredUsers = mIgnoredUsers;
         copy.mDirectChatRoomsMap = mDirectChatRoomsMap;
         copy.mEndToEndDeviceAnnounced = mEndToEndDeviceAnnounced;
+        copy.mCodecVersion = mCodecVersion;
+        copy.mSyncFilterJson = mSyncFilterJson;
+        copy.mSyncFilterId = mSyncFilterId;
 
         return copy;
     }
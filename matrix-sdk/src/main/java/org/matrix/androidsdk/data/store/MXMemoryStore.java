@@ -63,6 +63,9 @@ public class MXMemoryStore implements IMXStore {
     protected Map<String, LinkedHashMap<String, Event>> mRoomEvents;
     // room id -> list of event Ids
     protected Map<String, ArrayList<String>> mRoomEventIds;
+    // room id -> events positions
+    // it is lazily built from mRoomEvents and it must be invalidated when mRoomEvents is updated without using the store methods.
+    protected Map<String, MXRoomEventsIndex> mRoomEventsIndexes;
 
     protected Map<String, String> mRoomTokens;
 
@@ -103,6 +106,7 @@ public class MXMemoryStore implements IMXStore {
         mUsers = new ConcurrentHashMap<>();
         mRoomEvents = new ConcurrentHashMap<>();
         mRoomEventIds = new ConcurrentHashMap<>();
+        mRoomEventsIndexes = new ConcurrentHashMap<>();
         mRoomTokens = new ConcurrentHashMap<>();
         mRoomSummaries = new ConcurrentHashMap<>();
         mReceiptsByRoomId = new ConcurrentHashMap<>();
@@ -264,6 +268,22 @@ public class MXMemoryStore implements IMXStore {
         mEventStreamToken = token;
     }
 
+    @Override
+    public String getSyncFilterId(String filterJson) {
+        if ((null != mMetadata) && TextUtils.equals(mMetadata.mSyncFilterJson, filterJson)) {
+            return mMetadata.mSyncFilterId;
+        }
+        return null;
+    }
+
+    @Override
+    public void setSyncFilterId(String filterJson, String filterId) {
+        if (null != mMetadata) {
+            mMetadata.mSyncFilterJson = filterJson;
+            mMetadata.mSyncFilterId = filterId;
+        }
+    }
+
     @Override
     public void addMXStoreListener(IMXStoreListener listener) {
         synchronized (this) {
@@ -417,6 +437,21 @@ public class MXMemoryStore implements IMXStore {
         }
     }
 
+    @Override
+    public boolean isRoomLoaded(String roomId) {
+        return true;
+    }
+
+    @Override
+    public void loadRoom(String roomId, final SimpleApiCallback<Void> callback) {
+        (new Handler(Looper.getMainLooper())).post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSuccess(null);
+            }
+        });
+    }
+
     @Override
     public User getUser(String userId) {
         if (null != userId) {
@@ -499,6 +534,30 @@ public class MXMemoryStore implements IMXStore {
         }
     }
 
+    /**
+     * Provides the events positions of a room.
+     * The caller must hold mRoomEventsLock.
+     *
+     * @param roomId the room id
+     * @return the events index, null if the room has no stored events.
+     */
+    protected MXRoomEventsIndex getRoomEventsIndex(String roomId) {
+        LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+
+        if (null == events) {
+            return null;
+        }
+
+        MXRoomEventsIndex index = mRoomEventsIndexes.get(roomId);
+
+        if (null == index) {
+            index = new MXRoomEventsIndex(events.keySet());
+            mRoomEventsIndexes.put(roomId, index);
+        }
+
+        return index;
+    }
+
     @Override
     public Event getOldestEvent(String roomId) {
         Event event = null;
@@ -575,6 +634,7 @@ public class MXMemoryStore implements IMXStore {
                         if (null == events) {
                             events = new LinkedHashMap<>();
                             mRoomEvents.put(event.roomId, events);
+                            mRoomEventsIndexes.remove(event.roomId);
                         } else if (!event.isDummyEvent() && (mTemporaryEventsList.size() > 0)) {
                             // remove any waiting echo event
                             String dummyKey = null;
@@ -590,6 +650,12 @@ public class MXMemoryStore implements IMXStore {
                             if (null != dummyKey) {
                                 events.remove(dummyKey);
                                 mTemporaryEventsList.remove(dummyKey);
+
+                                MXRoomEventsIndex index = mRoomEventsIndexes.get(event.roomId);
+
+                                if (null != index) {
+                                    index.remove(dummyKey);
+                                }
                             }
                         }
 
@@ -597,6 +663,12 @@ public class MXMemoryStore implements IMXStore {
                         // wait for the first pagination request to set things right
                         events.put(event.eventId, event);
 
+                        MXRoomEventsIndex index = mRoomEventsIndexes.get(event.roomId);
+
+                        if (null != index) {
+                            index.append(event.eventId);
+                        }
+
                         // add to the list of known events
                         ArrayList<String> eventIds = mRoomEventIds.get(event.roomId);
                         eventIds.add(event.eventId);
@@ -657,6 +729,11 @@ public class MXMemoryStore implements IMXStore {
                     events.remove(event.eventId);
                 }
 
+                MXRoomEventsIndex index = mRoomEventsIndexes.get(event.roomId);
+                if (null != index) {
+                    index.remove(event.eventId);
+                }
+
                 ArrayList<String> ids = mRoomEventIds.get(event.roomId);
                 if (null != ids) {
                     ids.remove(event.eventId);
@@ -683,6 +760,7 @@ public class MXMemoryStore implements IMXStore {
             synchronized (mRoomEventsLock) {
                 mRoomEvents.remove(roomId);
                 mRoomEventIds.remove(roomId);
+                mRoomEventsIndexes.remove(roomId);
                 mRoomTokens.remove(roomId);
                 mRoomSummaries.remove(roomId);
                 mRoomAccountData.remove(roomId);
@@ -730,6 +808,7 @@ public class MXMemoryStore implements IMXStore {
                     mRoomEvents.remove(roomId);
                 }
 
+                mRoomEventsIndexes.remove(roomId);
                 mRoomSummaries.remove(roomId);
             }
         }
@@ -744,15 +823,29 @@ public class MXMemoryStore implements IMXStore {
                     if (events == null) {
                         events = new LinkedHashMap<>();
                         mRoomEvents.put(roomId, events);
+                        mRoomEventsIndexes.remove(roomId);
                     }
 
+                    MXRoomEventsIndex eventsIndex = mRoomEventsIndexes.get(roomId);
+
                     if (direction == EventTimeline.Direction.FORWARDS) {
                         mRoomTokens.put(roomId, eventsResponse.start);
 
                         for (Event event : eventsResponse.chunk) {
                             events.put(event.eventId, event);
+
+                            if (null != eventsIndex) {
+                                eventsIndex.append(event.eventId);
+                            }
                         }
                     } else { // BACKWARD
+                        // the chunk is ordered from the latest to the oldest event
+                        if (null != eventsIndex) {
+                            for (Event backEvent : eventsResponse.chunk) {
+                                eventsIndex.prepend(backEvent.eventId);
+                            }
+                        }
+
                         Collection<Event> eventsList = events.values();
 
                         // no stored events
@@ -1231,10 +1324,18 @@ public class MXMemoryStore implements IMXStore {
 
                     // test if the event is know
                     if ((null != eventsMap) && eventsMap.containsKey(receipt.eventId)) {
-                        ArrayList<String> eventIds = new ArrayList<>(eventsMap.keySet());
+                        long curEventPos;
+                        long newEventPos;
+
+                        synchronized (mRoomEventsLock) {
+                            MXRoomEventsIndex index = getRoomEventsIndex(roomId);
+                            Long curPosition = index.getPosition(curReceipt.eventId);
+                            Long newPosition = index.getPosition(receipt.eventId);
 
-                        int curEventPos = eventIds.indexOf(curReceipt.eventId);
-                        int newEventPos = eventIds.indexOf(receipt.eventId);
+                            // an unknown event is assumed to be older than the known ones
+                            curEventPos = (null != curPosition) ? curPosition : Long.MIN_VALUE;
+                            newEventPos = (null != newPosition) ? newPosition : Long.MIN_VALUE;
+                        }
 
                         if (curEventPos >= newEventPos) {
                             Log.d(LOG_TAG, "## storeReceipt() : the read message is already read (cur pos " + curEventPos + " receipt event pos " + newEventPos + ")");
@@ -1298,35 +1399,25 @@ public class MXMemoryStore implements IMXStore {
                 LinkedHashMap<String, Event> roomEvents = mRoomEvents.get(roomId);
 
                 if (roomEvents != null) {
-                    List<Event> linkedEvents = new ArrayList<>(roomEvents.values());
-
-                    // Check messages from the most recent
-                    for (int i = linkedEvents.size() - 1; i >= 0; i--) {
-                        Event event = linkedEvents.get(i);
-
-                        if ((null == eventId) || !TextUtils.equals(event.eventId, eventId)) {
-                            // Keep events matching filters
-                            if ((null == allowedTypes || (allowedTypes.indexOf(event.getType()) >= 0)) && !TextUtils.equals(event.getSender(), excludedUserId)) {
-                                events.add(event);
-                            }
-                        } else {
-                            // We are done
-                            break;
+                    MXRoomEventsIndex index = getRoomEventsIndex(roomId);
+                    Long position = index.getPosition(eventId);
+
+                    // an unknown event is assumed to be older than the stored ones
+                    Collection<String> eventIds = (null == position) ? index.getEventIds() : index.getEventIdsAfter(position);
+
+                    for (String anEventId : eventIds) {
+                        Event event = roomEvents.get(anEventId);
+
+                        // Keep events matching filters
+                        // some messages are not defined as unreadable
+                        if ((null != event) &&
+                                (null == allowedTypes || (allowedTypes.indexOf(event.getType()) >= 0)) &&
+                                !TextUtils.equals(event.getSender(), excludedUserId) &&
+                                !TextUtils.equals(event.getSender(), mCredentials.userId) &&
+                                !TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
+                            events.add(event);
                         }
                     }
-
-                    // filter the unread messages
-                    // some messages are not defined as unreadable
-                    for (int index = 0; index < events.size(); index++) {
-                        Event event = events.get(index);
-
-                        if (TextUtils.equals(event.getSender(), mCredentials.userId) || TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
-                            events.remove(index);
-                            index--;
-                        }
-                    }
-
-                    Collections.reverse(events);
                 }
             }
         }
@@ -1371,10 +1462,15 @@ public class MXMemoryStore implements IMXStore {
                     // check if the event is known
                     if (eventsMap.containsKey(eventIdTotest) && receiptsByUserId.containsKey(userId)) {
                         ReceiptData data = receiptsByUserId.get(userId);
-                        ArrayList<String> eventIds = new ArrayList<>(eventsMap.keySet());
 
-                        // the message has been read if it was sent before the latest read one
-                        res = eventIds.indexOf(eventIdTotest) <= eventIds.indexOf(data.eventId);
+                        synchronized (mRoomEventsLock) {
+                            MXRoomEventsIndex index = getRoomEventsIndex(roomId);
+                            Long eventPosition = index.getPosition(eventIdTotest);
+                            Long readPosition = index.getPosition(data.eventId);
+
+                            // the message has been read if it was sent before the latest read one
+                            res = (null != eventPosition) && (null != readPosition) && (eventPosition <= readPosition);
+                        }
                     } else if (receiptsByUserId.containsKey(userId)) {
                         // the event is not known so assume it is has been flushed
                         res = true;
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.util.CodecUtils;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The read receipts list saved by the MXFileStore.
+ * The receipts are written with the binary codec instead of the default ReceiptData serialization.
+ */
+public class MXReceiptsList extends ArrayList<ReceiptData> implements Externalizable {
+    private static final long serialVersionUID = -3427962837561049261L;
+
+    /**
+     * Default constructor (required by Externalizable)
+     */
+    public MXReceiptsList() {
+        super();
+    }
+
+    /**
+     * Constructor
+     *
+     * @param receipts the receipts
+     */
+    public MXReceiptsList(Collection<ReceiptData> receipts) {
+        super(receipts);
+    }
+
+    @Override
+    public void readExternal(ObjectInput input) throws IOException, ClassNotFoundException {
+        if (CodecUtils.FORMAT_MARKER != input.readUnsignedByte()) {
+            throw new IOException("Invalid receipts list format");
+        }
+
+        CodecUtils.readVersion(input);
+
+        int count = CodecUtils.readVarInt(input);
+        ensureCapacity(count);
+
+        for (int i = 0; i < count; i++) {
+            add(CodecUtils.readReceipt(input));
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput output) throws IOException {
+        CodecUtils.writeHeader(output);
+
+        CodecUtils.writeVarInt(output, size());
+
+        for (ReceiptData receipt : this) {
+            CodecUtils.writeReceipt(output, receipt);
+        }
+    }
+}
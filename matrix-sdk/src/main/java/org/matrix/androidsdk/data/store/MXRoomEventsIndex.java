@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * The stream positions of the stored events of a room.
+ * The live events are appended after the latest position and the paginated ones are prepended
+ * before the oldest position, so the positions are monotonic and never need to be renumbered.
+ * It is not thread safe : the caller must hold the room events lock.
+ */
+class MXRoomEventsIndex {
+    // event id -> position
+    private final HashMap<String, Long> mPositionByEventId = new HashMap<>();
+    // position -> event id
+    private final TreeMap<Long, String> mEventIdByPosition = new TreeMap<>();
+
+    // the oldest and the latest positions
+    private long mOldestPosition = 0;
+    private long mLatestPosition = -1;
+
+    /**
+     * Build an index from an ordered events ids list.
+     *
+     * @param eventIds the event ids, from the oldest to the latest one.
+     */
+    MXRoomEventsIndex(Collection<String> eventIds) {
+        for (String eventId : eventIds) {
+            append(eventId);
+        }
+    }
+
+    /**
+     * Add an event after the latest one.
+     * Nothing is done if the event is already indexed.
+     *
+     * @param eventId the event id
+     */
+    void append(String eventId) {
+        if ((null != eventId) && !mPositionByEventId.containsKey(eventId)) {
+            add(eventId, ++mLatestPosition);
+        }
+    }
+
+    /**
+     * Add an event before the oldest one.
+     * An indexed event is moved.
+     *
+     * @param eventId the event id
+     */
+    void prepend(String eventId) {
+        if (null != eventId) {
+            remove(eventId);
+            add(eventId, --mOldestPosition);
+        }
+    }
+
+    /**
+     * Remove an event.
+     *
+     * @param eventId the event id
+     */
+    void remove(String eventId) {
+        Long position = (null != eventId) ? mPositionByEventId.remove(eventId) : null;
+
+        if (null != position) {
+            mEventIdByPosition.remove(position);
+        }
+    }
+
+    /**
+     * Provides the position of an event.
+     *
+     * @param eventId the event id
+     * @return the position, null if the event is not indexed.
+     */
+    Long getPosition(String eventId) {
+        return (null != eventId) ? mPositionByEventId.get(eventId) : null;
+    }
+
+    /**
+     * @return the indexed event ids, from the oldest to the latest one.
+     */
+    Collection<String> getEventIds() {
+        return mEventIdByPosition.values();
+    }
+
+    /**
+     * Provides the event ids after a position.
+     *
+     * @param position the position
+     * @return the event ids, from the oldest to the latest one.
+     */
+    Collection<String> getEventIdsAfter(long position) {
+        return mEventIdByPosition.tailMap(position, false).values();
+    }
+
+    /**
+     * Add an event at a position.
+     *
+     * @param eventId  the event id
+     * @param position the position
+     */
+    private void add(String eventId, long position) {
+        if (mPositionByEventId.isEmpty()) {
+            mOldestPosition = position;
+            mLatestPosition = position;
+        }
+
+        mPositionByEventId.put(eventId, position);
+        mEventIdByPosition.put(position, eventId);
+    }
+}
@@ -0,0 +1,1948 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomAccountData;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.rest.model.ThirdPartyIdentifier;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXOsHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An IMXStore which saves its data in a SQLite database.
+ *
+ * The room events and the read receipts are only stored in the database :
+ * the history is not limited by the memory and getEarlierMessages(), eventsCountAfter(),
+ * unreadEvents() and isEventRead() are indexed queries.
+ * The events are ordered in a room by a stream order : the live events are appended after the latest one
+ * and the paginated ones are inserted before the oldest one.
+ *
+ * The rooms states, the summaries, the account data and the users are kept in memory
+ * and they are written in the database by commit() as the MXFileStore does.
+ */
+public class MXSQLiteStore extends MXMemoryStore {
+    private static final String LOG_TAG = "MXSQLiteStore";
+
+    // the database version
+    // the database is rebuilt when it is updated
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String DATABASE_NAME_PREFIX = "MXSQLiteStore_";
+
+    // the max number of events returned by getRoomMessages()
+    // the older ones are retrieved with getEarlierMessages()
+    private static final int MAX_ROOM_MESSAGES_COUNT = 100;
+
+    // tables
+    private static final String TABLE_METADATA = "metadata";
+    private static final String TABLE_ROOMS = "rooms";
+    private static final String TABLE_EVENTS = "events";
+    private static final String TABLE_RECEIPTS = "receipts";
+    private static final String TABLE_STATE_EVENTS = "state_events";
+    private static final String TABLE_USERS = "users";
+
+    // columns
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_DATA = "data";
+    private static final String COLUMN_ROOM_ID = "room_id";
+    private static final String COLUMN_EVENT_ID = "event_id";
+    private static final String COLUMN_USER_ID = "user_id";
+    private static final String COLUMN_STREAM_ORDER = "stream_order";
+    private static final String COLUMN_TYPE = "type";
+    private static final String COLUMN_SENDER = "sender";
+    private static final String COLUMN_TOKEN = "token";
+    private static final String COLUMN_SENT_STATE = "sent_state";
+    private static final String COLUMN_ORIGIN_SERVER_TS = "origin_server_ts";
+    private static final String COLUMN_BACK_TOKEN = "back_token";
+    private static final String COLUMN_STATE = "state";
+    private static final String COLUMN_SUMMARY = "summary";
+    private static final String COLUMN_ACCOUNT_DATA = "account_data";
+
+    // the metadata row id
+    private static final long METADATA_ROW_ID = 1;
+
+    /**
+     * The database helper.
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_METADATA + " (" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY, " +
+                    COLUMN_DATA + " BLOB)");
+
+            db.execSQL("CREATE TABLE " + TABLE_ROOMS + " (" +
+                    COLUMN_ROOM_ID + " TEXT PRIMARY KEY, " +
+                    COLUMN_BACK_TOKEN + " TEXT, " +
+                    COLUMN_STATE + " BLOB, " +
+                    COLUMN_SUMMARY + " BLOB, " +
+                    COLUMN_ACCOUNT_DATA + " BLOB)");
+
+            db.execSQL("CREATE TABLE " + TABLE_EVENTS + " (" +
+                    COLUMN_ROOM_ID + " TEXT NOT NULL, " +
+                    COLUMN_STREAM_ORDER + " INTEGER NOT NULL, " +
+                    COLUMN_EVENT_ID + " TEXT NOT NULL, " +
+                    COLUMN_TYPE + " TEXT, " +
+                    COLUMN_SENDER + " TEXT, " +
+                    COLUMN_TOKEN + " TEXT, " +
+                    COLUMN_SENT_STATE + " TEXT, " +
+                    COLUMN_DATA + " BLOB NOT NULL)");
+            db.execSQL("CREATE UNIQUE INDEX events_room_order ON " + TABLE_EVENTS + " (" + COLUMN_ROOM_ID + ", " + COLUMN_STREAM_ORDER + ")");
+            db.execSQL("CREATE UNIQUE INDEX events_event_id ON " + TABLE_EVENTS + " (" + COLUMN_EVENT_ID + ", " + COLUMN_ROOM_ID + ")");
+
+            db.execSQL("CREATE TABLE " + TABLE_RECEIPTS + " (" +
+                    COLUMN_ROOM_ID + " TEXT NOT NULL, " +
+                    COLUMN_USER_ID + " TEXT NOT NULL, " +
+                    COLUMN_EVENT_ID + " TEXT, " +
+                    COLUMN_ORIGIN_SERVER_TS + " INTEGER, " +
+                    "PRIMARY KEY (" + COLUMN_ROOM_ID + ", " + COLUMN_USER_ID + "))");
+            db.execSQL("CREATE INDEX receipts_event_id ON " + TABLE_RECEIPTS + " (" + COLUMN_ROOM_ID + ", " + COLUMN_EVENT_ID + ")");
+
+            db.execSQL("CREATE TABLE " + TABLE_STATE_EVENTS + " (" +
+                    COLUMN_ROOM_ID + " TEXT NOT NULL, " +
+                    COLUMN_EVENT_ID + " TEXT NOT NULL, " +
+                    COLUMN_DATA + " BLOB NOT NULL, " +
+                    "PRIMARY KEY (" + COLUMN_ROOM_ID + ", " + COLUMN_EVENT_ID + "))");
+
+            db.execSQL("CREATE TABLE " + TABLE_USERS + " (" +
+                    COLUMN_USER_ID + " TEXT PRIMARY KEY, " +
+                    COLUMN_DATA + " BLOB)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.d(LOG_TAG, "## onUpgrade() : " + oldVersion + " -> " + newVersion + " : rebuild the database");
+
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_METADATA);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ROOMS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENTS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_RECEIPTS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE_EVENTS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_USERS);
+            onCreate(db);
+        }
+    }
+
+    private final DatabaseHelper mDatabaseHelper;
+    private final SQLiteDatabase mDatabase;
+    private final String mDatabaseName;
+
+    // the data is read from the database
+    private boolean mIsReady = false;
+
+    // the store is currently opening
+    private boolean mIsOpening = false;
+
+    private boolean mIsKilled = false;
+
+    // List of items to save on [MXStore commit]
+    private final ArrayList<String> mRoomsToCommitForStates = new ArrayList<>();
+    private final ArrayList<String> mRoomsToCommitForSummaries = new ArrayList<>();
+    private final ArrayList<String> mRoomsToCommitForAccountData = new ArrayList<>();
+    private final ArrayList<String> mRoomsToCommitForTokens = new ArrayList<>();
+    private final ArrayList<String> mUserIdsToCommit = new ArrayList<>();
+
+    // Flag to indicate metaData needs to be store
+    private boolean mMetaDataHasChanged = false;
+
+    // the stream orders bounds by room id : {oldest, latest}
+    private final Object mStreamOrdersLock = new Object();
+    private final HashMap<String, long[]> mStreamOrdersByRoomId = new HashMap<>();
+
+    // the events which are not yet sent, by room id
+    // the callers update them without storing them again : they are written again with the next commit.
+    private final Object mLocalEchoesLock = new Object();
+    private final HashMap<String, LinkedHashMap<String, Event>> mLocalEchoesByRoomId = new HashMap<>();
+
+    // the background thread
+    private HandlerThread mHandlerThread = null;
+    private MXOsHandler mStoreHandler = null;
+
+    private long mPreloadTime = 0;
+
+    // store some stats
+    private final HashMap<String, Long> mStoreStats = new HashMap<>();
+
+    /**
+     * Default constructor
+     *
+     * @param hsConfig the expected credentials
+     * @param context  the context.
+     */
+    public MXSQLiteStore(HomeserverConnectionConfig hsConfig, Context context) {
+        initCommon();
+        setContext(context);
+
+        mCredentials = hsConfig.getCredentials();
+        mDatabaseName = DATABASE_NAME_PREFIX + mCredentials.userId;
+        mDatabaseHelper = new DatabaseHelper(mContext, mDatabaseName);
+        mDatabase = mDatabaseHelper.getWritableDatabase();
+
+        // the events and the receipts are written in the caller thread
+        // the write ahead log avoids a disk sync per write and lets the reads run during the writes
+        mDatabase.enableWriteAheadLogging();
+
+        mHandlerThread = new HandlerThread("MXSQLiteStoreBackgroundThread_" + mCredentials.userId, Thread.MIN_PRIORITY);
+        mHandlerThread.start();
+        mStoreHandler = new MXOsHandler(mHandlerThread.getLooper());
+
+        // check if the metadata exists and if it is valid
+        loadMetaData();
+
+        if ((null == mMetadata) ||
+                !TextUtils.equals(mMetadata.mUserId, mCredentials.userId) ||
+                !TextUtils.equals(mMetadata.mAccessToken, mCredentials.accessToken)) {
+            deleteAllData();
+        }
+
+        // create the metadata if it does not exist
+        if ((null == mMetadata) || (null == mMetadata.mAccessToken)) {
+            mMetadata = new MXFileStoreMetaData();
+            mMetadata.mUserId = mCredentials.userId;
+            mMetadata.mAccessToken = mCredentials.accessToken;
+            mMetadata.mVersion = DATABASE_VERSION;
+            mMetaDataHasChanged = true;
+            saveMetaData();
+
+            mEventStreamToken = null;
+
+            // nothing to load so ready to work
+            mIsReady = true;
+        }
+    }
+
+    /**
+     * Killed the background thread.
+     *
+     * @param isKilled killed status
+     */
+    private void setIsKilled(boolean isKilled) {
+        synchronized (this) {
+            mIsKilled = isKilled;
+        }
+    }
+
+    /**
+     * @return true if the background thread is killed.
+     */
+    private boolean isKilled() {
+        synchronized (this) {
+            return mIsKilled;
+        }
+    }
+
+    /**
+     * Add an item to a to-commit list.
+     * The rooms syncs can be stored by several threads in parallel.
+     *
+     * @param itemsToCommit the to-commit list
+     * @param item          the room id or the user id
+     */
+    private void addToCommit(ArrayList<String> itemsToCommit, String item) {
+        synchronized (this) {
+            if (itemsToCommit.indexOf(item) < 0) {
+                itemsToCommit.add(item);
+            }
+        }
+    }
+
+    /**
+     * Remove an item from a to-commit list.
+     *
+     * @param itemsToCommit the to-commit list
+     * @param item          the room id or the user id
+     */
+    private void removeFromCommit(ArrayList<String> itemsToCommit, String item) {
+        synchronized (this) {
+            itemsToCommit.remove(item);
+        }
+    }
+
+    /**
+     * Empty a to-commit list.
+     *
+     * @param itemsToCommit the to-commit list
+     * @return the items which were in the list
+     */
+    private ArrayList<String> getAndClearToCommit(ArrayList<String> itemsToCommit) {
+        synchronized (this) {
+            ArrayList<String> items = new ArrayList<>(itemsToCommit);
+            itemsToCommit.clear();
+            return items;
+        }
+    }
+
+    /**
+     * Save changes in the store.
+     * The rooms events and the receipts are already written.
+     */
+    @Override
+    public void commit() {
+        // Save data only if metaData exists
+        if ((null != mMetadata) && !isKilled()) {
+            Log.d(LOG_TAG, "++ Commit");
+
+            final ArrayList<String> fRoomsToCommitForStates = getAndClearToCommit(mRoomsToCommitForStates);
+            final ArrayList<String> fRoomsToCommitForSummaries = getAndClearToCommit(mRoomsToCommitForSummaries);
+            final ArrayList<String> fRoomsToCommitForAccountData = getAndClearToCommit(mRoomsToCommitForAccountData);
+            final ArrayList<String> fRoomsToCommitForTokens = getAndClearToCommit(mRoomsToCommitForTokens);
+            final ArrayList<String> fUserIdsToCommit = getAndClearToCommit(mUserIdsToCommit);
+
+            final MXFileStoreMetaData fMetadata = mMetaDataHasChanged ? mMetadata.deepCopy() : null;
+            mMetaDataHasChanged = false;
+
+            // the local echoes can be updated without being stored again
+            saveLocalEchoes();
+
+            mStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        long start = System.currentTimeMillis();
+
+                        mDatabase.beginTransaction();
+
+                        try {
+                            for (String roomId : fRoomsToCommitForStates) {
+                                saveRoomState(roomId);
+                            }
+
+                            for (String roomId : fRoomsToCommitForSummaries) {
+                                saveSummary(roomId);
+                            }
+
+                            for (String roomId : fRoomsToCommitForAccountData) {
+                                saveRoomAccountData(roomId);
+                            }
+
+                            for (String roomId : fRoomsToCommitForTokens) {
+                                saveRoomToken(roomId);
+                            }
+
+                            saveUsers(fUserIdsToCommit);
+
+                            // the metadata is saved at the end
+                            if (null != fMetadata) {
+                                writeMetaData(fMetadata);
+                            }
+
+                            mDatabase.setTransactionSuccessful();
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "## commit() failed " + e.getMessage());
+                        } finally {
+                            mDatabase.endTransaction();
+                        }
+
+                        Log.d(LOG_TAG, "## commit() : done in " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                }
+            });
+
+            Log.d(LOG_TAG, "-- Commit");
+        }
+    }
+
+    /**
+     * Open the store.
+     */
+    @Override
+    public void open() {
+        super.open();
+        final long fLoadTimeT0 = System.currentTimeMillis();
+
+        // avoid concurrency call.
+        synchronized (this) {
+            if (mIsOpening || (null == mMetadata) || (null == mStoreHandler)) {
+                return;
+            }
+
+            mIsOpening = true;
+        }
+
+        Log.e(LOG_TAG, "Open the store.");
+
+        mStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean succeed = true;
+
+                if (!mIsReady) {
+                    succeed = loadRooms() && loadUsers();
+                }
+
+                mPreloadTime = System.currentTimeMillis() - fLoadTimeT0;
+                mStoreStats.put("preloadTime", mPreloadTime);
+
+                synchronized (MXSQLiteStore.this) {
+                    mIsReady = true;
+                    mIsOpening = false;
+                }
+
+                dispatchPostProcess(mCredentials.userId);
+
+                if (!succeed) {
+                    Log.e(LOG_TAG, "The store is corrupted.");
+                    dispatchOnStoreCorrupted(mCredentials.userId, "The database cannot be read");
+                } else {
+                    Log.e(LOG_TAG, "The store is opened in " + mPreloadTime + " ms");
+                    dispatchOnStoreReady(mCredentials.userId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the store.
+     * Any pending operation must be complete in this call.
+     */
+    @Override
+    public void close() {
+        Log.d(LOG_TAG, "Close the store");
+
+        super.close();
+        setIsKilled(true);
+
+        if (null != mHandlerThread) {
+            mHandlerThread.quit();
+            mHandlerThread = null;
+        }
+
+        mDatabaseHelper.close();
+    }
+
+    /**
+     * Clear the store.
+     * Any pending operation must be complete in this call.
+     */
+    @Override
+    public void clear() {
+        Log.d(LOG_TAG, "Clear the store");
+        super.clear();
+        deleteAllData();
+    }
+
+    /**
+     * Clear the database.
+     */
+    private void deleteAllData() {
+        try {
+            mDatabase.beginTransaction();
+
+            try {
+                mDatabase.delete(TABLE_METADATA, null, null);
+                mDatabase.delete(TABLE_ROOMS, null, null);
+                mDatabase.delete(TABLE_EVENTS, null, null);
+                mDatabase.delete(TABLE_RECEIPTS, null, null);
+                mDatabase.delete(TABLE_STATE_EVENTS, null, null);
+                mDatabase.delete(TABLE_USERS, null, null);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "deleteAllData failed " + e.getMessage());
+        }
+
+        synchronized (mStreamOrdersLock) {
+            mStreamOrdersByRoomId.clear();
+        }
+
+        synchronized (mLocalEchoesLock) {
+            mLocalEchoesByRoomId.clear();
+        }
+
+        mMetadata = null;
+        mEventStreamToken = null;
+    }
+
+    @Override
+    public boolean isPermanent() {
+        return true;
+    }
+
+    @Override
+    public boolean isReady() {
+        synchronized (this) {
+            return mIsReady;
+        }
+    }
+
+    @Override
+    public long diskUsage() {
+        File databaseFile = mContext.getDatabasePath(mDatabaseName);
+        long size = 0;
+
+        // the write ahead log is not merged into the database file
+        for (String suffix : new String[]{"", "-wal", "-shm", "-journal"}) {
+            File file = new File(databaseFile.getPath() + suffix);
+
+            if (file.exists()) {
+                size += file.length();
+            }
+        }
+
+        return size;
+    }
+
+    @Override
+    public long getPreloadTime() {
+        return mPreloadTime;
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        return mStoreStats;
+    }
+
+    //================================================================================
+    // Metadata
+    //================================================================================
+
+    @Override
+    public void setEventStreamToken(String token) {
+        Log.d(LOG_TAG, "Set token to " + token);
+        super.setEventStreamToken(token);
+        mMetaDataHasChanged = true;
+    }
+
+    @Override
+    public void setSyncFilterId(String filterJson, String filterId) {
+        Log.d(LOG_TAG, "Set the sync filter id to " + filterId);
+        super.setSyncFilterId(filterJson, filterId);
+        mMetaDataHasChanged = true;
+    }
+
+    @Override
+    public void setDisplayName(String displayName) {
+        Log.d(LOG_TAG, "Set setDisplayName to " + displayName);
+        mMetaDataHasChanged = true;
+        super.setDisplayName(displayName);
+    }
+
+    @Override
+    public void setAvatarURL(String avatarURL) {
+        Log.d(LOG_TAG, "Set setAvatarURL to " + avatarURL);
+        mMetaDataHasChanged = true;
+        super.setAvatarURL(avatarURL);
+    }
+
+    @Override
+    public void setThirdPartyIdentifiers(List<ThirdPartyIdentifier> identifiers) {
+        Log.d(LOG_TAG, "Set setThirdPartyIdentifiers");
+        mMetaDataHasChanged = true;
+        super.setThirdPartyIdentifiers(identifiers);
+    }
+
+    @Override
+    public void setIgnoredUserIdsList(List<String> users) {
+        Log.d(LOG_TAG, "## setIgnoredUsers()");
+        mMetaDataHasChanged = true;
+        super.setIgnoredUserIdsList(users);
+    }
+
+    @Override
+    public void setDirectChatRoomsDict(Map<String, List<String>> directChatRoomsDict) {
+        Log.d(LOG_TAG, "## setDirectChatRoomsDict()");
+        mMetaDataHasChanged = true;
+        super.setDirectChatRoomsDict(directChatRoomsDict);
+    }
+
+    /**
+     * Load the metadata from the database.
+     */
+    private void loadMetaData() {
+        mEventStreamToken = null;
+        mMetadata = null;
+
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_METADATA, new String[]{COLUMN_DATA}, COLUMN_ID + "=?", new String[]{String.valueOf(METADATA_ROW_ID)}, null, null, null);
+
+            if (cursor.moveToFirst()) {
+                mMetadata = (MXFileStoreMetaData) fromBytes(cursor.getBlob(0));
+
+                if (null != mMetadata) {
+                    mEventStreamToken = mMetadata.mEventStreamToken;
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadMetaData() : is corrupted " + e.getMessage());
+            mMetadata = null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Save the metadata asynchronously.
+     */
+    private void saveMetaData() {
+        if (mMetaDataHasChanged && (null != mMetadata)) {
+            mMetaDataHasChanged = false;
+            final MXFileStoreMetaData fMetadata = mMetadata.deepCopy();
+
+            mStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isKilled()) {
+                        writeMetaData(fMetadata);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the metadata.
+     * It must be called in the background thread.
+     *
+     * @param metadata the metadata
+     */
+    private void writeMetaData(MXFileStoreMetaData metadata) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, METADATA_ROW_ID);
+        values.put(COLUMN_DATA, toBytes(metadata));
+        mDatabase.insertWithOnConflict(TABLE_METADATA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    //================================================================================
+    // Rooms
+    //================================================================================
+
+    /**
+     * Load the rooms, their states, their summaries and their account data.
+     * It must be called in the background thread.
+     *
+     * @return true if the operation succeeds.
+     */
+    private boolean loadRooms() {
+        long start = System.currentTimeMillis();
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_ROOMS, new String[]{COLUMN_ROOM_ID, COLUMN_BACK_TOKEN, COLUMN_STATE, COLUMN_SUMMARY, COLUMN_ACCOUNT_DATA}, null, null, null, null, null);
+
+            while (cursor.moveToNext()) {
+                String roomId = cursor.getString(0);
+                RoomState state = cursor.isNull(2) ? null : (RoomState) fromBytes(cursor.getBlob(2));
+                RoomSummary summary = cursor.isNull(3) ? null : (RoomSummary) fromBytes(cursor.getBlob(3));
+
+                if (null != state) {
+                    Room room = new Room();
+                    room.init(this, roomId, null);
+                    // do not wait that the live state update
+                    room.setReadyState(true);
+                    room.getLiveTimeLine().setState(state);
+                    storeRoom(room);
+
+                    if (!cursor.isNull(1)) {
+                        mRoomTokens.put(roomId, cursor.getString(1));
+                    }
+
+                    if (!cursor.isNull(4)) {
+                        RoomAccountData accountData = (RoomAccountData) fromBytes(cursor.getBlob(4));
+
+                        if (null != accountData) {
+                            room.setAccountData(accountData);
+                            mRoomAccountData.put(roomId, accountData);
+                        }
+                    }
+
+                    if (null != summary) {
+                        summary.setLatestRoomState(state);
+                    }
+                }
+
+                // the invited rooms have a summary without room
+                if (null != summary) {
+                    mRoomSummaries.put(roomId, summary);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadRooms() failed " + e.getMessage());
+            return false;
+        } catch (OutOfMemoryError oom) {
+            dispatchOOM(oom);
+            return false;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        long delta = System.currentTimeMillis() - start;
+        Log.d(LOG_TAG, "## loadRooms() : " + mRooms.size() + " rooms in " + delta + " ms");
+        mStoreStats.put("loadRooms", delta);
+
+        return true;
+    }
+
+    /**
+     * Update some columns of a room row.
+     * It must be called in the background thread.
+     *
+     * @param roomId the room id
+     * @param values the updated values
+     */
+    private void updateRoomRow(String roomId, ContentValues values) {
+        if (0 == mDatabase.update(TABLE_ROOMS, values, COLUMN_ROOM_ID + "=?", new String[]{roomId})) {
+            values.put(COLUMN_ROOM_ID, roomId);
+            mDatabase.insert(TABLE_ROOMS, null, values);
+        }
+    }
+
+    /**
+     * Save the room state and its state events.
+     * It must be called in the background thread.
+     *
+     * @param roomId the room id
+     */
+    private void saveRoomState(String roomId) {
+        Room room = mRooms.get(roomId);
+
+        if (null != room) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_STATE, toBytes(room.getState()));
+            updateRoomRow(roomId, values);
+
+            List<Event> stateEvents;
+
+            synchronized (mRoomStateEventsByRoomId) {
+                stateEvents = mRoomStateEventsByRoomId.remove(roomId);
+            }
+
+            if (null != stateEvents) {
+                for (Event event : stateEvents) {
+                    ContentValues eventValues = new ContentValues();
+                    eventValues.put(COLUMN_ROOM_ID, roomId);
+                    eventValues.put(COLUMN_EVENT_ID, event.eventId);
+                    eventValues.put(COLUMN_DATA, toBytes(event));
+                    mDatabase.insertWithOnConflict(TABLE_STATE_EVENTS, null, eventValues, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save a room summary.
+     * It must be called in the background thread.
+     *
+     * @param roomId the room id
+     */
+    private void saveSummary(String roomId) {
+        RoomSummary summary = mRoomSummaries.get(roomId);
+
+        if (null != summary) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_SUMMARY, toBytes(summary));
+            updateRoomRow(roomId, values);
+        }
+    }
+
+    /**
+     * Save a room account data.
+     * It must be called in the background thread.
+     *
+     * @param roomId the room id
+     */
+    private void saveRoomAccountData(String roomId) {
+        RoomAccountData accountData = mRoomAccountData.get(roomId);
+
+        if (null != accountData) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_ACCOUNT_DATA, toBytes(accountData));
+            updateRoomRow(roomId, values);
+        }
+    }
+
+    /**
+     * Save a room back token.
+     * It must be called in the background thread.
+     *
+     * @param roomId the room id
+     */
+    private void saveRoomToken(String roomId) {
+        String token = mRoomTokens.get(roomId);
+
+        if (null != token) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_BACK_TOKEN, token);
+            updateRoomRow(roomId, values);
+        }
+    }
+
+    @Override
+    public void storeRoom(Room room) {
+        super.storeRoom(room);
+
+        if ((null != room) && (null != room.getRoomId())) {
+            addToCommit(mRoomsToCommitForStates, room.getRoomId());
+        }
+    }
+
+    @Override
+    public void storeBackToken(String roomId, String backToken) {
+        super.storeBackToken(roomId, backToken);
+
+        if ((null != roomId) && (null != backToken)) {
+            addToCommit(mRoomsToCommitForTokens, roomId);
+        }
+    }
+
+    @Override
+    public void storeLiveStateForRoom(String roomId) {
+        super.storeLiveStateForRoom(roomId);
+
+        addToCommit(mRoomsToCommitForStates, roomId);
+    }
+
+    @Override
+    public void storeAccountData(String roomId, RoomAccountData accountData) {
+        super.storeAccountData(roomId, accountData);
+
+        if ((null != roomId) && (null != accountData) && (null != mRooms.get(roomId))) {
+            addToCommit(mRoomsToCommitForAccountData, roomId);
+        }
+    }
+
+    @Override
+    public void getRoomStateEvents(final String roomId, final SimpleApiCallback<List<Event>> callback) {
+        mStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isKilled()) {
+                    final List<Event> events = new ArrayList<>();
+                    Cursor cursor = null;
+
+                    try {
+                        cursor = mDatabase.query(TABLE_STATE_EVENTS, new String[]{COLUMN_DATA}, COLUMN_ROOM_ID + "=?", new String[]{roomId}, null, null, null);
+
+                        while (cursor.moveToNext()) {
+                            Event event = (Event) fromBytes(cursor.getBlob(0));
+
+                            if (null != event) {
+                                events.add(event);
+                            }
+                        }
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## getRoomStateEvents() failed " + e.getMessage());
+                    } finally {
+                        if (null != cursor) {
+                            cursor.close();
+                        }
+                    }
+
+                    // the ones which are not yet saved
+                    synchronized (mRoomStateEventsByRoomId) {
+                        if (mRoomStateEventsByRoomId.containsKey(roomId)) {
+                            events.addAll(mRoomStateEventsByRoomId.get(roomId));
+                        }
+                    }
+
+                    (new Handler(Looper.getMainLooper())).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess(events);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    @Override
+    public void deleteRoom(String roomId) {
+        // the room data is deleted by deleteRoomData()
+        super.deleteRoom(roomId);
+
+        // sanity check
+        if (null != roomId) {
+            removeFromCommit(mRoomsToCommitForStates, roomId);
+
+            try {
+                String[] args = new String[]{roomId};
+                mDatabase.delete(TABLE_ROOMS, COLUMN_ROOM_ID + "=?", args);
+                mDatabase.delete(TABLE_STATE_EVENTS, COLUMN_ROOM_ID + "=?", args);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## deleteRoom() failed " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void deleteRoomData(String roomId) {
+        super.deleteRoomData(roomId);
+
+        // sanity check
+        if (null != roomId) {
+            removeFromCommit(mRoomsToCommitForSummaries, roomId);
+            removeFromCommit(mRoomsToCommitForAccountData, roomId);
+            removeFromCommit(mRoomsToCommitForTokens, roomId);
+
+            String[] args = new String[]{roomId};
+
+            mDatabase.beginTransaction();
+
+            try {
+                mDatabase.delete(TABLE_EVENTS, COLUMN_ROOM_ID + "=?", args);
+                mDatabase.delete(TABLE_RECEIPTS, COLUMN_ROOM_ID + "=?", args);
+
+                ContentValues values = new ContentValues();
+                values.putNull(COLUMN_BACK_TOKEN);
+                values.putNull(COLUMN_SUMMARY);
+                values.putNull(COLUMN_ACCOUNT_DATA);
+                mDatabase.update(TABLE_ROOMS, values, COLUMN_ROOM_ID + "=?", args);
+
+                mDatabase.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## deleteRoomData() failed " + e.getMessage());
+            } finally {
+                mDatabase.endTransaction();
+            }
+
+            synchronized (mStreamOrdersLock) {
+                mStreamOrdersByRoomId.remove(roomId);
+            }
+
+            synchronized (mLocalEchoesLock) {
+                mLocalEchoesByRoomId.remove(roomId);
+            }
+        }
+    }
+
+    //================================================================================
+    // Summaries
+    //================================================================================
+
+    @Override
+    public void flushSummary(RoomSummary summary) {
+        super.flushSummary(summary);
+
+        addToCommit(mRoomsToCommitForSummaries, summary.getRoomId());
+    }
+
+    @Override
+    public void flushSummaries() {
+        super.flushSummaries();
+
+        for (String roomId : mRoomSummaries.keySet()) {
+            addToCommit(mRoomsToCommitForSummaries, roomId);
+        }
+    }
+
+    @Override
+    public RoomSummary storeSummary(String roomId, Event event, RoomState roomState, String selfUserId) {
+        RoomSummary summary = super.storeSummary(roomId, event, roomState, selfUserId);
+
+        addToCommit(mRoomsToCommitForSummaries, roomId);
+
+        return summary;
+    }
+
+    //================================================================================
+    // Users
+    //================================================================================
+
+    @Override
+    public void storeUser(User user) {
+        if (!TextUtils.equals(mCredentials.userId, user.user_id)) {
+            addToCommit(mUserIdsToCommit, user.user_id);
+        }
+        super.storeUser(user);
+    }
+
+    /**
+     * Load the users.
+     * It must be called in the background thread.
+     *
+     * @return true if the operation succeeds.
+     */
+    private boolean loadUsers() {
+        long start = System.currentTimeMillis();
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_USERS, new String[]{COLUMN_DATA}, null, null, null, null, null);
+
+            while (cursor.moveToNext()) {
+                User user = (User) fromBytes(cursor.getBlob(0));
+
+                if (null != user) {
+                    synchronized (mUsers) {
+                        User currentUser = mUsers.get(user.user_id);
+
+                        if ((null == currentUser) || // not defined
+                                currentUser.isRetrievedFromRoomMember() || // tmp user until retrieved it
+                                (currentUser.getLatestPresenceTs() < user.getLatestPresenceTs())) // newer presence
+                        {
+                            mUsers.put(user.user_id, user);
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadUsers() failed " + e.getMessage());
+            return false;
+        } catch (OutOfMemoryError oom) {
+            dispatchOOM(oom);
+            return false;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        long delta = System.currentTimeMillis() - start;
+        Log.d(LOG_TAG, "## loadUsers() : " + mUsers.size() + " users in " + delta + " ms");
+        mStoreStats.put("loadUsers", delta);
+
+        return true;
+    }
+
+    /**
+     * Save some users.
+     * It must be called in the background thread.
+     *
+     * @param userIds the user ids
+     */
+    private void saveUsers(List<String> userIds) {
+        for (String userId : userIds) {
+            User user;
+
+            synchronized (mUsers) {
+                user = mUsers.get(userId);
+            }
+
+            if (null != user) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_USER_ID, userId);
+                values.put(COLUMN_DATA, toBytes(user));
+                mDatabase.insertWithOnConflict(TABLE_USERS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+    }
+
+    //================================================================================
+    // Events
+    //================================================================================
+
+    /**
+     * Provides the stream orders bounds of a room.
+     *
+     * @param roomId the room id
+     * @return {oldest, latest} or null if the room has no event.
+     */
+    private long[] getStreamOrders(String roomId) {
+        synchronized (mStreamOrdersLock) {
+            long[] orders = mStreamOrdersByRoomId.get(roomId);
+
+            if (null == orders) {
+                Cursor cursor = null;
+
+                try {
+                    cursor = mDatabase.rawQuery("SELECT MIN(" + COLUMN_STREAM_ORDER + "), MAX(" + COLUMN_STREAM_ORDER + "), COUNT(*) FROM " + TABLE_EVENTS +
+                            " WHERE " + COLUMN_ROOM_ID + "=?", new String[]{roomId});
+
+                    if (cursor.moveToFirst() && (cursor.getLong(2) > 0)) {
+                        orders = new long[]{cursor.getLong(0), cursor.getLong(1)};
+                        mStreamOrdersByRoomId.put(roomId, orders);
+                    }
+                } finally {
+                    if (null != cursor) {
+                        cursor.close();
+                    }
+                }
+            }
+
+            return orders;
+        }
+    }
+
+    /**
+     * Compute the stream order of a new event.
+     *
+     * @param roomId   the room id
+     * @param isLatest true to insert it after the latest event, false to insert it before the oldest one.
+     * @return the stream order
+     */
+    private long nextStreamOrder(String roomId, boolean isLatest) {
+        synchronized (mStreamOrdersLock) {
+            long[] orders = getStreamOrders(roomId);
+
+            if (null == orders) {
+                orders = new long[]{0, 0};
+                mStreamOrdersByRoomId.put(roomId, orders);
+                return 0;
+            }
+
+            if (isLatest) {
+                return ++orders[1];
+            } else {
+                return --orders[0];
+            }
+        }
+    }
+
+    /**
+     * Provides the stream order of an event.
+     *
+     * @param roomId  the room id
+     * @param eventId the event id
+     * @return the stream order, null if the event is unknown.
+     */
+    private Long getStreamOrder(String roomId, String eventId) {
+        if (TextUtils.isEmpty(roomId) || TextUtils.isEmpty(eventId)) {
+            return null;
+        }
+
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_EVENTS, new String[]{COLUMN_STREAM_ORDER},
+                    COLUMN_EVENT_ID + "=? AND " + COLUMN_ROOM_ID + "=?", new String[]{eventId, roomId}, null, null, null);
+
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Build the database row of an event.
+     *
+     * @param event the event
+     * @return the row values
+     */
+    private static ContentValues eventValues(Event event) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ROOM_ID, event.roomId);
+        values.put(COLUMN_EVENT_ID, event.eventId);
+        values.put(COLUMN_TYPE, event.getType());
+        values.put(COLUMN_SENDER, event.getSender());
+        values.put(COLUMN_TOKEN, event.mToken);
+        values.put(COLUMN_SENT_STATE, (null != event.mSentState) ? event.mSentState.toString() : null);
+        values.put(COLUMN_DATA, toBytes(event));
+        return values;
+    }
+
+    /**
+     * Insert or update an event.
+     * The updated events keep their stream order.
+     *
+     * @param roomId   the room id
+     * @param event    the event
+     * @param isLatest true to insert it after the latest event, false to insert it before the oldest one.
+     */
+    private void writeEvent(String roomId, Event event, boolean isLatest) {
+        ContentValues values = eventValues(event);
+
+        if (0 == mDatabase.update(TABLE_EVENTS, values, COLUMN_EVENT_ID + "=? AND " + COLUMN_ROOM_ID + "=?", new String[]{event.eventId, roomId})) {
+            values.put(COLUMN_STREAM_ORDER, nextStreamOrder(roomId, isLatest));
+            mDatabase.insert(TABLE_EVENTS, null, values);
+        }
+
+        updateLocalEcho(roomId, event);
+    }
+
+    /**
+     * Keep a reference to the not yet sent events.
+     *
+     * @param roomId the room id
+     * @param event  the event
+     */
+    private void updateLocalEcho(String roomId, Event event) {
+        synchronized (mLocalEchoesLock) {
+            LinkedHashMap<String, Event> echoes = mLocalEchoesByRoomId.get(roomId);
+
+            if (event.mSentState != Event.SentState.SENT) {
+                if (null == echoes) {
+                    echoes = new LinkedHashMap<>();
+                    mLocalEchoesByRoomId.put(roomId, echoes);
+                }
+
+                echoes.put(event.eventId, event);
+            } else if (null != echoes) {
+                echoes.remove(event.eventId);
+
+                if (echoes.isEmpty()) {
+                    mLocalEchoesByRoomId.remove(roomId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write again the local echoes : their sent state could have been updated.
+     */
+    private void saveLocalEchoes() {
+        List<Event> echoes = new ArrayList<>();
+
+        synchronized (mLocalEchoesLock) {
+            for (LinkedHashMap<String, Event> roomEchoes : mLocalEchoesByRoomId.values()) {
+                echoes.addAll(roomEchoes.values());
+            }
+        }
+
+        if (echoes.size() > 0) {
+            mDatabase.beginTransaction();
+
+            try {
+                for (Event event : echoes) {
+                    writeEvent(event.roomId, event, true);
+                }
+                mDatabase.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## saveLocalEchoes() failed " + e.getMessage());
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Deserialize an event row.
+     * The local echoes are returned instead of their saved copy.
+     *
+     * @param roomId the room id
+     * @param data   the serialized event
+     * @return the event
+     */
+    private Event toEvent(String roomId, byte[] data) {
+        Event event = (Event) fromBytes(data);
+
+        if ((null != event) && (event.mSentState != Event.SentState.SENT)) {
+            Event echo = null;
+
+            synchronized (mLocalEchoesLock) {
+                LinkedHashMap<String, Event> echoes = mLocalEchoesByRoomId.get(roomId);
+
+                if (null != echoes) {
+                    echo = echoes.get(event.eventId);
+                }
+            }
+
+            if (null != echo) {
+                event = echo;
+            } else {
+                // the event was not sent before the application was killed
+                event.mSentState = Event.SentState.UNDELIVERABLE;
+            }
+        }
+
+        return event;
+    }
+
+    /**
+     * Run an events query.
+     *
+     * @param roomId    the room id
+     * @param selection the selection
+     * @param args      the selection arguments
+     * @param orderBy   the order
+     * @param limit     the limit (null for no limit)
+     * @return the events list
+     */
+    private List<Event> queryEvents(String roomId, String selection, String[] args, String orderBy, String limit) {
+        List<Event> events = new ArrayList<>();
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_EVENTS, new String[]{COLUMN_DATA}, selection, args, null, null, orderBy, limit);
+
+            while (cursor.moveToNext()) {
+                Event event = toEvent(roomId, cursor.getBlob(0));
+
+                if (null != event) {
+                    events.add(event);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## queryEvents() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            dispatchOOM(oom);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return events;
+    }
+
+    @Override
+    public void storeLiveRoomEvent(Event event) {
+        if ((null != event) && (null != event.roomId) && (null != event.eventId)) {
+            try {
+                writeEvent(event.roomId, event, true);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## storeLiveRoomEvent() failed " + e.getMessage());
+            } catch (OutOfMemoryError oom) {
+                dispatchOOM(oom);
+            }
+        }
+    }
+
+    @Override
+    public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, EventTimeline.Direction direction) {
+        if ((null == roomId) || (null == eventsResponse) || (null == eventsResponse.chunk)) {
+            return;
+        }
+
+        mDatabase.beginTransaction();
+
+        try {
+            if (direction == EventTimeline.Direction.FORWARDS) {
+                for (Event event : eventsResponse.chunk) {
+                    writeEvent(roomId, event, true);
+                }
+
+                storeBackToken(roomId, eventsResponse.start);
+            } else {
+                // the chunk is ordered from the latest to the oldest event
+                for (Event event : eventsResponse.chunk) {
+                    writeEvent(roomId, event, false);
+                }
+
+                // the room history starts from the end of this chunk
+                if (!TextUtils.isEmpty(eventsResponse.end)) {
+                    storeBackToken(roomId, eventsResponse.end);
+                } else if (!mRoomTokens.containsKey(roomId) || TextUtils.isEmpty(mRoomTokens.get(roomId))) {
+                    storeBackToken(roomId, eventsResponse.start);
+                }
+            }
+
+            mDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## storeRoomEvents() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            dispatchOOM(oom);
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        // the stream orders are not valid if the transaction failed
+        synchronized (mStreamOrdersLock) {
+            mStreamOrdersByRoomId.remove(roomId);
+        }
+    }
+
+    @Override
+    public boolean doesEventExist(String eventId, String roomId) {
+        try {
+            return null != getStreamOrder(roomId, eventId);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## doesEventExist() failed " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public Event getEvent(String eventId, String roomId) {
+        if (TextUtils.isEmpty(eventId) || TextUtils.isEmpty(roomId)) {
+            return null;
+        }
+
+        List<Event> events = queryEvents(roomId, COLUMN_EVENT_ID + "=? AND " + COLUMN_ROOM_ID + "=?", new String[]{eventId, roomId}, null, null);
+        return (events.size() > 0) ? events.get(0) : null;
+    }
+
+    @Override
+    public void deleteEvent(Event event) {
+        if ((null != event) && (null != event.roomId) && (event.eventId != null)) {
+            try {
+                mDatabase.delete(TABLE_EVENTS, COLUMN_EVENT_ID + "=? AND " + COLUMN_ROOM_ID + "=?", new String[]{event.eventId, event.roomId});
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## deleteEvent() failed " + e.getMessage());
+            }
+
+            synchronized (mLocalEchoesLock) {
+                LinkedHashMap<String, Event> echoes = mLocalEchoesByRoomId.get(event.roomId);
+
+                if (null != echoes) {
+                    echoes.remove(event.eventId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteAllRoomMessages(String roomId, boolean keepUnsent) {
+        super.deleteAllRoomMessages(roomId, keepUnsent);
+
+        // sanity check
+        if (null != roomId) {
+            try {
+                if (keepUnsent) {
+                    List<String> unsentEventIds = new ArrayList<>();
+
+                    synchronized (mLocalEchoesLock) {
+                        LinkedHashMap<String, Event> echoes = mLocalEchoesByRoomId.get(roomId);
+
+                        if (null != echoes) {
+                            unsentEventIds.addAll(echoes.keySet());
+                        }
+                    }
+
+                    StringBuilder selection = new StringBuilder(COLUMN_ROOM_ID + "=?");
+                    List<String> args = new ArrayList<>();
+                    args.add(roomId);
+
+                    for (String eventId : unsentEventIds) {
+                        selection.append(" AND " + COLUMN_EVENT_ID + "<>?");
+                        args.add(eventId);
+                    }
+
+                    mDatabase.delete(TABLE_EVENTS, selection.toString(), args.toArray(new String[args.size()]));
+                } else {
+                    mDatabase.delete(TABLE_EVENTS, COLUMN_ROOM_ID + "=?", new String[]{roomId});
+
+                    synchronized (mLocalEchoesLock) {
+                        mLocalEchoesByRoomId.remove(roomId);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## deleteAllRoomMessages() failed " + e.getMessage());
+            }
+
+            synchronized (mStreamOrdersLock) {
+                mStreamOrdersByRoomId.remove(roomId);
+            }
+        }
+    }
+
+    /**
+     * Provides the latest stored events of a room.
+     * The older ones are provided by getEarlierMessages().
+     *
+     * @param roomId The room ID
+     * @return A collection of events. null if there is no cached event.
+     */
+    @Override
+    public Collection<Event> getRoomMessages(final String roomId) {
+        // sanity check
+        if (null == roomId) {
+            return null;
+        }
+
+        List<Event> events = queryEvents(roomId, COLUMN_ROOM_ID + "=?", new String[]{roomId}, COLUMN_STREAM_ORDER + " DESC", String.valueOf(MAX_ROOM_MESSAGES_COUNT));
+
+        if (events.size() == 0) {
+            return null;
+        }
+
+        Collections.reverse(events);
+        return events;
+    }
+
+    @Override
+    public Event getOldestEvent(String roomId) {
+        if (null == roomId) {
+            return null;
+        }
+
+        List<Event> events = queryEvents(roomId, COLUMN_ROOM_ID + "=?", new String[]{roomId}, COLUMN_STREAM_ORDER + " ASC", "1");
+        return (events.size() > 0) ? events.get(0) : null;
+    }
+
+    @Override
+    public Event getLatestEvent(String roomId) {
+        if (null == roomId) {
+            return null;
+        }
+
+        List<Event> events = queryEvents(roomId, COLUMN_ROOM_ID + "=?", new String[]{roomId}, COLUMN_STREAM_ORDER + " DESC", "1");
+        return (events.size() > 0) ? events.get(0) : null;
+    }
+
+    @Override
+    public TokensChunkResponse<Event> getEarlierMessages(final String roomId, final String fromToken, final int limit) {
+        // sanity checks
+        if ((null == roomId) || (limit <= 0)) {
+            return null;
+        }
+
+        // reach the end of the stored items
+        if (TextUtils.equals(mRoomTokens.get(roomId), fromToken)) {
+            return null;
+        }
+
+        long upperOrder = Long.MAX_VALUE;
+
+        if (null != fromToken) {
+            Cursor cursor = null;
+
+            try {
+                cursor = mDatabase.query(TABLE_EVENTS, new String[]{COLUMN_STREAM_ORDER}, COLUMN_ROOM_ID + "=? AND " + COLUMN_TOKEN + "=?",
+                        new String[]{roomId, fromToken}, null, null, COLUMN_STREAM_ORDER + " ASC", "1");
+
+                // unknown token
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+
+                upperOrder = cursor.getLong(0);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## getEarlierMessages() failed " + e.getMessage());
+                return null;
+            } finally {
+                if (null != cursor) {
+                    cursor.close();
+                }
+            }
+        }
+
+        ArrayList<Event> subEventsList = new ArrayList<>();
+
+        // loop until to find an event with a token
+        while (true) {
+            List<Event> events = queryEvents(roomId, COLUMN_ROOM_ID + "=? AND " + COLUMN_STREAM_ORDER + "<?",
+                    new String[]{roomId, String.valueOf(upperOrder)}, COLUMN_STREAM_ORDER + " DESC", String.valueOf(limit));
+
+            if (events.size() == 0) {
+                break;
+            }
+
+            boolean hasToken = false;
+
+            for (Event event : events) {
+                subEventsList.add(event);
+
+                if ((subEventsList.size() >= limit) && (null != event.mToken)) {
+                    hasToken = true;
+                    break;
+                }
+            }
+
+            if (hasToken || (events.size() < limit)) {
+                break;
+            }
+
+            Long order = getStreamOrder(roomId, events.get(events.size() - 1).eventId);
+
+            if (null == order) {
+                break;
+            }
+
+            upperOrder = order;
+        }
+
+        // no more stored events
+        if (subEventsList.size() == 0) {
+            return null;
+        }
+
+        TokensChunkResponse<Event> response = new TokensChunkResponse<>();
+        response.chunk = subEventsList;
+
+        Event firstEvent = subEventsList.get(0);
+        Event lastEvent = subEventsList.get(subEventsList.size() - 1);
+
+        response.start = firstEvent.mToken;
+
+        // unknown last event token, use the latest known one
+        if ((null == lastEvent.mToken) && !TextUtils.isEmpty(mRoomTokens.get(roomId))) {
+            lastEvent.mToken = mRoomTokens.get(roomId);
+        }
+
+        response.end = lastEvent.mToken;
+
+        return response;
+    }
+
+    /**
+     * Provides the events which are not sent, from the oldest to the latest one.
+     * The local echoes are returned as they are in memory,
+     * the other ones were not sent before the application was killed and they are undeliverable.
+     *
+     * @param roomId the room id
+     * @return the events list
+     */
+    private List<Event> getNotSentEvents(String roomId) {
+        return queryEvents(roomId, COLUMN_ROOM_ID + "=? AND " + COLUMN_SENT_STATE + "<>?",
+                new String[]{roomId, Event.SentState.SENT.toString()}, COLUMN_STREAM_ORDER + " ASC", null);
+    }
+
+    @Override
+    public List<Event> getLatestUnsentEvents(String roomId) {
+        if (null == roomId) {
+            return null;
+        }
+
+        List<Event> events = new ArrayList<>();
+
+        for (Event event : getNotSentEvents(roomId)) {
+            if (event.mSentState == Event.SentState.WAITING_RETRY) {
+                events.add(event);
+            }
+        }
+
+        return events;
+    }
+
+    @Override
+    public List<Event> getUndeliverableEvents(String roomId) {
+        if (null == roomId) {
+            return null;
+        }
+
+        List<Event> events = new ArrayList<>();
+
+        for (Event event : getNotSentEvents(roomId)) {
+            if (event.isUndeliverable()) {
+                events.add(event);
+            }
+        }
+
+        return events;
+    }
+
+    @Override
+    public List<Event> getUnknownDeviceEvents(String roomId) {
+        if (null == roomId) {
+            return null;
+        }
+
+        List<Event> events = new ArrayList<>();
+
+        for (Event event : getNotSentEvents(roomId)) {
+            if (event.isUnkownDevice()) {
+                events.add(event);
+            }
+        }
+
+        return events;
+    }
+
+    //================================================================================
+    // Receipts
+    //================================================================================
+
+    /**
+     * Read a receipt row.
+     *
+     * @param cursor the cursor pointing to (user_id, event_id, origin_server_ts)
+     * @return the receipt
+     */
+    private static ReceiptData toReceipt(Cursor cursor) {
+        return new ReceiptData(cursor.getString(0), cursor.getString(1), cursor.getLong(2));
+    }
+
+    @Override
+    public List<ReceiptData> getEventReceipts(String roomId, String eventId, boolean excludeSelf, boolean sort) {
+        ArrayList<ReceiptData> receipts = new ArrayList<>();
+
+        if (null == roomId) {
+            return receipts;
+        }
+
+        StringBuilder selection = new StringBuilder(COLUMN_ROOM_ID + "=?");
+        List<String> args = new ArrayList<>();
+        args.add(roomId);
+
+        if (null != eventId) {
+            selection.append(" AND " + COLUMN_EVENT_ID + "=?");
+            args.add(eventId);
+
+            if (excludeSelf) {
+                selection.append(" AND " + COLUMN_USER_ID + "<>?");
+                args.add(mCredentials.userId);
+            }
+        }
+
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_RECEIPTS, new String[]{COLUMN_USER_ID, COLUMN_EVENT_ID, COLUMN_ORIGIN_SERVER_TS},
+                    selection.toString(), args.toArray(new String[args.size()]), null, null,
+                    sort ? (COLUMN_ORIGIN_SERVER_TS + " DESC") : null);
+
+            while (cursor.moveToNext()) {
+                receipts.add(toReceipt(cursor));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getEventReceipts() failed " + e.getMessage());
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+
+        return receipts;
+    }
+
+    @Override
+    public boolean storeReceipt(ReceiptData receipt, String roomId) {
+        // sanity check
+        if (TextUtils.isEmpty(roomId) || (null == receipt) || (null == receipt.userId)) {
+            return false;
+        }
+
+        try {
+            ReceiptData curReceipt = getReceipt(roomId, receipt.userId);
+
+            if (null != curReceipt) {
+                if (TextUtils.equals(receipt.eventId, curReceipt.eventId)) {
+                    return false;
+                }
+
+                if (receipt.originServerTs < curReceipt.originServerTs) {
+                    return false;
+                }
+
+                // check if the read receipt is not for an already read message
+                if (TextUtils.equals(receipt.userId, mCredentials.userId)) {
+                    Long newEventOrder = getStreamOrder(roomId, receipt.eventId);
+                    Long curEventOrder = getStreamOrder(roomId, curReceipt.eventId);
+
+                    if ((null != newEventOrder) && (null != curEventOrder) && (curEventOrder >= newEventOrder)) {
+                        Log.d(LOG_TAG, "## storeReceipt() : the read message is already read");
+                        return false;
+                    }
+                }
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_ROOM_ID, roomId);
+            values.put(COLUMN_USER_ID, receipt.userId);
+            values.put(COLUMN_EVENT_ID, receipt.eventId);
+            values.put(COLUMN_ORIGIN_SERVER_TS, receipt.originServerTs);
+            mDatabase.insertWithOnConflict(TABLE_RECEIPTS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## storeReceipt() failed " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public ReceiptData getReceipt(String roomId, String userId) {
+        // sanity checks
+        if (TextUtils.isEmpty(roomId) || TextUtils.isEmpty(userId)) {
+            return null;
+        }
+
+        Cursor cursor = null;
+
+        try {
+            cursor = mDatabase.query(TABLE_RECEIPTS, new String[]{COLUMN_USER_ID, COLUMN_EVENT_ID, COLUMN_ORIGIN_SERVER_TS},
+                    COLUMN_ROOM_ID + "=? AND " + COLUMN_USER_ID + "=?", new String[]{roomId, userId}, null, null, null);
+
+            return cursor.moveToFirst() ? toReceipt(cursor) : null;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getReceipt() failed " + e.getMessage());
+            return null;
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isEventRead(String roomId, String userId, String eventIdTotest) {
+        // sanity check
+        if ((null == roomId) || (null == userId)) {
+            return false;
+        }
+
+        ReceiptData receipt = getReceipt(roomId, userId);
+
+        if (null == receipt) {
+            return false;
+        }
+
+        try {
+            Long eventOrder = getStreamOrder(roomId, eventIdTotest);
+
+            // the event is not known so assume it is has been flushed
+            if (null == eventOrder) {
+                return true;
+            }
+
+            Long readOrder = getStreamOrder(roomId, receipt.eventId);
+
+            // the message has been read if it was sent before the latest read one
+            return (null != readOrder) && (eventOrder <= readOrder);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## isEventRead() failed " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Build the selection of the events sent after an event.
+     * The events sent by the user and the member events are ignored.
+     *
+     * @param roomId       the room id
+     * @param eventId      the event id (null to select all the events)
+     * @param allowedTypes the allowed event types (null to allow anyone)
+     * @param args         the selection arguments
+     * @return the selection
+     */
+    private String eventsAfterSelection(String roomId, String eventId, List<String> allowedTypes, List<String> args) {
+        StringBuilder selection = new StringBuilder(COLUMN_ROOM_ID + "=?");
+        args.add(roomId);
+
+        Long order = getStreamOrder(roomId, eventId);
+
+        if (null != order) {
+            selection.append(" AND " + COLUMN_STREAM_ORDER + ">?");
+            args.add(String.valueOf(order));
+        }
+
+        selection.append(" AND (" + COLUMN_SENDER + " IS NULL OR " + COLUMN_SENDER + "<>?)");
+        args.add(mCredentials.userId);
+
+        selection.append(" AND " + COLUMN_TYPE + "<>?");
+        args.add(Event.EVENT_TYPE_STATE_ROOM_MEMBER);
+
+        if (null != allowedTypes) {
+            selection.append(" AND " + COLUMN_TYPE + " IN (");
+
+            for (int i = 0; i < allowedTypes.size(); i++) {
+                selection.append((i == 0) ? "?" : ",?");
+                args.add(allowedTypes.get(i));
+            }
+
+            selection.append(")");
+        }
+
+        return selection.toString();
+    }
+
+    @Override
+    public int eventsCountAfter(String roomId, String eventId) {
+        if (null == roomId) {
+            return 0;
+        }
+
+        try {
+            List<String> args = new ArrayList<>();
+            String selection = eventsAfterSelection(roomId, eventId, null, args);
+            return (int) DatabaseUtils.queryNumEntries(mDatabase, TABLE_EVENTS, selection, args.toArray(new String[args.size()]));
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## eventsCountAfter() failed " + e.getMessage());
+            return 0;
+        }
+    }
+
+    @Override
+    public List<Event> unreadEvents(String roomId, List<String> types) {
+        List<Event> res = new ArrayList<>();
+        ReceiptData receipt = getReceipt(roomId, mCredentials.userId);
+
+        if (null != receipt) {
+            try {
+                List<String> args = new ArrayList<>();
+                String selection = eventsAfterSelection(roomId, receipt.eventId, types, args);
+                res = queryEvents(roomId, selection, args.toArray(new String[args.size()]), COLUMN_STREAM_ORDER + " ASC", null);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## unreadEvents() failed " + e.getMessage());
+            }
+        }
+
+        return res;
+    }
+
+    //================================================================================
+    // Serialization
+    //================================================================================
+
+    /**
+     * Serialize an object.
+     *
+     * @param object the object
+     * @return the serialized object
+     */
+    private static byte[] toBytes(Object object) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(object);
+            out.close();
+            return bos.toByteArray();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## toBytes() failed " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deserialize an object.
+     *
+     * @param data the serialized object
+     * @return the object, null if it cannot be deserialized.
+     */
+    private static Object fromBytes(byte[] data) {
+        if (null == data) {
+            return null;
+        }
+
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            Object object = in.readObject();
+            in.close();
+            return object;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## fromBytes() failed " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,664 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded index of the medias downloaded in a cache folder.
+ *
+ * The index lists the cached files in access order, so the lookups do not hit the file system
+ * and the least recently used files are deleted when the folder exceeds its max size.
+ * It is persisted in a journal file of the folder : each update is appended to it
+ * and the journal is rewritten when it contains too many obsolete lines.
+ *
+ * Only the downloaded medias are indexed : the medias saved to be sent are never evicted.
+ * The partial files of the pending or interrupted downloads are indexed too, so they are counted
+ * in the cache size, and they are deleted when they have not been updated for PARTIAL_FILE_MAX_AGE_MS.
+ */
+class MXMediaDiskCache {
+    private static final String LOG_TAG = "MXMediaDiskCache";
+
+    // the journal file name
+    private static final String JOURNAL_FILE_NAME = "mxmedia.journal";
+    private static final String JOURNAL_TMP_FILE_NAME = "mxmedia.journal.tmp";
+    private static final String JOURNAL_HEADER = "MXMediaDiskCache 1";
+
+    // the journal operations
+    private static final String ADD_OPERATION = "A";
+    private static final String READ_OPERATION = "R";
+    private static final String DELETE_OPERATION = "D";
+
+    // the journal is rewritten when it contains more than this count of obsolete lines
+    private static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+
+    // the downloaded medias file names prefix (see MXMediaDownloadWorkerTask.buildFileName)
+    private static final String MEDIA_FILE_NAME_PREFIX = "file_";
+
+    // the partial downloads file names suffix (see MXMediaDownloadWorkerTask)
+    private static final String PARTIAL_FILE_NAME_SUFFIX = ".tmp";
+
+    // the partial downloads files which are not updated for this delay are deleted
+    static final long PARTIAL_FILE_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+    // the disk caches by folder path
+    private static final Map<String, MXMediaDiskCache> mDiskCacheByFolder = new HashMap<>();
+
+    // the eviction thread, shared by all the disk caches
+    private static HandlerThread mEvictionHandlerThread = null;
+    private static Handler mEvictionHandler = null;
+
+    // the cache folder
+    private final File mFolder;
+
+    // the cached files sizes by file name, in access order
+    private final LinkedHashMap<String, Long> mSizeByFileName = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the cached files total size
+    private long mSize = 0;
+
+    // the max size, the least recently used files are deleted when it is exceeded
+    private long mMaxSize = Long.MAX_VALUE;
+
+    // tell if the index has been loaded
+    private boolean mIsIndexLoaded = false;
+
+    // the journal writer
+    private Writer mJournalWriter = null;
+
+    // the journal lines which do not describe a cached file
+    private int mObsoleteJournalLinesCount = 0;
+
+    // tell if an eviction is pending
+    private boolean mIsTrimPending = false;
+
+    /**
+     * Provides the disk cache of a folder.
+     *
+     * @param folder the cache folder
+     * @return the disk cache
+     */
+    static MXMediaDiskCache getInstance(File folder) {
+        synchronized (mDiskCacheByFolder) {
+            MXMediaDiskCache diskCache = mDiskCacheByFolder.get(folder.getAbsolutePath());
+
+            if (null == diskCache) {
+                diskCache = new MXMediaDiskCache(folder);
+                mDiskCacheByFolder.put(folder.getAbsolutePath(), diskCache);
+            }
+
+            return diskCache;
+        }
+    }
+
+    /**
+     * Provides the disk cache of a folder if it has been created.
+     *
+     * @param folder the cache folder
+     * @return the disk cache, null if the folder is not managed
+     */
+    static MXMediaDiskCache findInstance(File folder) {
+        // sanity check
+        if (null == folder) {
+            return null;
+        }
+
+        synchronized (mDiskCacheByFolder) {
+            return mDiskCacheByFolder.get(folder.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Post a task on the eviction thread.
+     *
+     * @param task the task
+     */
+    private static void postEvictionTask(Runnable task) {
+        synchronized (mDiskCacheByFolder) {
+            if (null == mEvictionHandlerThread) {
+                mEvictionHandlerThread = new HandlerThread("MXMediaDiskCache", Thread.MIN_PRIORITY);
+                mEvictionHandlerThread.start();
+            }
+
+            // the handler thread was not yet ready
+            if (null == mEvictionHandler) {
+                mEvictionHandler = new Handler(mEvictionHandlerThread.getLooper());
+            }
+        }
+
+        mEvictionHandler.post(task);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param folder the cache folder
+     */
+    private MXMediaDiskCache(File folder) {
+        mFolder = folder;
+    }
+
+    //==============================================================================================================
+    // Index
+    //==============================================================================================================
+
+    /**
+     * Load the index in background.
+     */
+    void preload() {
+        postEvictionTask(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MXMediaDiskCache.this) {
+                    loadIndex();
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the index if it is not yet done.
+     * The index is read from the journal, or built from the folder content when there is no journal.
+     */
+    private void loadIndex() {
+        if (mIsIndexLoaded) {
+            return;
+        }
+
+        mIsIndexLoaded = true;
+
+        long t0 = System.currentTimeMillis();
+
+        mSizeByFileName.clear();
+        mSize = 0;
+        mObsoleteJournalLinesCount = 0;
+
+        File journalFile = new File(mFolder, JOURNAL_FILE_NAME);
+        boolean isLoaded = false;
+
+        if (journalFile.exists()) {
+            isLoaded = readJournal(journalFile);
+        }
+
+        if (!isLoaded) {
+            buildIndexFromFolder();
+        }
+
+        try {
+            if (!isLoaded) {
+                rewriteJournal();
+            } else {
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## loadIndex() : cannot open the journal " + e.getMessage());
+        }
+
+        expirePartialFiles();
+
+        Log.d(LOG_TAG, "## loadIndex() : " + mSizeByFileName.size() + " files (" + mSize + " bytes) in " + (System.currentTimeMillis() - t0) + " ms");
+
+        trimToSizeInBackground();
+    }
+
+    /**
+     * Read the journal file.
+     *
+     * @param journalFile the journal file
+     * @return true if the journal has been read
+     */
+    private boolean readJournal(File journalFile) {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                Log.e(LOG_TAG, "## readJournal() : unexpected header");
+                return false;
+            }
+
+            String line;
+
+            // a truncated line is ignored
+            while (null != (line = reader.readLine())) {
+                String[] fields = line.split(" ");
+
+                if ((3 == fields.length) && ADD_OPERATION.equals(fields[0])) {
+                    Long formerSize = mSizeByFileName.put(fields[1], Long.parseLong(fields[2]));
+
+                    if (null != formerSize) {
+                        mSize -= formerSize;
+                        mObsoleteJournalLinesCount++;
+                    }
+
+                    mSize += Long.parseLong(fields[2]);
+                } else if ((2 == fields.length) && READ_OPERATION.equals(fields[0])) {
+                    // move it to the most recently used position
+                    mSizeByFileName.get(fields[1]);
+                    mObsoleteJournalLinesCount++;
+                } else if ((2 == fields.length) && DELETE_OPERATION.equals(fields[0])) {
+                    Long formerSize = mSizeByFileName.remove(fields[1]);
+
+                    if (null != formerSize) {
+                        mSize -= formerSize;
+                        mObsoleteJournalLinesCount++;
+                    }
+
+                    mObsoleteJournalLinesCount++;
+                }
+            }
+
+            return true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readJournal() : failed " + e.getMessage());
+
+            mSizeByFileName.clear();
+            mSize = 0;
+            mObsoleteJournalLinesCount = 0;
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## readJournal() : close failed " + e.getMessage());
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Build the index from the folder content.
+     * It is only done once, when the folder was filled before the journal existed.
+     */
+    private void buildIndexFromFolder() {
+        File[] files = mFolder.listFiles();
+
+        if (null == files) {
+            return;
+        }
+
+        final Map<File, Long> lastModifiedByFile = new HashMap<>();
+
+        for (File file : files) {
+            lastModifiedByFile.put(file, file.lastModified());
+        }
+
+        // the oldest files are the least recently used ones
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsLastModified = lastModifiedByFile.get(lhs);
+                long rhsLastModified = lastModifiedByFile.get(rhs);
+                return (lhsLastModified < rhsLastModified) ? -1 : ((lhsLastModified == rhsLastModified) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            String fileName = file.getName();
+
+            // the partial downloads are indexed to be expired
+            if (file.isFile() && fileName.startsWith(MEDIA_FILE_NAME_PREFIX)) {
+                mSizeByFileName.put(fileName, file.length());
+                mSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Delete the partial download files which have not been updated for PARTIAL_FILE_MAX_AGE_MS.
+     * They belong to downloads which have been interrupted and never resumed.
+     */
+    private void expirePartialFiles() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        Iterator<Map.Entry<String, Long>> iterator = mSizeByFileName.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String fileName = entry.getKey();
+
+            if (fileName.endsWith(PARTIAL_FILE_NAME_SUFFIX)) {
+                File file = new File(mFolder, fileName);
+
+                // lastModified() returns 0 when the file does not exist
+                if ((now - file.lastModified()) > PARTIAL_FILE_MAX_AGE_MS) {
+                    if (!file.delete() && file.exists()) {
+                        Log.e(LOG_TAG, "## expirePartialFiles() : cannot delete " + fileName);
+                    }
+
+                    mSize -= entry.getValue();
+                    iterator.remove();
+
+                    appendToJournal(DELETE_OPERATION + " " + fileName, false);
+                    mObsoleteJournalLinesCount += 2;
+                    count++;
+                }
+            }
+        }
+
+        if (count > 0) {
+            Log.d(LOG_TAG, "## expirePartialFiles() : " + count + " partial files deleted in " + mFolder.getName());
+            flushJournal();
+            compactJournalIfNeeded();
+        }
+    }
+
+    /**
+     * Rewrite the journal from the index.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    private void rewriteJournal() throws IOException {
+        if (null != mJournalWriter) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+
+        if (!mFolder.exists()) {
+            mFolder.mkdirs();
+        }
+
+        File tmpJournalFile = new File(mFolder, JOURNAL_TMP_FILE_NAME);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpJournalFile), "UTF-8"));
+
+        try {
+            writer.write(JOURNAL_HEADER + "\n");
+
+            // the entries are written from the least recently used one
+            for (Map.Entry<String, Long> entry : mSizeByFileName.entrySet()) {
+                writer.write(ADD_OPERATION + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        File journalFile = new File(mFolder, JOURNAL_FILE_NAME);
+
+        if (!tmpJournalFile.renameTo(journalFile)) {
+            throw new IOException("cannot rename " + tmpJournalFile);
+        }
+
+        mObsoleteJournalLinesCount = 0;
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+    }
+
+    /**
+     * Append an operation to the journal.
+     *
+     * @param line  the journal line
+     * @param flush true to flush the journal (i.e. the operation must not be lost)
+     */
+    private void appendToJournal(String line, boolean flush) {
+        if (null == mJournalWriter) {
+            return;
+        }
+
+        try {
+            mJournalWriter.write(line + "\n");
+
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## appendToJournal() : failed " + e.getMessage());
+        }
+
+        if (flush) {
+            flushJournal();
+        }
+    }
+
+    /**
+     * Flush the journal.
+     */
+    private void flushJournal() {
+        if (null == mJournalWriter) {
+            return;
+        }
+
+        try {
+            mJournalWriter.flush();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## flushJournal() : failed " + e.getMessage());
+        }
+    }
+
+    //==============================================================================================================
+    // Cache
+    //==============================================================================================================
+
+    /**
+     * Provides a cached file.
+     * The lookup is done in the index, the file system is not accessed.
+     *
+     * @param fileName the file name
+     * @return the file, null if it is not cached
+     */
+    synchronized File get(String fileName) {
+        loadIndex();
+
+        if (null == mSizeByFileName.get(fileName)) {
+            return null;
+        }
+
+        appendToJournal(READ_OPERATION + " " + fileName, false);
+        mObsoleteJournalLinesCount++;
+        compactJournalIfNeeded();
+
+        return new File(mFolder, fileName);
+    }
+
+    /**
+     * Tells if a file is cached.
+     * Unlike get(), the file is not moved to the most recently used position.
+     *
+     * @param fileName the file name
+     * @return true if it is cached
+     */
+    synchronized boolean contains(String fileName) {
+        loadIndex();
+        return mSizeByFileName.containsKey(fileName);
+    }
+
+    /**
+     * A file has been written in the cache folder.
+     *
+     * @param fileName the file name
+     */
+    synchronized void put(String fileName) {
+        loadIndex();
+
+        long size = new File(mFolder, fileName).length();
+        Long formerSize = mSizeByFileName.put(fileName, size);
+
+        if (null != formerSize) {
+            mSize -= formerSize;
+            mObsoleteJournalLinesCount++;
+        }
+
+        mSize += size;
+
+        appendToJournal(ADD_OPERATION + " " + fileName + " " + size, true);
+        compactJournalIfNeeded();
+
+        trimToSizeInBackground();
+    }
+
+    /**
+     * Remove a file from the cache.
+     *
+     * @param fileName the file name
+     */
+    synchronized void remove(String fileName) {
+        loadIndex();
+
+        Long size = mSizeByFileName.remove(fileName);
+
+        if (null != size) {
+            mSize -= size;
+
+            File file = new File(mFolder, fileName);
+
+            if (!file.delete() && file.exists()) {
+                Log.e(LOG_TAG, "## remove() : cannot delete " + fileName);
+            }
+
+            appendToJournal(DELETE_OPERATION + " " + fileName, true);
+            mObsoleteJournalLinesCount += 2;
+            compactJournalIfNeeded();
+        }
+    }
+
+    /**
+     * The folder has been deleted : reset the index.
+     */
+    synchronized void clear() {
+        if (null != mJournalWriter) {
+            try {
+                mJournalWriter.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## clear() : close failed " + e.getMessage());
+            }
+
+            mJournalWriter = null;
+        }
+
+        // the index is rebuilt at the next access
+        mIsIndexLoaded = false;
+        mSizeByFileName.clear();
+        mSize = 0;
+        mObsoleteJournalLinesCount = 0;
+    }
+
+    /**
+     * @return the cached files total size in bytes
+     */
+    synchronized long size() {
+        loadIndex();
+        return mSize;
+    }
+
+    /**
+     * @return the max size in bytes
+     */
+    synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Update the max size.
+     *
+     * @param maxSize the max size in bytes
+     */
+    synchronized void setMaxSize(long maxSize) {
+        mMaxSize = Math.max(0, maxSize);
+        trimToSizeInBackground();
+    }
+
+    /**
+     * Rewrite the journal when it contains too many obsolete lines.
+     */
+    private void compactJournalIfNeeded() {
+        if ((mObsoleteJournalLinesCount > JOURNAL_COMPACT_THRESHOLD) && (mObsoleteJournalLinesCount > mSizeByFileName.size())) {
+            try {
+                rewriteJournal();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## compactJournalIfNeeded() : failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used files in background if the max size is exceeded.
+     */
+    private void trimToSizeInBackground() {
+        if (!mIsTrimPending && mIsIndexLoaded && (mSize > mMaxSize)) {
+            mIsTrimPending = true;
+
+            postEvictionTask(new Runnable() {
+                @Override
+                public void run() {
+                    trimToSize();
+                }
+            });
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache size fits the max size.
+     */
+    synchronized void trimToSize() {
+        loadIndex();
+        mIsTrimPending = false;
+
+        expirePartialFiles();
+
+        if (mSize <= mMaxSize) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        int count = 0;
+
+        Iterator<Map.Entry<String, Long>> iterator = mSizeByFileName.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String fileName = entry.getKey();
+
+            // a pending download tmp file has been indexed when the download started
+            // so it is one of the most recently used files
+            File file = new File(mFolder, fileName);
+
+            if (!file.delete() && file.exists()) {
+                Log.e(LOG_TAG, "## trimToSize() : cannot delete " + fileName);
+            }
+
+            mSize -= entry.getValue();
+            iterator.remove();
+
+            appendToJournal(DELETE_OPERATION + " " + fileName, false);
+            mObsoleteJournalLinesCount += 2;
+            count++;
+        }
+
+        flushJournal();
+        compactJournalIfNeeded();
+
+        Log.d(LOG_TAG, "## trimToSize() : " + count + " files deleted in " + (System.currentTimeMillis() - t0) + " ms, " + mSize + " bytes remaining in " + mFolder.getName());
+    }
+}
@@ -36,7 +36,6 @@ import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.crypto.MXEncryptedAttachments;
 import org.matrix.androidsdk.listeners.IMXMediaDownloadListener;
 import org.matrix.androidsdk.rest.model.EncryptedFileInfo;
-import org.matrix.androidsdk.ssl.CertUtil;
 import org.matrix.androidsdk.util.ImageUtils;
 
 import java.io.BufferedReader;
@@ -45,8 +44,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.MessageDigest;
@@ -55,12 +59,10 @@ import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import javax.net.ssl.HttpsURLConnection;
-
 /**
  * This class manages the media downloading in background.
  */
-class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListener.DownloadStats, Void> {
+class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListener.DownloadStats, Void> implements MXMediaTaskScheduler.ScheduledTask {
 
     private static final String LOG_TAG = "MXMediaDwndWorkerTk";
 
@@ -132,6 +134,11 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      */
     private boolean mIsDone = false;
 
+    /**
+     * Tells if the download start has been dispatched
+     */
+    private boolean mIsDownloadStarted = false;
+
     /**
      * Error message.
      */
@@ -158,6 +165,25 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     private static final int DOWNLOAD_TIME_OUT = 10 * 1000;
     private static final int DOWNLOAD_BUFFER_READ_SIZE = 1024 * 32;
 
+    /**
+     * The interrupted downloads are resumed from the tmp file length.
+     * The encrypted medias are decrypted in a dedicated tmp file once they are fully downloaded.
+     * These partial files are indexed by the disk cache which expires them.
+     */
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+    private static final String RESUME_INFO_FILE_SUFFIX = ".resume.tmp";
+    private static final String DECRYPTED_FILE_SUFFIX = ".decrypted.tmp";
+    private static final int DOWNLOAD_ATTEMPTS_COUNT = 3;
+    private static final long DOWNLOAD_RETRY_DELAY_MS = 1000;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The download attempt status.
+     */
+    private static final int DOWNLOAD_COMPLETED = 0;
+    private static final int DOWNLOAD_INTERRUPTED = 1;
+    private static final int DOWNLOAD_FAILED = 2;
+
 
     //==============================================================================================================
     // static methods
@@ -347,10 +373,13 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
                     filename = buildFileName(url, mimeType);
                 }
 
+                // the lookup is done in the folder index if it exists
+                MXMediaDiskCache diskCache = filename.startsWith(File.separator) ? null : MXMediaDiskCache.findInstance(baseFile);
+
                 try {
                     File file = filename.startsWith(File.separator) ? new File(filename) : new File(baseFile, filename);
 
-                    if (!file.exists()) {
+                    if ((null != diskCache) ? (null == diskCache.get(filename)) : !file.exists()) {
                         Log.d(LOG_TAG, "bitmapForURL() : " + filename + " does not exist");
                         return null;
                     }
@@ -412,6 +441,11 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
 
                 } catch (FileNotFoundException e) {
                     Log.d(LOG_TAG, "bitmapForURL() : " + filename + " does not exist");
+
+                    // the file has been deleted by another way
+                    if (null != diskCache) {
+                        diskCache.remove(filename);
+                    }
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "bitmapForURL() "+e);
 
@@ -521,7 +555,46 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * @param imageView an image view instance to refresh.
      */
     public void addImageView(ImageView imageView) {
-        mImageViewReferences.add(new WeakReference<>(imageView));
+        synchronized (mImageViewReferences) {
+            mImageViewReferences.add(new WeakReference<>(imageView));
+        }
+    }
+
+    /**
+     * Tells if the download is still expected when it is about to start.
+     * A download which was only requested to fill some ImageViews is not expected anymore
+     * when these ImageViews have been released or display another media.
+     *
+     * @return true if the download is still expected.
+     */
+    @Override
+    public boolean isExpected() {
+        // the download result is listened
+        if (!mDownloadListeners.isEmpty()) {
+            return true;
+        }
+
+        synchronized (mImageViewReferences) {
+            // not an ImageView request
+            if (mImageViewReferences.isEmpty()) {
+                return true;
+            }
+
+            for (WeakReference<ImageView> weakRef : mImageViewReferences) {
+                ImageView imageView = weakRef.get();
+
+                if ((null != imageView) && TextUtils.equals(mUrl, (String) imageView.getTag())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void cancelBeforeRun() {
+        cancelDownload();
     }
 
     /**
@@ -604,6 +677,13 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     // Decode image in background.
     @Override
     protected Void doInBackground(Integer... params) {
+        // the download has been cancelled before being started
+        if (isDownloadCancelled()) {
+            Log.d(LOG_TAG, "MXMediaDownloadWorkerTask " + this + " is cancelled before starting");
+            removeFromPendingDownloads();
+            return null;
+        }
+
         try {
             URL url = new URL(mUrl);
             Log.d(LOG_TAG, "MXMediaDownloadWorkerTask " + this + " starts");
@@ -612,197 +692,553 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
             // don't known yet
             mDownloadStats.mEstimatedRemainingTime = -1;
 
-            InputStream stream = null;
+            mDownloadStats.mDownloadId = mUrl;
+            mDownloadStats.mProgress = 0;
+            mDownloadStats.mDownloadedSize = 0;
+            mDownloadStats.mFileSize = -1;
+            mDownloadStats.mElapsedTime = 0;
+            mDownloadStats.mBitRate = 0;
+
+            final long startDownloadTime = System.currentTimeMillis();
+
+            final android.os.Handler uiHandler = new android.os.Handler(Looper.getMainLooper());
+
+            final Timer refreshTimer = new Timer();
+
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    refreshTimer.scheduleAtFixedRate(new TimerTask() {
+                        @Override
+                        public void run() {
+                            uiHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (!mIsDone) {
+                                        publishProgress(startDownloadTime);
+                                    }
+                                }
+                            });
+                        }
+                    }, new java.util.Date(), 100);
+                }
+            });
+
+            String newFileName = MXMediaDownloadWorkerTask.buildFileName(mUrl, mMimeType);
+            File tmpFile = new File(mDirectoryFile, newFileName + TMP_FILE_SUFFIX);
+            File resumeInfoFile = new File(mDirectoryFile, newFileName + RESUME_INFO_FILE_SUFFIX);
+            MXMediaDiskCache diskCache = MXMediaDiskCache.findInstance(mDirectoryFile);
+
+            // index the partial files so they are expired if the download is never completed
+            if (null != diskCache) {
+                diskCache.put(tmpFile.getName());
+                diskCache.put(resumeInfoFile.getName());
+            }
+
+            int status = DOWNLOAD_INTERRUPTED;
+            int attemptsCount = 0;
+
+            // a network error does not restart the download from the beginning
+            while ((DOWNLOAD_INTERRUPTED == status) && !isDownloadCancelled() && (attemptsCount < DOWNLOAD_ATTEMPTS_COUNT)) {
+                if (attemptsCount > 0) {
+                    Log.d(LOG_TAG, "MXMediaDownloadWorkerTask " + this + " resumes after " + mDownloadStats.mDownloadedSize + " bytes");
 
-            int filelen = -1;
-            URLConnection connection = null;
-            
-            try {
-            	connection = url.openConnection();
-            
-                if (mHsConfig != null && connection instanceof HttpsURLConnection) {
-                    // Add SSL Socket factory.
-                    HttpsURLConnection sslConn = (HttpsURLConnection) connection;
                     try {
-                        sslConn.setSSLSocketFactory(CertUtil.newPinnedSSLSocketFactory(mHsConfig));
-                        sslConn.setHostnameVerifier(CertUtil.newHostnameVerifier(mHsConfig));
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "doInBackground SSL exception " + e.getLocalizedMessage());
+                        Thread.sleep(DOWNLOAD_RETRY_DELAY_MS * attemptsCount);
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "doInBackground : sleep interrupted");
                     }
                 }
 
-                // add a timeout to avoid infinite loading display.
-                connection.setReadTimeout(DOWNLOAD_TIME_OUT);
-                filelen = connection.getContentLength();
-                stream = connection.getInputStream();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "bitmapForURL : fail to open the connection " + e.getMessage());
+                attemptsCount++;
+                status = downloadToTmpFile(url, tmpFile, resumeInfoFile);
+            }
 
-                InputStream errorStream = ((HttpsURLConnection) connection).getErrorStream();
+            mIsDone = true;
 
-                if (null != errorStream) {
-                    try {
-                        BufferedReader streamReader = new BufferedReader(new InputStreamReader(errorStream, "UTF-8"));
-                        StringBuilder responseStrBuilder = new StringBuilder();
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    refreshTimer.cancel();
+                }
+            });
 
-                        String inputStr;
+            File downloadedFile = tmpFile;
 
-                        while ((inputStr = streamReader.readLine()) != null) {
-                            responseStrBuilder.append(inputStr);
-                        }
+            // the encrypted media is only decrypted when it is complete
+            if ((DOWNLOAD_COMPLETED == status) && (null != mEncryptedFileInfo)) {
+                File decryptedFile = new File(mDirectoryFile, newFileName + DECRYPTED_FILE_SUFFIX);
+
+                if (null != diskCache) {
+                    diskCache.put(decryptedFile.getName());
+                }
+
+                if (decryptTmpFile(tmpFile, decryptedFile)) {
+                    tmpFile.delete();
+                    downloadedFile = decryptedFile;
+                } else {
+                    deleteTmpFiles(tmpFile, resumeInfoFile);
+                    decryptedFile.delete();
+                    status = DOWNLOAD_FAILED;
+                }
+
+                if (null != diskCache) {
+                    diskCache.remove(decryptedFile.getName());
+                }
+            }
+
+            // the file has been successfully downloaded
+            if (DOWNLOAD_COMPLETED == status) {
+                mDownloadStats.mProgress = 100;
 
-                        mErrorAsJsonElement = new JsonParser().parse(responseStrBuilder.toString());
-                    } catch (Exception ee) {
-                        Log.e(LOG_TAG, "bitmapForURL : Error parsing error " + ee.getLocalizedMessage());
+                try {
+                    File newFile = new File(mDirectoryFile, newFileName);
+                    if (newFile.exists()) {
+                        // Or you could throw here.
+                        newFile.delete();
                     }
+                    downloadedFile.renameTo(newFile);
+                    resumeInfoFile.delete();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "doInBackground : renaming error " + e.getLocalizedMessage());
                 }
+            }
 
-                // privacy
-                //Log.d(LOG_TAG, "MediaWorkerTask " + mUrl + " does not exist");
-                Log.d(LOG_TAG, "MediaWorkerTask an url does not exist");
+            if (null != diskCache) {
+                // the kept partial files are indexed with their current size
+                indexPartialFile(diskCache, tmpFile);
+                indexPartialFile(diskCache, resumeInfoFile);
 
-                // if some medias are not found
-                // do not try to reload them until the next application launch.
-                synchronized (mUnreachableUrls) {
-                    mUnreachableUrls.add(mUrl);
+                // index the cached media
+                if (DOWNLOAD_COMPLETED == status) {
+                    diskCache.put(newFileName);
                 }
             }
 
-            dispatchDownloadStart();
+            if (mDownloadStats.mProgress == 100) {
+                Log.d(LOG_TAG, "The download " + this + " is done.");
+            } else {
+                if (null != mErrorAsJsonElement) {
+                    Log.d(LOG_TAG, "The download " + this + " failed : mErrorAsJsonElement " + mErrorAsJsonElement.toString());
+                } else {
+                    Log.d(LOG_TAG, "The download " + this + " failed.");
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "Unable to download media " + this);
+        }
 
-            // test if the download has not been cancelled
-            if (!isDownloadCancelled() && (null == mErrorAsJsonElement)) {
+        removeFromPendingDownloads();
 
-                final long startDownloadTime = System.currentTimeMillis();
+        return null;
+    }
 
-                String filename = MXMediaDownloadWorkerTask.buildFileName(mUrl, mMimeType) + ".tmp";
-                FileOutputStream fos = new FileOutputStream(new File(mDirectoryFile, filename));
+    /**
+     * Download the media into the tmp file.
+     * The download is resumed from the tmp file length if the partial content is still valid i.e.
+     * if the media has the same ETag or the same length as when the download was started.
+     * The encrypted medias are downloaded as they are : they are decrypted once they are complete,
+     * so the partial files never contain decrypted data.
+     *
+     * @param url            the media URL
+     * @param tmpFile        the tmp file
+     * @param resumeInfoFile the file in which the partial content validators are saved
+     * @return DOWNLOAD_COMPLETED, DOWNLOAD_INTERRUPTED if it can be resumed, or DOWNLOAD_FAILED
+     */
+    private int downloadToTmpFile(URL url, File tmpFile, File resumeInfoFile) {
+        long offset = 0;
+        String savedETag = null;
+        long savedFileSize = -1;
+
+        // check if the download can be resumed
+        if (tmpFile.exists() && (tmpFile.length() > 0) && resumeInfoFile.exists()) {
+            String[] resumeInfo = readResumeInfo(resumeInfoFile);
+
+            if (null != resumeInfo) {
+                savedETag = resumeInfo[0];
+                savedFileSize = Long.parseLong(resumeInfo[1]);
+
+                // a partial content which cannot be validated is downloaded again
+                if ((null != savedETag) || (savedFileSize > 0)) {
+                    offset = tmpFile.length();
+                }
+            }
+        }
 
-                mDownloadStats.mDownloadId = mUrl;
-                mDownloadStats.mProgress = 0;
-                mDownloadStats.mDownloadedSize = 0;
-                mDownloadStats.mFileSize = filelen;
-                mDownloadStats.mElapsedTime = 0;
-                mDownloadStats.mEstimatedRemainingTime = -1;
-                mDownloadStats.mBitRate = 0;
+        URLConnection connection = null;
+        InputStream stream = null;
+        OutputStream outputStream = null;
 
-                final android.os.Handler uiHandler = new android.os.Handler(Looper.getMainLooper());
+        try {
+            long fileSize;
 
-                final Timer refreshTimer = new Timer();
+            try {
+                if (null != mHsConfig) {
+                    // reuse the homeserver keep-alive connections and TLS sessions
+                    connection = mHsConfig.getHttpTransport().openConnection(url);
+                } else {
+                    connection = url.openConnection();
+                }
 
-                uiHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        refreshTimer.scheduleAtFixedRate(new TimerTask() {
-                            @Override
-                            public void run() {
-                                uiHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (!mIsDone) {
-                                            publishProgress(startDownloadTime);
-                                        }
-                                    }
-                                });
-                            }
-                        }, new java.util.Date(), 100);
-                    }
-                });
+                // add a timeout to avoid infinite loading display.
+                connection.setReadTimeout(DOWNLOAD_TIME_OUT);
 
-                try {
-                    byte[] buf = new byte[DOWNLOAD_BUFFER_READ_SIZE];
-                    int len;
-                    while (!isDownloadCancelled() && (len = stream.read(buf)) != -1) {
-                        fos.write(buf, 0, len);
-                        mDownloadStats.mDownloadedSize += len;
-                    }
+                HttpURLConnection httpConnection = (connection instanceof HttpURLConnection) ? (HttpURLConnection) connection : null;
+
+                // only the HTTP downloads can be resumed
+                if (null == httpConnection) {
+                    offset = 0;
+                }
+
+                if (offset > 0) {
+                    connection.setRequestProperty("Range", "bytes=" + offset + "-");
 
-                    if (!isDownloadCancelled()) {
-                        mDownloadStats.mProgress = 100;
+                    // the server sends the whole media if it has been modified
+                    if (null != savedETag) {
+                        connection.setRequestProperty("If-Range", savedETag);
                     }
-                } catch (OutOfMemoryError outOfMemoryError) {
-                    Log.e(LOG_TAG, "doInBackground: out of memory");
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "doInBackground fail to read image " + e.getMessage());
                 }
 
-                mIsDone = true;
+                int responseCode = (null != httpConnection) ? httpConnection.getResponseCode() : HttpURLConnection.HTTP_OK;
 
-                close(stream);
-                fos.flush();
-                fos.close();
-
-                if (null != mEncryptedFileInfo) {
-                    File file = new File(mDirectoryFile, filename);
-                    FileInputStream fis = new FileInputStream(file);
-                    InputStream is = MXEncryptedAttachments.decryptAttachment(fis, mEncryptedFileInfo);
-                    fis.close();
-
-                    // if the decryption succeeds, replace the encrypted file content by the unencrypted one
-                    if (null != is) {
-                        mApplicationContext.deleteFile(filename);
-
-                        fos = new FileOutputStream(file);
-                        byte[] buf = new byte[DOWNLOAD_BUFFER_READ_SIZE];
-                        int len;
-                        while ((len = is.read(buf)) != -1) {
-                            fos.write(buf, 0, len);
-                        }
-                    } else {
-                        mDownloadStats.mProgress = 0;
+                // the tmp file might contain the whole media
+                // (the encrypted media digest is checked when it is decrypted)
+                if ((HTTP_RANGE_NOT_SATISFIABLE == responseCode) && (offset > 0)) {
+                    if (offset == savedFileSize) {
+                        return DOWNLOAD_COMPLETED;
                     }
+
+                    Log.e(LOG_TAG, "doInBackground : the partial content is invalid");
+                    deleteTmpFiles(tmpFile, resumeInfoFile);
+                    return DOWNLOAD_INTERRUPTED;
                 }
 
-                uiHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        refreshTimer.cancel();
+                if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    manageErrorStream(httpConnection.getErrorStream());
+                    deleteTmpFiles(tmpFile, resumeInfoFile);
+                    return DOWNLOAD_FAILED;
+                }
+
+                stream = connection.getInputStream();
+
+                if (HttpURLConnection.HTTP_PARTIAL == responseCode) {
+                    long[] contentRange = parseContentRange(connection.getHeaderField("Content-Range"));
+
+                    // the partial content must be appended to the tmp file one
+                    if ((null == contentRange) || (contentRange[0] != offset) ||
+                            ((contentRange[1] > 0) && (savedFileSize > 0) && (contentRange[1] != savedFileSize))) {
+                        Log.e(LOG_TAG, "doInBackground : unexpected content range " + connection.getHeaderField("Content-Range"));
+                        deleteTmpFiles(tmpFile, resumeInfoFile);
+                        return DOWNLOAD_INTERRUPTED;
                     }
-                });
 
-                if ((null != connection) && (connection instanceof HttpsURLConnection)) {
-                    ((HttpsURLConnection) connection).disconnect();
+                    fileSize = (contentRange[1] > 0) ? contentRange[1] : savedFileSize;
+                } else {
+                    // the range has been ignored or the media has been modified
+                    if (offset > 0) {
+                        Log.d(LOG_TAG, "doInBackground : the download restarts from the beginning");
+                        offset = 0;
+                    }
+
+                    fileSize = getContentLength(connection);
+                    saveResumeInfo(resumeInfoFile, connection.getHeaderField("ETag"), fileSize);
                 }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "doInBackground : fail to open the connection " + e.getMessage());
+                return DOWNLOAD_INTERRUPTED;
+            }
 
-                // the file has been successfully downloaded
-                if (mDownloadStats.mProgress == 100) {
-                    try {
-                        File originalFile = new File(mDirectoryFile, filename);
-                        String newFileName = MXMediaDownloadWorkerTask.buildFileName(mUrl, mMimeType);
-                        File newFile = new File(mDirectoryFile, newFileName);
-                        if (newFile.exists()) {
-                            // Or you could throw here.
-                            mApplicationContext.deleteFile(newFileName);
-                        }
-                        originalFile.renameTo(newFile);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "doInBackground : renaming error " + e.getLocalizedMessage());
+            if (!mIsDownloadStarted) {
+                mIsDownloadStarted = true;
+                dispatchDownloadStart();
+            }
+
+            outputStream = new FileOutputStream(tmpFile, offset > 0);
+
+            long downloadedSize = offset;
+            mDownloadStats.mFileSize = (int) fileSize;
+            mDownloadStats.mDownloadedSize = (int) downloadedSize;
+
+            try {
+                byte[] buf = new byte[DOWNLOAD_BUFFER_READ_SIZE];
+                int len;
+                while (!isDownloadCancelled() && (len = stream.read(buf)) != -1) {
+                    outputStream.write(buf, 0, len);
+
+                    downloadedSize += len;
+                    mDownloadStats.mDownloadedSize = (int) downloadedSize;
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "doInBackground fail to read image " + e.getMessage());
+                return DOWNLOAD_INTERRUPTED;
+            }
+
+            // the tmp file is kept to resume the download later
+            if (isDownloadCancelled()) {
+                return DOWNLOAD_FAILED;
+            }
+
+            // the connection has been closed before the end
+            if ((fileSize > 0) && (downloadedSize < fileSize)) {
+                Log.e(LOG_TAG, "doInBackground : the download is truncated");
+                return DOWNLOAD_INTERRUPTED;
+            }
+
+            outputStream.close();
+            outputStream = null;
+
+            return DOWNLOAD_COMPLETED;
+        } catch (OutOfMemoryError outOfMemoryError) {
+            Log.e(LOG_TAG, "doInBackground: out of memory");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "doInBackground failed " + e.getMessage());
+        } finally {
+            if (null != stream) {
+                close(stream);
+            }
+
+            if (null != outputStream) {
+                try {
+                    outputStream.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "doInBackground : close error " + e.getLocalizedMessage());
+                }
+            }
+
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+
+        return DOWNLOAD_FAILED;
+    }
+
+    /**
+     * Decrypt a fully downloaded encrypted media.
+     *
+     * @param tmpFile       the tmp file which contains the encrypted media
+     * @param decryptedFile the decrypted media file
+     * @return true if the media has been decrypted and its digest is valid
+     */
+    private boolean decryptTmpFile(File tmpFile, File decryptedFile) {
+        MXEncryptedAttachments.Decryptor decryptor = MXEncryptedAttachments.Decryptor.create(mEncryptedFileInfo);
+
+        if (null == decryptor) {
+            return false;
+        }
+
+        try {
+            InputStream inputStream = new FileInputStream(tmpFile);
+
+            try {
+                OutputStream outputStream = new FileOutputStream(decryptedFile);
+
+                try {
+                    byte[] buf = new byte[DOWNLOAD_BUFFER_READ_SIZE];
+                    int len;
+
+                    while (-1 != (len = inputStream.read(buf))) {
+                        outputStream.write(decryptor.update(buf, 0, len));
                     }
+
+                    outputStream.write(decryptor.doFinal());
+                } finally {
+                    outputStream.close();
                 }
+            } finally {
+                inputStream.close();
             }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "decryptTmpFile failed " + e.getMessage());
+            return false;
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, "decryptTmpFile : out of memory");
+            return false;
+        }
 
-            if (mDownloadStats.mProgress == 100) {
-                Log.d(LOG_TAG, "The download " + this + " is done.");
-            } else {
-                if (null != mErrorAsJsonElement) {
-                    Log.d(LOG_TAG, "The download " + this + " failed : mErrorAsJsonElement " + mErrorAsJsonElement.toString());
-                } else {
-                    Log.d(LOG_TAG, "The download " + this + " failed.");
+        if (!decryptor.isDigestValid()) {
+            Log.e(LOG_TAG, "decryptTmpFile : digest value mismatch");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Update the disk cache index entry of a partial file.
+     *
+     * @param diskCache the disk cache
+     * @param file      the partial file
+     */
+    private static void indexPartialFile(MXMediaDiskCache diskCache, File file) {
+        if (file.exists()) {
+            diskCache.put(file.getName());
+        } else {
+            diskCache.remove(file.getName());
+        }
+    }
+
+    /**
+     * Delete the tmp files of a download.
+     *
+     * @param tmpFile        the tmp file
+     * @param resumeInfoFile the resume info file
+     */
+    private static void deleteTmpFiles(File tmpFile, File resumeInfoFile) {
+        tmpFile.delete();
+        resumeInfoFile.delete();
+    }
+
+    /**
+     * Save the partial content validators.
+     *
+     * @param resumeInfoFile the resume info file
+     * @param eTag           the media ETag, null if it is not provided
+     * @param fileSize       the media size, -1 if it is not provided
+     */
+    private static void saveResumeInfo(File resumeInfoFile, String eTag, long fileSize) {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(resumeInfoFile), "UTF-8");
+
+            try {
+                writer.write(((null == eTag) ? "" : eTag) + "\n" + fileSize + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "saveResumeInfo failed " + e.getMessage());
+            resumeInfoFile.delete();
+        }
+    }
+
+    /**
+     * Read the partial content validators.
+     *
+     * @param resumeInfoFile the resume info file
+     * @return the ETag (null if it is not provided) and the file size, null if the file cannot be read
+     */
+    private static String[] readResumeInfo(File resumeInfoFile) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(resumeInfoFile), "UTF-8"));
+
+            try {
+                String eTag = reader.readLine();
+                String fileSize = reader.readLine();
+
+                if ((null != eTag) && (null != fileSize)) {
+                    // check the format
+                    Long.parseLong(fileSize);
+                    return new String[]{TextUtils.isEmpty(eTag) ? null : eTag, fileSize};
                 }
+            } finally {
+                reader.close();
             }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "readResumeInfo failed " + e.getMessage());
         }
-        catch (Exception e) {
-            Log.e(LOG_TAG, "Unable to download media " + this);
+
+        return null;
+    }
+
+    /**
+     * Parse a Content-Range header (e.g. "bytes 200-1023/1024").
+     *
+     * @param contentRange the header value
+     * @return the first byte position and the media size (-1 if it is unknown), null if the header is malformed
+     */
+    private static long[] parseContentRange(String contentRange) {
+        if ((null == contentRange) || !contentRange.startsWith("bytes ")) {
+            return null;
         }
 
-        // remove the image from the loading one
-        synchronized(mPendingDownloadByUrl) {
-            mPendingDownloadByUrl.remove(mUrl);
+        try {
+            String range = contentRange.substring("bytes ".length()).trim();
+            int dashPos = range.indexOf('-');
+            int slashPos = range.indexOf('/');
+
+            if ((dashPos < 0) || (slashPos < dashPos)) {
+                return null;
+            }
+
+            long start = Long.parseLong(range.substring(0, dashPos));
+            String size = range.substring(slashPos + 1);
+
+            return new long[]{start, "*".equals(size) ? -1 : Long.parseLong(size)};
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "parseContentRange failed " + e.getMessage());
         }
 
         return null;
     }
 
+    /**
+     * Provides the content length of a connection.
+     *
+     * @param connection the connection
+     * @return the content length, -1 if it is unknown
+     */
+    private static long getContentLength(URLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+
+        if (null != contentLength) {
+            try {
+                return Long.parseLong(contentLength);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "getContentLength failed " + e.getMessage());
+            }
+        }
+
+        return connection.getContentLength();
+    }
+
+    /**
+     * Parse the error stream of a failed request.
+     * The media URL is flagged as unreachable.
+     *
+     * @param errorStream the error stream
+     */
+    private void manageErrorStream(InputStream errorStream) {
+        if (null != errorStream) {
+            try {
+                BufferedReader streamReader = new BufferedReader(new InputStreamReader(errorStream, "UTF-8"));
+                StringBuilder responseStrBuilder = new StringBuilder();
+
+                String inputStr;
+
+                while ((inputStr = streamReader.readLine()) != null) {
+                    responseStrBuilder.append(inputStr);
+                }
+
+                mErrorAsJsonElement = new JsonParser().parse(responseStrBuilder.toString());
+            } catch (Exception ee) {
+                Log.e(LOG_TAG, "bitmapForURL : Error parsing error " + ee.getLocalizedMessage());
+            }
+        }
+
+        // privacy
+        //Log.d(LOG_TAG, "MediaWorkerTask " + mUrl + " does not exist");
+        Log.d(LOG_TAG, "MediaWorkerTask an url does not exist");
+
+        // if some medias are not found
+        // do not try to reload them until the next application launch.
+        synchronized (mUnreachableUrls) {
+            mUnreachableUrls.add(mUrl);
+        }
+    }
+
+    /**
+     * Remove the task from the pending downloads.
+     */
+    private void removeFromPendingDownloads() {
+        synchronized(mPendingDownloadByUrl) {
+            // another task might have been created for the same URL
+            if (mPendingDownloadByUrl.get(mUrl) == this) {
+                mPendingDownloadByUrl.remove(mUrl);
+            }
+        }
+    }
+
     /**
      * Close the stream.
      * @param stream the stream to close.
@@ -844,12 +1280,14 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
 
                 // update the imageViews image
                 if (bitmap != null) {
-                    for (WeakReference<ImageView> weakRef : mImageViewReferences) {
-                        final ImageView imageView = weakRef.get();
+                    synchronized (mImageViewReferences) {
+                        for (WeakReference<ImageView> weakRef : mImageViewReferences) {
+                            final ImageView imageView = weakRef.get();
 
-                        if (imageView != null && TextUtils.equals(mUrl, (String) imageView.getTag())) {
-                            imageView.setBackgroundColor(Color.TRANSPARENT);
-                            imageView.setImageBitmap(bitmap);
+                            if (imageView != null && TextUtils.equals(mUrl, (String) imageView.getTag())) {
+                                imageView.setBackgroundColor(Color.TRANSPARENT);
+                                imageView.setImageBitmap(bitmap);
+                            }
                         }
                     }
                 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the medias tasks on dedicated bounded threads pools.
+ *
+ * The medias transfers do not use AsyncTask.THREAD_POOL_EXECUTOR, so they cannot starve the application AsyncTasks.
+ * The pending tasks are run by priority : the visible thumbnails first, then the avatars, the full medias
+ * and the prefetches. The scroll driven requests are run from the latest one, so the displayed
+ * medias are downloaded before the ones which have been scrolled away.
+ */
+class MXMediaTaskScheduler {
+    private static final String LOG_TAG = "MXMediaTaskScheduler";
+
+    /**
+     * The tasks priorities, from the highest one.
+     */
+    static final int PRIORITY_VISIBLE_THUMBNAIL = 0;
+    static final int PRIORITY_AVATAR = 1;
+    static final int PRIORITY_FULL_MEDIA = 2;
+    static final int PRIORITY_PREFETCH = 3;
+
+    /**
+     * The pools sizes.
+     */
+    private static final int DOWNLOAD_THREADS_COUNT = 4;
+    private static final int UPLOAD_THREADS_COUNT = 2;
+
+    // the idle threads are stopped after this delay
+    private static final long THREAD_KEEP_ALIVE_DELAY_S = 30;
+
+    /**
+     * A scheduled task.
+     */
+    interface ScheduledTask {
+        /**
+         * Called by the pool thread before running the task.
+         *
+         * @return true if the task is still expected, false to cancel it
+         */
+        boolean isExpected();
+
+        /**
+         * Cancel the task.
+         * The task is still run but it must complete without transferring anything.
+         */
+        void cancelBeforeRun();
+    }
+
+    /**
+     * A pending task runnable.
+     */
+    static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+        final Runnable mRunnable;
+        final ScheduledTask mTask;
+        final int mPriority;
+        final boolean mIsLifo;
+        final long mSequence;
+
+        PrioritizedRunnable(Runnable runnable, ScheduledTask task, int priority, boolean isLifo, long sequence) {
+            mRunnable = runnable;
+            mTask = task;
+            mPriority = priority;
+            mIsLifo = isLifo;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if ((null != mTask) && !mTask.isExpected()) {
+                Log.d(LOG_TAG, "## run() : the task " + mTask + " is not expected anymore");
+                mTask.cancelBeforeRun();
+            }
+
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedRunnable other) {
+            if (mPriority != other.mPriority) {
+                return (mPriority < other.mPriority) ? -1 : 1;
+            }
+
+            // the scroll driven requests are run before the other ones with the same priority
+            // (comparing this flag first keeps the ordering transitive)
+            if (mIsLifo != other.mIsLifo) {
+                return mIsLifo ? -1 : 1;
+            }
+
+            if (mSequence == other.mSequence) {
+                return 0;
+            }
+
+            // the latest scroll driven request is run first
+            if (mIsLifo) {
+                return (mSequence > other.mSequence) ? -1 : 1;
+            }
+
+            return (mSequence < other.mSequence) ? -1 : 1;
+        }
+    }
+
+    private static MXMediaTaskScheduler mInstance = null;
+
+    /**
+     * @return the shared scheduler
+     */
+    static synchronized MXMediaTaskScheduler getInstance() {
+        if (null == mInstance) {
+            mInstance = new MXMediaTaskScheduler();
+        }
+
+        return mInstance;
+    }
+
+    // the pools
+    private final ThreadPoolExecutor mDownloadsPool;
+    private final ThreadPoolExecutor mUploadsPool;
+
+    // the submission sequence
+    private final AtomicLong mSequence = new AtomicLong(0);
+
+    /**
+     * Constructor
+     */
+    private MXMediaTaskScheduler() {
+        mDownloadsPool = newPool("MXMediaDownload", DOWNLOAD_THREADS_COUNT);
+        mUploadsPool = newPool("MXMediaUpload", UPLOAD_THREADS_COUNT);
+    }
+
+    /**
+     * Create a bounded pool with an unbounded priority queue.
+     *
+     * @param name         the threads name prefix
+     * @param threadsCount the threads count
+     * @return the pool
+     */
+    private static ThreadPoolExecutor newPool(final String name, int threadsCount) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threadsCount, threadsCount, THREAD_KEEP_ALIVE_DELAY_S, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " #" + mCount.getAndIncrement());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /**
+     * Provides the executor to run a download task.
+     * e.g. downloadTask.executeOnExecutor(scheduler.getDownloadExecutor(downloadTask, PRIORITY_AVATAR, true))
+     *
+     * @param task     the task
+     * @param priority the task priority
+     * @param isLifo   true if the task is scroll driven
+     * @return the executor
+     */
+    Executor getDownloadExecutor(final ScheduledTask task, final int priority, final boolean isLifo) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mDownloadsPool.execute(new PrioritizedRunnable(runnable, task, priority, isLifo, mSequence.incrementAndGet()));
+            }
+        };
+    }
+
+    /**
+     * Provides the executor to run the upload tasks.
+     * The uploads are run in the submission order.
+     *
+     * @return the executor
+     */
+    Executor getUploadExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mUploadsPool.execute(new PrioritizedRunnable(runnable, null, PRIORITY_FULL_MEDIA, false, mSequence.incrementAndGet()));
+            }
+        };
+    }
+
+    /**
+     * Move a pending download task to the front of its priority class if it is run from the latest one.
+     * e.g. a media which is displayed again after a scroll.
+     *
+     * @param task the task
+     */
+    void promote(ScheduledTask task) {
+        for (Runnable runnable : mDownloadsPool.getQueue()) {
+            PrioritizedRunnable prioritizedRunnable = (PrioritizedRunnable) runnable;
+
+            if ((prioritizedRunnable.mTask == task) && prioritizedRunnable.mIsLifo) {
+                // the task might have been started in the meantime
+                if (mDownloadsPool.remove(prioritizedRunnable)) {
+                    mDownloadsPool.execute(new PrioritizedRunnable(prioritizedRunnable.mRunnable, task,
+                            prioritizedRunnable.mPriority, true, mSequence.incrementAndGet()));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the pending download tasks count
+     */
+    int getPendingDownloadsCount() {
+        return mDownloadsPool.getQueue().size();
+    }
+}
@@ -26,12 +26,14 @@ import org.matrix.androidsdk.listeners.IMXMediaUploadListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.model.ContentResponse;
 import org.matrix.androidsdk.rest.model.MatrixError;
-import org.matrix.androidsdk.ssl.CertUtil;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.TmpFileInputStream;
 
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -42,7 +44,6 @@ import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Private AsyncTask used to upload files.
@@ -66,6 +67,12 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
     // the media to upload
     private final InputStream mContentStream;
 
+    // the media spooled to a temporary file when it is not a file stream
+    private TmpFileInputStream mSpooledContentStream = null;
+
+    // the current transfer attempt start time
+    private volatile long mAttemptStartTime;
+
     // its unique identifier
     private final String mUploadId;
 
@@ -82,6 +89,8 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
 
     // upload const
     private static final int UPLOAD_BUFFER_READ_SIZE = 1024 * 32;
+    private static final int UPLOAD_ATTEMPTS_COUNT = 3;
+    private static final long UPLOAD_RETRY_DELAY_MS = 1000;
 
     // dummy ApiCallback uses to be warned when the upload must be declared as "undeliverable".
     private ApiCallback mApiCallback = new ApiCallback() {
@@ -231,9 +240,12 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
             mUploadStats.mProgress = (int) (((long) mUploadStats.mUploadedSize) * 96 / mUploadStats.mFileSize);
         }
 
+        // the throughput is measured on the current transfer attempt
+        long attemptStartTime = mAttemptStartTime;
+
         // avoid zero div
-        if (System.currentTimeMillis() != startUploadTime) {
-            mUploadStats.mBitRate = (int)(((long)mUploadStats.mUploadedSize)  * 1000 / (System.currentTimeMillis() - startUploadTime) / 1024);
+        if (System.currentTimeMillis() != attemptStartTime) {
+            mUploadStats.mBitRate = (int)(((long)mUploadStats.mUploadedSize)  * 1000 / (System.currentTimeMillis() - attemptStartTime) / 1024);
         } else {
             mUploadStats.mBitRate = 0;
         }
@@ -247,18 +259,30 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
         publishProgress(mUploadStats);
     }
 
+    /**
+     * Provides the content as a file stream.
+     * A file content can be read again to retry an interrupted upload, so the other streams
+     * are spooled to a temporary file.
+     *
+     * @return the content file stream
+     * @throws IOException if the content cannot be spooled
+     */
+    private FileInputStream getContentFileStream() throws IOException {
+        if (mContentStream instanceof FileInputStream) {
+            return (FileInputStream) mContentStream;
+        }
+
+        if (null == mSpooledContentStream) {
+            mSpooledContentStream = TmpFileInputStream.spool(mContentStream);
+        }
+
+        return mSpooledContentStream;
+    }
+
     @Override
     protected String doInBackground(Void... params) {
-        HttpURLConnection conn;
-        DataOutputStream dos;
-
         mResponseCode = -1;
 
-        int bytesRead, bytesAvailable;
-        int totalWritten, totalSize;
-        int bufferSize;
-        byte[] buffer;
-
         String serverResponse = null;
         String urlString = mContentManager.getHsConfig().getHomeserverUri().toString() + ContentManager.URI_PREFIX_CONTENT_API + "/upload?access_token=" + mContentManager.getHsConfig().getCredentials().accessToken;
 
@@ -274,37 +298,8 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
         try {
             URL url = new URL(urlString);
 
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-            conn.setUseCaches(false);
-            conn.setRequestMethod("POST");
-
-            if (conn instanceof HttpsURLConnection) {
-                // Add SSL Socket factory.
-                HttpsURLConnection sslConn = (HttpsURLConnection) conn;
-                try {
-                    sslConn.setSSLSocketFactory(CertUtil.newPinnedSSLSocketFactory(mContentManager.getHsConfig()));
-                    sslConn.setHostnameVerifier(CertUtil.newHostnameVerifier(mContentManager.getHsConfig()));
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "sslConn " + e.getLocalizedMessage());
-                }
-            }
-
-            conn.setRequestProperty("Content-Type", mMimeType);
-            conn.setRequestProperty("Content-Length", Integer.toString(mContentStream.available()));
-            // avoid caching data before really sending them.
-            conn.setFixedLengthStreamingMode(mContentStream.available());
-
-            conn.connect();
-
-            dos = new DataOutputStream(conn.getOutputStream());
-
-            // create a buffer of maximum size
-            totalSize = bytesAvailable = mContentStream.available();
-            totalWritten = 0;
-            bufferSize = Math.min(bytesAvailable, UPLOAD_BUFFER_READ_SIZE);
-            buffer = new byte[bufferSize];
+            FileInputStream contentFileStream = getContentFileStream();
+            int totalSize = (int) contentFileStream.getChannel().size();
 
             mUploadStats = new IMXMediaUploadListener.UploadStats();
             mUploadStats.mUploadId = mUploadId;
@@ -314,14 +309,13 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
             mUploadStats.mElapsedTime = 0;
             mUploadStats.mEstimatedRemainingTime = -1;
             mUploadStats.mBitRate = 0;
+            mUploadStats.mRetriesCount = 0;
 
             final long startUploadTime = System.currentTimeMillis();
+            mAttemptStartTime = startUploadTime;
 
             Log.d(LOG_TAG, "doInBackground : start Upload (" + totalSize + " bytes)");
 
-            // read file and write it into form...
-            bytesRead = mContentStream.read(buffer, 0, bufferSize);
-
             dispatchOnUploadStart();
 
             final android.os.Handler uiHandler = new android.os.Handler(Looper.getMainLooper());
@@ -348,16 +342,37 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
                 }
             });
 
-            while ((bytesRead > 0) && !isUploadCancelled()) {
-                dos.write(buffer, 0, bytesRead);
-                totalWritten += bytesRead;
-                bytesAvailable = mContentStream.available();
-                bufferSize = Math.min(bytesAvailable, UPLOAD_BUFFER_READ_SIZE);
+            // the content repository does not support partial uploads :
+            // an interrupted transfer is sent again from the content file, the source is not read again.
+            boolean isInterrupted = true;
+            int attemptsCount = 0;
 
-                Log.d(LOG_TAG, "doInBackground : totalWritten " + totalWritten + " / totalSize " + totalSize);
-                mUploadStats.mUploadedSize = totalWritten;
-                bytesRead = mContentStream.read(buffer, 0, bufferSize);
+            while (isInterrupted && !isUploadCancelled() && (attemptsCount < UPLOAD_ATTEMPTS_COUNT)) {
+                if (attemptsCount > 0) {
+                    Log.d(LOG_TAG, "doInBackground : retry the upload after " + mUploadStats.mUploadedSize + " bytes");
+
+                    try {
+                        Thread.sleep(UPLOAD_RETRY_DELAY_MS * attemptsCount);
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "doInBackground : sleep interrupted");
+                    }
+
+                    mUploadStats.mRetriesCount = attemptsCount;
+                    mUploadStats.mUploadedSize = 0;
+                    mAttemptStartTime = System.currentTimeMillis();
+                }
+
+                attemptsCount++;
+
+                try {
+                    serverResponse = uploadContentFile(url, contentFileStream, totalSize, startUploadTime);
+                    isInterrupted = false;
+                } catch (IOException e) {
+                    serverResponse = e.getLocalizedMessage();
+                    Log.e(LOG_TAG, "doInBackground : the upload is interrupted " + e.getClass() + " - " + e.getMessage());
+                }
             }
+
             mIsDone = true;
             uiHandler.post(new Runnable() {
                 @Override
@@ -365,6 +380,63 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
                     refreshTimer.cancel();
                 }
             });
+        } catch (Exception e) {
+            serverResponse = e.getLocalizedMessage();
+            Log.e(LOG_TAG, "doInBackground ; failed with error " + e.getClass() + " - " + e.getMessage());
+        }
+
+        mResponseFromServer = serverResponse;
+
+        return serverResponse;
+    }
+
+    /**
+     * Send the content file to the content repository.
+     *
+     * @param url               the upload URL
+     * @param contentFileStream the content file stream
+     * @param totalSize         the content size
+     * @param startUploadTime   the upload start time
+     * @return the server response
+     * @throws IOException if the transfer is interrupted
+     */
+    private String uploadContentFile(URL url, FileInputStream contentFileStream, int totalSize, long startUploadTime) throws IOException {
+        String serverResponse = null;
+
+        // the transfer always starts from the beginning of the content
+        contentFileStream.getChannel().position(0);
+
+        // reuse the homeserver keep-alive connections and TLS sessions
+        HttpURLConnection conn = mContentManager.getHsConfig().getHttpTransport().openConnection(url);
+
+        try {
+            conn.setDoInput(true);
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setRequestMethod("POST");
+
+            conn.setRequestProperty("Content-Type", mMimeType);
+            conn.setRequestProperty("Content-Length", Integer.toString(totalSize));
+            // avoid caching data before really sending them.
+            conn.setFixedLengthStreamingMode(totalSize);
+
+            conn.connect();
+
+            DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
+
+            // the memory usage does not depend on the content size
+            byte[] buffer = new byte[UPLOAD_BUFFER_READ_SIZE];
+            int totalWritten = 0;
+            int bytesRead;
+
+            while (!isUploadCancelled() && ((bytesRead = contentFileStream.read(buffer)) > 0)) {
+                dos.write(buffer, 0, bytesRead);
+                totalWritten += bytesRead;
+
+                mUploadStats.mUploadedSize = totalWritten;
+            }
+
+            Log.d(LOG_TAG, "doInBackground : totalWritten " + totalWritten + " / totalSize " + totalSize);
 
             if (!isUploadCancelled()) {
                 mUploadStats.mProgress = 96;
@@ -417,20 +489,13 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
                 dos.flush();
                 dos.close();
             }
-
-            if (null != conn) {
-                conn.disconnect();
-            }
-        } catch (Exception e) {
-            serverResponse = e.getLocalizedMessage();
-            Log.e(LOG_TAG, "doInBackground ; failed with error " + e.getClass() + " - " + e.getMessage());
+        } finally {
+            conn.disconnect();
         }
 
-        mResponseFromServer = serverResponse;
-
         return serverResponse;
     }
-    
+
     @Override
     protected void onProgressUpdate(IMXMediaUploadListener.UploadStats ... progress) {
         super.onProgressUpdate(progress);
@@ -458,6 +523,15 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
             Log.e(LOG_TAG, "dispatchResult " + e.getLocalizedMessage());
         }
 
+        // delete the spooled content
+        if (null != mSpooledContentStream) {
+            try {
+                mSpooledContentStream.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "dispatchResult " + e.getLocalizedMessage());
+            }
+        }
+
         if (isUploadCancelled()) {
             dispatchOnUploadCancel();
         } else {
@@ -22,7 +22,6 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
@@ -34,7 +33,6 @@ import android.widget.ImageView;
 import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.listeners.IMXMediaDownloadListener;
 import org.matrix.androidsdk.listeners.IMXMediaUploadListener;
-import org.matrix.androidsdk.listeners.MXMediaDownloadListener;
 import org.matrix.androidsdk.rest.model.EncryptedFileInfo;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.ContentUtils;
@@ -44,8 +42,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.concurrent.RejectedExecutionException;
 
 public class MXMediasCache {
 
@@ -59,6 +55,14 @@ public class MXMediasCache {
     private static final String MXMEDIA_STORE_IMAGES_FOLDER = "Images";
     private static final String MXMEDIA_STORE_OTHERS_FOLDER = "Others";
 
+    /**
+     * The default downloaded medias max size and its split between the medias folders (in percent).
+     */
+    private static final long DEFAULT_MAX_CACHE_SIZE = 512L * 1024 * 1024;
+    private static final int DEFAULT_THUMBNAILS_QUOTA = 10;
+    private static final int DEFAULT_IMAGES_QUOTA = 60;
+    private static final int DEFAULT_OTHERS_QUOTA = 30;
+
     /**
      * The content manager
      */
@@ -72,6 +76,21 @@ public class MXMediasCache {
     private File mOthersFolderFile = null;
     private File mThumbnailsFolderFile = null;
 
+    /**
+     * The downloaded medias indexes of the medias folders.
+     */
+    private MXMediaDiskCache mImagesDiskCache = null;
+    private MXMediaDiskCache mOthersDiskCache = null;
+    private MXMediaDiskCache mThumbnailsDiskCache = null;
+
+    /**
+     * The downloaded medias max size and its split between the medias folders.
+     */
+    private long mMaxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+    private int mThumbnailsQuota = DEFAULT_THUMBNAILS_QUOTA;
+    private int mImagesQuota = DEFAULT_IMAGES_QUOTA;
+    private int mOthersQuota = DEFAULT_OTHERS_QUOTA;
+
     /**
      * Clear the former medias cache.
      * The dirtree has been updated.
@@ -117,6 +136,69 @@ public class MXMediasCache {
         mOthersFolderFile = new File(mMediasFolderFile, MXMEDIA_STORE_OTHERS_FOLDER);
 
         mThumbnailsFolderFile = new File(mediaBaseFolderFile, MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER);
+
+        mImagesDiskCache = MXMediaDiskCache.getInstance(mImagesFolderFile);
+        mOthersDiskCache = MXMediaDiskCache.getInstance(mOthersFolderFile);
+        mThumbnailsDiskCache = MXMediaDiskCache.getInstance(mThumbnailsFolderFile);
+
+        applyMaxCacheSize();
+
+        // the indexes are loaded before the first lookups
+        mImagesDiskCache.preload();
+        mOthersDiskCache.preload();
+        mThumbnailsDiskCache.preload();
+    }
+
+    /**
+     * Update the downloaded medias max size.
+     * The least recently used medias are deleted in background when it is exceeded.
+     * The medias saved to be sent are not impacted.
+     *
+     * @param maxCacheSize the max size in bytes
+     */
+    public void setMaxCacheSize(long maxCacheSize) {
+        mMaxCacheSize = Math.max(0, maxCacheSize);
+        applyMaxCacheSize();
+    }
+
+    /**
+     * @return the downloaded medias max size in bytes
+     */
+    public long getMaxCacheSize() {
+        return mMaxCacheSize;
+    }
+
+    /**
+     * Update the split of the max cache size between the medias folders.
+     * The quotas are relative to their sum.
+     * The thumbnails folder is shared by the sessions so the last defined quota is applied.
+     *
+     * @param thumbnailsQuota the member thumbnails quota
+     * @param imagesQuota     the images quota
+     * @param othersQuota     the other medias quota
+     */
+    public void setCacheQuotas(int thumbnailsQuota, int imagesQuota, int othersQuota) {
+        // sanity check
+        if ((thumbnailsQuota < 0) || (imagesQuota < 0) || (othersQuota < 0) || (0 == (thumbnailsQuota + imagesQuota + othersQuota))) {
+            Log.e(LOG_TAG, "## setCacheQuotas() : invalid quotas");
+            return;
+        }
+
+        mThumbnailsQuota = thumbnailsQuota;
+        mImagesQuota = imagesQuota;
+        mOthersQuota = othersQuota;
+        applyMaxCacheSize();
+    }
+
+    /**
+     * Split the max cache size between the medias folders.
+     */
+    private void applyMaxCacheSize() {
+        long quotasSum = mThumbnailsQuota + mImagesQuota + mOthersQuota;
+
+        mThumbnailsDiskCache.setMaxSize(mMaxCacheSize / quotasSum * mThumbnailsQuota);
+        mImagesDiskCache.setMaxSize(mMaxCacheSize / quotasSum * mImagesQuota);
+        mOthersDiskCache.setMaxSize(mMaxCacheSize / quotasSum * mOthersQuota);
     }
 
     /**
@@ -141,14 +223,7 @@ public class MXMediasCache {
      * @return the folder file.
      */
     private File getFolderFile(String mimeType) {
-        File file;
-
-        //
-        if ((null == mimeType) || mimeType.startsWith("image/")) {
-            file = mImagesFolderFile;
-        } else {
-            file = mOthersFolderFile;
-        }
+        File file = (isImageMimeType(mimeType)) ? mImagesFolderFile : mOthersFolderFile;
 
         if (!file.exists()) {
             file.mkdirs();
@@ -157,6 +232,26 @@ public class MXMediasCache {
         return file;
     }
 
+    /**
+     * Tells if the medias of a mimetype are stored in the images folder.
+     *
+     * @param mimeType the media mimetype.
+     * @return true if they are stored in the images folder.
+     */
+    private static boolean isImageMimeType(String mimeType) {
+        return (null == mimeType) || mimeType.startsWith("image/");
+    }
+
+    /**
+     * Returns the downloaded medias index for a dedicated mimetype.
+     *
+     * @param mimeType the media mimetype.
+     * @return the index.
+     */
+    private MXMediaDiskCache getDiskCache(String mimeType) {
+        return (isImageMimeType(mimeType)) ? mImagesDiskCache : mOthersDiskCache;
+    }
+
     /**
      * Returns the thumbnails folder.
      * Creates it if it does not exist
@@ -172,37 +267,13 @@ public class MXMediasCache {
     }
 
     /**
-     * Recursive method to compute a directory sie
-     * @param directory the directory.
-     * @return the directory size in bytes.
-     */
-    private long cacheSize(File directory) {
-        long size = 0;
-
-        File[] files = directory.listFiles();
-
-        if (null != files) {
-            for(int i=0; i<files.length; i++) {
-                File file = files[i];
-
-                if(!file.isDirectory()) {
-                    size += file.length();
-                } else {
-                    size += cacheSize(file);
-                }
-            }
-        }
-
-        return size;
-    }
-
-    /**
-     * Compute the medias cache size
+     * Compute the downloaded medias cache size.
+     * The size is provided by the medias indexes, the folders are not listed.
      *
      * @return the medias cache size in bytes
      */
     public long cacheSize() {
-        return cacheSize(getMediasFolderFile());
+        return mImagesDiskCache.size() + mOthersDiskCache.size();
     }
 
     /**
@@ -211,6 +282,10 @@ public class MXMediasCache {
     public void clear() {
         ContentUtils.deleteDirectory(getMediasFolderFile());
 
+        // the indexes are rebuilt from the new folders content
+        mImagesDiskCache.clear();
+        mOthersDiskCache.clear();
+
         // clear the media cache
         MXMediaDownloadWorkerTask.clearBitmapsCache();
 
@@ -225,7 +300,14 @@ public class MXMediasCache {
      * i.e. logging out of all sessions.
      */
     public static void clearThumbnailsCache(Context applicationContext) {
-        ContentUtils.deleteDirectory(new File(new File(applicationContext.getApplicationContext().getFilesDir(), MXMediasCache.MXMEDIA_STORE_FOLDER), MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER));
+        File thumbnailsFolderFile = new File(new File(applicationContext.getApplicationContext().getFilesDir(), MXMediasCache.MXMEDIA_STORE_FOLDER), MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER);
+        ContentUtils.deleteDirectory(thumbnailsFolderFile);
+
+        MXMediaDiskCache diskCache = MXMediaDiskCache.findInstance(thumbnailsFolderFile);
+
+        if (null != diskCache) {
+            diskCache.clear();
+        }
     }
 
     /**
@@ -264,11 +346,8 @@ public class MXMediasCache {
         String filename = MXMediaDownloadWorkerTask.buildFileName(downloadableUrl(url, size, size), "image/jpeg");
 
         try {
-            File file = new File(getThumbnailsFolderFile(), filename);
-
-            if (file.exists()) {
-                return file;
-            }
+            getThumbnailsFolderFile();
+            return mThumbnailsDiskCache.get(filename);
         } catch (Exception e) {
             Log.e(LOG_TAG, "thumbnailCacheFile failed " + e.getLocalizedMessage());
         }
@@ -307,12 +386,16 @@ public class MXMediasCache {
             if (filename.startsWith("file:")) {
                 Uri uri = Uri.parse(filename);
                 filename = uri.getLastPathSegment();
-            }
 
-            File file = new File(getFolderFile(mimeType), filename);
+                // the local files are not indexed
+                File file = new File(getFolderFile(mimeType), filename);
 
-            if (file.exists()) {
-                return file;
+                if (file.exists()) {
+                    return file;
+                }
+            } else {
+                getFolderFile(mimeType);
+                return getDiskCache(mimeType).get(filename);
             }
 
         } catch (Exception e) {
@@ -498,6 +581,13 @@ public class MXMediasCache {
         } catch (Exception e) {
             Log.e(LOG_TAG, "saveFileMediaForUrl failed " + e.getLocalizedMessage());
         }
+
+        // update the index
+        if (new File(getFolderFile(mimeType), filename).exists()) {
+            getDiskCache(mimeType).put(filename);
+        } else {
+            getDiskCache(mimeType).remove(filename);
+        }
     }
 
     /**
@@ -531,11 +621,22 @@ public class MXMediasCache {
 
     /**
      * Tells if the avatar is cached
+     * The lookups are done in the memory cache then in the thumbnails index.
+     *
      * @param url the avatar url to test
+     * @param side the avatar thumbnail side
      * @return true if the avatar bitmap is cached.
      */
     public boolean isAvatarThumbnailCached(String url, int side) {
-        return MXMediaDownloadWorkerTask.isUrlCached(downloadableUrl(url, side, side));
+        // sanity check
+        if (null == url) {
+            return false;
+        }
+
+        String downloadableUrl = downloadableUrl(url, side, side);
+
+        return MXMediaDownloadWorkerTask.isUrlCached(downloadableUrl) ||
+                mThumbnailsDiskCache.contains(MXMediaDownloadWorkerTask.buildFileName(downloadableUrl, "image/jpeg"));
     }
 
     /**
@@ -602,9 +703,6 @@ public class MXMediasCache {
         return loadBitmap(imageView.getContext(), hsConfig, imageView, url, width, height, rotationAngle, orientation, mimeType, getFolderFile(mimeType), encryptionInfo);
     }
 
-    // some tasks have been stacked because there are too many running ones.
-    private final ArrayList<MXMediaDownloadWorkerTask> mSuspendedTasks = new ArrayList<>();
-
     /**
      * Returns the download ID from the media URL.
      *
@@ -645,21 +743,8 @@ public class MXMediasCache {
         // download it in background
         MXMediaDownloadWorkerTask task = new MXMediaDownloadWorkerTask(context, hsConfig, getFolderFile(mimeType), downloadableUrl, mimeType, encryptionInfo);
 
-        // avoid crash if there are too many running task
         try {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-        } catch (RejectedExecutionException e) {
-            // too many tasks have been launched
-            synchronized (mSuspendedTasks) {
-                task.cancel(true);
-                // create a new task from the existing one
-                task = new MXMediaDownloadWorkerTask(task);
-                mSuspendedTasks.add(task);
-                // privacy
-                //Log.e(LOG_TAG, "Suspend the task " + task.getUrl());
-                Log.e(LOG_TAG, "Suspend the task " );
-            }
-
+            task.executeOnExecutor(MXMediaTaskScheduler.getInstance().getDownloadExecutor(task, MXMediaTaskScheduler.PRIORITY_FULL_MEDIA, false), (Integer[])null);
         } catch (Exception e) {
             Log.e(LOG_TAG, "downloadMedia failed " + e.getLocalizedMessage());
         }
@@ -667,46 +752,6 @@ public class MXMediasCache {
         return downloadableUrl;
     }
 
-    /**
-     * Start any suspended task
-     */
-    private void launchSuspendedTask() {
-        synchronized (mSuspendedTasks)
-        {
-            // some task have been suspended because there were too many running ones ?
-            if (mSuspendedTasks.size() > 0) {
-
-                if (mSuspendedTasks.size() > 0) {
-                    MXMediaDownloadWorkerTask task = mSuspendedTasks.get(0);
-
-                    // privacy
-                    //Log.d(LOG_TAG, "Restart the task " + task.getUrl());
-                    Log.d(LOG_TAG, "Restart a task ");
-
-                    // avoid crash if there are too many running task
-                    try {
-                        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-                        mSuspendedTasks.remove(task);
-                    } catch (RejectedExecutionException e) {
-                        task.cancel(true);
-
-                        mSuspendedTasks.remove(task);
-                        // create a new task from the existing one
-                        task = new MXMediaDownloadWorkerTask(task);
-                        mSuspendedTasks.add(task);
-
-                        // privacy
-                        //Log.d(LOG_TAG, "Suspend again the task " + task.getUrl() + " - " + task.getStatus());
-                        Log.d(LOG_TAG, "Suspend again the task " + task.getStatus());
-
-                    } catch (Exception e) {
-                        Log.d(LOG_TAG, "Try to Restart a task fails " + e.getMessage());
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * Handler to post events on UI thread
      */
@@ -849,6 +894,9 @@ public class MXMediasCache {
             if (null != currentTask) {
                 if (null != imageView) {
                     currentTask.addImageView(imageView);
+
+                    // the media is displayed again
+                    MXMediaTaskScheduler.getInstance().promote(currentTask);
                 }
             } else {
                 // download it in background
@@ -860,30 +908,20 @@ public class MXMediasCache {
 
                 task.setDefaultBitmap(defaultBimap);
 
-                // check at the end of the download, if a suspended task can be launched again.
-                task.addDownloadListener(new MXMediaDownloadListener() {
-                    @Override
-                    public void onDownloadComplete(String downloadId) {
-                        MXMediasCache.this.launchSuspendedTask();
-                    }
-                });
+                // the displayed medias are downloaded before the prefetched ones,
+                // and the scroll driven requests are run from the latest one.
+                int priority;
 
+                if (mThumbnailsFolderFile.equals(folderFile)) {
+                    priority = MXMediaTaskScheduler.PRIORITY_AVATAR;
+                } else if (null != imageView) {
+                    priority = MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL;
+                } else {
+                    priority = MXMediaTaskScheduler.PRIORITY_PREFETCH;
+                }
 
-                // avoid crash if there are too many running task
                 try {
-                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-                } catch (RejectedExecutionException e) {
-                    // too many tasks have been launched
-                    synchronized (mSuspendedTasks) {
-                        task.cancel(true);
-                        // create a new task from the existing one
-                        task = new MXMediaDownloadWorkerTask(task);
-                        mSuspendedTasks.add(task);
-                        // privacy
-                        //Log.e(LOG_TAG, "Suspend the task " + task.getUrl());
-                        Log.e(LOG_TAG, "Suspend a task ");
-                    }
-
+                    task.executeOnExecutor(MXMediaTaskScheduler.getInstance().getDownloadExecutor(task, priority, null != imageView), (Integer[])null);
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "loadBitmap failed " + e.getLocalizedMessage());
                 }
@@ -957,7 +995,7 @@ public class MXMediasCache {
      */
     public void uploadContent(InputStream contentStream, String filename, String mimeType, String uploadId, IMXMediaUploadListener listener) {
         try {
-             new MXMediaUploadWorkerTask(mContentManager, contentStream, mimeType, uploadId, filename, listener).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+             new MXMediaUploadWorkerTask(mContentManager, contentStream, mimeType, uploadId, filename, listener).executeOnExecutor(MXMediaTaskScheduler.getInstance().getUploadExecutor());
         } catch (Exception e) {
             // cannot start the task
             if (null != listener) {
@@ -56,10 +56,15 @@ public interface IMXMediaUploadListener {
         public int mEstimatedRemainingTime;
 
         /**
-         * upload bit rate in KB/s
+         * upload bit rate in KB/s, measured since the latest transfer attempt started
          */
         public int mBitRate;
 
+        /**
+         * the interrupted transfers count
+         */
+        public int mRetriesCount;
+
         @Override
         public java.lang.String toString() {
             String res = "";
@@ -70,6 +75,7 @@ public interface IMXMediaUploadListener {
             res += "mElapsedTime : " + mProgress + " seconds\n";
             res += "mEstimatedRemainingTime : " + mEstimatedRemainingTime + " seconds\n";
             res += "mBitRate : " + mBitRate + " KB/s\n";
+            res += "mRetriesCount : " + mRetriesCount + "\n";
 
             return res;
         }
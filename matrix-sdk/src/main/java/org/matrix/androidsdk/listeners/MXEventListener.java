@@ -47,6 +47,21 @@ public class MXEventListener implements IMXEventListener {
 
     }
 
+    /**
+     * Some live room events were received.
+     * The events of a sync response are dispatched in batches to the MXEventListener instances,
+     * the other IMXEventListener implementations receive onLiveEvent for each of them.
+     * The default implementation calls onLiveEvent for each event.
+     *
+     * @param events    the events, in the received order
+     * @param roomState the room state right before the events
+     */
+    public void onLiveEvents(List<Event> events, RoomState roomState) {
+        for (Event event : events) {
+            onLiveEvent(event, roomState);
+        }
+    }
+
     @Override
     public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
     }
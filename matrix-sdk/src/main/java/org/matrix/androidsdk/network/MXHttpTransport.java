@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.network;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.ssl.CertUtil;
+import org.matrix.androidsdk.util.Log;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The HTTP transport of a homeserver connection config.
+ *
+ * The REST clients and the media workers share the same SSL socket factory, hostname verifier
+ * and connection pool, so the keep-alive connections and the TLS sessions are reused
+ * between a sync request, a message sending and a media download.
+ */
+public class MXHttpTransport {
+    private static final String LOG_TAG = "MXHttpTransport";
+
+    // the max idle connections kept alive
+    private static final int MAX_IDLE_CONNECTIONS_COUNT = 5;
+
+    // the idle connections keep alive duration
+    private static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+    // the shared http client
+    private final OkHttpClient mOkHttpClient;
+
+    // the URL connections factory
+    private final OkUrlFactory mUrlFactory;
+
+    /**
+     * Constructor
+     *
+     * @param hsConfig the homeserver connection config
+     */
+    public MXHttpTransport(HomeserverConnectionConfig hsConfig) {
+        mOkHttpClient = new OkHttpClient();
+        mOkHttpClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS_COUNT, KEEP_ALIVE_DURATION_MS));
+
+        try {
+            mOkHttpClient.setSslSocketFactory(CertUtil.newPinnedSSLSocketFactory(hsConfig));
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## MXHttpTransport() setSslSocketFactory failed " + e.getMessage());
+        }
+
+        try {
+            mOkHttpClient.setHostnameVerifier(CertUtil.newHostnameVerifier(hsConfig));
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## MXHttpTransport() setHostnameVerifier failed " + e.getMessage());
+        }
+
+        mUrlFactory = new OkUrlFactory(mOkHttpClient);
+    }
+
+    /**
+     * Provides a new http client which uses this transport.
+     * Its timeouts can be updated without impacting the other clients.
+     *
+     * @return a new http client
+     */
+    public OkHttpClient newOkHttpClient() {
+        return mOkHttpClient.clone();
+    }
+
+    /**
+     * Open an URL connection with this transport.
+     *
+     * @param url the url
+     * @return the connection
+     */
+    public HttpURLConnection openConnection(URL url) {
+        return mUrlFactory.open(url);
+    }
+
+    /**
+     * Close the idle connections.
+     */
+    public void release() {
+        mOkHttpClient.getConnectionPool().evictAll();
+    }
+}
@@ -17,6 +17,8 @@
 package org.matrix.androidsdk.rest.api;
 
 import org.matrix.androidsdk.RestClient;
+import org.matrix.androidsdk.rest.model.Filter.FilterBody;
+import org.matrix.androidsdk.rest.model.Filter.FilterResponse;
 import org.matrix.androidsdk.rest.model.PublicRoomsParams;
 import org.matrix.androidsdk.rest.model.PublicRoomsResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchParams;
@@ -27,11 +29,14 @@ import org.matrix.androidsdk.rest.model.ThirdPartyProtocol;
 import java.util.Map;
 
 import retrofit.Callback;
+import retrofit.client.Response;
 import retrofit.http.Body;
 import retrofit.http.GET;
 import retrofit.http.POST;
+import retrofit.http.Path;
 import retrofit.http.Query;
 import retrofit.http.QueryMap;
+import retrofit.http.Streaming;
 
 /**
  * The events API.
@@ -47,6 +52,27 @@ public interface EventsApi {
     @GET(RestClient.URI_API_PREFIX_PATH_R0 + "/sync")
     void sync(@QueryMap Map<String, Object> params, Callback<SyncResponse> callback);
 
+    /**
+     * Perform a sync request without converting the response body.
+     * The body is not read before the callback is called.
+     *
+     * @param params   the GET params.
+     * @param callback The asynchronous callback to call when finished
+     */
+    @Streaming
+    @GET(RestClient.URI_API_PREFIX_PATH_R0 + "/sync")
+    void syncStream(@QueryMap Map<String, Object> params, Callback<Response> callback);
+
+    /**
+     * Upload a filter which can be used in the sync requests.
+     *
+     * @param userId   the user id
+     * @param body     the filter
+     * @param callback The asynchronous callback to call when finished
+     */
+    @POST(RestClient.URI_API_PREFIX_PATH_R0 + "/user/{userId}/filter")
+    void uploadFilter(@Path("userId") String userId, @Body FilterBody body, Callback<FilterResponse> callback);
+
 
     /**
      * Get the third party server protocols.
@@ -280,6 +280,14 @@ public interface RoomsApi {
     @GET("/rooms/{roomId}/context/{eventId}")
     void getContextOfEvent(@Path("roomId") String roomId, @Path("eventId") String eventId, @Query("limit") int limit, Callback<EventContext> callback);
 
+    /**
+     * Get the members events of a room.
+     * @param roomId the room id
+     * @param callback the asynchronous callback called with the response
+     */
+    @GET("/rooms/{roomId}/members")
+    void getRoomMembers(@Path("roomId") String roomId, Callback<TokensChunkResponse<Event>> callback);
+
     /**
      * Redact an event from the room>.
      * @param roomId the room id
@@ -24,6 +24,8 @@ import org.matrix.androidsdk.rest.api.EventsApi;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.RestAdapterCallback;
 import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.Filter.FilterBody;
+import org.matrix.androidsdk.rest.model.Filter.FilterResponse;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.PublicRoomsFilter;
 import org.matrix.androidsdk.rest.model.PublicRoomsParams;
@@ -184,6 +186,79 @@ public class EventsRestClient extends RestClient<EventsApi> {
      * @param callback      The request callback
      */
     public void syncFromToken(final String token, final int serverTimeout, final int clientTimeout, final String setPresence, final String filterId, final ApiCallback<SyncResponse> callback) {
+        HashMap<String, Object> params = getSyncParams(token, serverTimeout, setPresence, filterId);
+
+        final String description = "syncFromToken";
+
+        // Disable retry because it interferes with clientTimeout
+        // Let the client manage retries on events streams
+        mApi.sync(params, new RestAdapterCallback<SyncResponse>(description, null, false, callback, new RestAdapterCallback.RequestRetryCallBack() {
+            @Override
+            public void onRetry() {
+                syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
+            }
+        }));
+    }
+
+    /**
+     * Same as syncFromToken but the response body is not converted.
+     * The caller has to read and close the body in a background thread.
+     *
+     * @param token         the token to stream from (nil in case of initial sync).
+     * @param serverTimeout the maximum time in ms to wait for an event.
+     * @param clientTimeout the maximum time in ms the SDK must wait for the server response.
+     * @param setPresence   the optional set_presence parameter.
+     * @param filterId      the ID of a filter created using the filter API (optional).
+     * @param callback      The request callback
+     */
+    public void syncStreamFromToken(final String token, final int serverTimeout, final int clientTimeout, final String setPresence, final String filterId, final ApiCallback<Response> callback) {
+        HashMap<String, Object> params = getSyncParams(token, serverTimeout, setPresence, filterId);
+
+        final String description = "syncStreamFromToken";
+
+        // Disable retry because it interferes with clientTimeout
+        // Let the client manage retries on events streams
+        mApi.syncStream(params, new RestAdapterCallback<Response>(description, null, false, callback, new RestAdapterCallback.RequestRetryCallBack() {
+            @Override
+            public void onRetry() {
+                syncStreamFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
+            }
+        }));
+    }
+
+    /**
+     * Upload a sync filter.
+     *
+     * @param filterBody the filter
+     * @param callback   the asynchronous callback, it provides the filter id
+     */
+    public void uploadFilter(final FilterBody filterBody, final ApiCallback<String> callback) {
+        final String description = "uploadFilter";
+
+        mApi.uploadFilter(mCredentials.userId, filterBody, new RestAdapterCallback<FilterResponse>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
+            @Override
+            public void onRetry() {
+                uploadFilter(filterBody, callback);
+            }
+        }) {
+            @Override
+            public void success(FilterResponse filterResponse, Response response) {
+                onEventSent();
+                callback.onSuccess(filterResponse.filterId);
+            }
+        });
+    }
+
+    /**
+     * Build the sync request parameters.
+     *
+     * @param token         the token to stream from (nil in case of initial sync).
+     * @param serverTimeout the maximum time in ms to wait for an event.
+     * @param setPresence   the optional set_presence parameter.
+     * @param filterId      the ID of a filter created using the filter API or an inline JSON filter (optional).
+     * @return the parameters
+     */
+    private static HashMap<String, Object> getSyncParams(String token, int serverTimeout, String setPresence, String filterId) {
         HashMap<String, Object> params = new HashMap<>();
         int timeout = (EVENT_STREAM_TIMEOUT_MS / 1000);
 
@@ -205,17 +280,7 @@ public class EventsRestClient extends RestClient<EventsApi> {
 
         params.put("timeout", timeout);
 
-
-        final String description = "syncFromToken";
-
-        // Disable retry because it interferes with clientTimeout
-        // Let the client manage retries on events streams
-        mApi.sync(params, new RestAdapterCallback<SyncResponse>(description, null, false, callback, new RestAdapterCallback.RequestRetryCallBack() {
-            @Override
-            public void onRetry() {
-                syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
-            }
-        }));
+        return params;
     }
 
     /**
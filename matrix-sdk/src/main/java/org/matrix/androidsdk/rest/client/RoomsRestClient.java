@@ -445,6 +445,26 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
         }));
     }
 
+    /**
+     * Get the members events of a room.
+     * @param roomId the room id
+     * @param callback the asynchronous callback called with the members events
+     */
+    public void getRoomMembers(final String roomId, final ApiCallback<TokensChunkResponse<Event>> callback) {
+        final String description = "getRoomMembers : roomId " + roomId;
+
+        mApi.getRoomMembers(roomId, new RestAdapterCallback<TokensChunkResponse<Event>>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
+            @Override
+            public void onRetry() {
+                try {
+                    getRoomMembers(roomId, callback);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "resend getRoomMembers failed " + e.getLocalizedMessage());
+                }
+            }
+        }));
+    }
+
     /**
      * Update the room name.
      * @param roomId the room id
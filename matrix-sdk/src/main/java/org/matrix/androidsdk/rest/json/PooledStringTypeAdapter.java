@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.json;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import org.matrix.androidsdk.util.MXStringsPool;
+
+import java.io.IOException;
+
+/**
+ * The identifiers strings type adapter.
+ * It has the same behaviour as the gson one but the parsed strings are replaced by their MXStringsPool instance,
+ * so the identifiers (user ids, room ids, event types...) are not duplicated in memory.
+ * It must only be set on the identifiers fields with a JsonAdapter annotation : the other strings
+ * (messages bodies, display names, URLs...) are rarely duplicated and would fill the pool.
+ */
+public class PooledStringTypeAdapter extends TypeAdapter<String> {
+    @Override
+    public String read(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+
+        if (JsonToken.NULL == token) {
+            reader.nextNull();
+            return null;
+        }
+
+        // the booleans are accepted as strings
+        if (JsonToken.BOOLEAN == token) {
+            return Boolean.toString(reader.nextBoolean());
+        }
+
+        return MXStringsPool.intern(reader.nextString());
+    }
+
+    @Override
+    public void write(JsonWriter writer, String value) throws IOException {
+        writer.value(value);
+    }
+}
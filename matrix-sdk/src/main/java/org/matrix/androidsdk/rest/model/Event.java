@@ -23,9 +23,12 @@ import org.matrix.androidsdk.util.Log;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.annotations.JsonAdapter;
 
 import org.matrix.androidsdk.crypto.MXCryptoError;
 import org.matrix.androidsdk.db.MXMediasCache;
+import org.matrix.androidsdk.rest.json.PooledStringTypeAdapter;
+import org.matrix.androidsdk.util.CodecUtils;
 import org.matrix.androidsdk.util.JsonUtils;
 
 import java.io.Externalizable;
@@ -100,6 +103,7 @@ public class Event implements Externalizable {
 
     public static final long DUMMY_EVENT_AGE = Long.MAX_VALUE - 1;
 
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String type;
     public transient JsonElement content = null;
     private String contentAsString = null;
@@ -107,22 +111,29 @@ public class Event implements Externalizable {
     public transient JsonElement prev_content = null;
     private String prev_content_as_string = null;
 
+    // the identifiers are shared by the MXStringsPool
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String eventId;
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String roomId;
     // former Sync V1 sender name
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String userId;
     // Sync V2 sender name
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String sender;
     public long originServerTs;
     public Long age;
 
     // Specific to state events
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String stateKey;
 
     // Contains optional extra information about the event.
     public UnsignedData unsigned;
 
     // Specific to redaction
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String redacts;
 
     // A subset of the state of the room at the time of the invite, if membership is invite
@@ -335,7 +346,7 @@ public class Event implements Externalizable {
      * @return the wired event content
      */
     public JsonElement getWireContent() {
-        finalizeDeserialization();
+        finalizeContentDeserialization();
         return content;
     }
 
@@ -355,7 +366,7 @@ public class Event implements Externalizable {
      * @return the prev_content casted as JsonObject.
      */
     public JsonObject getPrevContentAsJsonObject() {
-        finalizeDeserialization();
+        finalizePrevContentDeserialization();
 
         if ((null != unsigned) && (null != unsigned.prev_content)) {
             // avoid getting two value for the same thing
@@ -520,8 +531,7 @@ public class Event implements Externalizable {
      * @return the copy
      */
     public Event deepCopy() {
-        finalizeDeserialization();
-
+        // the contents are not parsed : the copy parses them when they are required
         Event copy = new Event();
         copy.type = type;
         copy.content = content;
@@ -749,7 +759,62 @@ public class Event implements Externalizable {
 
     @Override
     public void readExternal(ObjectInput input) throws IOException, ClassNotFoundException {
+        int firstByte = input.readUnsignedByte();
+
+        if (CodecUtils.FORMAT_MARKER != firstByte) {
+            readLegacyExternal(input, 0 != firstByte);
+            return;
+        }
+
+        CodecUtils.readVersion(input);
+
+        type = CodecUtils.readIdentifier(input);
+        // the contents are parsed when they are used
+        contentAsString = CodecUtils.readString(input);
+        prev_content_as_string = CodecUtils.readString(input);
+        eventId = CodecUtils.readIdentifier(input);
+        roomId = CodecUtils.readIdentifier(input);
+        userId = CodecUtils.readIdentifier(input);
+        sender = CodecUtils.readIdentifier(input);
+        originServerTs = CodecUtils.readVarLong(input);
+        age = CodecUtils.readNullableLong(input);
+        stateKey = CodecUtils.readIdentifier(input);
+
+        if (input.readBoolean()) {
+            unsigned = (UnsignedData) input.readObject();
+        }
+
+        redacts = CodecUtils.readIdentifier(input);
+
+        if (input.readBoolean()) {
+            invite_room_state = (List<Event>) input.readObject();
+        }
+
+        if (input.readBoolean()) {
+            unsentException = (Exception) input.readObject();
+        }
+
         if (input.readBoolean()) {
+            unsentMatrixError = (MatrixError) input.readObject();
+        }
+
+        String sentState = CodecUtils.readString(input);
+        mSentState = (null != sentState) ? SentState.valueOf(sentState) : null;
+
+        mToken = CodecUtils.readString(input);
+        mIsInternalPaginationToken = input.readBoolean();
+        mMatrixId = CodecUtils.readIdentifier(input);
+        mTimeZoneRawOffset = input.readLong();
+    }
+
+    /**
+     * Read an event serialized with the legacy Externalizable format.
+     *
+     * @param input       the input
+     * @param hasType     the first boolean of the legacy format
+     */
+    private void readLegacyExternal(ObjectInput input, boolean hasType) throws IOException, ClassNotFoundException {
+        if (hasType) {
             type = input.readUTF();
         }
 
@@ -826,62 +891,25 @@ public class Event implements Externalizable {
     public void writeExternal(ObjectOutput output) throws IOException {
         prepareSerialization();
 
-        output.writeBoolean(null != type);
-        if (null != type) {
-            output.writeUTF(type);
-        }
+        CodecUtils.writeHeader(output);
 
-        output.writeBoolean(null != contentAsString);
-        if (null != contentAsString) {
-            output.writeUTF(contentAsString);
-        }
-
-        output.writeBoolean(null != prev_content_as_string);
-        if (null != prev_content_as_string) {
-            output.writeUTF(prev_content_as_string);
-        }
-
-        output.writeBoolean(null != eventId);
-        if (null != eventId) {
-            output.writeUTF(eventId);
-        }
-
-        output.writeBoolean(null != roomId);
-        if (null != roomId) {
-            output.writeUTF(roomId);
-        }
-
-        output.writeBoolean(null != userId);
-        if (null != userId) {
-            output.writeUTF(userId);
-        }
-
-        output.writeBoolean(null != sender);
-        if (null != sender) {
-            output.writeUTF(sender);
-        }
-
-        output.writeLong(originServerTs);
-
-        output.writeBoolean(null != age);
-        if (null != age) {
-            output.writeLong(age);
-        }
-
-        output.writeBoolean(null != stateKey);
-        if (null != stateKey) {
-            output.writeUTF(stateKey);
-        }
+        CodecUtils.writeString(output, type);
+        CodecUtils.writeString(output, contentAsString);
+        CodecUtils.writeString(output, prev_content_as_string);
+        CodecUtils.writeString(output, eventId);
+        CodecUtils.writeString(output, roomId);
+        CodecUtils.writeString(output, userId);
+        CodecUtils.writeString(output, sender);
+        CodecUtils.writeVarLong(output, originServerTs);
+        CodecUtils.writeNullableLong(output, age);
+        CodecUtils.writeString(output, stateKey);
 
         output.writeBoolean(null != unsigned);
         if (null != unsigned) {
             output.writeObject(unsigned);
         }
 
-        output.writeBoolean(null != redacts);
-        if (null != redacts) {
-            output.writeUTF(redacts);
-        }
+        CodecUtils.writeString(output, redacts);
 
         output.writeBoolean(null != invite_room_state);
         if (null != invite_room_state) {
@@ -898,20 +926,10 @@ public class Event implements Externalizable {
             output.writeObject(unsentMatrixError);
         }
 
-        output.writeObject(mSentState);
-
-        output.writeBoolean(null != mToken);
-        if (null != mToken) {
-            output.writeUTF(mToken);
-        }
-
+        CodecUtils.writeString(output, (null != mSentState) ? mSentState.name() : null);
+        CodecUtils.writeString(output, mToken);
         output.writeBoolean(mIsInternalPaginationToken);
-
-        output.writeBoolean(null != mMatrixId);
-        if (null != mMatrixId) {
-            output.writeUTF(mMatrixId);
-        }
-
+        CodecUtils.writeString(output, mMatrixId);
         output.writeLong(mTimeZoneRawOffset);
     }
 
@@ -923,8 +941,13 @@ public class Event implements Externalizable {
             contentAsString = content.toString();
         }
 
-        if ((null != getPrevContentAsJsonObject()) && (null == prev_content_as_string)) {
-            prev_content_as_string = getPrevContentAsJsonObject().toString();
+        // do not parse the stored contents
+        if (null == prev_content_as_string) {
+            JsonObject prevContent = getPrevContentAsJsonObject();
+
+            if (null != prevContent) {
+                prev_content_as_string = prevContent.toString();
+            }
         }
 
         if ((null != unsigned) && (null != unsigned.prev_content)) {
@@ -933,9 +956,10 @@ public class Event implements Externalizable {
     }
 
     /**
-     * Deserialize the event.
+     * Deserialize the event content.
+     * It is only done when the content is used.
      */
-    private void finalizeDeserialization() {
+    private void finalizeContentDeserialization() {
         if ((null != contentAsString) && (null == content)) {
             try {
                 content = new JsonParser().parse(contentAsString).getAsJsonObject();
@@ -944,7 +968,13 @@ public class Event implements Externalizable {
                 contentAsString = null;
             }
         }
+    }
 
+    /**
+     * Deserialize the event prev_content.
+     * It is only done when the prev_content is used.
+     */
+    private void finalizePrevContentDeserialization() {
         if ((null != prev_content_as_string) && (null == prev_content)) {
             try {
                 prev_content = new JsonParser().parse(prev_content_as_string).getAsJsonObject();
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model.Filter;
+
+import org.matrix.androidsdk.util.JsonUtils;
+
+import java.util.List;
+
+/**
+ * Class which can be parsed to a filter json string. Used for POST and GET
+ * Have a look here for further information:
+ * https://matrix.org/docs/spec/client_server/r0.2.0.html#post-matrix-client-r0-user-userid-filter
+ */
+public class FilterBody {
+
+    /**
+     * List of event fields to include. If this list is absent then all fields are included.
+     */
+    public List<String> eventFields;
+
+    /**
+     * The format to use for events. 'client' will return the events in a format suitable for clients.
+     * 'federation' will return the raw event as received over federation.
+     */
+    public String eventFormat;
+
+    /**
+     * The presence updates to include.
+     */
+    public Filter presence;
+
+    /**
+     * The user account data that isn't associated with rooms to include.
+     */
+    public Filter accountData;
+
+    /**
+     * Filters to be applied to room data.
+     */
+    public RoomFilter room;
+
+    /**
+     * @return the JSON representation of this filter, the unset fields are not included.
+     */
+    public String toJSONString() {
+        return JsonUtils.getGson(false).toJson(this);
+    }
+}
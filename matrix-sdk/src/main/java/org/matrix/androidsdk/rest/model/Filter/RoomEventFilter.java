@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model.Filter;
+
+import java.util.List;
+
+/**
+ * Represents "RoomEventFilter" as mentioned in the SPEC
+ * https://matrix.org/docs/spec/client_server/r0.2.0.html#post-matrix-client-r0-user-userid-filter
+ */
+public class RoomEventFilter {
+
+    /**
+     * The maximum number of events to return.
+     */
+    public Integer limit;
+
+    /**
+     * A list of sender IDs to exclude.
+     */
+    public List<String> notSenders;
+
+    /**
+     * A list of event types to exclude. A '*' can be used as a wildcard.
+     */
+    public List<String> notTypes;
+
+    /**
+     * A list of senders IDs to include. If this list is absent then all senders are included.
+     */
+    public List<String> senders;
+
+    /**
+     * A list of event types to include. If this list is absent then all event types are included.
+     */
+    public List<String> types;
+
+    /**
+     * A list of room IDs to include. If this list is absent then all rooms are included.
+     */
+    public List<String> rooms;
+
+    /**
+     * A list of room IDs to exclude.
+     */
+    public List<String> notRooms;
+
+    /**
+     * If true, includes only events with a url key in their content.
+     * If false, excludes those events.
+     */
+    public Boolean containsUrl;
+
+    /**
+     * If true, the server only sends the members events of the timeline events senders.
+     */
+    public Boolean lazyLoadMembers;
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model.Filter;
+
+import java.util.List;
+
+/**
+ * Represents "RoomFilter" as mentioned in the SPEC
+ * https://matrix.org/docs/spec/client_server/r0.2.0.html#post-matrix-client-r0-user-userid-filter
+ */
+public class RoomFilter {
+
+    /**
+     * A list of room IDs to exclude.
+     */
+    public List<String> notRooms;
+
+    /**
+     * A list of room IDs to include. If this list is absent then all rooms are included.
+     */
+    public List<String> rooms;
+
+    /**
+     * The events that aren't recorded in the room history, e.g. typing and receipts, to include for rooms.
+     */
+    public RoomEventFilter ephemeral;
+
+    /**
+     * Include rooms that the user has left in the sync.
+     */
+    public Boolean includeLeave;
+
+    /**
+     * The state events to include for rooms.
+     */
+    public RoomEventFilter state;
+
+    /**
+     * The message and state update events to include for rooms.
+     */
+    public RoomEventFilter timeline;
+
+    /**
+     * The per user account data to include for rooms.
+     */
+    public RoomEventFilter accountData;
+}
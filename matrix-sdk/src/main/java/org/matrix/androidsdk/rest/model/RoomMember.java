@@ -18,6 +18,10 @@ package org.matrix.androidsdk.rest.model;
 
 import android.text.TextUtils;
 
+import com.google.gson.annotations.JsonAdapter;
+
+import org.matrix.androidsdk.rest.json.PooledStringTypeAdapter;
+import org.matrix.androidsdk.util.CodecUtils;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.Log;
 
@@ -39,6 +43,7 @@ public class RoomMember implements Externalizable {
 
     public String displayname;
     public String avatarUrl;
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String membership;
     public Invite thirdPartyInvite;
 
@@ -56,7 +61,38 @@ public class RoomMember implements Externalizable {
 
     @Override
     public void readExternal(ObjectInput input) throws IOException, ClassNotFoundException {
+        int firstByte = input.readUnsignedByte();
+
+        if (CodecUtils.FORMAT_MARKER != firstByte) {
+            readLegacyExternal(input, 0 != firstByte);
+            return;
+        }
+
+        CodecUtils.readVersion(input);
+
+        displayname = CodecUtils.readString(input);
+        avatarUrl = CodecUtils.readString(input);
+        membership = CodecUtils.readIdentifier(input);
+
         if (input.readBoolean()) {
+            thirdPartyInvite = (Invite) input.readObject();
+        }
+
+        is_direct = CodecUtils.readNullableBoolean(input);
+        userId = CodecUtils.readIdentifier(input);
+        mOriginServerTs = input.readLong();
+        mInviter = CodecUtils.readIdentifier(input);
+        mOriginalEventId = CodecUtils.readIdentifier(input);
+    }
+
+    /**
+     * Read a room member serialized with the legacy Externalizable format.
+     *
+     * @param input          the input
+     * @param hasDisplayname the first boolean of the legacy format
+     */
+    private void readLegacyExternal(ObjectInput input, boolean hasDisplayname) throws IOException, ClassNotFoundException {
+        if (hasDisplayname) {
             displayname = input.readUTF();
         }
 
@@ -92,48 +128,23 @@ public class RoomMember implements Externalizable {
     }
 
     @Override
-    public  void writeExternal(ObjectOutput output) throws IOException {
-        output.writeBoolean(null != displayname);
-        if (null != displayname) {
-            output.writeUTF(displayname);
-        }
-
-        output.writeBoolean(null != avatarUrl);
-        if (null != avatarUrl) {
-            output.writeUTF(avatarUrl);
-        }
+    public void writeExternal(ObjectOutput output) throws IOException {
+        CodecUtils.writeHeader(output);
 
-        output.writeBoolean(null != membership);
-        if (null != membership) {
-            output.writeUTF(membership);
-        }
+        CodecUtils.writeString(output, displayname);
+        CodecUtils.writeString(output, avatarUrl);
+        CodecUtils.writeString(output, membership);
 
         output.writeBoolean(null != thirdPartyInvite);
         if (null != thirdPartyInvite) {
             output.writeObject(thirdPartyInvite);
         }
 
-        output.writeBoolean(null != is_direct);
-        if (null != is_direct) {
-            output.writeBoolean(is_direct);
-        }
-
-        output.writeBoolean(null != userId);
-        if (null != userId) {
-            output.writeUTF(userId);
-        }
-
+        CodecUtils.writeNullableBoolean(output, is_direct);
+        CodecUtils.writeString(output, userId);
         output.writeLong(mOriginServerTs);
-
-        output.writeBoolean(null != mInviter);
-        if (null != mInviter) {
-            output.writeUTF(mInviter);
-        }
-
-        output.writeBoolean(null != mOriginalEventId);
-        if (null != mOriginalEventId) {
-            output.writeUTF(mOriginalEventId);
-        }
+        CodecUtils.writeString(output, mInviter);
+        CodecUtils.writeString(output, mOriginalEventId);
     }
 
     public String getUserId() {
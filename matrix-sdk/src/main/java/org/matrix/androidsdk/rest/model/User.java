@@ -19,10 +19,16 @@ package org.matrix.androidsdk.rest.model;
 
 import android.text.TextUtils;
 
+import com.google.gson.annotations.JsonAdapter;
+
 import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.listeners.IMXEventListener;
 import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.json.PooledStringTypeAdapter;
+import org.matrix.androidsdk.util.MXStringsPool;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,10 +46,15 @@ public class User implements java.io.Serializable {
     public static final String PRESENCE_FREE_FOR_CHAT = "free_for_chat";
     public static final String PRESENCE_HIDDEN = "hidden";
 
+    // the users are stored by groups, the group is given by the storage hash key
+    public static final int STORAGE_HASH_KEYS_COUNT = 100;
+
     // user fields provided by the server
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String user_id;
     public String displayname;
     public String avatar_url;
+    @JsonAdapter(PooledStringTypeAdapter.class)
     public String presence;
     public Boolean currently_active;
     public Long lastActiveAgo;
@@ -124,17 +135,38 @@ public class User implements java.io.Serializable {
         return mPendingListeners;
     }
 
+    /**
+     * Deserialize the user.
+     * The identifiers are replaced by their shared instance.
+     */
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+
+        user_id = MXStringsPool.intern(user_id);
+        presence = MXStringsPool.intern(presence);
+    }
+
     /**
      * @return the user hash key
      */
     public int getStorageHashKey() {
         if (null == mStorageHashKey) {
-            mStorageHashKey = Math.abs(user_id.hashCode() % 100);
+            mStorageHashKey = getStorageHashKey(user_id);
         }
 
         return mStorageHashKey;
     }
 
+    /**
+     * Compute the storage hash key of an user id.
+     *
+     * @param userId the user id
+     * @return the user hash key
+     */
+    public static int getStorageHashKey(String userId) {
+        return Math.abs(userId.hashCode() % STORAGE_HASH_KEYS_COUNT);
+    }
+
     /**
      * @return true if the presence should be refreshed
      */
@@ -97,7 +97,12 @@ public class EventMatchCondition extends Condition {
         return (jsonElement == null) ? null : jsonElement.getAsString();
     }
 
-    private String globToRegex(String glob) {
+    /**
+     * Convert a glob pattern to a regular expression.
+     * @param glob the glob pattern
+     * @return the regular expression
+     */
+    public static String globToRegex(String glob) {
         String res = glob.replace("*", ".*").replace("?", ".");
 
         // If no special characters were found (detected here by no replacements having been made),
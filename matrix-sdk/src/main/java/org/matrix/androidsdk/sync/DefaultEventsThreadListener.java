@@ -18,6 +18,7 @@
 package org.matrix.androidsdk.sync;
 
 import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 
 /**
@@ -36,6 +37,11 @@ public class DefaultEventsThreadListener implements EventsThreadListener {
         mData.onSyncResponse(syncResponse, fromToken, isCatchingUp);
     }
 
+    @Override
+    public void onSyncResponseStream(SyncResponseStream syncStream, String fromToken, boolean isCatchingUp, ApiCallback<Void> callback) {
+        mData.onSyncResponseStream(syncStream, fromToken, isCatchingUp, callback);
+    }
+
     @Override
     public void onInvalidToken() {
         mData.onInvalidToken();
@@ -31,10 +31,13 @@ import org.matrix.androidsdk.rest.client.EventsRestClient;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 
+import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
 
+import retrofit.client.Response;
+
 /**
  * Thread that continually watches the event stream and sends events to its listener.
  */
@@ -58,7 +61,16 @@ public class EventsThread extends Thread {
     private boolean mGotFirstCatchupChunk = false;
     private boolean mIsOnline = true;
 
-    private boolean mKilling = false;
+    private volatile boolean mKilling = false;
+
+    // tell if the initial sync response is parsed room by room
+    private boolean mUseStreamingInitialSync = true;
+
+    // the folder where the initial sync response is spooled
+    private File mSpoolDirectory = null;
+
+    // the sync filter id or its inline JSON, null to sync without filter
+    private volatile String mFilterOrFilterId = null;
 
     private int mDefaultServerTimeoutms = DEFAULT_SERVER_TIMEOUT_MS;
     private int mNextServerTimeoutms = DEFAULT_SERVER_TIMEOUT_MS;
@@ -175,6 +187,37 @@ public class EventsThread extends Thread {
         return mRequestDelayMs;
     }
 
+    /**
+     * Tells if the initial sync response is parsed room by room.
+     * It limits the memory usage with large accounts.
+     * It must be set before starting the thread.
+     *
+     * @param useStreamingInitialSync true to parse the initial sync response room by room.
+     */
+    public void setUseStreamingInitialSync(boolean useStreamingInitialSync) {
+        mUseStreamingInitialSync = useStreamingInitialSync;
+    }
+
+    /**
+     * Set the folder where the initial sync response is spooled when it is parsed room by room.
+     * It must be set before starting the thread.
+     *
+     * @param spoolDirectory the spool folder, null to use the default temporary folder
+     */
+    public void setSpoolDirectory(File spoolDirectory) {
+        mSpoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Set the filter used by the next sync requests.
+     *
+     * @param filterOrFilterId the id of an uploaded filter or an inline JSON filter, null to sync without filter.
+     */
+    public void setFilterOrFilterId(String filterOrFilterId) {
+        Log.d(LOG_TAG, "setFilterOrFilterId : " + filterOrFilterId);
+        mFilterOrFilterId = filterOrFilterId;
+    }
+
     /**
      * Set the network connectivity listener.
      * It is used to avoid restarting the events threads each 10 seconds when there is no available network.
@@ -317,6 +360,141 @@ public class EventsThread extends Thread {
                 (syncResponse.deviceLists.changed.size() > 0);
     }
 
+    /**
+     * The initial sync request callback.
+     * The request is tried again after a delay when it fails.
+     *
+     * @param <T> the response type
+     */
+    private abstract class InitialSyncCallback<T> extends SimpleApiCallback<T> {
+        // unblock the events thread
+        private final CountDownLatch mLatch;
+
+        InitialSyncCallback(CountDownLatch latch) {
+            super(mFailureCallback);
+            mLatch = latch;
+        }
+
+        private void sleepAndUnblock() {
+            Log.i(LOG_TAG, "Waiting a bit before retrying");
+            new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+                public void run() {
+                    mLatch.countDown();
+                }
+            }, RETRY_WAIT_TIME_MS);
+        }
+
+        @Override
+        public void onNetworkError(Exception e) {
+            if (null != mCurrentToken) {
+                onSuccess(null);
+            } else {
+                Log.e(LOG_TAG, "Sync V2 onNetworkError " + e.getLocalizedMessage());
+                super.onNetworkError(e);
+                sleepAndUnblock();
+            }
+        }
+
+        @Override
+        public void onMatrixError(MatrixError e) {
+            super.onMatrixError(e);
+
+            if (TextUtils.equals(MatrixError.UNKNOWN_TOKEN, e.errcode)) {
+                mListener.onInvalidToken();
+            } else {
+                sleepAndUnblock();
+            }
+        }
+
+        @Override
+        public void onUnexpectedError(Exception e) {
+            super.onUnexpectedError(e);
+            Log.e(LOG_TAG, "Sync V2 onUnexpectedError " + e.getLocalizedMessage());
+            sleepAndUnblock();
+        }
+    }
+
+    /**
+     * Block until the initial sync callback is invoked.
+     *
+     * @param latch the initial sync latch
+     */
+    private void awaitInitialSync(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted whilst performing initial sync.");
+        }
+    }
+
+    /**
+     * Read the initial sync response body and give it to the listener.
+     * The rooms are parsed by the listener.
+     *
+     * @param response the initial sync response
+     */
+    private void onInitialSyncStream(Response response) {
+        SyncResponseStream syncStream;
+
+        try {
+            syncStream = new SyncResponseStream(response.getBody().in(), mSpoolDirectory);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## onInitialSyncStream() : cannot read the response " + e.getMessage());
+            waitBeforeRetrying();
+            return;
+        }
+
+        Log.d(LOG_TAG, "Received initial sync response.");
+
+        final SyncResponse syncResponse = syncStream.getSyncResponse();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] isManaged = {false};
+
+        mNextServerTimeoutms = hasDevicesChanged(syncResponse) ? 0 : mDefaultServerTimeoutms;
+
+        // the sync token is only saved when all the rooms have been managed
+        mListener.onSyncResponseStream(syncStream, null, (0 == mNextServerTimeoutms), new SimpleApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                isManaged[0] = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                Log.e(LOG_TAG, "## onInitialSyncStream() : the response has not been managed " + e.getMessage());
+
+                // the data handler has been cleared, the initial sync cannot be completed anymore
+                if (e instanceof IllegalStateException) {
+                    mKilling = true;
+                }
+
+                latch.countDown();
+            }
+        });
+
+        awaitInitialSync(latch);
+
+        if (isManaged[0]) {
+            mCurrentToken = syncResponse.nextBatch;
+            mInitialSyncDone = true;
+        } else if (!mKilling) {
+            waitBeforeRetrying();
+        }
+    }
+
+    /**
+     * Wait a bit before retrying the initial sync.
+     */
+    private void waitBeforeRetrying() {
+        try {
+            Log.i(LOG_TAG, "Waiting a bit before retrying");
+            Thread.sleep(RETRY_WAIT_TIME_MS);
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted whilst performing initial sync.");
+        }
+    }
+
     /**
      * Start the events sync
      */
@@ -345,64 +523,43 @@ public class EventsThread extends Thread {
         } else {
 
             // Start with initial sync
-            while (!mInitialSyncDone) {
+            // stop retrying when the thread is killed
+            while (!mInitialSyncDone && !mKilling) {
                 final CountDownLatch latch = new CountDownLatch(1);
-                mEventsRestClient.syncFromToken(null, 0, DEFAULT_CLIENT_TIMEOUT_MS, null, null, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
-                    @Override
-                    public void onSuccess(SyncResponse syncResponse) {
-                        Log.d(LOG_TAG, "Received initial sync response.");
-                        mNextServerTimeoutms = hasDevicesChanged(syncResponse) ? 0 : mDefaultServerTimeoutms;
-                        mListener.onSyncResponse(syncResponse, null, (0 == mNextServerTimeoutms));
-                        mCurrentToken = syncResponse.nextBatch;
-                        mInitialSyncDone = true;
-                        // unblock the events thread
-                        latch.countDown();
-                    }
 
-                    private void sleepAndUnblock() {
-                        Log.i(LOG_TAG, "Waiting a bit before retrying");
-                        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-                            public void run() {
-                                latch.countDown();
-                            }
-                        }, RETRY_WAIT_TIME_MS);
-                    }
+                if (mUseStreamingInitialSync) {
+                    final Response[] responses = new Response[1];
 
-                    @Override
-                    public void onNetworkError(Exception e) {
-                        if (null != mCurrentToken) {
-                            onSuccess(null);
-                        } else {
-                            Log.e(LOG_TAG, "Sync V2 onNetworkError " + e.getLocalizedMessage());
-                            super.onNetworkError(e);
-                            sleepAndUnblock();
+                    mEventsRestClient.syncStreamFromToken(null, 0, DEFAULT_CLIENT_TIMEOUT_MS, null, mFilterOrFilterId, new InitialSyncCallback<Response>(latch) {
+                        @Override
+                        public void onSuccess(Response response) {
+                            // the body is read in the events thread
+                            responses[0] = response;
+                            // unblock the events thread
+                            latch.countDown();
                         }
-                    }
+                    });
 
-                    @Override
-                    public void onMatrixError(MatrixError e) {
-                        super.onMatrixError(e);
-
-                        if (TextUtils.equals(MatrixError.UNKNOWN_TOKEN, e.errcode)) {
-                            mListener.onInvalidToken();
-                        } else {
-                            sleepAndUnblock();
-                        }
-                    }
+                    awaitInitialSync(latch);
 
-                    @Override
-                    public void onUnexpectedError(Exception e) {
-                        super.onUnexpectedError(e);
-                        Log.e(LOG_TAG, "Sync V2 onUnexpectedError " + e.getLocalizedMessage());
-                        sleepAndUnblock();
+                    if (null != responses[0]) {
+                        onInitialSyncStream(responses[0]);
                     }
-                });
+                } else {
+                    mEventsRestClient.syncFromToken(null, 0, DEFAULT_CLIENT_TIMEOUT_MS, null, mFilterOrFilterId, new InitialSyncCallback<SyncResponse>(latch) {
+                        @Override
+                        public void onSuccess(SyncResponse syncResponse) {
+                            Log.d(LOG_TAG, "Received initial sync response.");
+                            mNextServerTimeoutms = hasDevicesChanged(syncResponse) ? 0 : mDefaultServerTimeoutms;
+                            mListener.onSyncResponse(syncResponse, null, (0 == mNextServerTimeoutms));
+                            mCurrentToken = syncResponse.nextBatch;
+                            mInitialSyncDone = true;
+                            // unblock the events thread
+                            latch.countDown();
+                        }
+                    });
 
-                // block until the initial sync callback is invoked.
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Log.e(LOG_TAG, "Interrupted whilst performing initial sync.");
+                    awaitInitialSync(latch);
                 }
             }
             serverTimeout = mNextServerTimeoutms;
@@ -471,8 +628,6 @@ public class EventsThread extends Thread {
 
             // the service could have been killed while being paused.
             if (!mKilling) {
-                String inlineFilter = null; //"{\"room\":{\"timeline\":{\"limit\":250}}}";
-
                 final CountDownLatch latch = new CountDownLatch(1);
 
                 Log.d(LOG_TAG, "Get events from token " + mCurrentToken);
@@ -480,7 +635,7 @@ public class EventsThread extends Thread {
                 final int fServerTimeout = serverTimeout;
                 mNextServerTimeoutms = mDefaultServerTimeoutms;
 
-                mEventsRestClient.syncFromToken(mCurrentToken, serverTimeout, DEFAULT_CLIENT_TIMEOUT_MS, (mIsCatchingUp && mIsOnline) ? "offline" : null, inlineFilter, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
+                mEventsRestClient.syncFromToken(mCurrentToken, serverTimeout, DEFAULT_CLIENT_TIMEOUT_MS, (mIsCatchingUp && mIsOnline) ? "offline" : null, mFilterOrFilterId, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
                     @Override
                     public void onSuccess(SyncResponse syncResponse) {
                         if (!mKilling) {
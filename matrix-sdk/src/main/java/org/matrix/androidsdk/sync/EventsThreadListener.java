@@ -16,6 +16,7 @@
  */
 package org.matrix.androidsdk.sync;
 
+import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 
 /**
@@ -30,6 +31,16 @@ public interface EventsThreadListener {
      */
     void onSyncResponse(SyncResponse response, String fromToken, boolean isCatchingUp);
 
+    /**
+     * Call when a sync request has been performed in streaming mode.
+     * The listener must release the stream when it is managed.
+     * @param syncStream the sync response stream
+     * @param fromToken the start token
+     * @param isCatchingUp true if a catchup is on progress
+     * @param callback the callback, it must fail if the rooms cannot be read to trigger a new sync
+     */
+    void onSyncResponseStream(SyncResponseStream syncStream, String fromToken, boolean isCatchingUp, ApiCallback<Void> callback);
+
     /**
      * the server returns an invalid token error
      */
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.model.Filter.FilterBody;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.Log;
+
+/**
+ * Applies the sync filter settings to the events thread.
+ *
+ * The filter is sent inline until it is uploaded. The id of the uploaded filter is saved
+ * in the store, so the next sessions do not upload it again.
+ */
+public class SyncFilterManager {
+    private static final String LOG_TAG = "SyncFilterManager";
+
+    // the store where the filter ids are saved
+    private final IMXStore mStore;
+
+    // the filter upload rest client
+    private final EventsRestClient mEventsRestClient;
+
+    // the latest applied filter JSON, null to sync without filter
+    private String mFilterJson = null;
+
+    /**
+     * Constructor
+     *
+     * @param store            the store
+     * @param eventsRestClient the events rest client
+     */
+    public SyncFilterManager(IMXStore store, EventsRestClient eventsRestClient) {
+        mStore = store;
+        mEventsRestClient = eventsRestClient;
+    }
+
+    /**
+     * Apply the sync filter settings to an events thread.
+     *
+     * @param eventsThread the events thread
+     * @param settings     the settings, null to sync without filter.
+     */
+    public void applySyncFilter(final EventsThread eventsThread, SyncFilterSettings settings) {
+        final FilterBody filterBody = (null == settings) ? null : settings.toFilterBody();
+
+        if (null == filterBody) {
+            mFilterJson = null;
+            eventsThread.setFilterOrFilterId(null);
+            return;
+        }
+
+        final String filterJson = filterBody.toJSONString();
+        mFilterJson = filterJson;
+
+        String filterId = mStore.getSyncFilterId(filterJson);
+
+        if (null != filterId) {
+            eventsThread.setFilterOrFilterId(filterId);
+            return;
+        }
+
+        eventsThread.setFilterOrFilterId(filterJson);
+
+        mEventsRestClient.uploadFilter(filterBody, new ApiCallback<String>() {
+            @Override
+            public void onSuccess(String filterId) {
+                if (!TextUtils.isEmpty(filterId)) {
+                    mStore.setSyncFilterId(filterJson, filterId);
+
+                    // the settings might have been updated in the meantime
+                    if (TextUtils.equals(filterJson, mFilterJson)) {
+                        eventsThread.setFilterOrFilterId(filterId);
+                    }
+                }
+            }
+
+            private void onError(String errorMessage) {
+                // keep on using the inline filter
+                Log.e(LOG_TAG, "## applySyncFilter() : the filter upload failed " + errorMessage);
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                onError(e.getMessage());
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onError(e.getMessage());
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onError(e.getMessage());
+            }
+        });
+    }
+}
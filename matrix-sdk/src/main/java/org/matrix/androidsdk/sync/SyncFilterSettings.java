@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.matrix.androidsdk.rest.model.Filter.Filter;
+import org.matrix.androidsdk.rest.model.Filter.FilterBody;
+import org.matrix.androidsdk.rest.model.Filter.RoomEventFilter;
+import org.matrix.androidsdk.rest.model.Filter.RoomFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The sync requests settings which are sent to the server as a filter.
+ *
+ * The server does not send the filtered data, so the sync responses are smaller
+ * and there are less events to parse and to store.
+ */
+public class SyncFilterSettings {
+
+    // the timeline events count of each room, 0 to use the server default one
+    private int mTimelineLimit = 0;
+
+    // the timeline events types, null to receive all of them
+    private List<String> mTimelineEventTypes = null;
+
+    // tell if the presence events are received
+    private boolean mIsPresenceEnabled = true;
+
+    // tell if the server only sends the members of the timeline events senders
+    private boolean mLazyLoadMembers = false;
+
+    /**
+     * Update the timeline events count sent for each room.
+     * A limited timeline is paginated back when it is displayed.
+     *
+     * @param limit the events count, 0 to use the server default one.
+     */
+    public void setTimelineLimit(int limit) {
+        mTimelineLimit = Math.max(0, limit);
+    }
+
+    /**
+     * @return the timeline events count sent for each room, 0 for the server default one.
+     */
+    public int getTimelineLimit() {
+        return mTimelineLimit;
+    }
+
+    /**
+     * Update the event types sent in the rooms timelines.
+     * '*' can be used as a wildcard (e.g. "m.call.*").
+     *
+     * @param types the event types, null to receive all of them.
+     */
+    public void setTimelineEventTypes(List<String> types) {
+        mTimelineEventTypes = (null == types) ? null : new ArrayList<>(types);
+    }
+
+    /**
+     * @return the event types sent in the rooms timelines, null if all of them are sent.
+     */
+    public List<String> getTimelineEventTypes() {
+        return mTimelineEventTypes;
+    }
+
+    /**
+     * Tells if the presence events are sent.
+     *
+     * @param isEnabled false to never receive the presence events.
+     */
+    public void setPresenceEnabled(boolean isEnabled) {
+        mIsPresenceEnabled = isEnabled;
+    }
+
+    /**
+     * @return true if the presence events are sent.
+     */
+    public boolean isPresenceEnabled() {
+        return mIsPresenceEnabled;
+    }
+
+    /**
+     * Tells if the rooms members are lazy loaded.
+     * When it is enabled, the rooms states only contain the members who have sent
+     * a timeline event, and the other ones are requested to the server when a room
+     * needs all of them (see {@link org.matrix.androidsdk.data.Room#getMembersAsync}).
+     * Disabling it does not retrieve the missing members : the cache must be cleared.
+     *
+     * @param lazyLoadMembers true to lazy load the rooms members.
+     */
+    public void setLazyLoadMembers(boolean lazyLoadMembers) {
+        mLazyLoadMembers = lazyLoadMembers;
+    }
+
+    /**
+     * @return true if the rooms members are lazy loaded.
+     */
+    public boolean isLazyLoadMembers() {
+        return mLazyLoadMembers;
+    }
+
+    /**
+     * @return true if the settings do not filter anything.
+     */
+    public boolean isEmpty() {
+        return (0 == mTimelineLimit) && (null == mTimelineEventTypes) && mIsPresenceEnabled && !mLazyLoadMembers;
+    }
+
+    /**
+     * Build the filter matching these settings.
+     *
+     * @return the filter, null if the settings do not filter anything.
+     */
+    public FilterBody toFilterBody() {
+        if (isEmpty()) {
+            return null;
+        }
+
+        FilterBody filterBody = new FilterBody();
+
+        if (!mIsPresenceEnabled) {
+            filterBody.presence = new Filter();
+            filterBody.presence.notTypes = Arrays.asList("*");
+        }
+
+        if ((0 != mTimelineLimit) || (null != mTimelineEventTypes) || mLazyLoadMembers) {
+            filterBody.room = new RoomFilter();
+
+            if ((0 != mTimelineLimit) || (null != mTimelineEventTypes)) {
+                filterBody.room.timeline = new RoomEventFilter();
+
+                if (0 != mTimelineLimit) {
+                    filterBody.room.timeline.limit = mTimelineLimit;
+                }
+
+                filterBody.room.timeline.types = mTimelineEventTypes;
+            }
+
+            if (mLazyLoadMembers) {
+                filterBody.room.state = new RoomEventFilter();
+                filterBody.room.state.lazyLoadMembers = true;
+            }
+        }
+
+        return filterBody;
+    }
+}
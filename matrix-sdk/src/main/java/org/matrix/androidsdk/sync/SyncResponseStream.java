@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import android.content.Context;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * A sync response which is parsed on demand.
+ *
+ * The response body is spooled to a temporary file instead of being converted into a SyncResponse object graph.
+ * The rooms are then parsed one by one so the memory usage is bounded by the largest room sync,
+ * and the other fields (to device events, presence, account data...) are parsed in a first pass
+ * so they can still be managed before the rooms ones.
+ */
+public class SyncResponseStream {
+    private static final String LOG_TAG = "SyncResponseStream";
+
+    // the rooms categories
+    public static final String JOINED_ROOMS = "join";
+    public static final String INVITED_ROOMS = "invite";
+    public static final String LEFT_ROOMS = "leave";
+
+    private static final String ROOMS_FIELD = "rooms";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // the spooled bodies folder, in the application cache folder
+    private static final String SPOOL_FOLDER = "MXSyncSpool";
+
+    /**
+     * Callback called for each parsed room sync.
+     *
+     * @param <T> the room sync type
+     */
+    public interface RoomSyncCallback<T> {
+        /**
+         * A room sync has been parsed.
+         * It is not referenced anymore after this call.
+         *
+         * @param roomId   the room id
+         * @param roomSync the room sync
+         */
+        void onRoomSync(String roomId, T roomSync);
+    }
+
+    // the spooled response body
+    private final File mFile;
+
+    // the JSON parser
+    private final Gson mGson = JsonUtils.getGson(false);
+
+    // the sync response without the rooms
+    private final SyncResponse mSyncResponse;
+
+    /**
+     * Provides the folder where the bodies of an account are spooled.
+     *
+     * @param context the application context
+     * @param userId  the account user id
+     * @return the spool folder
+     */
+    public static File getSpoolDirectory(Context context, String userId) {
+        return new File(new File(context.getCacheDir(), SPOOL_FOLDER), userId);
+    }
+
+    /**
+     * Delete the bodies which have not been released, e.g. when the application has been killed during a sync.
+     * It must be called before any response is spooled in this folder.
+     *
+     * @param spoolDirectory the spool folder
+     */
+    public static void purgeSpoolDirectory(File spoolDirectory) {
+        File[] files = spoolDirectory.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                Log.d(LOG_TAG, "## purgeSpoolDirectory() : delete " + file.getName());
+
+                if (!file.delete()) {
+                    Log.e(LOG_TAG, "## purgeSpoolDirectory() : cannot delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * The body is read and closed.
+     *
+     * @param body           the response body
+     * @param spoolDirectory the folder where the body is spooled, null to use the default temporary folder
+     * @throws IOException if the body cannot be read or parsed
+     */
+    public SyncResponseStream(InputStream body, File spoolDirectory) throws IOException {
+        if ((null != spoolDirectory) && !spoolDirectory.exists() && !spoolDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "## SyncResponseStream() : cannot create " + spoolDirectory);
+        }
+
+        mFile = File.createTempFile("sync", ".json", spoolDirectory);
+
+        try {
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(mFile), BUFFER_SIZE);
+
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+
+                while ((len = body.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, len);
+                }
+            } finally {
+                outputStream.close();
+                body.close();
+            }
+
+            Log.d(LOG_TAG, "## SyncResponseStream() : " + mFile.length() + " bytes");
+
+            mSyncResponse = readSyncResponse();
+        } catch (IOException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) {
+            // malformed response
+            release();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the sync response without the rooms.
+     */
+    public SyncResponse getSyncResponse() {
+        return mSyncResponse;
+    }
+
+    /**
+     * Delete the spooled body.
+     */
+    public void release() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(LOG_TAG, "## release() : cannot delete " + mFile);
+        }
+    }
+
+    /**
+     * @return a new reader of the spooled body.
+     * @throws IOException if the file cannot be opened
+     */
+    private JsonReader newReader() throws IOException {
+        return new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(mFile), BUFFER_SIZE), "UTF-8"));
+    }
+
+    /**
+     * Parse the response fields except the rooms one.
+     *
+     * @return the sync response
+     * @throws IOException if the file cannot be read
+     */
+    private SyncResponse readSyncResponse() throws IOException {
+        JsonReader reader = newReader();
+
+        try {
+            JsonParser parser = new JsonParser();
+            JsonObject jsonObject = new JsonObject();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (ROOMS_FIELD.equals(name)) {
+                    reader.skipValue();
+                } else {
+                    jsonObject.add(name, parser.parse(reader));
+                }
+            }
+            reader.endObject();
+
+            return mGson.fromJson(jsonObject, SyncResponse.class);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse the rooms of a category one by one.
+     *
+     * @param category the rooms category (JOINED_ROOMS, INVITED_ROOMS or LEFT_ROOMS)
+     * @param type     the room sync class
+     * @param callback the callback called for each room
+     * @param <T>      the room sync type
+     * @return the parsed rooms count
+     * @throws IOException if the file cannot be read
+     */
+    public <T> int readRooms(String category, Class<T> type, RoomSyncCallback<T> callback) throws IOException {
+        int count = 0;
+        JsonReader reader = newReader();
+
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (ROOMS_FIELD.equals(reader.nextName()) && (JsonToken.BEGIN_OBJECT == reader.peek())) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (category.equals(reader.nextName()) && (JsonToken.BEGIN_OBJECT == reader.peek())) {
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                String roomId = reader.nextName();
+                                T roomSync;
+
+                                try {
+                                    roomSync = mGson.fromJson(reader, type);
+                                } catch (JsonParseException e) {
+                                    throw new IOException(e);
+                                }
+
+                                count++;
+                                callback.onRoomSync(roomId, roomSync);
+                            }
+                            reader.endObject();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import android.text.TextUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.bingrules.BingRule;
+import org.matrix.androidsdk.rest.model.bingrules.Condition;
+import org.matrix.androidsdk.rest.model.bingrules.ContainsDisplayNameCondition;
+import org.matrix.androidsdk.rest.model.bingrules.EventMatchCondition;
+import org.matrix.androidsdk.rest.model.bingrules.RoomMemberCountCondition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The bing rules list compiled to be evaluated on each live event.
+ *
+ * The event_match patterns are compiled once, the condition keys are resolved to direct accessors
+ * on the Event fields and content (there is no JSON serialization of the event) and the display name
+ * patterns are cached until the display name changes.
+ * The rules enable status is read at evaluation time.
+ */
+class BingRulesEvaluator {
+    private static final String LOG_TAG = "BingRulesEvaluator";
+
+    // the max number of cached display name patterns
+    private static final int MAX_NAME_PATTERNS_COUNT = 100;
+
+    /**
+     * Provides the information which are not in the evaluated event.
+     */
+    interface IEnvironment {
+        /**
+         * @return my user display name
+         */
+        String getMyDisplayName();
+
+        /**
+         * Retrieve a room.
+         *
+         * @param roomId the room id
+         * @return the room, null if it is not known
+         */
+        Room getRoom(String roomId);
+    }
+
+    /**
+     * Extract a field value from an event.
+     */
+    private static abstract class FieldAccessor {
+        /**
+         * @param event the event
+         * @return the field value as string, null if it is not defined.
+         */
+        abstract String getValue(Event event);
+    }
+
+    /**
+     * A compiled condition.
+     */
+    private static abstract class CompiledCondition {
+        /**
+         * @param event the event
+         * @return true if the event satisfies the condition
+         */
+        abstract boolean isSatisfied(Event event);
+    }
+
+    /**
+     * A compiled bing rule.
+     */
+    private static class CompiledRule {
+        final BingRule mRule;
+        final CompiledCondition[] mConditions;
+
+        CompiledRule(BingRule rule, CompiledCondition[] conditions) {
+            mRule = rule;
+            mConditions = conditions;
+        }
+    }
+
+    // the compiled rules, in evaluation order
+    private final CompiledRule[] mCompiledRules;
+
+    // my user id
+    private final String mMyUserId;
+
+    // the user name pattern (the user id local part)
+    private final Pattern mUserNamePattern;
+
+    // the environment
+    private final IEnvironment mEnvironment;
+
+    // the patterns by display name
+    private final HashMap<String, Pattern> mNamePatterns = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param rules       the rules, in evaluation order
+     * @param myUserId    my user id
+     * @param environment the environment
+     */
+    BingRulesEvaluator(List<BingRule> rules, String myUserId, IEnvironment environment) {
+        mMyUserId = myUserId;
+        mEnvironment = environment;
+
+        String userName = myUserId;
+
+        if ((null != myUserId) && (myUserId.indexOf(":") >= 0)) {
+            userName = myUserId.substring(1, myUserId.indexOf(":"));
+        }
+
+        mUserNamePattern = compileNamePattern(userName);
+
+        ArrayList<CompiledRule> compiledRules = new ArrayList<>();
+
+        for (BingRule rule : rules) {
+            compiledRules.add(new CompiledRule(rule, compileConditions(rule)));
+        }
+
+        mCompiledRules = compiledRules.toArray(new CompiledRule[compiledRules.size()]);
+    }
+
+    /**
+     * Returns the first enabled bing rule which fulfills its conditions with this event.
+     *
+     * @param event the event
+     * @return the first matched bing rule, null if none
+     */
+    BingRule getFulfilledBingRule(Event event) {
+        for (CompiledRule compiledRule : mCompiledRules) {
+            BingRule rule = compiledRule.mRule;
+
+            if (rule.isEnabled) {
+                boolean isFulfilled = false;
+
+                try {
+                    // some rules have no condition
+                    // so their ruleId defines the method
+                    if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(rule.ruleId)) {
+                        isFulfilled = findName(mUserNamePattern, getMessageBody(event));
+                    } else if (BingRule.RULE_ID_CONTAIN_DISPLAY_NAME.equals(rule.ruleId)) {
+                        String body = getMessageBody(event);
+                        isFulfilled = (null != body) && findName(getNamePattern(mEnvironment.getMyDisplayName()), body);
+                    } else if (BingRule.RULE_ID_FALLBACK.equals(rule.ruleId)) {
+                        isFulfilled = true;
+                    } else {
+                        isFulfilled = true;
+
+                        for (CompiledCondition condition : compiledRule.mConditions) {
+                            if (!condition.isSatisfied(event)) {
+                                isFulfilled = false;
+                                break;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## getFulfilledBingRule() : " + rule.ruleId + " failed " + e.getMessage());
+                }
+
+                if (isFulfilled) {
+                    return rule;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    //================================================================================
+    // Compilation
+    //================================================================================
+
+    /**
+     * Compile the conditions of a rule.
+     *
+     * @param rule the rule
+     * @return the compiled conditions
+     */
+    private CompiledCondition[] compileConditions(BingRule rule) {
+        ArrayList<CompiledCondition> compiledConditions = new ArrayList<>();
+
+        if (null != rule.conditions) {
+            for (Condition condition : rule.conditions) {
+                if (condition instanceof EventMatchCondition) {
+                    compiledConditions.add(compileEventMatchCondition((EventMatchCondition) condition));
+                } else if (condition instanceof ContainsDisplayNameCondition) {
+                    compiledConditions.add(new CompiledCondition() {
+                        @Override
+                        boolean isSatisfied(Event event) {
+                            if (null != event.roomId) {
+                                Room room = mEnvironment.getRoom(event.roomId);
+                                RoomMember member = (null != room) ? room.getMember(mMyUserId) : null;
+
+                                // the condition is ignored if the member is not known
+                                if (null != member) {
+                                    return findName(getNamePattern(member.displayname), getMessageBody(event));
+                                }
+                            }
+                            return true;
+                        }
+                    });
+                } else if (condition instanceof RoomMemberCountCondition) {
+                    final RoomMemberCountCondition roomMemberCountCondition = (RoomMemberCountCondition) condition;
+
+                    compiledConditions.add(new CompiledCondition() {
+                        @Override
+                        boolean isSatisfied(Event event) {
+                            return (null == event.roomId) || roomMemberCountCondition.isSatisfied(mEnvironment.getRoom(event.roomId));
+                        }
+                    });
+                }
+                // FIXME: Handle device rules
+            }
+        }
+
+        return compiledConditions.toArray(new CompiledCondition[compiledConditions.size()]);
+    }
+
+    /**
+     * Compile an event match condition.
+     *
+     * @param condition the condition
+     * @return the compiled condition
+     */
+    private static CompiledCondition compileEventMatchCondition(EventMatchCondition condition) {
+        final FieldAccessor accessor = compileFieldAccessor(condition.key);
+        final String pattern = condition.pattern;
+        Pattern regex = null;
+
+        if (null != pattern) {
+            try {
+                regex = Pattern.compile(EventMatchCondition.globToRegex(pattern), Pattern.CASE_INSENSITIVE);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## compileEventMatchCondition() : invalid pattern " + pattern);
+            }
+        }
+
+        final Pattern fRegex = regex;
+
+        return new CompiledCondition() {
+            @Override
+            boolean isSatisfied(Event event) {
+                String fieldValue = null;
+
+                // some information are in the decrypted event (like type)
+                if (event.isEncrypted() && (null != event.getClearEvent())) {
+                    fieldValue = accessor.getValue(event.getClearEvent());
+                }
+
+                if (TextUtils.isEmpty(fieldValue)) {
+                    fieldValue = accessor.getValue(event);
+                }
+
+                if (TextUtils.isEmpty(fieldValue)) {
+                    return false;
+                }
+
+                if (TextUtils.equals(pattern, fieldValue)) {
+                    return true;
+                }
+
+                return (null != fRegex) && fRegex.matcher(fieldValue).matches();
+            }
+        };
+    }
+
+    /**
+     * Resolve a dot-separated event key to a field accessor.
+     *
+     * @param key the key
+     * @return the field accessor
+     */
+    private static FieldAccessor compileFieldAccessor(final String key) {
+        if (null == key) {
+            return new FieldAccessor() {
+                @Override
+                String getValue(Event event) {
+                    return null;
+                }
+            };
+        }
+
+        switch (key) {
+            case "type":
+                return new FieldAccessor() {
+                    @Override
+                    String getValue(Event event) {
+                        return event.type;
+                    }
+                };
+            case "room_id":
+                return new FieldAccessor() {
+                    @Override
+                    String getValue(Event event) {
+                        return event.roomId;
+                    }
+                };
+            case "sender":
+                return new FieldAccessor() {
+                    @Override
+                    String getValue(Event event) {
+                        return event.sender;
+                    }
+                };
+            case "user_id":
+                return new FieldAccessor() {
+                    @Override
+                    String getValue(Event event) {
+                        return event.userId;
+                    }
+                };
+            case "state_key":
+                return new FieldAccessor() {
+                    @Override
+                    String getValue(Event event) {
+                        return event.stateKey;
+                    }
+                };
+            case "event_id":
+                return new FieldAccessor() {
+                    @Override
+                    String getValue(Event event) {
+                        return event.eventId;
+                    }
+                };
+        }
+
+        if (key.startsWith("content.")) {
+            final String[] path = key.substring("content.".length()).split("\\.");
+
+            return new FieldAccessor() {
+                @Override
+                String getValue(Event event) {
+                    return getPathValue(event.getWireContent(), path);
+                }
+            };
+        }
+
+        if (key.startsWith("prev_content.")) {
+            final String[] path = key.substring("prev_content.".length()).split("\\.");
+
+            return new FieldAccessor() {
+                @Override
+                String getValue(Event event) {
+                    return getPathValue(event.getPrevContentAsJsonObject(), path);
+                }
+            };
+        }
+
+        // unexpected key : use the JSON representation
+        final String[] path = key.split("\\.");
+
+        return new FieldAccessor() {
+            @Override
+            String getValue(Event event) {
+                return getPathValue(JsonUtils.toJson(event), path);
+            }
+        };
+    }
+
+    /**
+     * Extract a value from a JSON element.
+     *
+     * @param element the JSON element
+     * @param path    the fields path
+     * @return the value as string, null if it is not a primitive
+     */
+    private static String getPathValue(JsonElement element, String[] path) {
+        for (String field : path) {
+            if ((null == element) || !element.isJsonObject()) {
+                return null;
+            }
+
+            element = ((JsonObject) element).get(field);
+        }
+
+        return ((null != element) && element.isJsonPrimitive()) ? element.getAsString() : null;
+    }
+
+    //================================================================================
+    // Name patterns
+    //================================================================================
+
+    /**
+     * Provides the message body of a m.room.message event.
+     *
+     * @param event the event
+     * @return the body, null if it is not a message
+     */
+    private static String getMessageBody(Event event) {
+        if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
+            return getPathValue(event.getContent(), new String[]{"body"});
+        }
+
+        return null;
+    }
+
+    /**
+     * Compile a pattern which finds a name as a standalone word, regardless of case.
+     *
+     * @param name the name
+     * @return the pattern, null if the name is empty
+     */
+    private static Pattern compileNamePattern(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return null;
+        }
+
+        return Pattern.compile("(\\W|^)" + Pattern.quote(name) + "(\\W|$)", Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Provides the cached pattern of a name.
+     *
+     * @param name the name
+     * @return the pattern, null if the name is empty
+     */
+    private Pattern getNamePattern(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return null;
+        }
+
+        synchronized (mNamePatterns) {
+            Pattern pattern = mNamePatterns.get(name);
+
+            if (null == pattern) {
+                // the display names are seldom updated
+                if (mNamePatterns.size() >= MAX_NAME_PATTERNS_COUNT) {
+                    mNamePatterns.clear();
+                }
+
+                pattern = compileNamePattern(name);
+                mNamePatterns.put(name, pattern);
+            }
+
+            return pattern;
+        }
+    }
+
+    /**
+     * Tells if a text contains a name.
+     *
+     * @param pattern the name pattern
+     * @param text    the text
+     * @return true if the name is found
+     */
+    private static boolean findName(Pattern pattern, String text) {
+        return (null != pattern) && !TextUtils.isEmpty(text) && pattern.matcher(text).find();
+    }
+}
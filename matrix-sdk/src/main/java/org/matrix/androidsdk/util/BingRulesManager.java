@@ -29,15 +29,12 @@ import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.client.BingRulesRestClient;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
-import org.matrix.androidsdk.rest.model.Message;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
 import org.matrix.androidsdk.rest.model.bingrules.BingRuleSet;
 import org.matrix.androidsdk.rest.model.bingrules.BingRulesResponse;
 import org.matrix.androidsdk.rest.model.bingrules.Condition;
-import org.matrix.androidsdk.rest.model.bingrules.ContainsDisplayNameCondition;
 import org.matrix.androidsdk.rest.model.bingrules.ContentRule;
 import org.matrix.androidsdk.rest.model.bingrules.EventMatchCondition;
-import org.matrix.androidsdk.rest.model.bingrules.RoomMemberCountCondition;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -45,7 +42,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 /**
  * Object that gets and processes bing rules from the server.
@@ -91,6 +87,23 @@ public class BingRulesManager {
     // the rules list
     private List<BingRule> mRules = new ArrayList<>();
 
+    // the compiled rules list
+    private BingRulesEvaluator mRulesEvaluator;
+
+    // the environment used to evaluate the rules
+    private final BingRulesEvaluator.IEnvironment mRulesEnvironment = new BingRulesEvaluator.IEnvironment() {
+        @Override
+        public String getMyDisplayName() {
+            MyUser myUser = mSession.getMyUser();
+            return (null != myUser) ? myUser.displayname : null;
+        }
+
+        @Override
+        public Room getRoom(String roomId) {
+            return mDataHandler.getRoom(roomId, false);
+        }
+    };
+
     // the default bing rule
     private BingRule mDefaultBingRule = new BingRule(true);
 
@@ -118,6 +131,7 @@ public class BingRulesManager {
         mApiClient = session.getBingRulesApiClient();
         mMyUserId = session.getCredentials().userId;
         mDataHandler = session.getDataHandler();
+        mRulesEvaluator = new BingRulesEvaluator(mRules, mMyUserId, mRulesEnvironment);
 
         mNetworkListener = new IMXNetworkEventListener() {
             @Override
@@ -239,30 +253,6 @@ public class BingRulesManager {
         mApiClient.updateEnableRuleStatus(kind, ruleId, status, callback);
     }
 
-    /**
-     * Returns whether a string contains an occurrence of another, as a standalone word, regardless of case.
-     * @param subString the string to search for
-     * @param longString the string to search in
-     * @return whether a match was found
-     */
-    private static boolean caseInsensitiveFind(String subString, String longString) {
-        // sanity check
-        if (TextUtils.isEmpty(subString) || TextUtils.isEmpty(longString)) {
-            return false;
-        }
-
-        boolean found = false;
-
-        try {
-            Pattern pattern = Pattern.compile("(\\W|^)" + subString + "(\\W|$)", Pattern.CASE_INSENSITIVE);
-            found = pattern.matcher(longString).find();
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "caseInsensitiveFind : pattern.matcher failed with " + e.getLocalizedMessage());
-        }
-
-        return found;
-    }
-
     /**
      * Returns the first notifiable bing rule which fulfills its condition with this event.
      * @param event the event
@@ -283,109 +273,21 @@ public class BingRulesManager {
             return null;
         }
 
-        if (mRules != null) {
-            // GA issue
-            final ArrayList<BingRule> rules;
+        final BingRulesEvaluator rulesEvaluator;
 
-            synchronized (this) {
-                rules = new ArrayList<>(mRules);
-            }
+        synchronized (this) {
+            rulesEvaluator = mRulesEvaluator;
+        }
 
+        if (null != rulesEvaluator) {
             // Go down the rule list until we find a match
-            for (BingRule bingRule : rules) {
-                if (bingRule.isEnabled) {
-                    boolean isFullfilled = false;
-
-                    // some rules have no condition
-                    // so their ruleId defines the method
-                    if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId) || BingRule.RULE_ID_CONTAIN_DISPLAY_NAME.equals(bingRule.ruleId)) {
-                        if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
-                            Message message = JsonUtils.toMessage(event.getContent());
-                            MyUser myUser =  mSession.getMyUser();
-                            String pattern = myUser.displayname;
-
-                            if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId)) {
-                                if (mMyUserId.indexOf(":") >= 0) {
-                                    pattern = mMyUserId.substring(1, mMyUserId.indexOf(":"));
-                                } else {
-                                    pattern = mMyUserId;
-                                }
-                            }
-
-                            if (!TextUtils.isEmpty(pattern)) {
-                                isFullfilled = caseInsensitiveFind(pattern, message.body);
-                            }
-                        }
-                    }  else if (BingRule.RULE_ID_FALLBACK.equals(bingRule.ruleId)) {
-                        isFullfilled = true;
-                    } else {
-                        // some default rules define conditions
-                        // so use them instead of doing a custom treatment
-                        // RULE_ID_ONE_TO_ONE_ROOM
-                        // RULE_ID_SUPPRESS_BOTS_NOTIFICATIONS
-                        isFullfilled = eventMatchesConditions(event, bingRule.conditions);
-                    }
-
-                    if (isFullfilled) {
-                        return bingRule;
-                    }
-                }
-            }
-
-            // no rules are fulfilled
-            return null;
+            return rulesEvaluator.getFulfilledBingRule(event);
         } else {
             // The default is to bing
             return mDefaultBingRule;
         }
     }
 
-    /**
-     * Check if an event matches a conditions set
-     * @param event the evnt to test
-     * @param conditions the conditions set
-     * @return true if the event matches all the conditions set.
-     */
-    private boolean eventMatchesConditions(Event event, List<Condition> conditions) {
-        try {
-            if ((conditions != null) && (event != null)) {
-                for (Condition condition : conditions) {
-                    if (condition instanceof EventMatchCondition) {
-                        if (!((EventMatchCondition) condition).isSatisfied(event)) {
-                            return false;
-                        }
-                    } else if (condition instanceof ContainsDisplayNameCondition) {
-                        if (event.roomId != null) {
-                            Room room = mDataHandler.getRoom(event.roomId, false);
-
-                            // sanity checks
-                            if ((null != room) && (null != room.getMember(mMyUserId))) {
-                                // Best way to get your display name for now
-                                String myDisplayName = room.getMember(mMyUserId).displayname;
-                                if (!((ContainsDisplayNameCondition) condition).isSatisfied(event, myDisplayName)) {
-                                    return false;
-                                }
-                            }
-                        }
-                    } else if (condition instanceof RoomMemberCountCondition) {
-                        if (event.roomId != null) {
-                            Room room = mDataHandler.getRoom(event.roomId, false);
-
-                            if (!((RoomMemberCountCondition) condition).isSatisfied(room)) {
-                                return false;
-                            }
-                        }
-                    }
-                    // FIXME: Handle device rules
-                }
-            }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## eventMatchesConditions() failed " + e.getMessage());
-            return false;
-        }
-        return true;
-    }
-
     /**
      * Build the internal build rules
      * @param bingRulesResponse the server request response.
@@ -417,6 +319,7 @@ public class BingRulesManager {
             // sanity check
             if (null == ruleSet) {
                 mRulesSet = new BingRuleSet();
+                mRulesEvaluator = new BingRulesEvaluator(mRules, mMyUserId, mRulesEnvironment);
                 return;
             }
 
@@ -477,6 +380,9 @@ public class BingRulesManager {
             }
 
             mRulesSet = ruleSet;
+
+            // compile the rules once instead of at each event evaluation
+            mRulesEvaluator = new BingRulesEvaluator(mRules, mMyUserId, mRulesEnvironment);
         }
     }
 
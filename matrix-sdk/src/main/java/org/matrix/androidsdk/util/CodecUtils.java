@@ -0,0 +1,395 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.matrix.androidsdk.rest.model.ReceiptData;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Binary codec used by the Externalizable model classes.
+ *
+ * The strings are length-prefixed UTF-8 (there is no 64KB limit as with writeUTF)
+ * and the well-known keys (event types, memberships, message types...) are written as a dictionary index.
+ * The integers are written as variable length integers.
+ *
+ * The serialized objects start with FORMAT_MARKER followed by the codec version so
+ * the legacy Externalizable formats, which start with a boolean, can still be read.
+ */
+public class CodecUtils {
+    /**
+     * The first byte of an object serialized with this codec.
+     * A legacy serialized object starts with a boolean i.e. 0 or 1.
+     */
+    public static final int FORMAT_MARKER = 0x4D;
+
+    /**
+     * The current codec version.
+     */
+    public static final int CODEC_VERSION = 1;
+
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    // the string tags
+    private static final int STRING_TAG_NULL = 0;
+    private static final int STRING_TAG_DICTIONARY = 1;
+    private static final int STRING_TAG_INLINE = 2;
+
+    // the well-known strings
+    // this list is part of the codec format : the items must never be removed or reordered, only appended.
+    private static final String[] DICTIONARY = {
+            // event types
+            "m.presence",
+            "m.room.message",
+            "m.room.encrypted",
+            "m.room.encryption",
+            "m.room.message.feedback",
+            "m.typing",
+            "m.room.redaction",
+            "m.receipt",
+            "m.tag",
+            "m.new_device",
+            "m.room_key",
+            "m.room.name",
+            "m.room.topic",
+            "m.room.avatar",
+            "m.room.member",
+            "m.room.third_party_invite",
+            "m.room.create",
+            "m.room.join_rules",
+            "m.room.guest_access",
+            "m.room.power_levels",
+            "m.room.aliases",
+            "m.room.canonical_alias",
+            "m.room.history_visibility",
+            "m.call.invite",
+            "m.call.candidates",
+            "m.call.answer",
+            "m.call.hangup",
+            // memberships
+            "join",
+            "invite",
+            "leave",
+            "ban",
+            // message types
+            "m.text",
+            "m.emote",
+            "m.notice",
+            "m.image",
+            "m.audio",
+            "m.video",
+            "m.location",
+            "m.file",
+            // room settings
+            "public",
+            "private",
+            "can_join",
+            "forbidden",
+            "shared",
+            "invited",
+            "joined",
+            "world_readable",
+            // crypto
+            "m.olm.v1.curve25519-aes-sha2",
+            "m.megolm.v1.aes-sha2",
+            // sent states
+            "UNSENT",
+            "ENCRYPTING",
+            "SENDING",
+            "WAITING_RETRY",
+            "SENT",
+            "UNDELIVERABLE",
+            "FAILED_UNKNOWN_DEVICES",
+    };
+
+    private static final HashMap<String, Integer> DICTIONARY_INDEXES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEXES.put(DICTIONARY[i], i);
+        }
+    }
+
+    //================================================================================
+    // Header
+    //================================================================================
+
+    /**
+     * Write the codec header.
+     *
+     * @param output the output
+     * @throws IOException if the write fails
+     */
+    public static void writeHeader(DataOutput output) throws IOException {
+        output.writeByte(FORMAT_MARKER);
+        output.writeByte(CODEC_VERSION);
+    }
+
+    /**
+     * Read the codec version.
+     * It must be called after having read FORMAT_MARKER.
+     *
+     * @param input the input
+     * @return the codec version
+     * @throws IOException if the version is not supported
+     */
+    public static int readVersion(DataInput input) throws IOException {
+        int version = input.readUnsignedByte();
+
+        if ((version < 1) || (version > CODEC_VERSION)) {
+            throw new IOException("Unsupported codec version " + version);
+        }
+
+        return version;
+    }
+
+    //================================================================================
+    // Numbers
+    //================================================================================
+
+    /**
+     * Write a positive integer with a variable length.
+     *
+     * @param output the output
+     * @param value  the value
+     * @throws IOException if the write fails
+     */
+    public static void writeVarInt(DataOutput output, int value) throws IOException {
+        writeVarLong(output, value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Read a variable length integer.
+     *
+     * @param input the input
+     * @return the value
+     * @throws IOException if the read fails
+     */
+    public static int readVarInt(DataInput input) throws IOException {
+        return (int) readVarLong(input);
+    }
+
+    /**
+     * Write a positive long with a variable length.
+     * The negative values are written with 10 bytes.
+     *
+     * @param output the output
+     * @param value  the value
+     * @throws IOException if the write fails
+     */
+    public static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        output.writeByte((int) value);
+    }
+
+    /**
+     * Read a variable length long.
+     *
+     * @param input the input
+     * @return the value
+     * @throws IOException if the read fails
+     */
+    public static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+        int shift = 0;
+
+        while (shift < 64) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+
+            shift += 7;
+        }
+
+        throw new IOException("Malformed variable length integer");
+    }
+
+    //================================================================================
+    // Strings
+    //================================================================================
+
+    /**
+     * Write a nullable string.
+     *
+     * @param output the output
+     * @param value  the string
+     * @throws IOException if the write fails
+     */
+    public static void writeString(DataOutput output, String value) throws IOException {
+        if (null == value) {
+            output.writeByte(STRING_TAG_NULL);
+            return;
+        }
+
+        Integer index = DICTIONARY_INDEXES.get(value);
+
+        if (null != index) {
+            output.writeByte(STRING_TAG_DICTIONARY);
+            writeVarInt(output, index);
+        } else {
+            byte[] bytes = value.getBytes(UTF8_CHARSET);
+            output.writeByte(STRING_TAG_INLINE);
+            writeVarInt(output, bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Read a nullable string.
+     * The well-known strings are returned as shared instances.
+     *
+     * @param input the input
+     * @return the string
+     * @throws IOException if the read fails
+     */
+    public static String readString(DataInput input) throws IOException {
+        int tag = input.readUnsignedByte();
+
+        switch (tag) {
+            case STRING_TAG_NULL:
+                return null;
+            case STRING_TAG_DICTIONARY: {
+                int index = readVarInt(input);
+
+                if ((index < 0) || (index >= DICTIONARY.length)) {
+                    throw new IOException("Unknown dictionary index " + index);
+                }
+
+                return DICTIONARY[index];
+            }
+            case STRING_TAG_INLINE: {
+                int length = readVarInt(input);
+
+                if (length < 0) {
+                    throw new IOException("Invalid string length " + length);
+                }
+
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                return new String(bytes, UTF8_CHARSET);
+            }
+            default:
+                throw new IOException("Unknown string tag " + tag);
+        }
+    }
+
+    /**
+     * Read a nullable identifier (user id, room id, event id...).
+     * The returned string is the shared instance of the strings pool.
+     *
+     * @param input the input
+     * @return the identifier
+     * @throws IOException if the read fails
+     */
+    public static String readIdentifier(DataInput input) throws IOException {
+        return MXStringsPool.intern(readString(input));
+    }
+
+    //================================================================================
+    // Nullable values
+    //================================================================================
+
+    /**
+     * Write a nullable Long.
+     *
+     * @param output the output
+     * @param value  the value
+     * @throws IOException if the write fails
+     */
+    public static void writeNullableLong(DataOutput output, Long value) throws IOException {
+        output.writeBoolean(null != value);
+        if (null != value) {
+            output.writeLong(value);
+        }
+    }
+
+    /**
+     * Read a nullable Long.
+     *
+     * @param input the input
+     * @return the value
+     * @throws IOException if the read fails
+     */
+    public static Long readNullableLong(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readLong() : null;
+    }
+
+    /**
+     * Write a nullable Boolean.
+     *
+     * @param output the output
+     * @param value  the value
+     * @throws IOException if the write fails
+     */
+    public static void writeNullableBoolean(DataOutput output, Boolean value) throws IOException {
+        output.writeByte((null == value) ? 0 : (value ? 2 : 1));
+    }
+
+    /**
+     * Read a nullable Boolean.
+     *
+     * @param input the input
+     * @return the value
+     * @throws IOException if the read fails
+     */
+    public static Boolean readNullableBoolean(DataInput input) throws IOException {
+        int value = input.readUnsignedByte();
+        return (0 == value) ? null : (2 == value);
+    }
+
+    //================================================================================
+    // Receipts
+    //================================================================================
+
+    /**
+     * Write a read receipt.
+     *
+     * @param output  the output
+     * @param receipt the receipt
+     * @throws IOException if the write fails
+     */
+    public static void writeReceipt(DataOutput output, ReceiptData receipt) throws IOException {
+        writeString(output, receipt.userId);
+        writeString(output, receipt.eventId);
+        writeVarLong(output, receipt.originServerTs);
+    }
+
+    /**
+     * Read a read receipt.
+     *
+     * @param input the input
+     * @return the receipt
+     * @throws IOException if the read fails
+     */
+    public static ReceiptData readReceipt(DataInput input) throws IOException {
+        String userId = readIdentifier(input);
+        String eventId = readIdentifier(input);
+        long ts = readVarLong(input);
+
+        return new ReceiptData(userId, eventId, ts);
+    }
+}
@@ -59,4 +59,28 @@ public class MXOsHandler  {
 
         return result;
     }
+
+    /**
+     * Post a runnable to be run after a delay
+     * @param r the runnable
+     * @param delayMillis the delay in milliseconds
+     * @return true if the runnable is placed
+     */
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        boolean result = mHandler.postDelayed(r, delayMillis);
+
+        if (result && (null != mPostListener)) {
+            mPostListener.onPost(mHandler.getLooper());
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove the pending posts of a runnable
+     * @param r the runnable
+     */
+    public void removeCallbacks(Runnable r) {
+        mHandler.removeCallbacks(r);
+    }
 }
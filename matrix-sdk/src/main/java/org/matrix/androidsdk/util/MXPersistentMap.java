@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable hash map : an update returns a new map which shares the untouched entries with the previous one.
+ *
+ * It is a 32-ary hash trie, so get, plus and minus are O(log32(n)) and copying the map is free.
+ * The keys with the same hash code are chained in the same leaf.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class MXPersistentMap<K, V> {
+    // bits of the hash code consumed by each trie level
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final MXPersistentMap<?, ?> EMPTY = new MXPersistentMap<>(null, 0);
+
+    /**
+     * A leaf of the trie.
+     * The chained entries have the same hash code.
+     */
+    private static final class Leaf {
+        final int mHash;
+        final Object mKey;
+        final Object mValue;
+        final Leaf mNext;
+
+        Leaf(int hash, Object key, Object value, Leaf next) {
+            mHash = hash;
+            mKey = key;
+            mValue = value;
+            mNext = next;
+        }
+    }
+
+    // the root node, null when the map is empty
+    // a node slot is either null, a Leaf or a sub node (Object[])
+    private final Object[] mRoot;
+
+    // the entries count
+    private final int mSize;
+
+    /**
+     * Constructor
+     *
+     * @param root the root node
+     * @param size the entries count
+     */
+    private MXPersistentMap(Object[] root, int size) {
+        mRoot = root;
+        mSize = size;
+    }
+
+    /**
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> MXPersistentMap<K, V> empty() {
+        return (MXPersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @return the entries count
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return true if the map has no entry
+     */
+    public boolean isEmpty() {
+        return 0 == mSize;
+    }
+
+    /**
+     * Retrieve the value mapped to a key.
+     *
+     * @param key the key
+     * @return the value, null if the key is unknown
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Leaf leaf = findLeaf(key);
+        return (null != leaf) ? (V) leaf.mValue : null;
+    }
+
+    /**
+     * Tells if a key is mapped.
+     *
+     * @param key the key
+     * @return true if the key is mapped
+     */
+    public boolean containsKey(Object key) {
+        return null != findLeaf(key);
+    }
+
+    /**
+     * Provides a map with an updated entry.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the updated map, this one is not modified.
+     */
+    public MXPersistentMap<K, V> plus(K key, V value) {
+        boolean[] added = new boolean[1];
+        Object[] root = put(mRoot, 0, hash(key), key, value, added);
+        return new MXPersistentMap<>(root, added[0] ? mSize + 1 : mSize);
+    }
+
+    /**
+     * Provides a map without a key.
+     *
+     * @param key the key to remove
+     * @return the updated map, this one if the key is not mapped.
+     */
+    public MXPersistentMap<K, V> minus(Object key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+
+        Object[] root = remove(mRoot, 0, hash(key), key);
+        return (null == root) ? MXPersistentMap.<K, V>empty() : new MXPersistentMap<K, V>(root, mSize - 1);
+    }
+
+    /**
+     * @return a new list of the keys.
+     */
+    @SuppressWarnings("unchecked")
+    public List<K> keys() {
+        ArrayList<Leaf> leaves = new ArrayList<>(mSize);
+        collect(mRoot, leaves);
+
+        ArrayList<K> keys = new ArrayList<>(mSize);
+        for (Leaf leaf : leaves) {
+            keys.add((K) leaf.mKey);
+        }
+        return keys;
+    }
+
+    /**
+     * @return a new list of the values.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        ArrayList<Leaf> leaves = new ArrayList<>(mSize);
+        collect(mRoot, leaves);
+
+        ArrayList<V> values = new ArrayList<>(mSize);
+        for (Leaf leaf : leaves) {
+            values.add((V) leaf.mValue);
+        }
+        return values;
+    }
+
+    /**
+     * @return a new list of the entries.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map.Entry<K, V>> entries() {
+        ArrayList<Leaf> leaves = new ArrayList<>(mSize);
+        collect(mRoot, leaves);
+
+        ArrayList<Map.Entry<K, V>> entries = new ArrayList<>(mSize);
+        for (Leaf leaf : leaves) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>((K) leaf.mKey, (V) leaf.mValue));
+        }
+        return entries;
+    }
+
+    //================================================================================
+    // Trie management
+    //================================================================================
+
+    /**
+     * Spread the hash code of a key.
+     *
+     * @param key the key
+     * @return the hash code
+     */
+    private static int hash(Object key) {
+        int h = (null == key) ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Tells if two keys are equal.
+     */
+    private static boolean equals(Object key1, Object key2) {
+        return (key1 == key2) || ((null != key1) && key1.equals(key2));
+    }
+
+    /**
+     * Find the leaf of a key.
+     *
+     * @param key the key
+     * @return the leaf, null if the key is not mapped.
+     */
+    private Leaf findLeaf(Object key) {
+        int hash = hash(key);
+        Object[] node = mRoot;
+        int shift = 0;
+
+        while (null != node) {
+            Object slot = node[(hash >>> shift) & MASK];
+
+            if (slot instanceof Leaf) {
+                for (Leaf leaf = (Leaf) slot; null != leaf; leaf = leaf.mNext) {
+                    if ((leaf.mHash == hash) && equals(leaf.mKey, key)) {
+                        return leaf;
+                    }
+                }
+                return null;
+            }
+
+            node = (Object[]) slot;
+            shift += BITS;
+        }
+
+        return null;
+    }
+
+    /**
+     * Put an entry in a copy of a node.
+     *
+     * @param node  the node, null to create a new one
+     * @param shift the node level shift
+     * @param hash  the key hash
+     * @param key   the key
+     * @param value the value
+     * @param added set to true if the key was not mapped
+     * @return the updated node copy
+     */
+    private static Object[] put(Object[] node, int shift, int hash, Object key, Object value, boolean[] added) {
+        Object[] copy = (null == node) ? new Object[WIDTH] : node.clone();
+        int index = (hash >>> shift) & MASK;
+        Object slot = copy[index];
+
+        if (null == slot) {
+            copy[index] = new Leaf(hash, key, value, null);
+            added[0] = true;
+        } else if (slot instanceof Leaf) {
+            Leaf leaf = (Leaf) slot;
+
+            if (leaf.mHash == hash) {
+                copy[index] = putInChain(leaf, hash, key, value, added);
+            } else {
+                // split the slot : the hash codes differ so they will be dispatched in the next levels
+                Object[] subNode = new Object[WIDTH];
+                subNode[(leaf.mHash >>> (shift + BITS)) & MASK] = leaf;
+                copy[index] = put(subNode, shift + BITS, hash, key, value, added);
+            }
+        } else {
+            copy[index] = put((Object[]) slot, shift + BITS, hash, key, value, added);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Put an entry in a copy of a same hash chain.
+     */
+    private static Leaf putInChain(Leaf chain, int hash, Object key, Object value, boolean[] added) {
+        for (Leaf leaf = chain; null != leaf; leaf = leaf.mNext) {
+            if (equals(leaf.mKey, key)) {
+                return new Leaf(hash, key, value, removeFromChain(chain, key));
+            }
+        }
+
+        added[0] = true;
+        return new Leaf(hash, key, value, chain);
+    }
+
+    /**
+     * Remove a key from a copy of a same hash chain.
+     *
+     * @return the updated chain, null if it is empty
+     */
+    private static Leaf removeFromChain(Leaf chain, Object key) {
+        if (null == chain) {
+            return null;
+        }
+
+        if (equals(chain.mKey, key)) {
+            return chain.mNext;
+        }
+
+        return new Leaf(chain.mHash, chain.mKey, chain.mValue, removeFromChain(chain.mNext, key));
+    }
+
+    /**
+     * Remove a mapped key from a copy of a node.
+     *
+     * @param node  the node
+     * @param shift the node level shift
+     * @param hash  the key hash
+     * @param key   the key
+     * @return the updated node copy, null if it is empty
+     */
+    private static Object[] remove(Object[] node, int shift, int hash, Object key) {
+        Object[] copy = node.clone();
+        int index = (hash >>> shift) & MASK;
+        Object slot = copy[index];
+
+        if (slot instanceof Leaf) {
+            copy[index] = removeFromChain((Leaf) slot, key);
+        } else {
+            copy[index] = remove((Object[]) slot, shift + BITS, hash, key);
+        }
+
+        for (Object item : copy) {
+            if (null != item) {
+                return copy;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Collect the leaves of a node.
+     *
+     * @param node   the node
+     * @param leaves the leaves list
+     */
+    private static void collect(Object[] node, List<Leaf> leaves) {
+        if (null == node) {
+            return;
+        }
+
+        for (Object slot : node) {
+            if (slot instanceof Leaf) {
+                for (Leaf leaf = (Leaf) slot; null != leaf; leaf = leaf.mNext) {
+                    leaves.add(leaf);
+                }
+            } else if (null != slot) {
+                collect((Object[]) slot, leaves);
+            }
+        }
+    }
+}
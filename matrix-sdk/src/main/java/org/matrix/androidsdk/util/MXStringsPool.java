@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A canonicalizing pool of the identifiers strings (user ids, room ids, event types, memberships...).
+ *
+ * The same identifiers are parsed again and again from the sync responses and from the store files,
+ * so the parsed strings are replaced by a shared instance.
+ * The pool entries are weak : an identifier which is not used anymore is garbage collected.
+ * The pool is split into stripes with their own lock, so the parsing threads rarely wait for each other.
+ */
+public class MXStringsPool {
+    private static final String LOG_TAG = "MXStringsPool";
+
+    // the longer strings are not identifiers (e.g. messages bodies) : they are not pooled
+    // 255 is the maximum length of the matrix identifiers.
+    public static final int MAX_POOLED_STRING_LENGTH = 255;
+
+    // the String instance memory footprint (object header, fields and the chars array header)
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    // the stripes count, it must be a power of 2
+    private static final int STRIPES_COUNT = 16;
+
+    // the pooled strings by stripe, each stripe is guarded by itself
+    private static final Map<String, WeakReference<String>>[] mStripes = createStripes();
+
+    // stats
+    private static final AtomicLong mRequestsCount = new AtomicLong();
+    private static final AtomicLong mHitsCount = new AtomicLong();
+
+    /**
+     * @return the empty stripes
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, WeakReference<String>>[] createStripes() {
+        Map<String, WeakReference<String>>[] stripes = new Map[STRIPES_COUNT];
+
+        for (int i = 0; i < STRIPES_COUNT; i++) {
+            stripes[i] = new WeakHashMap<>();
+        }
+
+        return stripes;
+    }
+
+    /**
+     * Provides the stripe of a string.
+     *
+     * @param value the string
+     * @return the stripe
+     */
+    private static Map<String, WeakReference<String>> getStripe(String value) {
+        int hash = value.hashCode();
+        // spread the high bits like HashMap does
+        hash ^= (hash >>> 16);
+        return mStripes[hash & (STRIPES_COUNT - 1)];
+    }
+
+    /**
+     * Provides the shared instance of a string.
+     *
+     * @param value the string
+     * @return the shared instance, value if it is the first instance or if it cannot be pooled.
+     */
+    public static String intern(String value) {
+        if ((null == value) || (value.length() > MAX_POOLED_STRING_LENGTH)) {
+            return value;
+        }
+
+        mRequestsCount.incrementAndGet();
+
+        Map<String, WeakReference<String>> stripe = getStripe(value);
+
+        synchronized (stripe) {
+            WeakReference<String> reference = stripe.get(value);
+            String sharedValue = (null != reference) ? reference.get() : null;
+
+            if (null != sharedValue) {
+                mHitsCount.incrementAndGet();
+                return sharedValue;
+            }
+
+            stripe.put(value, new WeakReference<>(value));
+        }
+
+        return value;
+    }
+
+    /**
+     * @return the pooled strings count.
+     */
+    public static int getPooledStringsCount() {
+        int count = 0;
+
+        for (Map<String, WeakReference<String>> stripe : mStripes) {
+            synchronized (stripe) {
+                count += stripe.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the ratio of intern requests which have returned a shared instance, between 0 and 1.
+     */
+    public static float getHitRate() {
+        long requestsCount = mRequestsCount.get();
+        return (0 == requestsCount) ? 0 : ((float) mHitsCount.get()) / requestsCount;
+    }
+
+    /**
+     * Compute the memory size of the pooled strings.
+     * The pool is scanned so it should only be called to dump the stats.
+     *
+     * @return the estimated size in bytes.
+     */
+    public static long getRetainedSize() {
+        long size = 0;
+
+        for (Map<String, WeakReference<String>> stripe : mStripes) {
+            synchronized (stripe) {
+                for (String value : stripe.keySet()) {
+                    // the garbage collected keys are not returned
+                    if (null != value) {
+                        size += STRING_OVERHEAD_BYTES + 2 * value.length();
+                    }
+                }
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Compute the memory size of the duplicated strings which have been replaced by a shared instance.
+     *
+     * @return the estimated size in bytes.
+     */
+    public static long getSavedSize() {
+        int count = getPooledStringsCount();
+
+        if (0 == count) {
+            return 0;
+        }
+
+        return mHitsCount.get() * (getRetainedSize() / count);
+    }
+
+    /**
+     * Reset the stats.
+     */
+    public static void resetStats() {
+        mRequestsCount.set(0);
+        mHitsCount.set(0);
+    }
+
+    /**
+     * Log the stats.
+     */
+    public static void dumpStats() {
+        Log.d(LOG_TAG, "## dumpStats() : " + getPooledStringsCount() + " strings, hit rate " + (int) (getHitRate() * 100)
+                + "%, retained " + (getRetainedSize() / 1024) + " KB, saved ~" + (getSavedSize() / 1024) + " KB");
+    }
+}
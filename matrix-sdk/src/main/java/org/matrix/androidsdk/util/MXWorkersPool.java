@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of workers threads.
+ *
+ * The tasks are partitioned by a key (e.g. an inbound group session or a room id) : the tasks of
+ * a partition are always run by the same worker, in the posting order, so they are never run
+ * concurrently.
+ * The tasks of different partitions are run in parallel.
+ */
+public class MXWorkersPool {
+    private static final String LOG_TAG = "MXWorkersPool";
+
+    /**
+     * A worker thread and its metrics.
+     */
+    private static class Worker {
+        final HandlerThread mThread;
+        Handler mHandler;
+
+        // the posted tasks which are not yet completed
+        final AtomicInteger mQueueDepth = new AtomicInteger(0);
+        // the highest queue depth
+        final AtomicInteger mMaxQueueDepth = new AtomicInteger(0);
+        // the completed tasks count
+        final AtomicLong mCompletedTasksCount = new AtomicLong(0);
+
+        Worker(String name) {
+            mThread = new HandlerThread(name, Thread.MIN_PRIORITY);
+            mThread.start();
+        }
+
+        synchronized Handler getHandler() {
+            // the handler thread was not yet ready
+            if (null == mHandler) {
+                mHandler = new Handler(mThread.getLooper());
+            }
+
+            return mHandler;
+        }
+    }
+
+    private final Worker[] mWorkers;
+
+    /**
+     * Constructor
+     *
+     * @param name         the threads name prefix
+     * @param workersCount the workers count
+     */
+    public MXWorkersPool(String name, int workersCount) {
+        mWorkers = new Worker[Math.max(1, workersCount)];
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(name + "_" + i);
+        }
+
+        Log.d(LOG_TAG, "## MXWorkersPool() : " + mWorkers.length + " workers");
+    }
+
+    /**
+     * @return the workers count
+     */
+    public int getWorkersCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Post a task.
+     *
+     * @param partitionKey the partition key.
+     * @param task         the task
+     * @return true if the task is posted, false if the workers are released.
+     */
+    public boolean post(String partitionKey, final Runnable task) {
+        int index = (null == partitionKey) ? 0 : ((partitionKey.hashCode() & 0x7FFFFFFF) % mWorkers.length);
+        final Worker worker = mWorkers[index];
+
+        int depth = worker.mQueueDepth.incrementAndGet();
+
+        int maxDepth = worker.mMaxQueueDepth.get();
+        while ((depth > maxDepth) && !worker.mMaxQueueDepth.compareAndSet(maxDepth, depth)) {
+            maxDepth = worker.mMaxQueueDepth.get();
+        }
+
+        boolean isPosted = worker.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## post() : task failed " + e.getMessage());
+                } finally {
+                    worker.mQueueDepth.decrementAndGet();
+                    worker.mCompletedTasksCount.incrementAndGet();
+                }
+            }
+        });
+
+        if (!isPosted) {
+            Log.e(LOG_TAG, "## post() : the worker " + index + " is released");
+            worker.mQueueDepth.decrementAndGet();
+        }
+
+        return isPosted;
+    }
+
+    /**
+     * @return the pending tasks count of each worker.
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[mWorkers.length];
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            depths[i] = mWorkers[i].mQueueDepth.get();
+        }
+
+        return depths;
+    }
+
+    /**
+     * @return the highest pending tasks count of each worker.
+     */
+    public int[] getMaxQueueDepths() {
+        int[] depths = new int[mWorkers.length];
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            depths[i] = mWorkers[i].mMaxQueueDepth.get();
+        }
+
+        return depths;
+    }
+
+    /**
+     * @return the completed tasks count of each worker.
+     */
+    public long[] getCompletedTasksCounts() {
+        long[] counts = new long[mWorkers.length];
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            counts[i] = mWorkers[i].mCompletedTasksCount.get();
+        }
+
+        return counts;
+    }
+
+    /**
+     * Reset the highest queue depths.
+     */
+    public void resetMaxQueueDepths() {
+        for (Worker worker : mWorkers) {
+            worker.mMaxQueueDepth.set(worker.mQueueDepth.get());
+        }
+    }
+
+    /**
+     * Stop the workers.
+     * The pending tasks are not run.
+     */
+    public void release() {
+        for (Worker worker : mWorkers) {
+            worker.mThread.quit();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An input stream of a temporary file, which is deleted when the stream is closed.
+ *
+ * A content is spooled to a temporary file instead of being kept in memory, so it can be read
+ * several times (e.g. to retry an upload) with a constant memory usage.
+ */
+public class TmpFileInputStream extends FileInputStream {
+    private static final String LOG_TAG = "TmpFileInputStream";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // the temporary file
+    private final File mFile;
+
+    /**
+     * Constructor
+     *
+     * @param file the temporary file
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public TmpFileInputStream(File file) throws FileNotFoundException {
+        super(file);
+        mFile = file;
+    }
+
+    /**
+     * Spool a stream to a temporary file.
+     * The stream is read but not closed.
+     *
+     * @param stream the stream to spool
+     * @return the temporary file stream
+     * @throws IOException if the stream cannot be spooled
+     */
+    public static TmpFileInputStream spool(InputStream stream) throws IOException {
+        File file = File.createTempFile("spool", ".tmp");
+
+        try {
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+
+                while ((len = stream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, len);
+                }
+            } finally {
+                outputStream.close();
+            }
+
+            return new TmpFileInputStream(file);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the temporary file
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (mFile.exists() && !mFile.delete()) {
+                Log.e(LOG_TAG, "## close() : cannot delete " + mFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.listeners.IMXEventListener;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXDataHandlerTest {
+
+    private static final String ROOM_ID_1 = "!room1:matrix.org";
+    private static final String ROOM_ID_2 = "!room2:matrix.org";
+
+    @Mock
+    private IMXEventListener mockGlobalListener;
+
+    @Mock
+    private IMXEventListener mockRoom1Listener;
+
+    @Mock
+    private IMXEventListener mockRoom2Listener;
+
+    @Mock
+    private MXEventListener mockBatchListener;
+
+    private MXDataHandler mDataHandler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        Credentials credentials = new Credentials();
+        credentials.userId = "@alice:matrix.org";
+        credentials.accessToken = "accessToken";
+
+        mDataHandler = new MXDataHandler(new MXMemoryStore(credentials, RuntimeEnvironment.application), credentials, null);
+        mDataHandler.addListener(mockGlobalListener);
+        mDataHandler.addRoomListener(ROOM_ID_1, mockRoom1Listener);
+        mDataHandler.addRoomListener(ROOM_ID_2, mockRoom2Listener);
+        mDataHandler.addRoomListener(ROOM_ID_1, mockBatchListener);
+    }
+
+    @After
+    public void tearDown() {
+        mDataHandler.clear();
+    }
+
+    @Test
+    public void testRoomCallbacksOnlyReachTheRoomListeners() {
+        mDataHandler.onRoomFlush(ROOM_ID_1);
+        mDataHandler.onReceiptEvent(ROOM_ID_2, Arrays.asList("@bob:matrix.org"));
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mockGlobalListener).onRoomFlush(ROOM_ID_1);
+        verify(mockRoom1Listener).onRoomFlush(ROOM_ID_1);
+        verify(mockRoom2Listener, never()).onRoomFlush(anyString());
+
+        verify(mockGlobalListener).onReceiptEvent(ROOM_ID_2, Arrays.asList("@bob:matrix.org"));
+        verify(mockRoom2Listener).onReceiptEvent(ROOM_ID_2, Arrays.asList("@bob:matrix.org"));
+        verify(mockRoom1Listener, never()).onReceiptEvent(anyString(), anyListOf(String.class));
+    }
+
+    @Test
+    public void testGlobalCallbacksReachTheListeners() {
+        Event event = new Event();
+        User user = new User();
+
+        mDataHandler.onPresenceUpdate(event, user);
+        mDataHandler.onIgnoredUsersListUpdate();
+        ShadowLooper.runUiThreadTasks();
+
+        // the presence is dispatched to all the room listeners
+        verify(mockGlobalListener).onPresenceUpdate(event, user);
+        verify(mockRoom1Listener).onPresenceUpdate(event, user);
+        verify(mockRoom2Listener).onPresenceUpdate(event, user);
+
+        // the other global callbacks are only dispatched to the global listeners
+        verify(mockGlobalListener).onIgnoredUsersListUpdate();
+        verify(mockRoom1Listener, never()).onIgnoredUsersListUpdate();
+        verify(mockRoom2Listener, never()).onIgnoredUsersListUpdate();
+    }
+
+    @Test
+    public void testRemovedRoomListenerIsNotCalled() {
+        mDataHandler.removeRoomListener(ROOM_ID_1, mockRoom1Listener);
+
+        mDataHandler.onRoomFlush(ROOM_ID_1);
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mockGlobalListener).onRoomFlush(ROOM_ID_1);
+        verify(mockRoom1Listener, never()).onRoomFlush(anyString());
+    }
+
+    private static Event buildEvent(String eventId) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID_1;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        return event;
+    }
+
+    private static RoomState buildRoomState() {
+        RoomState roomState = new RoomState();
+        roomState.roomId = ROOM_ID_1;
+        return roomState;
+    }
+
+    @Test
+    public void testCallbacksAreBufferedUntilTheyAreFlushed() throws Exception {
+        final RoomState roomState = buildRoomState();
+        final Event event1 = buildEvent("$event1");
+        final Event event2 = buildEvent("$event2");
+
+        mDataHandler.startBufferingDispatches();
+        mDataHandler.onLiveEvent(event1, roomState);
+        mDataHandler.onRoomFlush(ROOM_ID_1);
+
+        // the callbacks of the other threads are not buffered
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDataHandler.onLiveEvent(event2, roomState);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mockGlobalListener).onLiveEvent(event2, roomState);
+        verify(mockGlobalListener, never()).onLiveEvent(event1, roomState);
+        verify(mockGlobalListener, never()).onRoomFlush(anyString());
+
+        mDataHandler.stopBufferingDispatches();
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mockGlobalListener).onLiveEvent(event1, roomState);
+        verify(mockGlobalListener).onRoomFlush(ROOM_ID_1);
+    }
+
+    @Test
+    public void testBufferedCallbacksAreDispatchedInOrderToEachListener() {
+        RoomState roomState = buildRoomState();
+        Event event1 = buildEvent("$event1");
+        Event event2 = buildEvent("$event2");
+        Event event3 = buildEvent("$event3");
+
+        mDataHandler.startBufferingDispatches();
+        mDataHandler.onLiveEvent(event1, roomState);
+        mDataHandler.onLiveEvent(event2, roomState);
+        mDataHandler.onRoomFlush(ROOM_ID_1);
+        mDataHandler.onLiveEvent(event3, roomState);
+        mDataHandler.stopBufferingDispatches();
+        ShadowLooper.runUiThreadTasks();
+
+        // the consecutive live events are grouped for the MXEventListener instances
+        InOrder batchOrder = inOrder(mockBatchListener);
+        batchOrder.verify(mockBatchListener).onLiveEvents(Arrays.asList(event1, event2), roomState);
+        batchOrder.verify(mockBatchListener).onRoomFlush(ROOM_ID_1);
+        batchOrder.verify(mockBatchListener).onLiveEvents(Arrays.asList(event3), roomState);
+
+        // the other listeners receive them one by one
+        for (IMXEventListener listener : Arrays.asList(mockGlobalListener, mockRoom1Listener)) {
+            InOrder order = inOrder(listener);
+            order.verify(listener).onLiveEvent(event1, roomState);
+            order.verify(listener).onLiveEvent(event2, roomState);
+            order.verify(listener).onRoomFlush(ROOM_ID_1);
+            order.verify(listener).onLiveEvent(event3, roomState);
+        }
+
+        verify(mockRoom2Listener, never()).onLiveEvent(any(Event.class), any(RoomState.class));
+    }
+
+    @Test
+    public void testBufferedCallbacksAreFlushedWhenTooManyArePending() {
+        RoomState roomState = buildRoomState();
+        List<Event> events = new ArrayList<>();
+
+        mDataHandler.startBufferingDispatches();
+
+        for (int i = 0; i < MXDataHandler.MAX_BUFFERED_DISPATCHES_COUNT; i++) {
+            Event event = buildEvent("$event" + i);
+            events.add(event);
+            mDataHandler.onLiveEvent(event, roomState);
+        }
+
+        Event lastEvent = buildEvent("$lastEvent");
+        mDataHandler.onLiveEvent(lastEvent, roomState);
+        ShadowLooper.runUiThreadTasks();
+
+        // the buffer is dispatched without waiting for the end of the sync response
+        verify(mockBatchListener).onLiveEvents(events, roomState);
+        verify(mockGlobalListener, times(MXDataHandler.MAX_BUFFERED_DISPATCHES_COUNT)).onLiveEvent(any(Event.class), eq(roomState));
+        verify(mockGlobalListener, never()).onLiveEvent(lastEvent, roomState);
+
+        mDataHandler.stopBufferingDispatches();
+        ShadowLooper.runUiThreadTasks();
+
+        verify(mockBatchListener).onLiveEvents(Arrays.asList(lastEvent), roomState);
+        verify(mockGlobalListener).onLiveEvent(lastEvent, roomState);
+    }
+}
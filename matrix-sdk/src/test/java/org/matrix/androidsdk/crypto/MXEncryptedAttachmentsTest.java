@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.util.TmpFileInputStream;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXEncryptedAttachmentsTest {
+
+    private static byte[] readAll(InputStream stream) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+
+        while ((len = stream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, len);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] readAll(MXEncryptedAttachments.EncryptionResult result) throws Exception {
+        return readAll(result.mEncryptedStream);
+    }
+
+    @Test
+    public void testEncryptedContentIsSpooledToATemporaryFile() throws Exception {
+        byte[] clearContent = new byte[200 * 1024 + 11];
+        new Random(42).nextBytes(clearContent);
+
+        MXEncryptedAttachments.EncryptionResult result = MXEncryptedAttachments.encryptAttachment(new ByteArrayInputStream(clearContent), "image/png");
+        assertNotNull(result);
+        assertTrue(result.mEncryptedStream instanceof TmpFileInputStream);
+
+        File file = ((TmpFileInputStream) result.mEncryptedStream).getFile();
+        assertEquals(clearContent.length, file.length());
+
+        byte[] encryptedContent = readAll(result);
+        result.mEncryptedStream.close();
+
+        // the temporary file is deleted once the upload stream is closed
+        assertFalse(file.exists());
+
+        InputStream decryptedStream = MXEncryptedAttachments.decryptAttachment(new ByteArrayInputStream(encryptedContent), result.mEncryptedFileInfo);
+        assertNotNull(decryptedStream);
+        assertTrue(Arrays.equals(clearContent, readAll(decryptedStream)));
+    }
+
+    @Test
+    public void testChunkedDecryption() throws Exception {
+        byte[] clearContent = new byte[100 * 1024 + 7];
+        new Random(42).nextBytes(clearContent);
+
+        MXEncryptedAttachments.EncryptionResult result = MXEncryptedAttachments.encryptAttachment(new ByteArrayInputStream(clearContent), "image/png");
+        assertNotNull(result);
+
+        byte[] encryptedContent = readAll(result);
+
+        // the chunks are not aligned on the AES block size
+        int chunkLength = 4 * 1024 + 3;
+
+        MXEncryptedAttachments.Decryptor decryptor = MXEncryptedAttachments.Decryptor.create(result.mEncryptedFileInfo);
+        assertNotNull(decryptor);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        for (int offset = 0; offset < encryptedContent.length; offset += chunkLength) {
+            outputStream.write(decryptor.update(encryptedContent, offset, Math.min(chunkLength, encryptedContent.length - offset)));
+        }
+
+        outputStream.write(decryptor.doFinal());
+
+        assertTrue(decryptor.isDigestValid());
+        assertTrue(Arrays.equals(clearContent, outputStream.toByteArray()));
+    }
+
+    @Test
+    public void testCorruptedContent() throws Exception {
+        byte[] clearContent = new byte[1000];
+        new Random(42).nextBytes(clearContent);
+
+        MXEncryptedAttachments.EncryptionResult result = MXEncryptedAttachments.encryptAttachment(new ByteArrayInputStream(clearContent), "image/png");
+        byte[] encryptedContent = readAll(result);
+        encryptedContent[500] ^= 1;
+
+        MXEncryptedAttachments.Decryptor decryptor = MXEncryptedAttachments.Decryptor.create(result.mEncryptedFileInfo);
+        decryptor.update(encryptedContent, 0, encryptedContent.length);
+        decryptor.doFinal();
+
+        assertFalse(decryptor.isDigestValid());
+        assertNull(MXEncryptedAttachments.decryptAttachment(new ByteArrayInputStream(encryptedContent), result.mEncryptedFileInfo));
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto;
+
+import android.util.Base64;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMegolmExportEncryptionTest {
+
+    private static final String PASSWORD = "password";
+    private static final int KDF_ROUNDS = 1000;
+
+    private static final String HEADER_LINE = "-----BEGIN MEGOLM SESSION DATA-----";
+    private static final String TRAILER_LINE = "-----END MEGOLM SESSION DATA-----";
+
+    private static String buildKeysJson(int count) {
+        StringBuilder builder = new StringBuilder("[");
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+
+            builder.append("{\"algorithm\":\"m.megolm.v1.aes-sha2\",\"room_id\":\"!room").append(i)
+                    .append(":matrix.org\",\"session_id\":\"session\u00e9").append(i).append("\"}");
+        }
+
+        return builder.append("]").toString();
+    }
+
+    private static InputStream decrypt(final byte[] file, String password) throws Exception {
+        return MXMegolmExportEncryption.createDecryptingStream(new MXMegolmExportEncryption.KeyFileSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new ByteArrayInputStream(file);
+            }
+        }, password);
+    }
+
+    /**
+     * @return the base64 decoded body of a key file
+     */
+    private static byte[] unpack(byte[] file) throws Exception {
+        String text = new String(file, "UTF-8");
+        int start = text.indexOf(HEADER_LINE) + HEADER_LINE.length();
+        int end = text.indexOf(TRAILER_LINE);
+
+        return Base64.decode(text.substring(start, end), Base64.DEFAULT);
+    }
+
+    /**
+     * @return the key file built as the previous in memory implementation did
+     */
+    private static byte[] legacyEncrypt(String data, String password, byte[] salt, byte[] iv, int rounds) throws Exception {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        byte[] deriveKey = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, rounds, 512)).getEncoded();
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOfRange(deriveKey, 0, 32), "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(data.getBytes("UTF-8"));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(1);
+        body.write(salt);
+        body.write(iv);
+        body.write(new byte[]{(byte) (rounds >> 24), (byte) (rounds >> 16), (byte) (rounds >> 8), (byte) rounds});
+        body.write(ciphertext);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(Arrays.copyOfRange(deriveKey, 32, 64), "HmacSHA256"));
+        body.write(mac.doFinal(body.toByteArray()));
+
+        byte[] bodyBytes = body.toByteArray();
+        int lineLength = 72 * 4 / 3;
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(HEADER_LINE.getBytes());
+
+        for (int offset = 0; offset < bodyBytes.length; offset += lineLength) {
+            file.write("\n".getBytes());
+            file.write(Base64.encode(bodyBytes, offset, Math.min(lineLength, bodyBytes.length - offset), Base64.DEFAULT));
+        }
+
+        file.write("\n".getBytes());
+        file.write(TRAILER_LINE.getBytes());
+        file.write("\n".getBytes());
+
+        return file.toByteArray();
+    }
+
+    @Test
+    public void testExportImportRoundTrip() throws Exception {
+        String keys = buildKeysJson(500);
+
+        byte[] file = MXMegolmExportEncryption.encryptMegolmKeyFile(keys, PASSWORD, KDF_ROUNDS);
+        assertEquals(keys, MXMegolmExportEncryption.decryptMegolmKeyFile(file, PASSWORD));
+    }
+
+    @Test
+    public void testStreamedExportImportRoundTrip() throws Exception {
+        byte[] keys = buildKeysJson(500).getBytes("UTF-8");
+
+        // the data are written in small chunks
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        OutputStream encryptingStream = MXMegolmExportEncryption.createEncryptingStream(outputStream, PASSWORD, KDF_ROUNDS);
+
+        for (int offset = 0; offset < keys.length; offset += 7) {
+            encryptingStream.write(keys, offset, Math.min(7, keys.length - offset));
+        }
+
+        encryptingStream.close();
+
+        InputStream decryptingStream = decrypt(outputStream.toByteArray(), PASSWORD);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        byte[] buffer = new byte[13];
+        int len;
+
+        while ((len = decryptingStream.read(buffer)) != -1) {
+            decrypted.write(buffer, 0, len);
+        }
+
+        decryptingStream.close();
+
+        assertArrayEquals(keys, decrypted.toByteArray());
+    }
+
+    @Test
+    public void testExportIsCompatibleWithTheLegacyFormat() throws Exception {
+        for (int count : new int[]{0, 1, 3, 500}) {
+            String keys = buildKeysJson(count);
+            byte[] file = MXMegolmExportEncryption.encryptMegolmKeyFile(keys, PASSWORD, KDF_ROUNDS);
+
+            // rebuild the file with the same salt and iv
+            byte[] body = unpack(file);
+            byte[] salt = Arrays.copyOfRange(body, 1, 17);
+            byte[] iv = Arrays.copyOfRange(body, 17, 33);
+            byte[] legacyFile = legacyEncrypt(keys, PASSWORD, salt, iv, KDF_ROUNDS);
+
+            assertArrayEquals(legacyFile, file);
+            assertEquals(keys, MXMegolmExportEncryption.decryptMegolmKeyFile(legacyFile, PASSWORD));
+        }
+    }
+
+    @Test
+    public void testWrongPasswordIsRejected() throws Exception {
+        byte[] file = MXMegolmExportEncryption.encryptMegolmKeyFile(buildKeysJson(10), PASSWORD, KDF_ROUNDS);
+
+        try {
+            MXMegolmExportEncryption.decryptMegolmKeyFile(file, "wrong password");
+            fail("the wrong password must be rejected");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("Authentication check failed"));
+        }
+    }
+
+    @Test
+    public void testBadHmacIsRejected() throws Exception {
+        String keys = buildKeysJson(10);
+        byte[] file = MXMegolmExportEncryption.encryptMegolmKeyFile(keys, PASSWORD, KDF_ROUNDS);
+        byte[] body = unpack(file);
+        byte[] salt = Arrays.copyOfRange(body, 1, 17);
+        byte[] iv = Arrays.copyOfRange(body, 17, 33);
+
+        // tamper the ciphertext : the file is rebuilt with another payload and the original HMAC
+        byte[] tamperedBody = unpack(legacyEncrypt(keys.replace("room1", "room2"), PASSWORD, salt, iv, KDF_ROUNDS));
+        System.arraycopy(body, body.length - 32, tamperedBody, tamperedBody.length - 32, 32);
+
+        String tamperedFile = HEADER_LINE + "\n" + Base64.encodeToString(tamperedBody, Base64.DEFAULT) + TRAILER_LINE + "\n";
+
+        try {
+            InputStream decryptingStream = decrypt(tamperedFile.getBytes("UTF-8"), PASSWORD);
+            decryptingStream.close();
+            fail("the bad HMAC must be rejected");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("Authentication check failed"));
+        }
+    }
+
+    @Test
+    public void testTruncatedFileIsRejected() throws Exception {
+        String file = HEADER_LINE + "\n" + Base64.encodeToString(new byte[]{1, 2, 3}, Base64.DEFAULT) + TRAILER_LINE + "\n";
+
+        try {
+            MXMegolmExportEncryption.decryptMegolmKeyFile(file.getBytes("UTF-8"), PASSWORD);
+            fail("the truncated file must be rejected");
+        } catch (Exception e) {
+            assertEquals("Invalid file: too short", e.getMessage());
+        }
+    }
+}
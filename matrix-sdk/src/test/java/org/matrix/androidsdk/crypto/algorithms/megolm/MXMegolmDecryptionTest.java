@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto.algorithms.megolm;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.crypto.MXCrypto;
+import org.matrix.androidsdk.crypto.MXCryptoError;
+import org.matrix.androidsdk.crypto.MXOlmDevice;
+import org.matrix.androidsdk.crypto.algorithms.MXDecryptionResult;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.MXWorkersPool;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMegolmDecryptionTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String SENDER_KEY = "senderKey";
+    private static final String TIMELINE_ID = "timeline";
+
+    @Mock
+    private MXSession mockSession;
+
+    @Mock
+    private MXCrypto mockCrypto;
+
+    @Mock
+    private MXOlmDevice mockOlmDevice;
+
+    private MXMegolmDecryption mDecryption;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mockSession.getCrypto()).thenReturn(mockCrypto);
+        when(mockCrypto.getOlmDevice()).thenReturn(mockOlmDevice);
+
+        // the clear event body is the ciphertext
+        when(mockOlmDevice.decryptGroupMessages(anyListOf(String.class), anyString(), anyString(), anyString(), anyString())).thenAnswer(new Answer<List<MXDecryptionResult>>() {
+            @Override
+            public List<MXDecryptionResult> answer(InvocationOnMock invocation) throws Throwable {
+                List<String> bodies = (List<String>) invocation.getArguments()[0];
+                List<MXDecryptionResult> results = new ArrayList<>();
+
+                for (String body : bodies) {
+                    JsonObject content = new JsonObject();
+                    content.addProperty("body", body);
+
+                    JsonObject payload = new JsonObject();
+                    payload.addProperty("type", Event.EVENT_TYPE_MESSAGE);
+                    payload.add("content", content);
+
+                    MXDecryptionResult result = new MXDecryptionResult();
+                    result.mPayload = payload;
+                    results.add(result);
+                }
+
+                return results;
+            }
+        });
+
+        mDecryption = new MXMegolmDecryption();
+        mDecryption.initWithMatrixSession(mockSession);
+    }
+
+    private static Event buildEncryptedEvent(String eventId, String sessionId, String ciphertext) {
+        JsonObject content = new JsonObject();
+        content.addProperty("algorithm", "m.megolm.v1.aes-sha2");
+        content.addProperty("sender_key", SENDER_KEY);
+
+        if (null != sessionId) {
+            content.addProperty("session_id", sessionId);
+        }
+
+        content.addProperty("ciphertext", ciphertext);
+
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID;
+        event.type = Event.EVENT_TYPE_MESSAGE_ENCRYPTED;
+        event.content = content;
+        return event;
+    }
+
+    private static String getClearBody(Event event) {
+        return event.getClearEvent().getContentAsJsonObject().get("body").getAsString();
+    }
+
+    private static long waitForCompletedTasksCount(MXWorkersPool pool, long expectedCount) throws InterruptedException {
+        long completedTasksCount = 0;
+
+        for (int i = 0; (i < 100) && (completedTasksCount < expectedCount); i++) {
+            if (i > 0) {
+                Thread.sleep(10);
+            }
+
+            completedTasksCount = 0;
+
+            for (long count : pool.getCompletedTasksCounts()) {
+                completedTasksCount += count;
+            }
+        }
+
+        return completedTasksCount;
+    }
+
+    @Test
+    public void testEventsAreDecryptedBySession() {
+        Event event1 = buildEncryptedEvent("$1", "session1", "ciphertext1");
+        Event event2 = buildEncryptedEvent("$2", "session2", "ciphertext2");
+        Event event3 = buildEncryptedEvent("$3", "session1", "ciphertext3");
+        Event event4 = buildEncryptedEvent("$4", null, "ciphertext4");
+
+        mDecryption.decryptEvents(Arrays.asList(event1, event2, event3, event4), TIMELINE_ID);
+
+        // each session is used once for all its messages, in the events order
+        verify(mockOlmDevice, times(1)).decryptGroupMessages(Arrays.asList("ciphertext1", "ciphertext3"), ROOM_ID, TIMELINE_ID, "session1", SENDER_KEY);
+        verify(mockOlmDevice, times(1)).decryptGroupMessages(Arrays.asList("ciphertext2"), ROOM_ID, TIMELINE_ID, "session2", SENDER_KEY);
+        verifyNoMoreInteractions(mockOlmDevice);
+
+        assertEquals("ciphertext1", getClearBody(event1));
+        assertEquals("ciphertext2", getClearBody(event2));
+        assertEquals("ciphertext3", getClearBody(event3));
+
+        assertNull(event4.getClearEvent());
+        assertEquals(MXCryptoError.MISSING_FIELDS_ERROR_CODE, event4.getCryptoError().errcode);
+    }
+
+    @Test
+    public void testSessionsAreDecryptedOnTheWorkers() throws Exception {
+        MXWorkersPool pool = new MXWorkersPool("MXMegolmDecryptionTest", 3);
+        when(mockCrypto.getDecryptionPool()).thenReturn(pool);
+
+        List<Event> events = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            events.add(buildEncryptedEvent("$" + i, "session" + (i % 10), "ciphertext" + i));
+        }
+
+        mDecryption.decryptEvents(events, TIMELINE_ID);
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals("ciphertext" + i, getClearBody(events.get(i)));
+        }
+
+        // a task per session, the tasks count is updated once the task has run
+        assertEquals(10, waitForCompletedTasksCount(pool, 10));
+        verify(mockOlmDevice, times(10)).decryptGroupMessages(anyListOf(String.class), anyString(), anyString(), anyString(), anyString());
+
+        pool.release();
+    }
+
+    @Test
+    public void testSingleEventDecryption() {
+        Event event = buildEncryptedEvent("$1", "session1", "ciphertext1");
+
+        assertTrue(mDecryption.decryptEvent(event, TIMELINE_ID));
+        assertEquals("ciphertext1", getClearBody(event));
+        assertNull(event.getCryptoError());
+    }
+}
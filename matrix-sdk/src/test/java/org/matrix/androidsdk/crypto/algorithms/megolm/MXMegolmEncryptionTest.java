@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto.algorithms.megolm;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.crypto.MXCrypto;
+import org.matrix.androidsdk.crypto.MXOlmDevice;
+import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.matrix.androidsdk.crypto.data.MXOlmSessionResult;
+import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.CryptoRestClient;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.util.MXWorkersPool;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMegolmEncryptionTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String SESSION_ID = "session";
+
+    @Mock
+    private MXSession mockSession;
+
+    @Mock
+    private MXCrypto mockCrypto;
+
+    @Mock
+    private MXOlmDevice mockOlmDevice;
+
+    @Mock
+    private MXWorkersPool mockEncryptionPool;
+
+    @Mock
+    private CryptoRestClient mockCryptoRestClient;
+
+    @Mock
+    private ApiCallback<Void> mockCallback;
+
+    private MXMegolmEncryption mEncryption;
+
+    // the devices count of each sendToDevice request
+    private final List<Integer> mSentDevicesCounts = new ArrayList<>();
+
+    // the sendToDevice requests which fail with a network error
+    private final List<Integer> mFailingRequests = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        // the encrypting thread and the UI thread callbacks are run by the test
+        ShadowLooper.pauseMainLooper();
+        Handler handler = new Handler(Looper.getMainLooper());
+
+        Credentials credentials = new Credentials();
+        credentials.userId = "@alice:matrix.org";
+        credentials.deviceId = "ALICEDEVICE";
+
+        when(mockSession.getCredentials()).thenReturn(credentials);
+        when(mockSession.getCrypto()).thenReturn(mockCrypto);
+        when(mockSession.getCryptoRestClient()).thenReturn(mockCryptoRestClient);
+        when(mockCrypto.getOlmDevice()).thenReturn(mockOlmDevice);
+        when(mockCrypto.getEncryptingThreadHandler()).thenReturn(handler);
+        when(mockCrypto.getUIHandler()).thenReturn(handler);
+        when(mockCrypto.getEncryptionPool()).thenReturn(mockEncryptionPool);
+        when(mockOlmDevice.getSessionKey(SESSION_ID)).thenReturn("sessionKey");
+        when(mockOlmDevice.getMessageIndex(SESSION_ID)).thenReturn(0);
+        when(mockCrypto.encryptMessage(anyMapOf(String.class, Object.class), anyListOf(MXDeviceInfo.class))).thenReturn(new HashMap<String, Object>());
+
+        // the encryptions are run synchronously
+        when(mockEncryptionPool.post(anyString(), any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[1]).run();
+                return true;
+            }
+        });
+
+        // the devices without one-time keys have no olm session
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser = (HashMap<String, ArrayList<MXDeviceInfo>>) invocation.getArguments()[0];
+                MXUsersDevicesMap<MXOlmSessionResult> results = new MXUsersDevicesMap<>();
+
+                for (String userId : devicesByUser.keySet()) {
+                    for (MXDeviceInfo deviceInfo : devicesByUser.get(userId)) {
+                        String sessionId = deviceInfo.deviceId.startsWith("NOKEY") ? null : "olm" + deviceInfo.deviceId;
+                        results.setObject(new MXOlmSessionResult(deviceInfo, sessionId), userId, deviceInfo.deviceId);
+                    }
+                }
+
+                ((ApiCallback<MXUsersDevicesMap<MXOlmSessionResult>>) invocation.getArguments()[1]).onSuccess(results);
+                return null;
+            }
+        }).when(mockCrypto).ensureOlmSessionsForDevices(any(HashMap.class), any(ApiCallback.class));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                MXUsersDevicesMap<Map<String, Object>> contentMap = (MXUsersDevicesMap<Map<String, Object>>) invocation.getArguments()[1];
+                ApiCallback<Void> callback = (ApiCallback<Void>) invocation.getArguments()[2];
+
+                int devicesCount = 0;
+
+                for (String userId : contentMap.getUserIds()) {
+                    devicesCount += contentMap.getUserDeviceIds(userId).size();
+                }
+
+                mSentDevicesCounts.add(devicesCount);
+
+                if (mFailingRequests.contains(mSentDevicesCounts.size() - 1)) {
+                    callback.onNetworkError(new Exception("network error"));
+                } else {
+                    callback.onSuccess(null);
+                }
+                return null;
+            }
+        }).when(mockCryptoRestClient).sendToDevice(anyString(), any(MXUsersDevicesMap.class), any(ApiCallback.class));
+
+        mEncryption = new MXMegolmEncryption();
+        mEncryption.initWithMatrixSession(mockSession, ROOM_ID);
+    }
+
+    /**
+     * Build the devices map : devicesCount devices for each user,
+     * the first noKeysDevicesCount devices of the first user have no one-time keys.
+     */
+    private static HashMap<String, ArrayList<MXDeviceInfo>> buildDevicesByUser(int usersCount, int devicesCount, int noKeysDevicesCount) {
+        HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser = new HashMap<>();
+
+        for (int i = 0; i < usersCount; i++) {
+            String userId = "@user" + i + ":matrix.org";
+            ArrayList<MXDeviceInfo> devices = new ArrayList<>();
+
+            for (int j = 0; j < devicesCount; j++) {
+                String deviceId = (((0 == i) && (j < noKeysDevicesCount)) ? "NOKEY" : "DEVICE") + j;
+
+                MXDeviceInfo deviceInfo = new MXDeviceInfo(deviceId);
+                deviceInfo.userId = userId;
+                deviceInfo.keys = new HashMap<>();
+                deviceInfo.keys.put("curve25519:" + deviceId, userId + deviceId);
+                devices.add(deviceInfo);
+            }
+
+            devicesByUser.put(userId, devices);
+        }
+
+        return devicesByUser;
+    }
+
+    private static int getDevicesCount(MXUsersDevicesMap<Integer> map) {
+        int devicesCount = 0;
+
+        for (String userId : map.getUserIds()) {
+            devicesCount += map.getUserDeviceIds(userId).size();
+        }
+
+        return devicesCount;
+    }
+
+    private static void runPendingTasks() {
+        // the retries are delayed
+        for (int i = 0; i < 10; i++) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+    }
+
+    @Test
+    public void testKeyIsSharedByBatches() {
+        MXOutboundSessionInfo session = new MXOutboundSessionInfo(SESSION_ID);
+
+        // the first request fails once and is retried
+        mFailingRequests.add(0);
+
+        mEncryption.shareKey(session, buildDevicesByUser(5, 50, 5), mockCallback);
+        runPendingTasks();
+
+        // a single one-time keys claim for all the devices
+        verify(mockCrypto, times(1)).ensureOlmSessionsForDevices(any(HashMap.class), any(ApiCallback.class));
+        verify(mockCrypto, times(245)).encryptMessage(anyMapOf(String.class, Object.class), anyListOf(MXDeviceInfo.class));
+
+        int sentDevicesCount = 0;
+
+        for (int i = 0; i < mSentDevicesCounts.size(); i++) {
+            assertTrue(mSentDevicesCounts.get(i) <= 100);
+
+            if (!mFailingRequests.contains(i)) {
+                sentDevicesCount += mSentDevicesCounts.get(i);
+            }
+        }
+
+        assertEquals(4, mSentDevicesCounts.size());
+        assertEquals(245, sentDevicesCount);
+
+        // the devices without olm session are flagged too, so their keys are not claimed again
+        assertEquals(250, getDevicesCount(session.mSharedWithDevices));
+
+        verify(mockCallback, times(1)).onSuccess(null);
+        verify(mockCallback, never()).onNetworkError(any(Exception.class));
+    }
+
+    @Test
+    public void testSentBatchesAreFlaggedOnError() {
+        MXOutboundSessionInfo session = new MXOutboundSessionInfo(SESSION_ID);
+
+        // the second request and its retries fail
+        mFailingRequests.add(1);
+
+        for (int i = 3; i < 20; i++) {
+            mFailingRequests.add(i);
+        }
+
+        mEncryption.shareKey(session, buildDevicesByUser(3, 100, 0), mockCallback);
+        runPendingTasks();
+
+        verify(mockCallback, times(1)).onNetworkError(any(Exception.class));
+        verify(mockCallback, never()).onSuccess(null);
+
+        // the first and the third batches have been sent, they are not shared again
+        assertEquals(200, getDevicesCount(session.mSharedWithDevices));
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.cryptostore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.crypto.data.MXOlmInboundGroupSession;
+import org.matrix.androidsdk.crypto.data.MXOlmInboundGroupSession2;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The sessions records are written by the tests : the stored sessions have no native olm session.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXFileInboundGroupSessionsStoreTest {
+
+    private static final String SENDER_KEY = "senderKey";
+
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("sessions", "");
+        assertTrue(mFolder.delete());
+        assertTrue(mFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mFolder.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        mFolder.delete();
+    }
+
+    private static byte[] sessionRecord(String sessionId, String roomId) throws IOException {
+        MXOlmInboundGroupSession2 session = new MXOlmInboundGroupSession2(mock(MXOlmInboundGroupSession.class));
+        session.mSenderKey = SENDER_KEY;
+        session.mRoomId = roomId;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(session);
+        oos.close();
+
+        return MXFileInboundGroupSessionsStore.encodeRecord(MXFileInboundGroupSessionsStore.RECORD_SESSION, SENDER_KEY, sessionId, bos.toByteArray());
+    }
+
+    private File writeSegment(int segment, byte[]... records) throws IOException {
+        File file = new File(mFolder, "segment_" + segment);
+        FileOutputStream fos = new FileOutputStream(file);
+
+        for (byte[] record : records) {
+            fos.write(record);
+        }
+
+        fos.close();
+        return file;
+    }
+
+    private MXFileInboundGroupSessionsStore openStore() {
+        MXFileInboundGroupSessionsStore store = new MXFileInboundGroupSessionsStore(mFolder, MXFileInboundGroupSessionsStore.DEFAULT_CACHE_SIZE);
+        store.open();
+        return store;
+    }
+
+    @Test
+    public void testRecordsRoundTrip() throws IOException {
+        writeSegment(0, sessionRecord("session1", "room1"), sessionRecord("session2", "room2"), sessionRecord("session1", "room3"));
+
+        MXFileInboundGroupSessionsStore store = openStore();
+
+        assertEquals(2, store.getSessionsCount());
+        assertEquals(2, store.getSessionsIds().get(SENDER_KEY).size());
+        assertEquals(2, store.loadAll().size());
+        // the last record wins
+        assertEquals("room3", store.get(SENDER_KEY, "session1").mRoomId);
+        assertEquals("room2", store.get(SENDER_KEY, "session2").mRoomId);
+        assertNull(store.get(SENDER_KEY, "session3"));
+
+        store.remove(SENDER_KEY, "session2");
+        assertFalse(store.contains(SENDER_KEY, "session2"));
+        store.close();
+
+        store = openStore();
+        assertEquals(1, store.getSessionsCount());
+        assertTrue(store.contains(SENDER_KEY, "session1"));
+        assertFalse(store.contains(SENDER_KEY, "session2"));
+        assertEquals("room3", store.get(SENDER_KEY, "session1").mRoomId);
+        store.close();
+    }
+
+    @Test
+    public void testTruncatedTailRecordIsRemoved() throws IOException {
+        byte[] record1 = sessionRecord("session1", "room1");
+        byte[] record2 = sessionRecord("session2", "room2");
+        File segment = writeSegment(0, record1, Arrays.copyOf(record2, record2.length / 2));
+
+        MXFileInboundGroupSessionsStore store = openStore();
+
+        assertEquals(1, store.getSessionsCount());
+        assertEquals(record1.length, segment.length());
+        assertEquals("room1", store.get(SENDER_KEY, "session1").mRoomId);
+
+        // the next records are appended after the valid ones
+        store.remove(SENDER_KEY, "session1");
+        store.close();
+
+        store = openStore();
+        assertEquals(0, store.getSessionsCount());
+        store.close();
+    }
+
+    @Test
+    public void testCorruptedRecordIsSkipped() throws IOException {
+        byte[] record1 = sessionRecord("session1", "room1");
+        byte[] record2 = sessionRecord("session2", "room2");
+        byte[] record3 = sessionRecord("session3", "room3");
+
+        // flip a byte before the checksum
+        record2[record2.length - 5] ^= 0xFF;
+
+        File sealedSegment = writeSegment(0, record1, record2, record3);
+        long sealedSegmentLength = sealedSegment.length();
+        writeSegment(1, sessionRecord("session4", "room4"));
+
+        MXFileInboundGroupSessionsStore store = openStore();
+
+        assertEquals(3, store.getSessionsCount());
+        assertFalse(store.contains(SENDER_KEY, "session2"));
+        assertEquals("room3", store.get(SENDER_KEY, "session3").mRoomId);
+        assertEquals("room4", store.get(SENDER_KEY, "session4").mRoomId);
+        store.close();
+
+        // the sealed segment is not truncated
+        assertEquals(sealedSegmentLength, sealedSegment.length());
+    }
+
+    @Test
+    public void testUnreadableSealedSegmentTailIsKept() throws IOException {
+        byte[] record1 = sessionRecord("session1", "room1");
+        byte[] record2 = sessionRecord("session2", "room2");
+
+        // invalid record type
+        record2[0] = 0;
+
+        File sealedSegment = writeSegment(0, record1, record2);
+        long sealedSegmentLength = sealedSegment.length();
+        writeSegment(1, sessionRecord("session3", "room3"));
+
+        MXFileInboundGroupSessionsStore store = openStore();
+
+        assertEquals(2, store.getSessionsCount());
+        assertEquals("room1", store.get(SENDER_KEY, "session1").mRoomId);
+        assertEquals("room3", store.get(SENDER_KEY, "session3").mRoomId);
+        store.close();
+
+        assertEquals(sealedSegmentLength, sealedSegment.length());
+    }
+
+    @Test
+    public void testIndexIsRebuilt() throws IOException {
+        writeSegment(0, sessionRecord("session1", "room1"), sessionRecord("session2", "room2"));
+
+        MXFileInboundGroupSessionsStore store = openStore();
+        store.remove(SENDER_KEY, "session1");
+        store.close();
+
+        File indexFile = new File(mFolder, "index");
+        assertTrue(indexFile.exists());
+        assertTrue(indexFile.delete());
+
+        store = openStore();
+        assertEquals(1, store.getSessionsCount());
+        assertFalse(store.contains(SENDER_KEY, "session1"));
+        assertEquals("room2", store.get(SENDER_KEY, "session2").mRoomId);
+        store.close();
+
+        // a corrupted index is ignored too
+        FileOutputStream fos = new FileOutputStream(indexFile);
+        fos.write(new byte[]{1, 2, 3});
+        fos.close();
+
+        store = openStore();
+        assertEquals(1, store.getSessionsCount());
+        assertEquals("room2", store.get(SENDER_KEY, "session2").mRoomId);
+        store.close();
+    }
+
+    @Test
+    public void testSegmentsAreCompacted() throws IOException {
+        StringBuilder roomId = new StringBuilder();
+
+        for (int i = 0; i < 1024; i++) {
+            roomId.append('r');
+        }
+
+        int count = 300;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        // each session is written three times
+        for (int version = 0; version < 3; version++) {
+            for (int i = 0; i < count; i++) {
+                bos.write(sessionRecord("session" + i, roomId + "_" + version));
+            }
+        }
+
+        File segment = writeSegment(0, bos.toByteArray());
+        assertTrue(segment.length() > 1024 * 1024);
+
+        MXFileInboundGroupSessionsStore store = openStore();
+
+        assertFalse(segment.exists());
+        assertTrue(new File(mFolder, "segment_1").exists());
+        assertTrue(new File(mFolder, "segment_1").length() < bos.size() / 2);
+        assertEquals(count, store.getSessionsCount());
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(roomId + "_2", store.get(SENDER_KEY, "session" + i).mRoomId);
+        }
+
+        store.close();
+
+        store = openStore();
+        assertEquals(count, store.getSessionsCount());
+        assertEquals(roomId + "_2", store.get(SENDER_KEY, "session0").mRoomId);
+        store.close();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreJournalTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("journal", "");
+        assertTrue(mFolder.delete());
+        assertTrue(mFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mFolder.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        mFolder.delete();
+    }
+
+    private static Event buildEvent(String eventId) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        return event;
+    }
+
+    private static MXFileStoreJournal.Record eventRecord(String eventId) {
+        return new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_EVENT, eventId, buildEvent(eventId));
+    }
+
+    private static List<String> replay(LinkedHashMap<String, Event> events, List<MXFileStoreJournal.Record> records) {
+        MXFileStoreJournal.replayEvents(events, records);
+        return new ArrayList<>(events.keySet());
+    }
+
+    @Test
+    public void testRecordsAreReplayedOnTheSnapshot() {
+        MXFileStoreJournal journal = new MXFileStoreJournal(mFolder);
+
+        journal.addPendingRecord(ROOM_ID, eventRecord("$c"));
+        journal.addPendingRecord(ROOM_ID, new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_TOKEN, null, "token1"));
+        assertTrue(journal.hasPendingRecords(ROOM_ID));
+        assertTrue(journal.append(ROOM_ID, journal.takePendingRecords(ROOM_ID)));
+        assertFalse(journal.hasPendingRecords(ROOM_ID));
+
+        ArrayList<Event> paginatedEvents = new ArrayList<>(Arrays.asList(buildEvent("$0"), buildEvent("$a")));
+        assertTrue(journal.append(ROOM_ID, Arrays.asList(
+                new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_PREPEND_EVENTS, null, paginatedEvents),
+                new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_DELETE_EVENT, "$b", null),
+                new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_TOKEN, null, "token2"))));
+
+        // the journal is read by another store instance
+        List<MXFileStoreJournal.Record> records = new MXFileStoreJournal(mFolder).read(ROOM_ID);
+        assertEquals(5, records.size());
+
+        LinkedHashMap<String, Event> events = new LinkedHashMap<>();
+        events.put("$a", buildEvent("$a"));
+        events.put("$b", buildEvent("$b"));
+
+        assertEquals("token2", MXFileStoreJournal.replayEvents(events, records));
+        assertEquals(Arrays.asList("$0", "$a", "$c"), new ArrayList<>(events.keySet()));
+
+        // the replay is idempotent
+        assertEquals(Arrays.asList("$0", "$a", "$c"), replay(events, records));
+    }
+
+    @Test
+    public void testReceiptsAreReplayed() {
+        MXFileStoreJournal journal = new MXFileStoreJournal(mFolder);
+
+        assertTrue(journal.append(ROOM_ID, Arrays.asList(
+                new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_RECEIPT, "@alice", new ReceiptData("@alice", "$a", 1)),
+                new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_RECEIPT, "@bob", new ReceiptData("@bob", "$a", 2)),
+                new MXFileStoreJournal.Record(MXFileStoreJournal.RECORD_TYPE_RECEIPT, "@alice", new ReceiptData("@alice", "$b", 3)))));
+
+        HashMap<String, ReceiptData> receipts = new HashMap<>();
+        receipts.put("@carol", new ReceiptData("@carol", "$0", 0));
+
+        MXFileStoreJournal.replayReceipts(receipts, journal.read(ROOM_ID));
+
+        assertEquals(3, receipts.size());
+        assertEquals("$b", receipts.get("@alice").eventId);
+        assertEquals("$a", receipts.get("@bob").eventId);
+        assertEquals("$0", receipts.get("@carol").eventId);
+    }
+
+    @Test
+    public void testTruncatedBlockIsRemoved() throws IOException {
+        MXFileStoreJournal journal = new MXFileStoreJournal(mFolder);
+
+        assertTrue(journal.append(ROOM_ID, Arrays.asList(eventRecord("$a"))));
+        File file = new File(mFolder, ROOM_ID);
+        long validLength = file.length();
+
+        // the application has been killed while writing a block
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.write(new byte[]{0x4d, 0x58, 0x4a, 0x31, 0, 0, 1, 0});
+        fos.close();
+
+        List<MXFileStoreJournal.Record> records = journal.read(ROOM_ID);
+
+        assertEquals(1, records.size());
+        assertEquals("$a", records.get(0).mKey);
+        assertEquals(validLength, file.length());
+
+        // the next blocks are appended after the valid ones
+        assertTrue(journal.append(ROOM_ID, Arrays.asList(eventRecord("$b"))));
+        assertEquals(Arrays.asList("$a", "$b"), replay(new LinkedHashMap<String, Event>(), journal.read(ROOM_ID)));
+    }
+
+    @Test
+    public void testCompactionThresholds() {
+        MXFileStoreJournal journal = new MXFileStoreJournal(mFolder);
+        journal.setCompactionThresholds(1024 * 1024, 3);
+
+        assertFalse(journal.needsCompaction(ROOM_ID));
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(journal.needsCompaction(ROOM_ID));
+            assertTrue(journal.append(ROOM_ID, Arrays.asList(eventRecord("$" + i))));
+        }
+
+        assertTrue(journal.needsCompaction(ROOM_ID));
+
+        // the blocks count is restored when the journal is read
+        MXFileStoreJournal otherJournal = new MXFileStoreJournal(mFolder);
+        otherJournal.setCompactionThresholds(1024 * 1024, 3);
+        otherJournal.read(ROOM_ID);
+        assertTrue(otherJournal.needsCompaction(ROOM_ID));
+
+        journal.delete(ROOM_ID);
+        assertFalse(journal.exists(ROOM_ID));
+        assertFalse(journal.needsCompaction(ROOM_ID));
+
+        // a compaction can be requested
+        journal.requestCompaction(ROOM_ID);
+        assertTrue(journal.needsCompaction(ROOM_ID));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import android.net.Uri;
+
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreTest {
+
+    private static final String USER_ID = "@alice:matrix.org";
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    private HomeserverConnectionConfig mHsConfig;
+    private MXFileStore mStore;
+    private File mStoreFolder;
+
+    @Before
+    public void setUp() {
+        Credentials credentials = new Credentials();
+        credentials.userId = USER_ID;
+        credentials.accessToken = "accessToken";
+
+        mStoreFolder = new File(new File(RuntimeEnvironment.application.getFilesDir(), MXFileStore.MXFILE_STORE_FOLDER), USER_ID);
+        ContentUtils.deleteDirectory(mStoreFolder);
+
+        mHsConfig = new HomeserverConnectionConfig(Uri.parse("http://localhost:8008"), credentials);
+        mStore = new MXFileStore(mHsConfig, RuntimeEnvironment.application);
+        assertTrue(mStore.isReady());
+
+        Room room = new Room();
+        room.init(mStore, ROOM_ID, null);
+        mStore.storeRoom(room);
+    }
+
+    @After
+    public void tearDown() {
+        ContentUtils.deleteDirectory(mStoreFolder);
+    }
+
+    private File getRoomStateFile() {
+        return new File(new File(mStoreFolder, MXFileStore.MXFILE_STORE_GZ_ROOMS_STATE_FOLDER), ROOM_ID);
+    }
+
+    private File getRoomStateEventFile(String eventId) {
+        return new File(new File(new File(mStoreFolder, MXFileStore.MXFILE_STORE_GZ_ROOMS_STATE_EVENTS_FOLDER), ROOM_ID), eventId);
+    }
+
+    private void storeStateEvent(String eventId) {
+        JsonObject content = new JsonObject();
+        content.addProperty("name", eventId);
+
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID;
+        event.type = Event.EVENT_TYPE_STATE_ROOM_NAME;
+        event.stateKey = "";
+        event.content = content;
+
+        mStore.storeRoomStateEvent(ROOM_ID, event);
+        mStore.storeLiveStateForRoom(ROOM_ID);
+    }
+
+    private File getUsersFile(int hashKey) {
+        return new File(new File(mStoreFolder, MXFileStore.MXFILE_STORE_USER_FOLDER), hashKey + "");
+    }
+
+    private static User buildUser(String userId) {
+        User user = new User();
+        user.user_id = userId;
+        user.displayname = "name of " + userId;
+        return user;
+    }
+
+    /**
+     * Build two users whose storage hash keys are different.
+     */
+    private static User[] buildUsersWithDistinctHashKeys() {
+        User user1 = buildUser("@bob:matrix.org");
+
+        for (int i = 0; ; i++) {
+            User user2 = buildUser("@user" + i + ":matrix.org");
+
+            if (user2.getStorageHashKey() != user1.getStorageHashKey()) {
+                return new User[]{user1, user2};
+            }
+        }
+    }
+
+    /**
+     * Close the store and open it again from the saved files.
+     */
+    private MXFileStore reopenStore() throws InterruptedException {
+        mStore.close();
+
+        MXFileStore store = new MXFileStore(mHsConfig, RuntimeEnvironment.application);
+        store.open();
+
+        for (int i = 0; (i < 100) && !store.isReady(); i++) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(store.isReady());
+        return store;
+    }
+
+    private static boolean waitForFile(File file) throws InterruptedException {
+        for (int i = 0; (i < 100) && !file.exists(); i++) {
+            Thread.sleep(10);
+        }
+
+        return file.exists();
+    }
+
+    @Test
+    public void testCommitsAreWrittenOnClose() {
+        mStore.setCommitFlushInterval(60 * 1000);
+
+        // the commits of a sync burst are coalesced into the next flush
+        storeStateEvent("$state1");
+        mStore.commit();
+        storeStateEvent("$state2");
+        mStore.commit();
+
+        assertFalse(getRoomStateFile().exists());
+        assertFalse(getRoomStateEventFile("$state1").exists());
+
+        // the pending commits are written when the store is closed, the state events included
+        mStore.close();
+
+        assertTrue(getRoomStateFile().exists());
+        assertTrue(getRoomStateEventFile("$state1").exists());
+        assertTrue(getRoomStateEventFile("$state2").exists());
+    }
+
+    @Test
+    public void testCommitIsFlushedWhenTooManyItemsArePending() throws Exception {
+        mStore.setCommitFlushInterval(60 * 1000);
+        mStore.setCommitFlushSize(1);
+
+        storeStateEvent("$state1");
+        mStore.commit();
+
+        assertTrue(waitForFile(getRoomStateFile()));
+        assertTrue(waitForFile(getRoomStateEventFile("$state1")));
+
+        mStore.close();
+    }
+
+    @Test
+    public void testUserStorageHashKey() {
+        for (int i = 0; i < 1000; i++) {
+            String userId = "@user" + i + ":matrix.org";
+            int hashKey = User.getStorageHashKey(userId);
+
+            assertTrue((hashKey >= 0) && (hashKey < User.STORAGE_HASH_KEYS_COUNT));
+            assertEquals(hashKey, buildUser(userId).getStorageHashKey());
+        }
+    }
+
+    @Test
+    public void testUsersAreSavedByHashKey() throws Exception {
+        User[] users = buildUsersWithDistinctHashKeys();
+
+        mStore.storeUser(users[0]);
+        mStore.storeUser(users[1]);
+        mStore.commit();
+
+        // a file per hash key
+        MXFileStore store = reopenStore();
+        assertEquals(2, new File(mStoreFolder, MXFileStore.MXFILE_STORE_USER_FOLDER).list().length);
+
+        for (User user : users) {
+            User storedUser = store.getUser(user.user_id);
+
+            assertNotNull(storedUser);
+            assertEquals(user.displayname, storedUser.displayname);
+        }
+
+        assertEquals(2, store.getUsers().size());
+        store.close();
+    }
+
+    @Test
+    public void testUsersFileIsLoadedWhenOneOfItsUsersIsRequested() throws Exception {
+        User[] users = buildUsersWithDistinctHashKeys();
+
+        mStore.storeUser(users[0]);
+        mStore.storeUser(users[1]);
+        mStore.commit();
+
+        MXFileStore store = reopenStore();
+
+        // the users files are not read when the store is opened
+        assertTrue(getUsersFile(users[1].getStorageHashKey()).delete());
+
+        // the file is synchronously read when one of its users is requested
+        User user = store.getUser(users[0].user_id);
+        assertNotNull(user);
+        assertEquals(users[0].displayname, user.displayname);
+
+        assertNull(store.getUser(users[1].user_id));
+        store.close();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MXRoomEventsIndexTest {
+
+    @Test
+    public void testPositions() {
+        MXRoomEventsIndex index = new MXRoomEventsIndex(Arrays.asList("$b", "$c"));
+
+        index.append("$d");
+        // the paginated events are received from the latest to the oldest one
+        index.prepend("$a");
+        index.prepend("$0");
+
+        assertEquals(Arrays.asList("$0", "$a", "$b", "$c", "$d"), new ArrayList<>(index.getEventIds()));
+        assertTrue(index.getPosition("$a") < index.getPosition("$b"));
+        assertTrue(index.getPosition("$d") > index.getPosition("$c"));
+        assertNull(index.getPosition("$unknown"));
+
+        assertEquals(Arrays.asList("$c", "$d"), new ArrayList<>(index.getEventIdsAfter(index.getPosition("$b"))));
+    }
+
+    @Test
+    public void testUpdates() {
+        MXRoomEventsIndex index = new MXRoomEventsIndex(new ArrayList<String>());
+
+        index.append("$a");
+        index.append("$b");
+        // already indexed
+        index.append("$a");
+        index.remove("$b");
+        index.append("$c");
+
+        assertEquals(Arrays.asList("$a", "$c"), new ArrayList<>(index.getEventIds()));
+        assertNull(index.getPosition("$b"));
+
+        // a paginated event is moved before the oldest one
+        index.prepend("$c");
+        assertEquals(Arrays.asList("$c", "$a"), new ArrayList<>(index.getEventIds()));
+    }
+}
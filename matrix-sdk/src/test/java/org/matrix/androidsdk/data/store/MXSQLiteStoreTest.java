@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXSQLiteStoreTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String SELF_USER_ID = "@alice:matrix.org";
+    private static final String OTHER_USER_ID = "@bob:matrix.org";
+
+    private MXSQLiteStore mStore;
+
+    @Before
+    public void setUp() {
+        Credentials credentials = new Credentials();
+        credentials.userId = SELF_USER_ID;
+        credentials.accessToken = "accessToken";
+
+        mStore = new MXSQLiteStore(new HomeserverConnectionConfig(Uri.parse("http://localhost:8008"), credentials), RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.clear();
+        mStore.close();
+    }
+
+    private static Event buildEvent(String eventId, String sender) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.sender = sender;
+        return event;
+    }
+
+    private static List<String> getEventIds(Iterable<Event> events) {
+        List<String> eventIds = new ArrayList<>();
+
+        for (Event event : events) {
+            eventIds.add(event.eventId);
+        }
+
+        return eventIds;
+    }
+
+    @Test
+    public void testEventsAreOrderedByStreamOrder() {
+        mStore.storeLiveRoomEvent(buildEvent("$b", OTHER_USER_ID));
+        mStore.storeLiveRoomEvent(buildEvent("$c", OTHER_USER_ID));
+
+        // a back paginated chunk is ordered from the latest to the oldest event
+        TokensChunkResponse<Event> response = new TokensChunkResponse<>();
+        response.chunk = Arrays.asList(buildEvent("$a", OTHER_USER_ID), buildEvent("$0", OTHER_USER_ID));
+        response.start = "start";
+        response.end = "end";
+        mStore.storeRoomEvents(ROOM_ID, response, EventTimeline.Direction.BACKWARDS);
+
+        // an already stored event is updated in place
+        mStore.storeLiveRoomEvent(buildEvent("$b", OTHER_USER_ID));
+
+        assertEquals(Arrays.asList("$0", "$a", "$b", "$c"), getEventIds(mStore.getRoomMessages(ROOM_ID)));
+        assertEquals("$0", mStore.getOldestEvent(ROOM_ID).eventId);
+        assertEquals("$c", mStore.getLatestEvent(ROOM_ID).eventId);
+
+        // the history is paginated from the latest event, the oldest one gets the back token
+        TokensChunkResponse<Event> earlierMessages = mStore.getEarlierMessages(ROOM_ID, null, 10);
+        assertEquals(Arrays.asList("$c", "$b", "$a", "$0"), getEventIds(earlierMessages.chunk));
+        assertEquals("end", earlierMessages.end);
+
+        assertTrue(mStore.doesEventExist("$a", ROOM_ID));
+        assertEquals("$a", mStore.getEvent("$a", ROOM_ID).eventId);
+
+        mStore.deleteEvent(buildEvent("$a", OTHER_USER_ID));
+        assertFalse(mStore.doesEventExist("$a", ROOM_ID));
+        assertNull(mStore.getEvent("$a", ROOM_ID));
+        assertEquals(Arrays.asList("$0", "$b", "$c"), getEventIds(mStore.getRoomMessages(ROOM_ID)));
+    }
+
+    @Test
+    public void testEventsCountAfter() {
+        mStore.storeLiveRoomEvent(buildEvent("$a", OTHER_USER_ID));
+        mStore.storeLiveRoomEvent(buildEvent("$b", OTHER_USER_ID));
+        // the user events are not counted
+        mStore.storeLiveRoomEvent(buildEvent("$c", SELF_USER_ID));
+        mStore.storeLiveRoomEvent(buildEvent("$d", OTHER_USER_ID));
+
+        assertEquals(2, mStore.eventsCountAfter(ROOM_ID, "$a"));
+        assertEquals(1, mStore.eventsCountAfter(ROOM_ID, "$b"));
+        assertEquals(0, mStore.eventsCountAfter(ROOM_ID, "$d"));
+    }
+
+    @Test
+    public void testReceipts() {
+        mStore.storeLiveRoomEvent(buildEvent("$a", SELF_USER_ID));
+        mStore.storeLiveRoomEvent(buildEvent("$b", SELF_USER_ID));
+        mStore.storeLiveRoomEvent(buildEvent("$c", SELF_USER_ID));
+
+        assertTrue(mStore.storeReceipt(new ReceiptData(OTHER_USER_ID, "$a", 1), ROOM_ID));
+        assertTrue(mStore.storeReceipt(new ReceiptData(OTHER_USER_ID, "$b", 2), ROOM_ID));
+        // an older receipt is ignored
+        assertFalse(mStore.storeReceipt(new ReceiptData(OTHER_USER_ID, "$c", 0), ROOM_ID));
+        // the same receipt is ignored
+        assertFalse(mStore.storeReceipt(new ReceiptData(OTHER_USER_ID, "$b", 3), ROOM_ID));
+
+        assertEquals("$b", mStore.getReceipt(ROOM_ID, OTHER_USER_ID).eventId);
+        assertNull(mStore.getReceipt(ROOM_ID, "@carol:matrix.org"));
+
+        assertTrue(mStore.isEventRead(ROOM_ID, OTHER_USER_ID, "$a"));
+        assertTrue(mStore.isEventRead(ROOM_ID, OTHER_USER_ID, "$b"));
+        assertFalse(mStore.isEventRead(ROOM_ID, OTHER_USER_ID, "$c"));
+        assertFalse(mStore.isEventRead(ROOM_ID, "@carol:matrix.org", "$a"));
+
+        assertTrue(mStore.storeReceipt(new ReceiptData(SELF_USER_ID, "$b", 4), ROOM_ID));
+        assertEquals(2, mStore.getEventReceipts(ROOM_ID, "$b", false, false).size());
+        assertEquals(1, mStore.getEventReceipts(ROOM_ID, "$b", true, false).size());
+        assertEquals(0, mStore.getEventReceipts(ROOM_ID, "$a", false, false).size());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMediaDiskCacheTest {
+
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("medias", "");
+        assertTrue(mFolder.delete());
+        assertTrue(mFolder.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        MXMediaDiskCache.getInstance(mFolder).clear();
+
+        File[] files = mFolder.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        mFolder.delete();
+    }
+
+    private void writeFile(String fileName, int size) throws IOException {
+        FileOutputStream fos = new FileOutputStream(new File(mFolder, fileName));
+        fos.write(new byte[size]);
+        fos.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFilesAreEvicted() throws IOException {
+        MXMediaDiskCache diskCache = MXMediaDiskCache.getInstance(mFolder);
+
+        writeFile("file_a.jpg", 100);
+        diskCache.put("file_a.jpg");
+        writeFile("file_b.jpg", 100);
+        diskCache.put("file_b.jpg");
+        writeFile("file_c.jpg", 100);
+        diskCache.put("file_c.jpg");
+
+        assertEquals(300, diskCache.size());
+        assertNull(diskCache.get("file_d.jpg"));
+
+        // file_a becomes the most recently used one
+        assertNotNull(diskCache.get("file_a.jpg"));
+
+        diskCache.setMaxSize(200);
+        diskCache.trimToSize();
+
+        assertEquals(200, diskCache.size());
+        assertFalse(diskCache.contains("file_b.jpg"));
+        assertFalse(new File(mFolder, "file_b.jpg").exists());
+        assertTrue(diskCache.contains("file_a.jpg"));
+        assertTrue(diskCache.contains("file_c.jpg"));
+    }
+
+    @Test
+    public void testIndexIsReloadedFromTheJournal() throws IOException {
+        MXMediaDiskCache diskCache = MXMediaDiskCache.getInstance(mFolder);
+
+        writeFile("file_a.jpg", 10);
+        diskCache.put("file_a.jpg");
+        writeFile("file_b.jpg", 20);
+        diskCache.put("file_b.jpg");
+        diskCache.get("file_a.jpg");
+        diskCache.remove("file_b.jpg");
+
+        // an unindexed file is not listed when the journal exists
+        writeFile("file_c.jpg", 30);
+
+        diskCache.clear();
+
+        assertEquals(10, diskCache.size());
+        assertTrue(diskCache.contains("file_a.jpg"));
+        assertFalse(diskCache.contains("file_b.jpg"));
+        assertFalse(diskCache.contains("file_c.jpg"));
+    }
+
+    @Test
+    public void testIndexIsBuiltFromTheFolder() throws IOException {
+        writeFile("file_a.jpg", 10);
+        writeFile("file_b.jpg.tmp", 20);
+        writeFile("file123.jpg", 30);
+
+        MXMediaDiskCache diskCache = MXMediaDiskCache.getInstance(mFolder);
+
+        // only the downloaded medias and the partial downloads are indexed
+        assertEquals(30, diskCache.size());
+        assertTrue(diskCache.contains("file_a.jpg"));
+        assertTrue(diskCache.contains("file_b.jpg.tmp"));
+        assertFalse(diskCache.contains("file123.jpg"));
+    }
+
+    @Test
+    public void testExpiredPartialFilesAreDeleted() throws IOException {
+        MXMediaDiskCache diskCache = MXMediaDiskCache.getInstance(mFolder);
+
+        writeFile("file_a.jpg", 10);
+        diskCache.put("file_a.jpg");
+        writeFile("file_b.jpg.tmp", 20);
+        diskCache.put("file_b.jpg.tmp");
+        writeFile("file_c.jpg.tmp", 30);
+        diskCache.put("file_c.jpg.tmp");
+
+        assertEquals(60, diskCache.size());
+
+        // file_c.jpg.tmp has not been updated for too long
+        File expiredFile = new File(mFolder, "file_c.jpg.tmp");
+        assertTrue(expiredFile.setLastModified(System.currentTimeMillis() - MXMediaDiskCache.PARTIAL_FILE_MAX_AGE_MS - 1000));
+
+        // the partial files are expired when the index is loaded
+        diskCache.clear();
+
+        assertEquals(30, diskCache.size());
+        assertTrue(diskCache.contains("file_a.jpg"));
+        assertTrue(diskCache.contains("file_b.jpg.tmp"));
+        assertFalse(diskCache.contains("file_c.jpg.tmp"));
+        assertFalse(expiredFile.exists());
+    }
+}
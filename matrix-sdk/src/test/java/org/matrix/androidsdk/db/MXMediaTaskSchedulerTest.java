@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.db;
+
+import android.net.Uri;
+import android.widget.ImageView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXMediaTaskSchedulerTest {
+
+    // the download pool threads count
+    private static final int DOWNLOAD_THREADS_COUNT = 4;
+
+    private static final Runnable EMPTY_RUNNABLE = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static MXMediaTaskScheduler.PrioritizedRunnable buildRunnable(int priority, boolean isLifo, long sequence) {
+        return new MXMediaTaskScheduler.PrioritizedRunnable(EMPTY_RUNNABLE, null, priority, isLifo, sequence);
+    }
+
+    private static int sign(int value) {
+        return (value > 0) ? 1 : ((value < 0) ? -1 : 0);
+    }
+
+    /**
+     * A task which records its execution.
+     */
+    private static class RecordingRunnable implements Runnable {
+        private final String mName;
+        private final List<String> mExecutedNames;
+        private final CountDownLatch mLatch;
+
+        RecordingRunnable(String name, List<String> executedNames, CountDownLatch latch) {
+            mName = name;
+            mExecutedNames = executedNames;
+            mLatch = latch;
+        }
+
+        @Override
+        public void run() {
+            mExecutedNames.add(mName);
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Block the download threads until the returned latch is released.
+     */
+    private static CountDownLatch[] blockDownloadThreads(MXMediaTaskScheduler scheduler) throws InterruptedException {
+        final CountDownLatch startedLatch = new CountDownLatch(DOWNLOAD_THREADS_COUNT);
+        final CountDownLatch[] releaseLatches = new CountDownLatch[DOWNLOAD_THREADS_COUNT];
+
+        for (int i = 0; i < DOWNLOAD_THREADS_COUNT; i++) {
+            final CountDownLatch releaseLatch = new CountDownLatch(1);
+            releaseLatches[i] = releaseLatch;
+
+            scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, false).execute(new Runnable() {
+                @Override
+                public void run() {
+                    startedLatch.countDown();
+
+                    try {
+                        releaseLatch.await();
+                    } catch (InterruptedException e) {
+                        fail(e.getMessage());
+                    }
+                }
+            });
+        }
+
+        assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+        return releaseLatches;
+    }
+
+    private static void release(CountDownLatch[] latches) {
+        for (CountDownLatch latch : latches) {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testHigherPriorityIsRunFirst() {
+        MXMediaTaskScheduler.PrioritizedRunnable thumbnail = buildRunnable(MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, false, 10);
+        MXMediaTaskScheduler.PrioritizedRunnable prefetch = buildRunnable(MXMediaTaskScheduler.PRIORITY_PREFETCH, true, 20);
+
+        assertTrue(thumbnail.compareTo(prefetch) < 0);
+        assertTrue(prefetch.compareTo(thumbnail) > 0);
+    }
+
+    @Test
+    public void testLatestScrollDrivenRequestIsRunFirst() {
+        MXMediaTaskScheduler.PrioritizedRunnable first = buildRunnable(MXMediaTaskScheduler.PRIORITY_AVATAR, true, 1);
+        MXMediaTaskScheduler.PrioritizedRunnable second = buildRunnable(MXMediaTaskScheduler.PRIORITY_AVATAR, true, 2);
+        MXMediaTaskScheduler.PrioritizedRunnable fifo = buildRunnable(MXMediaTaskScheduler.PRIORITY_AVATAR, false, 0);
+
+        // LIFO within a priority
+        assertTrue(second.compareTo(first) < 0);
+        assertTrue(first.compareTo(second) > 0);
+
+        // the scroll driven requests are run before the other ones
+        assertTrue(first.compareTo(fifo) < 0);
+        assertTrue(fifo.compareTo(second) > 0);
+    }
+
+    @Test
+    public void testOtherRequestsAreRunInSubmissionOrder() {
+        MXMediaTaskScheduler.PrioritizedRunnable first = buildRunnable(MXMediaTaskScheduler.PRIORITY_FULL_MEDIA, false, 1);
+        MXMediaTaskScheduler.PrioritizedRunnable second = buildRunnable(MXMediaTaskScheduler.PRIORITY_FULL_MEDIA, false, 2);
+
+        assertTrue(first.compareTo(second) < 0);
+        assertTrue(second.compareTo(first) > 0);
+    }
+
+    @Test
+    public void testComparisonIsConsistentWhenSequencesTie() {
+        MXMediaTaskScheduler.PrioritizedRunnable lifo = buildRunnable(MXMediaTaskScheduler.PRIORITY_AVATAR, true, 5);
+        MXMediaTaskScheduler.PrioritizedRunnable fifo = buildRunnable(MXMediaTaskScheduler.PRIORITY_AVATAR, false, 5);
+        MXMediaTaskScheduler.PrioritizedRunnable sameLifo = buildRunnable(MXMediaTaskScheduler.PRIORITY_AVATAR, true, 5);
+
+        assertEquals(0, lifo.compareTo(sameLifo));
+        assertEquals(0, sameLifo.compareTo(lifo));
+        assertEquals(0, lifo.compareTo(lifo));
+
+        // the LIFO flag is compared before the sequence
+        assertTrue(lifo.compareTo(fifo) < 0);
+        assertTrue(fifo.compareTo(lifo) > 0);
+    }
+
+    @Test
+    public void testComparatorContract() {
+        List<MXMediaTaskScheduler.PrioritizedRunnable> runnables = new ArrayList<>();
+
+        for (int priority = MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL; priority <= MXMediaTaskScheduler.PRIORITY_PREFETCH; priority++) {
+            for (long sequence = 0; sequence < 4; sequence++) {
+                runnables.add(buildRunnable(priority, true, sequence));
+                runnables.add(buildRunnable(priority, false, sequence));
+            }
+        }
+
+        for (MXMediaTaskScheduler.PrioritizedRunnable a : runnables) {
+            for (MXMediaTaskScheduler.PrioritizedRunnable b : runnables) {
+                // antisymmetry
+                assertEquals(sign(a.compareTo(b)), -sign(b.compareTo(a)));
+
+                for (MXMediaTaskScheduler.PrioritizedRunnable c : runnables) {
+                    // transitivity
+                    if ((a.compareTo(b) < 0) && (b.compareTo(c) < 0)) {
+                        assertTrue(a.compareTo(c) < 0);
+                    }
+
+                    // consistency of the equal items
+                    if (0 == a.compareTo(b)) {
+                        assertEquals(sign(a.compareTo(c)), sign(b.compareTo(c)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPendingTasksAreRunByPriority() throws Exception {
+        MXMediaTaskScheduler scheduler = MXMediaTaskScheduler.getInstance();
+        CountDownLatch[] releaseLatches = blockDownloadThreads(scheduler);
+
+        List<String> executedNames = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(5);
+
+        scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_PREFETCH, false).execute(new RecordingRunnable("prefetch", executedNames, latch));
+        scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_FULL_MEDIA, false).execute(new RecordingRunnable("full media", executedNames, latch));
+        scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, true).execute(new RecordingRunnable("thumbnail 1", executedNames, latch));
+        scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_AVATAR, true).execute(new RecordingRunnable("avatar", executedNames, latch));
+        scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, true).execute(new RecordingRunnable("thumbnail 2", executedNames, latch));
+
+        assertEquals(5, scheduler.getPendingDownloadsCount());
+
+        // a single thread runs the pending tasks
+        releaseLatches[0].countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("thumbnail 2", "thumbnail 1", "avatar", "full media", "prefetch"), executedNames);
+
+        release(releaseLatches);
+    }
+
+    @Test
+    public void testPromotedTaskIsRunFirst() throws Exception {
+        MXMediaTaskScheduler scheduler = MXMediaTaskScheduler.getInstance();
+        CountDownLatch[] releaseLatches = blockDownloadThreads(scheduler);
+
+        List<String> executedNames = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(2);
+
+        MXMediaTaskScheduler.ScheduledTask task = new MXMediaTaskScheduler.ScheduledTask() {
+            @Override
+            public boolean isExpected() {
+                return true;
+            }
+
+            @Override
+            public void cancelBeforeRun() {
+            }
+        };
+
+        scheduler.getDownloadExecutor(task, MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, true).execute(new RecordingRunnable("scrolled away", executedNames, latch));
+        scheduler.getDownloadExecutor(null, MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, true).execute(new RecordingRunnable("latest", executedNames, latch));
+
+        // the first media is displayed again
+        scheduler.promote(task);
+        assertEquals(2, scheduler.getPendingDownloadsCount());
+
+        releaseLatches[0].countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("scrolled away", "latest"), executedNames);
+
+        release(releaseLatches);
+    }
+
+    @Test
+    public void testRecycledImageViewTaskIsCancelledAndRemoved() throws Exception {
+        String url = "mxc://matrix.org/recycled";
+
+        Credentials credentials = new Credentials();
+        credentials.userId = "@alice:matrix.org";
+
+        MXMediaDownloadWorkerTask task = new MXMediaDownloadWorkerTask(RuntimeEnvironment.application,
+                new HomeserverConnectionConfig(Uri.parse("http://localhost:8008"), credentials),
+                RuntimeEnvironment.application.getCacheDir(), url, "image/jpeg", null);
+
+        ImageView imageView = new ImageView(RuntimeEnvironment.application);
+        imageView.setTag(url);
+        task.addImageView(imageView);
+
+        assertTrue(task.isExpected());
+        assertSame(task, MXMediaDownloadWorkerTask.getMediaDownloadWorkerTask(url));
+
+        // the ImageView is recycled to display another media before the download starts
+        imageView.setTag("mxc://matrix.org/other");
+        assertFalse(task.isExpected());
+
+        final MXMediaDownloadWorkerTask fTask = task;
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Executor executor = MXMediaTaskScheduler.getInstance().getDownloadExecutor(task, MXMediaTaskScheduler.PRIORITY_VISIBLE_THUMBNAIL, true);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fTask.doInBackground();
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // the task has been cancelled without downloading anything, and it is not pending anymore
+        assertTrue(task.isDownloadCancelled());
+        assertNull(MXMediaDownloadWorkerTask.getMediaDownloadWorkerTask(url));
+    }
+}
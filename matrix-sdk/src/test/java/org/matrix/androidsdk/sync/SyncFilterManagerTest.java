@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.EventsRestClient;
+import org.matrix.androidsdk.rest.model.Filter.FilterBody;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncFilterManagerTest {
+
+    @Mock
+    private EventsRestClient mockEventsRestClient;
+
+    @Mock
+    private EventsThread mockEventsThread;
+
+    private MXMemoryStore mStore;
+    private SyncFilterManager mSyncFilterManager;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        Credentials credentials = new Credentials();
+        credentials.userId = "@alice:matrix.org";
+
+        mStore = new MXMemoryStore(credentials, RuntimeEnvironment.application);
+        mSyncFilterManager = new SyncFilterManager(mStore, mockEventsRestClient);
+    }
+
+    private static SyncFilterSettings buildSettings(int timelineLimit) {
+        SyncFilterSettings settings = new SyncFilterSettings();
+        settings.setTimelineLimit(timelineLimit);
+        return settings;
+    }
+
+    private ApiCallback<String> captureUploadCallback() {
+        ArgumentCaptor<ApiCallback> captor = ArgumentCaptor.forClass(ApiCallback.class);
+        verify(mockEventsRestClient).uploadFilter(any(FilterBody.class), captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void testNoFilter() {
+        mSyncFilterManager.applySyncFilter(mockEventsThread, null);
+        mSyncFilterManager.applySyncFilter(mockEventsThread, new SyncFilterSettings());
+
+        verify(mockEventsThread, times(2)).setFilterOrFilterId(null);
+        verify(mockEventsRestClient, never()).uploadFilter(any(FilterBody.class), any(ApiCallback.class));
+    }
+
+    @Test
+    public void testFilterIsInlineUntilItIsUploaded() {
+        SyncFilterSettings settings = buildSettings(10);
+        String filterJson = settings.toFilterBody().toJSONString();
+
+        mSyncFilterManager.applySyncFilter(mockEventsThread, settings);
+        verify(mockEventsThread).setFilterOrFilterId(filterJson);
+
+        captureUploadCallback().onSuccess("filterId");
+
+        verify(mockEventsThread).setFilterOrFilterId("filterId");
+        assertEquals("filterId", mStore.getSyncFilterId(filterJson));
+    }
+
+    @Test
+    public void testUploadedFilterIdIsReused() {
+        SyncFilterSettings settings = buildSettings(10);
+        mStore.setSyncFilterId(settings.toFilterBody().toJSONString(), "filterId");
+
+        mSyncFilterManager.applySyncFilter(mockEventsThread, settings);
+
+        verify(mockEventsThread).setFilterOrFilterId("filterId");
+        verify(mockEventsRestClient, never()).uploadFilter(any(FilterBody.class), any(ApiCallback.class));
+    }
+
+    @Test
+    public void testFilterIdIsNotReusedForOtherSettings() {
+        mStore.setSyncFilterId(buildSettings(10).toFilterBody().toJSONString(), "filterId");
+
+        SyncFilterSettings settings = buildSettings(20);
+        mSyncFilterManager.applySyncFilter(mockEventsThread, settings);
+
+        verify(mockEventsThread).setFilterOrFilterId(settings.toFilterBody().toJSONString());
+        verify(mockEventsThread, never()).setFilterOrFilterId("filterId");
+        verify(mockEventsRestClient).uploadFilter(any(FilterBody.class), any(ApiCallback.class));
+    }
+
+    @Test
+    public void testOutdatedUploadIsNotApplied() {
+        SyncFilterSettings settings = buildSettings(10);
+        String filterJson = settings.toFilterBody().toJSONString();
+
+        mSyncFilterManager.applySyncFilter(mockEventsThread, settings);
+        ApiCallback<String> uploadCallback = captureUploadCallback();
+
+        // the filter is removed before the upload completes
+        mSyncFilterManager.applySyncFilter(mockEventsThread, null);
+        uploadCallback.onSuccess("filterId");
+
+        verify(mockEventsThread, never()).setFilterOrFilterId("filterId");
+
+        // the filter id is still cached for the next sessions
+        assertEquals("filterId", mStore.getSyncFilterId(filterJson));
+    }
+
+    @Test
+    public void testFailedUploadKeepsTheInlineFilter() {
+        SyncFilterSettings settings = buildSettings(10);
+        String filterJson = settings.toFilterBody().toJSONString();
+
+        mSyncFilterManager.applySyncFilter(mockEventsThread, settings);
+        captureUploadCallback().onNetworkError(new Exception("network error"));
+
+        verify(mockEventsThread, times(1)).setFilterOrFilterId(anyString());
+        assertNull(mStore.getSyncFilterId(filterJson));
+    }
+}
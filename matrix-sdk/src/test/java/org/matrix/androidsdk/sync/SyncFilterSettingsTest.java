@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Filter.FilterBody;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncFilterSettingsTest {
+
+    @Test
+    public void testDefaultSettingsHaveNoFilter() {
+        SyncFilterSettings settings = new SyncFilterSettings();
+
+        assertTrue(settings.isEmpty());
+        assertNull(settings.toFilterBody());
+    }
+
+    @Test
+    public void testTimelineFilter() {
+        SyncFilterSettings settings = new SyncFilterSettings();
+        settings.setTimelineLimit(10);
+        settings.setTimelineEventTypes(Arrays.asList("m.room.message", "m.call.*"));
+
+        assertFalse(settings.isEmpty());
+        assertEquals("{\"room\":{\"timeline\":{\"limit\":10,\"types\":[\"m.room.message\",\"m.call.*\"]}}}", settings.toFilterBody().toJSONString());
+    }
+
+    @Test
+    public void testPresenceFilter() {
+        SyncFilterSettings settings = new SyncFilterSettings();
+        settings.setPresenceEnabled(false);
+
+        assertFalse(settings.isEmpty());
+        assertEquals("{\"presence\":{\"not_types\":[\"*\"]}}", settings.toFilterBody().toJSONString());
+    }
+
+    @Test
+    public void testLazyLoadMembersFilter() {
+        SyncFilterSettings settings = new SyncFilterSettings();
+        settings.setLazyLoadMembers(true);
+
+        assertFalse(settings.isEmpty());
+        assertEquals("{\"room\":{\"state\":{\"lazy_load_members\":true}}}", settings.toFilterBody().toJSONString());
+
+        settings.setTimelineLimit(20);
+
+        FilterBody filterBody = settings.toFilterBody();
+        assertEquals(Integer.valueOf(20), filterBody.room.timeline.limit);
+        assertNull(filterBody.room.timeline.lazyLoadMembers);
+        assertTrue(filterBody.room.state.lazyLoadMembers);
+    }
+
+    @Test
+    public void testNegativeTimelineLimitIsIgnored() {
+        SyncFilterSettings settings = new SyncFilterSettings();
+        settings.setTimelineLimit(-1);
+
+        assertEquals(0, settings.getTimelineLimit());
+        assertNull(settings.toFilterBody());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Sync.InvitedRoomSync;
+import org.matrix.androidsdk.rest.model.Sync.RoomSync;
+import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncResponseStreamTest {
+
+    // the rooms are before the to device events, like with a sorted keys response
+    private static final String SYNC_RESPONSE = "{"
+            + "\"account_data\":{\"events\":[]},"
+            + "\"next_batch\":\"s72595_4483_1934\","
+            + "\"rooms\":{"
+            + "\"invite\":{\"!c:matrix.org\":{\"invite_state\":{\"events\":[]}}},"
+            + "\"join\":{"
+            + "\"!a:matrix.org\":{\"timeline\":{\"events\":[{\"type\":\"m.room.message\",\"event_id\":\"$1\",\"content\":{\"body\":\"hello\"}}],\"limited\":false}},"
+            + "\"!b:matrix.org\":{\"timeline\":{\"events\":[]}}"
+            + "},"
+            + "\"leave\":null"
+            + "},"
+            + "\"to_device\":{\"events\":[{\"type\":\"m.room_key\",\"content\":{}}]}"
+            + "}";
+
+    @Test
+    public void testRoomsAreParsedOneByOne() throws IOException {
+        SyncResponseStream syncStream = new SyncResponseStream(new ByteArrayInputStream(SYNC_RESPONSE.getBytes("UTF-8")), null);
+
+        try {
+            SyncResponse syncResponse = syncStream.getSyncResponse();
+
+            assertEquals("s72595_4483_1934", syncResponse.nextBatch);
+            assertNull(syncResponse.rooms);
+            assertEquals(1, syncResponse.toDevice.events.size());
+
+            final List<String> roomIds = new ArrayList<>();
+
+            int count = syncStream.readRooms(SyncResponseStream.JOINED_ROOMS, RoomSync.class, new SyncResponseStream.RoomSyncCallback<RoomSync>() {
+                @Override
+                public void onRoomSync(String roomId, RoomSync roomSync) {
+                    roomIds.add(roomId);
+
+                    if ("!a:matrix.org".equals(roomId)) {
+                        assertEquals("$1", roomSync.timeline.events.get(0).eventId);
+                    }
+                }
+            });
+
+            assertEquals(2, count);
+            assertEquals(Arrays.asList("!a:matrix.org", "!b:matrix.org"), roomIds);
+
+            assertEquals(1, syncStream.readRooms(SyncResponseStream.INVITED_ROOMS, InvitedRoomSync.class, new SyncResponseStream.RoomSyncCallback<InvitedRoomSync>() {
+                @Override
+                public void onRoomSync(String roomId, InvitedRoomSync invitedRoomSync) {
+                    assertEquals("!c:matrix.org", roomId);
+                }
+            }));
+
+            assertEquals(0, syncStream.readRooms(SyncResponseStream.LEFT_ROOMS, RoomSync.class, new SyncResponseStream.RoomSyncCallback<RoomSync>() {
+                @Override
+                public void onRoomSync(String roomId, RoomSync roomSync) {
+                    fail("no left room");
+                }
+            }));
+        } finally {
+            syncStream.release();
+        }
+    }
+
+    @Test
+    public void testResponseIsSpooledInTheSpoolDirectory() throws IOException {
+        File spoolDirectory = SyncResponseStream.getSpoolDirectory(RuntimeEnvironment.application, "@alice:matrix.org");
+
+        SyncResponseStream syncStream = new SyncResponseStream(new ByteArrayInputStream(SYNC_RESPONSE.getBytes("UTF-8")), spoolDirectory);
+        assertEquals(1, spoolDirectory.listFiles().length);
+
+        syncStream.release();
+        assertEquals(0, spoolDirectory.listFiles().length);
+
+        // the responses which have not been released are purged
+        new SyncResponseStream(new ByteArrayInputStream(SYNC_RESPONSE.getBytes("UTF-8")), spoolDirectory);
+        assertEquals(1, spoolDirectory.listFiles().length);
+
+        SyncResponseStream.purgeSpoolDirectory(spoolDirectory);
+        assertEquals(0, spoolDirectory.listFiles().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedResponse() throws IOException {
+        new SyncResponseStream(new ByteArrayInputStream("{\"next_batch\":".getBytes("UTF-8")), null);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.bingrules.BingRule;
+import org.matrix.androidsdk.rest.model.bingrules.Condition;
+import org.matrix.androidsdk.rest.model.bingrules.EventMatchCondition;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class BingRulesEvaluatorTest {
+
+    private static final String MY_USER_ID = "@alice:matrix.org";
+
+    private static final BingRulesEvaluator.IEnvironment ENVIRONMENT = new BingRulesEvaluator.IEnvironment() {
+        @Override
+        public String getMyDisplayName() {
+            return "Alice (home)";
+        }
+
+        @Override
+        public Room getRoom(String roomId) {
+            return null;
+        }
+    };
+
+    private static BingRule rule(String ruleId, String... keysAndPatterns) {
+        BingRule rule = new BingRule();
+        rule.ruleId = ruleId;
+
+        for (int i = 0; i < keysAndPatterns.length; i += 2) {
+            EventMatchCondition condition = new EventMatchCondition();
+            condition.kind = Condition.KIND_EVENT_MATCH;
+            condition.key = keysAndPatterns[i];
+            condition.pattern = keysAndPatterns[i + 1];
+            rule.addCondition(condition);
+        }
+
+        return rule;
+    }
+
+    private static List<BingRule> defaultRules() {
+        return Arrays.asList(
+                rule(".m.rule.suppress_notices", "content.msgtype", "m.notice"),
+                rule(".m.rule.invite_for_me", "type", "m.room.member", "content.membership", "invite", "state_key", MY_USER_ID),
+                rule(".m.rule.member_event", "type", "m.room.member"),
+                rule(BingRule.RULE_ID_CONTAIN_DISPLAY_NAME),
+                rule(BingRule.RULE_ID_CONTAIN_USER_NAME),
+                rule("lunch", "content.body", "lunch"),
+                rule("!quiet:matrix.org", "room_id", "!quiet:matrix.org"),
+                rule("@bot*", "user_id", "@bot*"),
+                rule(".m.rule.call", "type", "m.call.invite"),
+                rule(".m.rule.message", "type", "m.room.message"));
+    }
+
+    private static Event message(String roomId, String sender, String msgtype, String body) {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", msgtype);
+        content.addProperty("body", body);
+        return new Event(Event.EVENT_TYPE_MESSAGE, content, sender, roomId);
+    }
+
+    /**
+     * The legacy evaluation of the event_match conditions.
+     */
+    private static BingRule legacyFulfilledBingRule(List<BingRule> rules, Event event) {
+        for (BingRule rule : rules) {
+            if (rule.isEnabled && (null != rule.conditions)) {
+                boolean isFulfilled = true;
+
+                for (Condition condition : rule.conditions) {
+                    isFulfilled &= ((EventMatchCondition) condition).isSatisfied(event);
+                }
+
+                if (isFulfilled) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testEventMatchConditions() {
+        List<BingRule> rules = new ArrayList<>(defaultRules());
+        // the legacy evaluation does not manage the name rules
+        rules.remove(3);
+        rules.remove(3);
+
+        BingRulesEvaluator evaluator = new BingRulesEvaluator(rules, MY_USER_ID, ENVIRONMENT);
+
+        JsonObject inviteContent = new JsonObject();
+        inviteContent.addProperty("membership", "invite");
+        Event invite = new Event(Event.EVENT_TYPE_STATE_ROOM_MEMBER, inviteContent, "@bob:matrix.org", "!room:matrix.org");
+        invite.stateKey = MY_USER_ID;
+
+        List<Event> events = Arrays.asList(
+                message("!room:matrix.org", "@bob:matrix.org", "m.text", "hello"),
+                message("!room:matrix.org", "@bob:matrix.org", "m.notice", "hello"),
+                message("!room:matrix.org", "@bob:matrix.org", "m.text", "LUNCH time"),
+                message("!room:matrix.org", "@bob:matrix.org", "m.text", "lunchtime"),
+                message("!quiet:matrix.org", "@bob:matrix.org", "m.text", "hello"),
+                message("!room:matrix.org", "@bot_1:matrix.org", "m.text", "hello"),
+                new Event("m.call.invite", new JsonObject(), "@bob:matrix.org", "!room:matrix.org"),
+                new Event("m.room.topic", new JsonObject(), "@bob:matrix.org", "!room:matrix.org"),
+                invite);
+
+        for (Event event : events) {
+            assertSame(legacyFulfilledBingRule(rules, event), evaluator.getFulfilledBingRule(event));
+        }
+
+        assertEquals("lunch", evaluator.getFulfilledBingRule(events.get(2)).ruleId);
+        assertEquals(".m.rule.invite_for_me", evaluator.getFulfilledBingRule(invite).ruleId);
+        assertNull(evaluator.getFulfilledBingRule(events.get(7)));
+
+        // the enable status is read at evaluation time
+        rules.get(0).isEnabled = false;
+        assertEquals(".m.rule.message", evaluator.getFulfilledBingRule(events.get(1)).ruleId);
+    }
+
+    @Test
+    public void testNameRules() {
+        BingRulesEvaluator evaluator = new BingRulesEvaluator(defaultRules(), MY_USER_ID, ENVIRONMENT);
+
+        assertEquals(BingRule.RULE_ID_CONTAIN_DISPLAY_NAME,
+                evaluator.getFulfilledBingRule(message("!room:matrix.org", "@bob:matrix.org", "m.text", "hi alice (HOME)!")).ruleId);
+        assertEquals(BingRule.RULE_ID_CONTAIN_USER_NAME,
+                evaluator.getFulfilledBingRule(message("!room:matrix.org", "@bob:matrix.org", "m.text", "hi Alice")).ruleId);
+        assertEquals(".m.rule.message",
+                evaluator.getFulfilledBingRule(message("!room:matrix.org", "@bob:matrix.org", "m.text", "hi alicent")).ruleId);
+    }
+
+    /**
+     * Evaluations per second benchmark of the compiled rules versus the legacy evaluation.
+     * It only prints the timings, remove the Ignore annotation to reproduce them.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void testEvaluationThroughput() {
+        List<BingRule> rules = defaultRules();
+        BingRulesEvaluator evaluator = new BingRulesEvaluator(rules, MY_USER_ID, ENVIRONMENT);
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.add(message("!room" + (i % 10) + ":matrix.org", "@user" + i + ":matrix.org", "m.text", "message number " + i));
+        }
+
+        int count = 20000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            assertNotNull(evaluator.getFulfilledBingRule(events.get(i % events.size())));
+        }
+        long compiledDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            legacyFulfilledBingRule(rules, events.get(i % events.size()));
+        }
+        long legacyDuration = System.nanoTime() - start;
+
+        System.out.println("BingRulesEvaluatorTest : " + (count * 1000000000L / Math.max(1, compiledDuration)) + " compiled evaluations / s, "
+                + (count * 1000000000L / Math.max(1, legacyDuration)) + " legacy evaluations / s");
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class CodecUtilsTest {
+
+    private static Object writeAndRead(Object object) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(object);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        return in.readObject();
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            builder.append("é");
+        }
+        String longString = builder.toString();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        CodecUtils.writeString(out, null);
+        CodecUtils.writeString(out, Event.EVENT_TYPE_STATE_ROOM_MEMBER);
+        CodecUtils.writeString(out, longString);
+        CodecUtils.writeVarLong(out, 1491316145000L);
+        CodecUtils.writeVarInt(out, -1);
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertNull(CodecUtils.readString(in));
+        // the well-known strings are shared
+        assertSame(Event.EVENT_TYPE_STATE_ROOM_MEMBER, CodecUtils.readString(in));
+        assertEquals(longString, CodecUtils.readString(in));
+        assertEquals(1491316145000L, CodecUtils.readVarLong(in));
+        assertEquals(-1, CodecUtils.readVarInt(in));
+    }
+
+    @Test
+    public void testEvent() throws Exception {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+        content.addProperty("body", "hello");
+
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.eventId = "$eventId";
+        event.roomId = "!roomId:matrix.org";
+        event.sender = "@alice:matrix.org";
+        event.originServerTs = 1491316145000L;
+        event.updateContent(content);
+
+        Event copy = (Event) writeAndRead(event);
+
+        assertEquals(event.type, copy.type);
+        assertEquals(event.eventId, copy.eventId);
+        assertEquals(event.roomId, copy.roomId);
+        assertEquals(event.sender, copy.sender);
+        assertEquals(event.originServerTs, copy.originServerTs);
+        assertEquals(event.mSentState, copy.mSentState);
+
+        // the content is parsed when it is used
+        assertNull(copy.content);
+        assertEquals("hello", copy.getContentAsJsonObject().get("body").getAsString());
+    }
+
+    @Test
+    public void testRoomMember() throws Exception {
+        RoomMember member = new RoomMember();
+        member.setUserId("@alice:matrix.org");
+        member.displayname = "Alice";
+        member.membership = RoomMember.MEMBERSHIP_JOIN;
+        member.is_direct = true;
+        member.setOriginServerTs(1491316145000L);
+
+        RoomMember copy = (RoomMember) writeAndRead(member);
+
+        assertEquals(member.getUserId(), copy.getUserId());
+        assertEquals(member.displayname, copy.displayname);
+        assertEquals(member.membership, copy.membership);
+        assertEquals(member.is_direct, copy.is_direct);
+        assertNull(copy.avatarUrl);
+        assertEquals(member.getOriginServerTs(), copy.getOriginServerTs());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class MXPersistentMapTest {
+
+    @Test
+    public void testUpdatesDoNotImpactPreviousMaps() {
+        MXPersistentMap<String, String> map1 = MXPersistentMap.<String, String>empty().plus("@alice:matrix.org", "join");
+        MXPersistentMap<String, String> map2 = map1.plus("@bob:matrix.org", "invite");
+        MXPersistentMap<String, String> map3 = map2.plus("@alice:matrix.org", "leave").minus("@bob:matrix.org");
+
+        assertEquals(1, map1.size());
+        assertEquals("join", map1.get("@alice:matrix.org"));
+        assertNull(map1.get("@bob:matrix.org"));
+
+        assertEquals(2, map2.size());
+        assertEquals("join", map2.get("@alice:matrix.org"));
+        assertEquals("invite", map2.get("@bob:matrix.org"));
+
+        assertEquals(1, map3.size());
+        assertEquals("leave", map3.get("@alice:matrix.org"));
+        assertFalse(map3.containsKey("@bob:matrix.org"));
+
+        // unknown key
+        assertSame(map3, map3.minus("@carl:matrix.org"));
+        assertTrue(map3.minus("@alice:matrix.org").isEmpty());
+    }
+
+    @Test
+    public void testHashCodeCollisions() {
+        // "Aa" and "BB" have the same hash code
+        MXPersistentMap<String, Integer> map = MXPersistentMap.<String, Integer>empty().plus("Aa", 1).plus("BB", 2);
+        MXPersistentMap<String, Integer> updatedMap = map.plus("BB", 3).minus("Aa");
+
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(1), map.get("Aa"));
+        assertEquals(Integer.valueOf(2), map.get("BB"));
+
+        assertEquals(1, updatedMap.size());
+        assertNull(updatedMap.get("Aa"));
+        assertEquals(Integer.valueOf(3), updatedMap.get("BB"));
+    }
+
+    @Test
+    public void testLargeMap() {
+        HashMap<Integer, Integer> reference = new HashMap<>();
+        MXPersistentMap<Integer, Integer> map = MXPersistentMap.empty();
+
+        // a large room members count
+        for (int i = 0; i < 5000; i++) {
+            reference.put(i << 16, i);
+            map = map.plus(i << 16, i);
+        }
+
+        for (int i = 0; i < 5000; i += 3) {
+            reference.remove(i << 16);
+            map = map.minus(i << 16);
+        }
+
+        assertEquals(reference.size(), map.size());
+        assertEquals(reference.keySet(), new HashSet<>(map.keys()));
+        assertEquals(new HashSet<>(reference.values()), new HashSet<>(map.values()));
+
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(reference.get(i << 16), map.get(i << 16));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.junit.Test;
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MXStringsPoolTest {
+
+    @Test
+    public void testInternReturnsSharedInstance() {
+        String first = new String("@alice:matrix.org");
+        String second = new String("@alice:matrix.org");
+
+        assertSame(first, MXStringsPool.intern(first));
+        assertSame(first, MXStringsPool.intern(second));
+        assertNull(MXStringsPool.intern(null));
+        assertTrue(MXStringsPool.getHitRate() > 0);
+        assertTrue(MXStringsPool.getRetainedSize() > 0);
+    }
+
+    @Test
+    public void testLongStringsAreNotPooled() {
+        char[] chars = new char[MXStringsPool.MAX_POOLED_STRING_LENGTH + 1];
+        Arrays.fill(chars, 'a');
+
+        String first = new String(chars);
+        String second = new String(chars);
+
+        MXStringsPool.intern(first);
+        assertSame(second, MXStringsPool.intern(second));
+    }
+
+    @Test
+    public void testParsedIdentifiersArePooled() {
+        String json = "[{\"type\":\"m.room.message\",\"event_id\":\"$1\",\"room_id\":\"!room:matrix.org\",\"sender\":\"@bob:matrix.org\"},"
+                + "{\"type\":\"m.room.message\",\"event_id\":\"$2\",\"room_id\":\"!room:matrix.org\",\"sender\":\"@bob:matrix.org\",\"state_key\":null}]";
+
+        Event[] events = JsonUtils.getGson(false).fromJson(json, Event[].class);
+
+        assertEquals("@bob:matrix.org", events[0].sender);
+        assertSame(events[0].sender, events[1].sender);
+        assertSame(events[0].roomId, events[1].roomId);
+        assertSame(events[0].type, events[1].type);
+        assertNull(events[1].stateKey);
+    }
+
+    @Test
+    public void testOtherParsedStringsAreNotPooled() {
+        String[] bodies = JsonUtils.getGson(false).fromJson("[\"hello world\", \"hello world\"]", String[].class);
+
+        assertEquals(bodies[0], bodies[1]);
+        assertNotSame(bodies[0], bodies[1]);
+    }
+}
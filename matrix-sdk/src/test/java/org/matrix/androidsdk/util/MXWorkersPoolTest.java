@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class MXWorkersPoolTest {
+
+    private MXWorkersPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new MXWorkersPool("MXWorkersPoolTest", 3);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.release();
+    }
+
+    private long getCompletedTasksCount() {
+        long completedTasksCount = 0;
+
+        for (long count : mPool.getCompletedTasksCounts()) {
+            completedTasksCount += count;
+        }
+
+        return completedTasksCount;
+    }
+
+    /**
+     * The completed tasks count is updated once the task has run.
+     */
+    private void waitForCompletedTasksCount(long expectedCount) throws InterruptedException {
+        for (int i = 0; (i < 100) && (getCompletedTasksCount() < expectedCount); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(expectedCount, getCompletedTasksCount());
+    }
+
+    @Test
+    public void testPartitionTasksRunInPostingOrder() throws Exception {
+        final String[] partitionKeys = new String[]{"!room1:matrix.org", "!room2:matrix.org", "!room3:matrix.org", "!room4:matrix.org"};
+        final HashMap<String, List<Integer>> runTasks = new HashMap<>();
+
+        for (String partitionKey : partitionKeys) {
+            runTasks.put(partitionKey, new ArrayList<Integer>());
+        }
+
+        final CountDownLatch latch = new CountDownLatch(200);
+
+        for (int i = 0; i < 200; i++) {
+            final String partitionKey = partitionKeys[i % partitionKeys.length];
+            final int index = i;
+
+            assertTrue(mPool.post(partitionKey, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (runTasks) {
+                        runTasks.get(partitionKey).add(index);
+                    }
+                    latch.countDown();
+                }
+            }));
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        for (String partitionKey : partitionKeys) {
+            List<Integer> indexes = runTasks.get(partitionKey);
+            assertEquals(50, indexes.size());
+
+            for (int i = 1; i < indexes.size(); i++) {
+                assertTrue(indexes.get(i - 1) < indexes.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionIsBoundToAWorker() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(20);
+
+        for (int i = 0; i < 20; i++) {
+            mPool.post("!room:matrix.org", new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        waitForCompletedTasksCount(20);
+
+        int usedWorkersCount = 0;
+
+        for (long count : mPool.getCompletedTasksCounts()) {
+            if (count > 0) {
+                assertEquals(20, count);
+                usedWorkersCount++;
+            }
+        }
+
+        assertEquals(1, usedWorkersCount);
+
+        for (int depth : mPool.getQueueDepths()) {
+            assertEquals(0, depth);
+        }
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheWorker() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        mPool.post("!room:matrix.org", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failure");
+            }
+        });
+
+        mPool.post("!room:matrix.org", new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        waitForCompletedTasksCount(2);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class TmpFileInputStreamTest {
+
+    private static byte[] readAll(InputStream stream) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+
+        while ((len = stream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, len);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void testSpooledFileIsDeletedOnClose() throws Exception {
+        byte[] content = new byte[100 * 1024 + 5];
+        new Random(42).nextBytes(content);
+
+        TmpFileInputStream stream = TmpFileInputStream.spool(new ByteArrayInputStream(content));
+        File file = stream.getFile();
+
+        assertTrue(file.exists());
+        assertEquals(content.length, file.length());
+
+        // the file can be read again, e.g. to retry an upload
+        FileInputStream retryStream = new FileInputStream(file);
+        assertTrue(Arrays.equals(content, readAll(retryStream)));
+        retryStream.close();
+
+        assertTrue(Arrays.equals(content, readAll(stream)));
+        stream.close();
+
+        assertFalse(file.exists());
+
+        // closing twice is harmless
+        stream.close();
+    }
+}